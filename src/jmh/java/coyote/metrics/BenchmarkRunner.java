@@ -0,0 +1,41 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks once for each of several thread counts, so contention regressions show up as a change in
+ * how throughput scales rather than only in single threaded numbers.
+ * <pre>
+ * java coyote.metrics.BenchmarkRunner [include regex] [thread counts, default 1,2,4,8] [result directory]
+ * </pre>
+ *
+ * <p>The results of each thread count are written in JMH's JSON format to {@code threads-N.json} in the result
+ * directory, default {@code build/reports/jmh}, for comparison between builds.</p>
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    final String include = (args.length > 0) ? args[0] : "coyote\\.metrics\\..*Benchmark";
+    final String threads = (args.length > 1) ? args[1] : "1,2,4,8";
+    final File results = new File((args.length > 2) ? args[2] : "build/reports/jmh");
+    if (!results.isDirectory() && !results.mkdirs()) {
+      throw new IllegalArgumentException("Cannot create the result directory " + results);
+    }
+    for (final String count : threads.split(",")) {
+      final Options options = new OptionsBuilder()
+          .include(include)
+          .threads(Integer.parseInt(count.trim()))
+          .resultFormat(ResultFormatType.JSON)
+          .result(new File(results, "threads-" + count.trim() + ".json").getPath())
+          .build();
+      new Runner(options).run();
+    }
+  }
+
+}
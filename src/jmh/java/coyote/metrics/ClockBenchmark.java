@@ -0,0 +1,82 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of reading each clock and of timing an interval with it, in nanoseconds per call; the difference between
+ * the system and coarse clocks is what the coarse clock saves on each timer start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+  @Param({"system", "coarse"})
+  public String clock;
+
+  private Clock source;
+  private TimingMaster master;
+
+
+  @Setup
+  public void setup() {
+    source = clock.equals("coarse") ? new CoarseClock() : Clock.SYSTEM;
+    ScoreCard.setClock(source);
+    ScoreCard.enableTiming();
+    master = ScoreCard.getOrCreateTimerMaster("jmh_clock");
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ScoreCard.setClock(null);
+    if (source instanceof CoarseClock) {
+      ((CoarseClock) source).close();
+    }
+  }
+
+
+  @Benchmark
+  public long millis() {
+    return source.millis();
+  }
+
+
+  @Benchmark
+  public long nanos() {
+    return source.nanos();
+  }
+
+
+  @Benchmark
+  public Timer startStop() {
+    final Timer retval = master.createTimer();
+    retval.start();
+    retval.stop();
+    return retval;
+  }
+
+
+  @Benchmark
+  public long record() {
+    master.record(42);
+    return master.getSampleCount();
+  }
+
+}
@@ -0,0 +1,99 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting the whole ScoreCard in each exposition format, with a given number of series split evenly between
+ * counters, gauges and histogram timers.
+ *
+ * <p>Export runs concurrently with updates in practice, so the benchmark keeps the monitors changing between
+ * iterations rather than exporting a frozen registry.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmark {
+  @Param({"10", "1000", "10000"})
+  public int series;
+
+  private final Utf8Buffer buffer = new Utf8Buffer(64 * 1024);
+  private final OutputStream discard = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+
+  @Setup(Level.Trial)
+  public void setup() {
+    for (int i = 0; i < series / 3; i++) {
+      ScoreCard.getCounter("jmh_export_counter_" + i).addLabel("endpoint", "/api/v1/resource/" + i);
+      ScoreCard.getGauge("jmh_export_gauge_" + i);
+      ScoreCard.getOrCreateTimerMaster("jmh_export_timer_" + i).addLabel("endpoint", "/api/v1/resource/" + i);
+    }
+  }
+
+
+  @Setup(Level.Iteration)
+  public void update() {
+    for (int i = 0; i < series / 3; i++) {
+      ScoreCard.incrementCounter("jmh_export_counter_" + i);
+      ScoreCard.increaseGauge("jmh_export_gauge_" + i, i % 17);
+      ScoreCard.getOrCreateTimerMaster("jmh_export_timer_" + i).record(i % 500);
+    }
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (int i = 0; i < series / 3; i++) {
+      ScoreCard.removeCounter("jmh_export_counter_" + i);
+      ScoreCard.removeGauge("jmh_export_gauge_" + i);
+    }
+  }
+
+
+  @Benchmark
+  public int openMetrics() {
+    buffer.reset();
+    MetricFormatter.writeScoreCardToOpenMetrics(buffer);
+    return buffer.length();
+  }
+
+
+  @Benchmark
+  public void protobuf() throws IOException {
+    MetricFormatter.writeScoreCardToProtobuf(discard);
+  }
+
+
+  @Benchmark
+  public void json() throws IOException {
+    MetricFormatter.writeScoreCardToJson(discard, false);
+  }
+
+}
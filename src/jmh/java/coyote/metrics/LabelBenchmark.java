@@ -0,0 +1,73 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up and setting the labels of a monitor with a given number of labels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelBenchmark {
+  @Param({"1", "8"})
+  public int labels;
+
+  private Counter counter;
+  private TimingMaster master;
+  private String last;
+
+
+  @Setup
+  public void setup() {
+    counter = new Counter("jmh_labeled");
+    master = new TimingMaster("jmh_labeled_timer");
+    for (int i = 0; i < labels; i++) {
+      last = "label_" + i;
+      counter.addLabel(last, "value_" + i);
+      master.addLabel(last, "value_" + i);
+    }
+  }
+
+
+  @Benchmark
+  public String counterLabelValue() {
+    return counter.getLabelValue(last);
+  }
+
+
+  @Benchmark
+  public boolean counterHasLabel() {
+    return counter.hasLabel(last);
+  }
+
+
+  @Benchmark
+  public String timerLabelValue() {
+    return master.getLabelValue(last);
+  }
+
+
+  /**
+   * Setting a label to the value it already has, as instrumentation labeling on every call does.
+   */
+  @Benchmark
+  public Labeled counterAddLabel() {
+    return counter.addLabel(last, "value_" + (labels - 1));
+  }
+
+}
@@ -0,0 +1,108 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creating, removing and looking up monitors in a ScoreCard holding a given number of counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+  private static final int NAMES = 1024;
+
+  @Param({"10", "1000", "100000"})
+  public int size;
+
+  private String existing;
+
+
+  @Setup(Level.Trial)
+  public void setup() {
+    for (int i = 0; i < size; i++) {
+      ScoreCard.getCounter("jmh_registered_" + i);
+    }
+    existing = "jmh_registered_" + (size / 2);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (int i = 0; i < size; i++) {
+      ScoreCard.removeCounter("jmh_registered_" + i);
+    }
+  }
+
+
+  /**
+   * Names of monitors which do not exist yet, made in advance so building them is not measured.
+   */
+  @State(Scope.Thread)
+  public static class Names {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    final String[] names = new String[NAMES];
+    int next = 0;
+
+
+    @Setup
+    public void setup() {
+      final int thread = THREADS.incrementAndGet();
+      for (int i = 0; i < NAMES; i++) {
+        names[i] = "jmh_created_" + thread + "_" + i;
+      }
+    }
+
+
+    String next() {
+      next = (next + 1) & (NAMES - 1);
+      return names[next];
+    }
+  }
+
+
+  @Benchmark
+  public Counter lookupCounter() {
+    return ScoreCard.getCounter(existing);
+  }
+
+
+  @Benchmark
+  public TimingMaster lookupTimer() {
+    return ScoreCard.getOrCreateTimerMaster("jmh_registered_timer");
+  }
+
+
+  @Benchmark
+  public Counter createAndRemoveCounter(Names names) {
+    final String name = names.next();
+    ScoreCard.getCounter(name);
+    return ScoreCard.removeCounter(name);
+  }
+
+
+  @Benchmark
+  public Gauge createAndRemoveGauge(Names names) {
+    final String name = names.next();
+    ScoreCard.getGauge(name);
+    return ScoreCard.removeGauge(name);
+  }
+
+}
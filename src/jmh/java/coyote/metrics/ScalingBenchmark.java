@@ -0,0 +1,385 @@
+package coyote.metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how the throughput of counter, timer and gauge updates through the ScoreCard scales with the number of
+ * threads, with every thread updating the same monitor and with each thread updating a monitor of its own.
+ * <pre>
+ * java coyote.metrics.ScalingBenchmark [threads=1,2,4,8] [warmup=1000] [measure=3000] [out=build/reports/scaling]
+ *                                     [baseline=previous/scaling.csv] [tolerance=0.10]
+ * </pre>
+ *
+ * <p>Each scenario runs for a warmup and then a measured period at each thread count, by default every power of two
+ * up to the number of processors. The results are the operations per second, percentiles of the time an operation
+ * took, and the scaling efficiency: the throughput divided by what the first thread count would reach if it scaled
+ * linearly. An operation is too short to time on its own, so each thread times batches of {@value #BATCH} and records
+ * the mean of each batch; the percentiles describe how that mean varies, which is where contention shows up.</p>
+ *
+ * <p>The results are printed and written to {@code scaling.json} and {@code scaling.csv} in the output directory. Given
+ * the CSV of a previous build as a baseline, the results are compared with it and the run fails if the throughput of
+ * any scenario fell by more than the tolerance, so a build can check for regressions automatically.</p>
+ */
+public class ScalingBenchmark {
+  private static final int BATCH = 16;
+  private static final String CSV_HEADER = "scenario,names,threads,operations,ops_per_sec,p50_ns,p90_ns,p99_ns,p999_ns,max_ns,efficiency";
+
+  private static volatile int phase = 0;
+  private static final int WARMUP = 0;
+  private static final int MEASURE = 1;
+  private static final int STOP = 2;
+
+
+  /**
+   * The operation a scenario measures.
+   */
+  private abstract static class Scenario {
+    final String name;
+    final boolean distinct;
+    String[] names;
+
+
+    Scenario(final String name, final boolean distinct) {
+      this.name = name;
+      this.distinct = distinct;
+    }
+
+
+    /**
+     * Create the names the threads update, all the same or one for each thread.
+     */
+    void prepare(final int threads) {
+      names = new String[threads];
+      for (int i = 0; i < threads; i++) {
+        names[i] = "scaling_" + name + (distinct ? "_" + i : "");
+      }
+    }
+
+
+    /**
+     * Perform one operation.
+     *
+     * @param name      the name of the monitor to update
+     * @param iteration the number of the operation within its batch
+     */
+    abstract void run(String name, int iteration);
+  }
+
+
+  /**
+   * The result of a scenario at one thread count.
+   */
+  private static class Result {
+    Scenario scenario;
+    int threads;
+    long operations;
+    double opsPerSec;
+    long[] percentiles;
+    long max;
+    double efficiency;
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new HashMap<>();
+    for (final String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals < 1) {
+        throw new IllegalArgumentException("Arguments are name=value pairs: " + arg);
+      }
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    final int[] threadCounts = threadCounts(options.get("threads"));
+    final long warmup = Long.parseLong(option(options, "warmup", "1000"));
+    final long measure = Long.parseLong(option(options, "measure", "3000"));
+    final File out = new File(option(options, "out", "build/reports/scaling"));
+
+    final List<Scenario> scenarios = new ArrayList<>();
+    for (final boolean distinct : new boolean[]{false, true}) {
+      scenarios.add(new Scenario("counter", distinct) {
+        @Override
+        void run(final String name, final int iteration) {
+          ScoreCard.incrementCounter(name);
+        }
+      });
+      scenarios.add(new Scenario("timer", distinct) {
+        @Override
+        void run(final String name, final int iteration) {
+          ScoreCard.startTimer(name).stop();
+        }
+      });
+      scenarios.add(new Scenario("gauge", distinct) {
+        @Override
+        void run(final String name, final int iteration) {
+          if ((iteration & 1) == 0) {
+            ScoreCard.incrementGauge(name);
+          } else {
+            ScoreCard.decrementGauge(name);
+          }
+        }
+      });
+    }
+
+    final List<Result> results = new ArrayList<>();
+    System.out.println(CSV_HEADER);
+    for (final Scenario scenario : scenarios) {
+      double baseline = 0;
+      for (final int threads : threadCounts) {
+        final Result result = run(scenario, threads, warmup, measure);
+        if (baseline == 0) {
+          baseline = result.opsPerSec / threads;
+        }
+        result.efficiency = result.opsPerSec / (baseline * threads);
+        results.add(result);
+        System.out.println(csv(result));
+      }
+    }
+
+    if (!out.isDirectory() && !out.mkdirs()) {
+      throw new IOException("Cannot create the output directory " + out);
+    }
+    writeCsv(new File(out, "scaling.csv"), results);
+    writeJson(new File(out, "scaling.json"), results, warmup, measure);
+    System.out.println("Results written to " + out);
+
+    final String previous = options.get("baseline");
+    if (previous != null && compare(new File(previous), results, Double.parseDouble(option(options, "tolerance", "0.10"))) > 0) {
+      System.exit(1);
+    }
+  }
+
+
+  private static String option(final Map<String, String> options, final String name, final String defaultValue) {
+    final String retval = options.get(name);
+    return (retval != null) ? retval : defaultValue;
+  }
+
+
+  /**
+   * @return the given thread counts, or every power of two up to the number of processors and the number itself.
+   */
+  private static int[] threadCounts(final String list) {
+    if (list != null) {
+      final String[] counts = list.split(",");
+      final int[] retval = new int[counts.length];
+      for (int i = 0; i < counts.length; i++) {
+        retval[i] = Integer.parseInt(counts[i].trim());
+      }
+      return retval;
+    }
+    final int processors = Runtime.getRuntime().availableProcessors();
+    final List<Integer> counts = new ArrayList<>();
+    for (int count = 1; count < processors; count *= 2) {
+      counts.add(count);
+    }
+    counts.add(processors);
+    final int[] retval = new int[counts.size()];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = counts.get(i);
+    }
+    return retval;
+  }
+
+
+  private static Result run(final Scenario scenario, final int threads, final long warmup, final long measure) throws InterruptedException {
+    scenario.prepare(threads);
+    final LatencyHistogram[] histograms = new LatencyHistogram[threads];
+    final long[] operations = new long[threads];
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch done = new CountDownLatch(threads);
+    phase = WARMUP;
+    for (int i = 0; i < threads; i++) {
+      final int index = i;
+      histograms[i] = new LatencyHistogram();
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          final String name = scenario.names[index];
+          final LatencyHistogram histogram = histograms[index];
+          long count = 0;
+          ready.countDown();
+          int current;
+          while ((current = phase) != STOP) {
+            final long start = System.nanoTime();
+            for (int j = 0; j < BATCH; j++) {
+              scenario.run(name, j);
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (current == MEASURE) {
+              histogram.record(elapsed / BATCH);
+              count += BATCH;
+            }
+          }
+          operations[index] = count;
+          done.countDown();
+        }
+      }, "ScalingBenchmark-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    ready.await();
+    Thread.sleep(warmup);
+    final long start = System.nanoTime();
+    phase = MEASURE;
+    Thread.sleep(measure);
+    phase = STOP;
+    final long elapsed = System.nanoTime() - start;
+    done.await();
+
+    final Result retval = new Result();
+    retval.scenario = scenario;
+    retval.threads = threads;
+    final LatencyHistogram total = new LatencyHistogram();
+    for (int i = 0; i < threads; i++) {
+      retval.operations += operations[i];
+      total.add(histograms[i]);
+    }
+    retval.opsPerSec = retval.operations * 1e9 / elapsed;
+    retval.percentiles = new long[]{total.percentile(0.5), total.percentile(0.9), total.percentile(0.99), total.percentile(0.999)};
+    retval.max = total.max;
+    return retval;
+  }
+
+
+  private static String csv(final Result result) {
+    return String.format(Locale.ROOT, "%s,%s,%d,%d,%.0f,%d,%d,%d,%d,%d,%.3f", result.scenario.name, result.scenario.distinct ? "distinct" : "same",
+        result.threads, result.operations, result.opsPerSec, result.percentiles[0], result.percentiles[1], result.percentiles[2],
+        result.percentiles[3], result.max, result.efficiency);
+  }
+
+
+  private static void writeCsv(final File file, final List<Result> results) throws IOException {
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      writer.write(CSV_HEADER);
+      writer.write('\n');
+      for (final Result result : results) {
+        writer.write(csv(result));
+        writer.write('\n');
+      }
+    }
+  }
+
+
+  private static void writeJson(final File file, final List<Result> results, final long warmup, final long measure) throws IOException {
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      writer.write(String.format(Locale.ROOT, "{\"benchmark\":\"scaling\",\"timestamp\":%d,\"java\":\"%s\",\"processors\":%d,"
+              + "\"warmupMillis\":%d,\"measureMillis\":%d,\"batch\":%d,\"results\":[", System.currentTimeMillis(),
+          System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(), warmup, measure, BATCH));
+      for (int i = 0; i < results.size(); i++) {
+        final Result result = results.get(i);
+        writer.write(String.format(Locale.ROOT, "%s\n{\"scenario\":\"%s\",\"names\":\"%s\",\"threads\":%d,\"operations\":%d,"
+                + "\"opsPerSec\":%.0f,\"nanosPerOp\":{\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d},\"efficiency\":%.3f}",
+            (i == 0) ? "" : ",", result.scenario.name, result.scenario.distinct ? "distinct" : "same", result.threads, result.operations,
+            result.opsPerSec, result.percentiles[0], result.percentiles[1], result.percentiles[2], result.percentiles[3], result.max,
+            result.efficiency));
+      }
+      writer.write("]}\n");
+    }
+  }
+
+
+  /**
+   * Compare the throughput of each scenario with a baseline written by an earlier run.
+   *
+   * @return the number of scenarios whose throughput fell by more than the tolerance
+   */
+  private static int compare(final File file, final List<Result> results, final double tolerance) throws IOException {
+    final Map<String, Double> baseline = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      for (String line; (line = reader.readLine()) != null; ) {
+        final String[] fields = line.split(",");
+        if (fields.length > 4 && !line.equals(CSV_HEADER)) {
+          baseline.put(fields[0] + "," + fields[1] + "," + fields[2], Double.parseDouble(fields[4]));
+        }
+      }
+    }
+    int retval = 0;
+    for (final Result result : results) {
+      final Double previous = baseline.get(result.scenario.name + "," + (result.scenario.distinct ? "distinct" : "same") + "," + result.threads);
+      if (previous != null && previous > 0) {
+        final double change = result.opsPerSec / previous - 1;
+        if (change < -tolerance) {
+          System.out.println(String.format(Locale.ROOT, "REGRESSION %s %s at %d threads: %.0f ops/sec, %.1f%% below the baseline",
+              result.scenario.name, result.scenario.distinct ? "distinct" : "same", result.threads, result.opsPerSec, -100 * change));
+          retval++;
+        }
+      }
+    }
+    System.out.println(retval + " regressions beyond " + Math.round(tolerance * 100) + "% of " + file);
+    return retval;
+  }
+
+
+  /**
+   * Counts values in buckets a thirty-second of a power of two wide, so percentiles are within about three percent.
+   */
+  private static class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = 5;
+    private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * (SUB_BUCKETS / 2)];
+    long total = 0;
+    long max = 0;
+
+
+    void record(final long value) {
+      counts[indexOf(Math.max(0, value))]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+
+    void add(final LatencyHistogram other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      total += other.total;
+      max = Math.max(max, other.max);
+    }
+
+
+    /**
+     * @return the middle of the bucket holding the given quantile.
+     */
+    long percentile(final double quantile) {
+      final long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) {
+          if (i < SUB_BUCKETS) {
+            return i;
+          }
+          // each power of two from 32 up is split into 16 sub-buckets
+          final int shift = (i - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+          final long lower = (long) (SUB_BUCKETS / 2 + (i - SUB_BUCKETS) % (SUB_BUCKETS / 2)) << shift;
+          return Math.min(max, lower + (1L << shift) / 2);
+        }
+      }
+      return max;
+    }
+
+
+    private static int indexOf(final long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      final int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+      return SUB_BUCKETS + (shift - 1) * (SUB_BUCKETS / 2) + (int) ((value >>> shift) - SUB_BUCKETS / 2);
+    }
+  }
+
+}
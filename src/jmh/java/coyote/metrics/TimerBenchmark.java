@@ -0,0 +1,71 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing an interval: starting and stopping a timer by name, from a master, in a scope, and recording a measured
+ * interval directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerBenchmark {
+  private static final String TIMER = "jmh_timer";
+
+  private TimingMaster master;
+
+
+  @Setup
+  public void setup() {
+    ScoreCard.enableTiming();
+    master = ScoreCard.getOrCreateTimerMaster(TIMER);
+  }
+
+
+  @Benchmark
+  public Timer startStopByName() {
+    final Timer retval = ScoreCard.startTimer(TIMER);
+    retval.stop();
+    return retval;
+  }
+
+
+  @Benchmark
+  public Timer startStopByMaster() {
+    final Timer retval = master.createTimer();
+    retval.start();
+    retval.stop();
+    return retval;
+  }
+
+
+  @Benchmark
+  public TimerScope scope() {
+    try (TimerScope retval = master.openScope()) {
+      retval.success();
+      return retval;
+    }
+  }
+
+
+  @Benchmark
+  public long record() {
+    master.record(42);
+    return master.getSampleCount();
+  }
+
+}
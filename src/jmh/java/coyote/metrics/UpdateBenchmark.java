@@ -0,0 +1,110 @@
+package coyote.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counter and gauge updates, through the ScoreCard by name and directly on a handle.
+ *
+ * <p>The shared benchmarks have every thread update the same monitor, which shows contention; the distinct ones give
+ * each thread a monitor of its own, which shows the cost of the registry lookup without contention on the value.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+  private static final String COUNTER = "jmh_counter";
+  private static final String GAUGE = "jmh_gauge";
+
+  private Counter counter;
+  private Gauge gauge;
+
+
+  @Setup
+  public void setup() {
+    counter = ScoreCard.getCounter(COUNTER);
+    gauge = ScoreCard.getGauge(GAUGE);
+  }
+
+
+  /**
+   * The monitors of one benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Distinct {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    String counterName;
+    String gaugeName;
+    Counter counter;
+
+
+    @Setup
+    public void setup() {
+      final int thread = THREADS.incrementAndGet();
+      counterName = COUNTER + "_" + thread;
+      gaugeName = GAUGE + "_" + thread;
+      counter = ScoreCard.getCounter(counterName);
+      ScoreCard.getGauge(gaugeName);
+    }
+  }
+
+
+  @Benchmark
+  public long counterByName() {
+    return ScoreCard.incrementCounter(COUNTER);
+  }
+
+
+  @Benchmark
+  public long counterByHandle() {
+    return counter.increment();
+  }
+
+
+  @Benchmark
+  public long counterByDistinctName(Distinct distinct) {
+    return ScoreCard.incrementCounter(distinct.counterName);
+  }
+
+
+  @Benchmark
+  public long counterByDistinctHandle(Distinct distinct) {
+    return distinct.counter.increment();
+  }
+
+
+  @Benchmark
+  public long gaugeByName() {
+    ScoreCard.incrementGauge(GAUGE);
+    return ScoreCard.decrementGauge(GAUGE);
+  }
+
+
+  @Benchmark
+  public long gaugeByHandle() {
+    gauge.increment();
+    return gauge.decrement();
+  }
+
+
+  @Benchmark
+  public long gaugeByDistinctName(Distinct distinct) {
+    ScoreCard.incrementGauge(distinct.gaugeName);
+    return ScoreCard.decrementGauge(distinct.gaugeName);
+  }
+
+}
@@ -0,0 +1,110 @@
+package coyote.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The Buckets class models the upper bounds of the buckets of a timer histogram, in milliseconds.
+ *
+ * <p>Instances are immutable and are meant to be shared by many timers. The "le" label of each bucket is rendered
+ * once when the buckets are created, so exporting a histogram only copies bytes. An implicit "+Inf" bucket follows
+ * the last bound.</p>
+ */
+public final class Buckets {
+  /**
+   * The label holding the upper bound of a histogram bucket.
+   */
+  public static final String LE_LABEL = "le";
+
+  /**
+   * Bounds suited to timing requests, from one millisecond to ten seconds.
+   */
+  public static final Buckets DEFAULT = new Buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000);
+
+  private final long[] bounds;
+
+  /**
+   * The rendered "le" label of each bucket including the "+Inf" bucket.
+   */
+  private final byte[][] labels;
+
+
+  /**
+   * @param bounds the upper bounds of the buckets in milliseconds, in ascending order.
+   * @throws IllegalArgumentException if there are no bounds or they are not strictly ascending
+   */
+  public Buckets(final long... bounds) {
+    if (bounds == null || bounds.length == 0) {
+      throw new IllegalArgumentException("At least one bucket bound is required");
+    }
+    for (int i = 1; i < bounds.length; i++) {
+      if (bounds[i] <= bounds[i - 1]) {
+        throw new IllegalArgumentException("Bucket bounds must be in ascending order: " + Arrays.toString(bounds));
+      }
+    }
+    this.bounds = bounds.clone();
+    labels = new byte[bounds.length + 1][];
+    final Utf8Buffer buffer = new Utf8Buffer(32);
+    for (int i = 0; i <= bounds.length; i++) {
+      buffer.reset().append(LE_LABEL).append((byte) '=').append((byte) '"');
+      if (i < bounds.length) {
+        buffer.append(bounds[i]);
+      } else {
+        buffer.append("+Inf");
+      }
+      labels[i] = buffer.append((byte) '"').toByteArray();
+    }
+  }
+
+
+  /**
+   * @return the number of buckets, including the "+Inf" bucket.
+   */
+  public int size() {
+    return labels.length;
+  }
+
+
+  /**
+   * @param index the index of the bucket
+   * @return the upper bound of the bucket, or Long.MAX_VALUE for the "+Inf" bucket.
+   */
+  public long getBound(final int index) {
+    return (index < bounds.length) ? bounds[index] : Long.MAX_VALUE;
+  }
+
+
+  /**
+   * Find the bucket holding the given value.
+   *
+   * @param value the value to place
+   * @return the index of the first bucket whose upper bound is not less than the value.
+   */
+  public int indexOf(final long value) {
+    int low = 0;
+    int high = bounds.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (bounds[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+
+  /**
+   * @return the rendered "le" label of the bucket, e.g. {@code le="250"}.
+   */
+  byte[] getLabel(final int index) {
+    return labels[index];
+  }
+
+
+  @Override
+  public String toString() {
+    return Arrays.toString(bounds);
+  }
+
+}
@@ -0,0 +1,196 @@
+package coyote.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records which monitors of the ScoreCard changed in each epoch, so exports can visit only the monitors changed since
+ * a given epoch instead of the whole ScoreCard.
+ *
+ * <p>Every monitor owns an {@link Entry} holding the epoch in which it last changed. A change costs two volatile
+ * reads when the monitor already changed in the current epoch; only the first change of a monitor in an epoch takes
+ * the lock of the log to append the monitor. The log is in epoch order, so the monitors changed since an epoch are
+ * found by walking back from its end. Appending a monitor supersedes its previous place in the log, and the log is
+ * compacted once most of it is superseded, so it holds about one place per monitor.</p>
+ *
+ * <p>Changes are made under the lock of the monitor, and the epoch is advanced before an export reads the monitors
+ * changed since the previous epoch. A change racing with the export is therefore either read by this export or
+ * recorded in the new epoch and read by the next one.</p>
+ */
+final class ChangeLog {
+  /**
+   * The epoch in which changes are currently recorded.
+   */
+  private static volatile long epoch = 0;
+  private static final ReentrantLock lock = new ReentrantLock();
+  private static Entry[] entries = new Entry[64];
+  private static long[] epochs = new long[64];
+  private static int size = 0;
+  private static int superseded = 0;
+
+
+  private ChangeLog() {
+  }
+
+
+  /**
+   * @return the epoch in which changes are currently recorded.
+   */
+  static long getEpoch() {
+    return epoch;
+  }
+
+
+  /**
+   * Start a new epoch.
+   *
+   * @return the new epoch; changes from now on are recorded in it.
+   */
+  static long advance() {
+    lock.lock();
+    try {
+      return ++epoch;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Start recording the changes of a monitor, counting it as changed now.
+   */
+  static void track(final Entry entry) {
+    lock.lock();
+    try {
+      if (entry.epoch < 0) {
+        append(entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Stop recording the changes of a monitor, such as when it is removed from the ScoreCard.
+   */
+  static void untrack(final Entry entry) {
+    lock.lock();
+    try {
+      if (entry.epoch >= 0) {
+        entry.epoch = -1;
+        superseded++;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Collect the monitors changed in or after the given epoch, most recently changed first.
+   *
+   * @param since the first epoch of interest
+   * @return the changed monitors, each listed once
+   */
+  static List<Monitor> changedSince(final long since) {
+    lock.lock();
+    try {
+      final List<Monitor> retval = new ArrayList<>();
+      for (int i = size - 1; i >= 0 && epochs[i] >= since; i--) {
+        if (entries[i].epoch == epochs[i]) {
+          retval.add(entries[i].monitor);
+        }
+      }
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Record a change to a monitor which has not changed in the current epoch.
+   */
+  private static void record(final Entry entry) {
+    lock.lock();
+    try {
+      if (entry.epoch >= 0 && entry.epoch != epoch) {
+        superseded++;
+        append(entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * The caller must hold the lock.
+   */
+  private static void append(final Entry entry) {
+    if (superseded > size / 2) {
+      compact();
+    }
+    if (size == entries.length) {
+      final Entry[] grownEntries = new Entry[size * 2];
+      final long[] grownEpochs = new long[size * 2];
+      System.arraycopy(entries, 0, grownEntries, 0, size);
+      System.arraycopy(epochs, 0, grownEpochs, 0, size);
+      entries = grownEntries;
+      epochs = grownEpochs;
+    }
+    entry.epoch = epoch;
+    entries[size] = entry;
+    epochs[size] = epoch;
+    size++;
+  }
+
+
+  /**
+   * Remove the superseded places from the log, keeping it in epoch order; the caller must hold the lock.
+   */
+  private static void compact() {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (entries[i].epoch == epochs[i]) {
+        entries[kept] = entries[i];
+        epochs[kept] = epochs[i];
+        kept++;
+      }
+    }
+    for (int i = kept; i < size; i++) {
+      entries[i] = null;
+    }
+    size = kept;
+    superseded = 0;
+  }
+
+
+  /**
+   * The place of a monitor in the change log.
+   */
+  static final class Entry {
+    final Monitor monitor;
+    /**
+     * The epoch in which the monitor last changed, or -1 if its changes are not recorded.
+     */
+    volatile long epoch = -1;
+
+    Entry(final Monitor monitor) {
+      this.monitor = monitor;
+    }
+
+    /**
+     * Note the monitor has changed; the caller should hold the lock of the monitor.
+     */
+    void touch() {
+      final long last = epoch;
+      if (last >= 0 && last != ChangeLog.epoch) {
+        record(this);
+      }
+    }
+  }
+
+}
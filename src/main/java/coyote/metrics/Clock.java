@@ -0,0 +1,51 @@
+package coyote.metrics;
+
+/**
+ * The source of the times read by the timers.
+ *
+ * <p>Timers read two kinds of time: the wall-clock time at which a master timer was last accessed, which only needs
+ * to be roughly right but is read on every start, and the monotonic time from which intervals are measured, which must
+ * be precise and never go backwards when the system clock is adjusted. A clock provides both; the one in use is set
+ * with {@link ScoreCard#setClock(Clock)}.</p>
+ *
+ * <p>{@link #SYSTEM} reads the system clock on every call. {@link CoarseClock} caches the wall-clock time, updated by a
+ * background thread, so access timestamps cost a field read. {@link ManualClock} only moves when told to, making
+ * tests of timings deterministic.</p>
+ */
+public interface Clock {
+
+  /**
+   * Reads {@link System#currentTimeMillis()} and {@link System#nanoTime()} on every call.
+   */
+  Clock SYSTEM = new Clock() {
+    @Override
+    public long millis() {
+      return System.currentTimeMillis();
+    }
+
+
+    @Override
+    public long nanos() {
+      return System.nanoTime();
+    }
+
+
+    @Override
+    public String toString() {
+      return "SystemClock";
+    }
+  };
+
+
+  /**
+   * @return the current time in milliseconds since the epoch, possibly a little behind.
+   */
+  long millis();
+
+
+  /**
+   * @return a monotonic time in nanoseconds, only meaningful as the difference between two readings.
+   */
+  long nanos();
+
+}
@@ -1,12 +1,18 @@
 package coyote.metrics;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * The Counter class models an object that tracks a numerical value which only increases over time.
  *
- * <p>This class is thread-safe in that all the methods synchronize on the name of the counter to avoid double
- * synchronization on the class itself.</p>
+ * <p>This class is thread-safe in that all the methods hold the lock of the counter. An explicit lock is used instead
+ * of a monitor so virtual threads updating the counter do not pin their carrier threads.</p>
  */
 public class Counter extends Metric implements Cloneable {
+  /**
+   * Guards the value, the min/max values and the update count.
+   */
+  protected final ReentrantLock _lock = new ReentrantLock();
   protected String _units = null;
   protected long _value = 0;
   protected long _minValue = 0; // used in sub-classes
@@ -49,8 +55,11 @@ public class Counter extends Metric implements Cloneable {
    * @param units The units to set.
    */
   public void setUnits(final String units) {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       _units = units;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -58,8 +67,11 @@ public class Counter extends Metric implements Cloneable {
    * @return Returns the current value of the counter.
    */
   public long getValue() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       return _value;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -70,9 +82,11 @@ public class Counter extends Metric implements Cloneable {
    * @return The final value of the counter after the operation.
    */
   public long increase(final long amt) {
-    synchronized (_name) {
+    SelfMetrics.lock(_lock);
+    try {
       _updateCount++;
       _value += amt;
+      _changes.touch();
       if (_value < _minValue) {
         _minValue = _value;
       }
@@ -80,6 +94,8 @@ public class Counter extends Metric implements Cloneable {
         _maxValue = _value;
       }
       return _value;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -89,13 +105,17 @@ public class Counter extends Metric implements Cloneable {
    * @return The final value of the counter after the operation.
    */
   public long increment() {
-    synchronized (_name) {
+    SelfMetrics.lock(_lock);
+    try {
       _updateCount++;
       _value++;
+      _changes.touch();
       if (_value > _maxValue) {
         _maxValue = _value;
       }
       return _value;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -108,13 +128,17 @@ public class Counter extends Metric implements Cloneable {
    * @return a counter representing the state prior to the reset.
    */
   public Counter reset() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       final Counter retval = (Counter) clone();
       _value = 0;
       _minValue = 0;
       _maxValue = 0;
       _updateCount = 0;
+      _changes.touch();
       return retval;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -123,7 +147,8 @@ public class Counter extends Metric implements Cloneable {
    */
   @Override
   public String toString() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       final StringBuffer buff = new StringBuffer(_name);
       buff.append("=");
       buff.append(_value);
@@ -131,6 +156,8 @@ public class Counter extends Metric implements Cloneable {
         buff.append(_units);
       }
       return buff.toString();
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -0,0 +1,259 @@
+package coyote.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of the writers which render monitors as Prometheus metric families into a {@link Utf8Buffer}.
+ *
+ * <p>This class groups the monitors into families and manages the buffer, flushing it to the output stream whenever
+ * it passes a threshold. Sub-classes encode each family in their own exposition format.</p>
+ */
+abstract class FamilyWriter {
+  /**
+   * The number of buffered bytes which triggers a write to the output stream.
+   */
+  static final int FLUSH_THRESHOLD = 8 * 1024;
+
+  /**
+   * The label identifying the monitor within a family named by its "metric_name" label.
+   */
+  static final String JOB_LABEL = "job";
+
+  final Utf8Buffer buffer;
+  final OutputStream out;
+  final boolean honorMetricNameLabel;
+  final boolean jobLabel;
+
+  /**
+   * The statistics of the timer being written.
+   */
+  final TimerSnapshot timer = new TimerSnapshot();
+
+  /**
+   * The number of bytes flushed to the output stream.
+   */
+  private long flushed = 0;
+
+
+  /**
+   * @param buffer               the buffer into which the families are encoded
+   * @param out                  the stream to which the buffer is flushed, null to encode everything into the buffer
+   * @param honorMetricNameLabel true to name the family of a monitor after its "metric_name" label
+   * @param jobLabel             true to label monitors grouped by their "metric_name" label with their own name
+   */
+  FamilyWriter(final Utf8Buffer buffer, final OutputStream out, final boolean honorMetricNameLabel, final boolean jobLabel) {
+    this.buffer = buffer;
+    this.out = out;
+    this.honorMetricNameLabel = honorMetricNameLabel;
+    this.jobLabel = jobLabel;
+  }
+
+
+  /**
+   * Write the given monitors grouped by family.
+   *
+   * <p>Only monitors named by their "metric_name" label can share a family, so they are the only monitors which are
+   * grouped; every other monitor is written as soon as it is reached unless a grouped family shares its name.</p>
+   *
+   * @param monitors the monitors to write
+   * @throws IOException if the output stream could not be written
+   */
+  void write(final Collection<? extends Monitor> monitors) throws IOException {
+    final long started = SelfMetrics.start();
+    final long initial = length();
+    Map<String, Object> families = null;
+    if (honorMetricNameLabel) {
+      for (final Monitor monitor : monitors) {
+        if (monitor.hasLabel(MetricFormatter.METRIC_NAME_LABEL)) {
+          if (families == null) {
+            families = new LinkedHashMap<>();
+          }
+          add(families, familyName(monitor), monitor);
+        }
+      }
+    }
+    for (final Monitor monitor : monitors) {
+      if (!honorMetricNameLabel || !monitor.hasLabel(MetricFormatter.METRIC_NAME_LABEL)) {
+        if (families != null && families.containsKey(monitor.getName())) {
+          add(families, monitor.getName(), monitor);
+        } else {
+          writeFamily(monitor.getName(), monitor, null);
+        }
+      }
+    }
+    if (families != null) {
+      for (final Map.Entry<String, Object> family : families.entrySet()) {
+        final Object members = family.getValue();
+        if (members instanceof Monitor) {
+          writeFamily(family.getKey(), (Monitor) members, null);
+        } else {
+          @SuppressWarnings("unchecked") final List<Monitor> list = (List<Monitor>) members;
+          writeFamily(family.getKey(), list.get(0), list);
+        }
+      }
+    }
+    flush(0);
+    SelfMetrics.recordRender(format(), started, flushed + length() - initial);
+  }
+
+
+  /**
+   * @return the name of the exposition format, as used by the self metrics.
+   */
+  abstract String format();
+
+
+  /**
+   * @return the number of bytes encoded but not yet flushed.
+   */
+  long length() {
+    return buffer.length();
+  }
+
+
+  /**
+   * Encode a family into the buffer.
+   *
+   * @param family  the name of the family
+   * @param first   the first member of the family
+   * @param members all the members of the family, or null if the first member is the only member
+   * @throws IOException if the buffer had to be flushed and the output stream could not be written
+   */
+  abstract void writeFamily(String family, Monitor first, List<Monitor> members) throws IOException;
+
+
+  /**
+   * @return the name of the family of the given monitor.
+   */
+  String familyName(final Monitor monitor) {
+    if (honorMetricNameLabel) {
+      final String retval = monitor.getLabelValue(MetricFormatter.METRIC_NAME_LABEL);
+      if (retval != null) {
+        return retval;
+      }
+    }
+    return monitor.getName();
+  }
+
+
+  /**
+   * Add the monitor to the named family.
+   *
+   * <p>Most families have a single member, so the map holds the monitor itself and only holds a list once a second
+   * member is found.</p>
+   */
+  private static void add(final Map<String, Object> families, final String name, final Monitor monitor) {
+    final Object existing = families.put(name, monitor);
+    if (existing instanceof Monitor) {
+      final List<Monitor> list = new ArrayList<>(4);
+      list.add((Monitor) existing);
+      list.add(monitor);
+      families.put(name, list);
+    } else if (existing != null) {
+      @SuppressWarnings("unchecked") final List<Monitor> list = (List<Monitor>) existing;
+      list.add(monitor);
+      families.put(name, list);
+    }
+  }
+
+
+  /**
+   * @return the trimmed description of the first member of the family with one, or null if none has one.
+   */
+  static String helpOf(final Monitor first, final List<Monitor> members) {
+    String retval = first.getDescription();
+    if (members != null) {
+      for (int i = 1; isBlank(retval) && i < members.size(); i++) {
+        retval = members.get(i).getDescription();
+      }
+    }
+    return isBlank(retval) ? null : retval.trim();
+  }
+
+
+  /**
+   * @return true if the monitor is written as a family of its own type, false if it is written as a job label
+   */
+  boolean isJobLabeled(final String family, final Monitor monitor) {
+    return jobLabel && !family.equals(monitor.getName());
+  }
+
+
+  /**
+   * Access the labels of the monitor without copying them where possible; the returned map must not be modified.
+   */
+  static Map<String, String> labelsOf(final Monitor monitor) {
+    if (monitor instanceof Metric) {
+      return ((Metric) monitor)._labels;
+    } else if (monitor instanceof TimingMaster) {
+      return ((TimingMaster) monitor).labels;
+    }
+    return monitor.getLabels();
+  }
+
+
+  /**
+   * Access the labels of the monitor sorted by name, sorting them only when they have changed since they were last
+   * sorted where possible.
+   */
+  static List<Map.Entry<String, String>> sortedLabelsOf(final Monitor monitor) {
+    if (monitor instanceof Metric) {
+      final Metric metric = (Metric) monitor;
+      List<Map.Entry<String, String>> retval = metric._sortedLabels;
+      if (retval == null) {
+        retval = sortLabels(metric._labels);
+        metric._sortedLabels = retval;
+      }
+      return retval;
+    } else if (monitor instanceof TimingMaster) {
+      final TimingMaster master = (TimingMaster) monitor;
+      List<Map.Entry<String, String>> retval = master.sortedLabels;
+      if (retval == null) {
+        retval = sortLabels(master.labels);
+        master.sortedLabels = retval;
+      }
+      return retval;
+    }
+    final Map<String, String> labels = monitor.getLabels();
+    return (labels == null) ? Collections.<Map.Entry<String, String>>emptyList() : sortLabels(labels);
+  }
+
+
+  private static List<Map.Entry<String, String>> sortLabels(final Map<String, String> labels) {
+    if (labels.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<Map.Entry<String, String>> retval = new ArrayList<>(labels.size());
+    for (final Map.Entry<String, String> entry : labels.entrySet()) {
+      retval.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+    }
+    retval.sort(Map.Entry.<String, String>comparingByKey());
+    return Collections.unmodifiableList(retval);
+  }
+
+
+  /**
+   * Write the buffer to the stream if it holds at least the given number of bytes.
+   */
+  void flush(final int threshold) throws IOException {
+    if (out != null && buffer.length() > 0 && buffer.length() >= threshold) {
+      flushed += buffer.length();
+      buffer.writeTo(out);
+      buffer.reset();
+    }
+  }
+
+
+  static boolean isBlank(final String text) {
+    return text == null || text.trim().length() == 0;
+  }
+
+}
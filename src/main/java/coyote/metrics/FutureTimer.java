@@ -0,0 +1,164 @@
+package coyote.metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Times asynchronous work from the moment it is submitted to the moment it completes.
+ *
+ * <p>Timers issued by the ScoreCard are started and stopped by whoever holds them, which does not fit work that hops
+ * between executors. The methods in this class submit work on behalf of the caller and record up to three intervals
+ * in the master timers of the ScoreCard:</p>
+ * <ul>
+ * <li>{@code name} - the time from submission to completion of the future,</li>
+ * <li>{@code name + "_queue"} - the time the task waited for a thread of the executor and</li>
+ * <li>{@code name + "_run"} - the time the task spent running on that thread.</li>
+ * </ul>
+ *
+ * <p>Recording is attached to the completion of the future, so no thread ever blocks waiting for it. Failed futures
+ * are recorded the same as successful ones. If timing is disabled, the work is submitted without any timing.</p>
+ */
+public final class FutureTimer {
+  /**
+   * Suffix of the master timer tracking the time tasks wait to run.
+   */
+  public static final String QUEUE_SUFFIX = "_queue";
+
+  /**
+   * Suffix of the master timer tracking the time tasks spend running.
+   */
+  public static final String RUN_SUFFIX = "_run";
+
+
+  /**
+   * No instances
+   */
+  private FutureTimer() {
+  }
+
+
+  /**
+   * Run the given supplier asynchronously in the given executor, timing its time in the queue, its run time and its
+   * total time to completion.
+   *
+   * @param name     the name of the master timer recording the total time
+   * @param supplier the work to perform
+   * @param executor the executor in which the work is run
+   * @param <T>      the type of value returned by the supplier
+   * @return the future completed with the value of the supplier.
+   */
+  public static <T> CompletableFuture<T> supplyAsync(final String name, final Supplier<T> supplier, final Executor executor) {
+    if (!ScoreCard.isTimingEnabled()) {
+      return CompletableFuture.supplyAsync(supplier, executor);
+    }
+    final TimedTask<T> task = new TimedTask<>(name, supplier, null);
+    final CompletableFuture<T> retval = CompletableFuture.supplyAsync(task, executor);
+    retval.whenComplete(task);
+    return retval;
+  }
+
+
+  /**
+   * Run the given task asynchronously in the given executor, timing its time in the queue, its run time and its total
+   * time to completion.
+   *
+   * @param name     the name of the master timer recording the total time
+   * @param runnable the work to perform
+   * @param executor the executor in which the work is run
+   * @return the future completed when the work completes.
+   */
+  public static CompletableFuture<Void> runAsync(final String name, final Runnable runnable, final Executor executor) {
+    if (!ScoreCard.isTimingEnabled()) {
+      return CompletableFuture.runAsync(runnable, executor);
+    }
+    final TimedTask<Void> task = new TimedTask<>(name, null, runnable);
+    final CompletableFuture<Void> retval = CompletableFuture.supplyAsync(task, executor);
+    retval.whenComplete(task);
+    return retval;
+  }
+
+
+  /**
+   * Time the given stage from now until it completes.
+   *
+   * <p>The stage was submitted elsewhere, so only the total time is recorded. The given stage is returned so the call
+   * can wrap the expression creating the stage.</p>
+   *
+   * @param name  the name of the master timer recording the total time
+   * @param stage the stage to time
+   * @param <T>   the type of value of the stage
+   * @param <S>   the type of the stage
+   * @return the given stage.
+   */
+  public static <T, S extends CompletionStage<T>> S time(final String name, final S stage) {
+    if (ScoreCard.isTimingEnabled()) {
+      final TimingMaster master = ScoreCard.getOrCreateTimerMaster(name);
+      if (master.isEnabled()) {
+        final Clock clock = ScoreCard.getClock();
+        final long submitted = clock.nanos();
+        stage.whenComplete((value, error) -> master.record((clock.nanos() - submitted) / 1000000));
+      }
+    }
+    return stage;
+  }
+
+
+  /**
+   * Work wrapped to record its timing.
+   *
+   * <p>A single instance carries the timing of the task through all its phases so the only allocation beyond that of
+   * the future is this wrapper.</p>
+   */
+  private static final class TimedTask<T> implements Supplier<T>, BiConsumer<T, Throwable> {
+    private final TimingMaster total;
+    private final TimingMaster queue;
+    private final TimingMaster run;
+    private final Supplier<T> supplier;
+    private final Runnable runnable;
+    private final Clock clock;
+    private final long submitted;
+
+
+    TimedTask(final String name, final Supplier<T> supplier, final Runnable runnable) {
+      total = ScoreCard.getOrCreateTimerMaster(name);
+      queue = ScoreCard.getOrCreateTimerMaster(name + QUEUE_SUFFIX);
+      run = ScoreCard.getOrCreateTimerMaster(name + RUN_SUFFIX);
+      this.supplier = supplier;
+      this.runnable = runnable;
+      clock = ScoreCard.getClock();
+      submitted = clock.nanos();
+    }
+
+
+    @Override
+    public T get() {
+      final long started = clock.nanos();
+      if (queue.isEnabled()) {
+        queue.record((started - submitted) / 1000000);
+      }
+      try {
+        if (supplier != null) {
+          return supplier.get();
+        }
+        runnable.run();
+        return null;
+      } finally {
+        if (run.isEnabled()) {
+          run.record((clock.nanos() - started) / 1000000);
+        }
+      }
+    }
+
+
+    @Override
+    public void accept(final T value, final Throwable error) {
+      if (total.isEnabled()) {
+        total.record((clock.nanos() - submitted) / 1000000);
+      }
+    }
+  }
+
+}
@@ -3,8 +3,7 @@ package coyote.metrics;
 /**
  * The Gauge class models an object that tracks a numerical value that can increase and decrease.
  *
- * <p>This class is thread-safe in that all the methods synchronize on the name of the gauge to avoid double
- * synchronization on the class itself.</p>
+ * <p>This class is thread-safe in that all the methods hold the lock of the gauge.</p>
  */
 public class Gauge extends Counter implements Cloneable {
 
@@ -39,9 +38,11 @@ public class Gauge extends Counter implements Cloneable {
    * @return The final value of the gauge after the operation.
    */
   public long decrease(final long amt) {
-    synchronized (_name) {
+    SelfMetrics.lock(_lock);
+    try {
       _updateCount++;
       _value -= amt;
+      _changes.touch();
       if (_value < _minValue) {
         _minValue = _value;
       }
@@ -49,6 +50,8 @@ public class Gauge extends Counter implements Cloneable {
         _maxValue = _value;
       }
       return _value;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -59,13 +62,17 @@ public class Gauge extends Counter implements Cloneable {
    * @return The final value of the gauge after the operation.
    */
   public long decrement() {
-    synchronized (_name) {
+    SelfMetrics.lock(_lock);
+    try {
       _updateCount++;
       _value--;
+      _changes.touch();
       if (_value < _minValue) {
         _minValue = _value;
       }
       return _value;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -74,8 +81,11 @@ public class Gauge extends Counter implements Cloneable {
    * @return Returns the maximum value the gauge ever represented.
    */
   public long getMaxValue() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       return _maxValue;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -84,8 +94,11 @@ public class Gauge extends Counter implements Cloneable {
    * @return Returns the minimum value the gauge ever represented.
    */
   public long getMinValue() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       return _minValue;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -100,13 +113,17 @@ public class Gauge extends Counter implements Cloneable {
    */
   @Override
   public Gauge reset() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       final Gauge retval = (Gauge) clone();
       _value = 0;
       _minValue = 0;
       _maxValue = 0;
       _updateCount = 0;
+      _changes.touch();
       return retval;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -115,7 +132,8 @@ public class Gauge extends Counter implements Cloneable {
    */
   @Override
   public String toString() {
-    synchronized (_name) {
+    _lock.lock();
+    try {
       final StringBuffer buff = new StringBuffer(_name);
       buff.append("=");
       buff.append(_value);
@@ -129,6 +147,8 @@ public class Gauge extends Counter implements Cloneable {
       buff.append("]");
 
       return buff.toString();
+    } finally {
+      _lock.unlock();
     }
   }
 }
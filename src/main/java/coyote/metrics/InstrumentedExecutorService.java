@@ -0,0 +1,409 @@
+package coyote.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Decorates an ExecutorService to record the saturation of its thread pool in the ScoreCard.
+ *
+ * <p>Given a name, the following metrics are maintained:</p>
+ * <ul>
+ * <li>{@code name + "_queue"} - a master timer of the time tasks wait before they are run,</li>
+ * <li>{@code name + "_run"} - a master timer of the time tasks spend running,</li>
+ * <li>{@code name + "_queued"} - a gauge of the number of tasks waiting to run,</li>
+ * <li>{@code name + "_active"} - a gauge of the number of tasks running and</li>
+ * <li>{@code name + "_rejected"} - a counter of the tasks the executor refused to accept.</li>
+ * </ul>
+ *
+ * <p>Each task is wrapped in an object which carries its submission time and whether it is still counted as queued, and
+ * a submitted task also in the future returned for it, so instrumenting a task allocates nothing beyond those.</p>
+ */
+public class InstrumentedExecutorService implements ExecutorService {
+  /**
+   * Suffix of the gauge tracking the tasks waiting to run.
+   */
+  public static final String QUEUED_SUFFIX = "_queued";
+
+  /**
+   * Suffix of the gauge tracking the tasks running.
+   */
+  public static final String ACTIVE_SUFFIX = "_active";
+
+  /**
+   * Suffix of the counter tracking the tasks the executor refused.
+   */
+  public static final String REJECTED_SUFFIX = "_rejected";
+
+  private static final AtomicIntegerFieldUpdater<QueuedTask> DEQUEUED = AtomicIntegerFieldUpdater.newUpdater(QueuedTask.class, "dequeued");
+
+  private final ExecutorService delegate;
+  final TimingMaster queueTime;
+  final TimingMaster runTime;
+  final Gauge queued;
+  final Gauge active;
+  final Counter rejected;
+
+
+  /**
+   * Create an instrumented executor service.
+   *
+   * @param name     the name prefixing all the metrics of this executor
+   * @param delegate the executor service which runs the tasks
+   */
+  public InstrumentedExecutorService(final String name, final ExecutorService delegate) {
+    this.delegate = delegate;
+    queueTime = ScoreCard.getOrCreateTimerMaster(name + FutureTimer.QUEUE_SUFFIX);
+    runTime = ScoreCard.getOrCreateTimerMaster(name + FutureTimer.RUN_SUFFIX);
+    queued = ScoreCard.getGauge(name + QUEUED_SUFFIX);
+    active = ScoreCard.getGauge(name + ACTIVE_SUFFIX);
+    rejected = ScoreCard.getCounter(name + REJECTED_SUFFIX);
+  }
+
+
+  /**
+   * @return the number of tasks waiting to run.
+   */
+  public long getQueuedCount() {
+    return queued.getValue();
+  }
+
+
+  /**
+   * @return the number of tasks running.
+   */
+  public long getActiveCount() {
+    return active.getValue();
+  }
+
+
+  /**
+   * @return the number of tasks the executor refused to accept.
+   */
+  public long getRejectedCount() {
+    return rejected.getValue();
+  }
+
+
+  /**
+   * Called when the delegate refused a task which was counted as queued.
+   *
+   * @param task the wrapper of the task
+   */
+  void rejected(final QueuedTask task) {
+    dequeue(task);
+    rejected.increment();
+  }
+
+
+  /**
+   * Stop counting a task as queued, once it starts, is cancelled before it started or is drained.
+   *
+   * <p>The wrapper records that it was uncounted, so however many of these happen to a task it is only uncounted
+   * once.</p>
+   *
+   * @param task the wrapper of the task
+   */
+  void dequeue(final QueuedTask task) {
+    if (DEQUEUED.compareAndSet(task, 0, 1)) {
+      queued.decrement();
+    }
+  }
+
+
+  @Override
+  public void execute(final Runnable command) {
+    final TimedRunnable task = new TimedRunnable(command);
+    try {
+      delegate.execute(task);
+    } catch (final RejectedExecutionException e) {
+      rejected(task);
+      throw e;
+    }
+  }
+
+
+  @Override
+  public <T> Future<T> submit(final Callable<T> task) {
+    return enqueue(new TimedFuture<>(new TimedCallable<>(task)));
+  }
+
+
+  @Override
+  public <T> Future<T> submit(final Runnable task, final T result) {
+    return enqueue(new TimedFuture<>(new TimedRunnable(task), result));
+  }
+
+
+  @Override
+  public Future<?> submit(final Runnable task) {
+    return enqueue(new TimedFuture<Void>(new TimedRunnable(task), null));
+  }
+
+
+  /**
+   * Hand a future to the delegate to run.
+   *
+   * <p>The future is created here rather than by the delegate so it can stop counting its task as queued when it is
+   * cancelled before it starts, and so it can be recognized when it is drained by {@link #shutdownNow()}.</p>
+   */
+  private <T> Future<T> enqueue(final TimedFuture<T> future) {
+    try {
+      delegate.execute(future);
+    } catch (final RejectedExecutionException e) {
+      rejected(future.task);
+      throw e;
+    }
+    return future;
+  }
+
+
+  @Override
+  public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException {
+    final List<TimedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAll(wrapped);
+    } finally {
+      dequeueAll(wrapped);
+    }
+  }
+
+
+  @Override
+  public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException {
+    final List<TimedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAll(wrapped, timeout, unit);
+    } finally {
+      dequeueAll(wrapped);
+    }
+  }
+
+
+  @Override
+  public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+    final List<TimedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAny(wrapped);
+    } finally {
+      dequeueAll(wrapped);
+    }
+  }
+
+
+  @Override
+  public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    final List<TimedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAny(wrapped, timeout, unit);
+    } finally {
+      dequeueAll(wrapped);
+    }
+  }
+
+
+  /**
+   * Wrap each of the given tasks for timing.
+   */
+  private <T> List<TimedCallable<T>> wrap(final Collection<? extends Callable<T>> tasks) {
+    final List<TimedCallable<T>> retval = new ArrayList<>(tasks.size());
+    for (final Callable<T> task : tasks) {
+      retval.add(new TimedCallable<>(task));
+    }
+    return retval;
+  }
+
+
+  /**
+   * Stop counting the tasks of a completed invokeAll or invokeAny as queued.
+   *
+   * <p>The delegate cancels the tasks it did not need or which ran out of time, and those which never started will
+   * never run, so they are uncounted here.</p>
+   */
+  private <T> void dequeueAll(final List<TimedCallable<T>> tasks) {
+    for (final TimedCallable<T> task : tasks) {
+      dequeue(task);
+    }
+  }
+
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+
+  /**
+   * Attempt to stop all running tasks and drain the tasks waiting to run.
+   *
+   * <p>The drained tasks are no longer counted as queued. They are returned as wrapped by this executor and
+   * running them will still be timed. Tasks the delegate wraps in futures of its own, as a scheduled executor does,
+   * cannot be recognized when drained and remain counted as queued.</p>
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    final List<Runnable> retval = delegate.shutdownNow();
+    for (final Runnable task : retval) {
+      if (task instanceof TimedRunnable) {
+        dequeue((TimedRunnable) task);
+      } else if (task instanceof TimedFuture) {
+        dequeue(((TimedFuture<?>) task).task);
+      }
+    }
+    return retval;
+  }
+
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+
+  @Override
+  public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+
+
+  /**
+   * Record the start of a task which was waiting since the given time.
+   *
+   * @param task      the wrapper of the task
+   * @param clock     the clock the task was submitted by
+   * @param submitted the time of the clock in nanoseconds the task was submitted
+   * @return the time of the clock in nanoseconds the task started
+   */
+  long beforeRun(final QueuedTask task, final Clock clock, final long submitted) {
+    final long now = clock.nanos();
+    dequeue(task);
+    active.increment();
+    queueTime.record((now - submitted) / 1000000);
+    return now;
+  }
+
+
+  /**
+   * Record the end of a task which started at the given time.
+   *
+   * @param clock   the clock the task was started by
+   * @param started the time of the clock in nanoseconds the task started
+   */
+  void afterRun(final Clock clock, final long started) {
+    active.decrement();
+    runTime.record((clock.nanos() - started) / 1000000);
+  }
+
+
+  /**
+   * A task counted as queued until it is passed to {@link #dequeue(QueuedTask)}.
+   */
+  private abstract static class QueuedTask {
+    /**
+     * 1 once the task is no longer counted as queued, only updated through {@link #DEQUEUED}.
+     */
+    volatile int dequeued = 0;
+  }
+
+
+  /**
+   * A runnable which records its time in the queue and its running time.
+   */
+  private final class TimedRunnable extends QueuedTask implements Runnable {
+    private final Runnable task;
+    private final Clock clock;
+    private final long submitted;
+
+
+    TimedRunnable(final Runnable task) {
+      this.task = task;
+      queued.increment();
+      clock = ScoreCard.getClock();
+      submitted = clock.nanos();
+    }
+
+
+    @Override
+    public void run() {
+      final long started = beforeRun(this, clock, submitted);
+      try {
+        task.run();
+      } finally {
+        afterRun(clock, started);
+      }
+    }
+  }
+
+
+  /**
+   * A callable which records its time in the queue and its running time.
+   */
+  private final class TimedCallable<T> extends QueuedTask implements Callable<T> {
+    private final Callable<T> task;
+    private final Clock clock;
+    private final long submitted;
+
+
+    TimedCallable(final Callable<T> task) {
+      this.task = task;
+      queued.increment();
+      clock = ScoreCard.getClock();
+      submitted = clock.nanos();
+    }
+
+
+    @Override
+    public T call() throws Exception {
+      final long started = beforeRun(this, clock, submitted);
+      try {
+        return task.call();
+      } finally {
+        afterRun(clock, started);
+      }
+    }
+  }
+
+
+  /**
+   * The future of a submitted task, which stops counting the task as queued when it is cancelled before it starts.
+   */
+  private final class TimedFuture<T> extends FutureTask<T> {
+    private final QueuedTask task;
+
+
+    TimedFuture(final TimedCallable<T> task) {
+      super(task);
+      this.task = task;
+    }
+
+
+    TimedFuture(final TimedRunnable task, final T result) {
+      super(task, result);
+      this.task = task;
+    }
+
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        dequeue(task);
+      }
+    }
+  }
+
+}
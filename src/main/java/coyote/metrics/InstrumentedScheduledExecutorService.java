@@ -0,0 +1,155 @@
+package coyote.metrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decorates a ScheduledExecutorService to record the saturation of its thread pool in the ScoreCard.
+ *
+ * <p>Tasks submitted for immediate execution are instrumented exactly as in {@link InstrumentedExecutorService}.
+ * Scheduled tasks are not waiting for a thread while they are delayed, so they are not counted as queued and their
+ * queue time is how late they started relative to when they were due. Periodic tasks record each run.</p>
+ */
+public class InstrumentedScheduledExecutorService extends InstrumentedExecutorService implements ScheduledExecutorService {
+  private final ScheduledExecutorService delegate;
+
+
+  /**
+   * Create an instrumented scheduled executor service.
+   *
+   * @param name     the name prefixing all the metrics of this executor
+   * @param delegate the scheduled executor service which runs the tasks
+   */
+  public InstrumentedScheduledExecutorService(final String name, final ScheduledExecutorService delegate) {
+    super(name, delegate);
+    this.delegate = delegate;
+  }
+
+
+  @Override
+  public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+    try {
+      return delegate.schedule(new ScheduledRunnable(command, unit.toMillis(delay), 0), delay, unit);
+    } catch (final RejectedExecutionException e) {
+      rejected.increment();
+      throw e;
+    }
+  }
+
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+    try {
+      return delegate.schedule(new ScheduledCallable<>(callable, unit.toMillis(delay)), delay, unit);
+    } catch (final RejectedExecutionException e) {
+      rejected.increment();
+      throw e;
+    }
+  }
+
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+    try {
+      return delegate.scheduleAtFixedRate(new ScheduledRunnable(command, unit.toMillis(initialDelay), unit.toMillis(period)), initialDelay, period, unit);
+    } catch (final RejectedExecutionException e) {
+      rejected.increment();
+      throw e;
+    }
+  }
+
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+    try {
+      return delegate.scheduleWithFixedDelay(new ScheduledRunnable(command, unit.toMillis(initialDelay), -unit.toMillis(delay)), initialDelay, delay, unit);
+    } catch (final RejectedExecutionException e) {
+      rejected.increment();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Record the start of a scheduled task which was due at the given time.
+   *
+   * @param clock the clock the task was scheduled by
+   * @param due   the epoch time in milliseconds the task was due to start
+   * @return the time of the clock in nanoseconds the task started
+   */
+  private long beforeScheduledRun(final Clock clock, final long due) {
+    active.increment();
+    queueTime.record(Math.max(0, clock.millis() - due));
+    return clock.nanos();
+  }
+
+
+  /**
+   * A scheduled runnable which records how late it started and its running time.
+   */
+  private final class ScheduledRunnable implements Runnable {
+    private final Runnable task;
+    /**
+     * Positive for a fixed rate, negative for a fixed delay and zero for a single run.
+     */
+    private final long period;
+    private final Clock clock;
+    private long due;
+
+
+    ScheduledRunnable(final Runnable task, final long delay, final long period) {
+      this.task = task;
+      this.period = period;
+      clock = ScoreCard.getClock();
+      due = clock.millis() + delay;
+    }
+
+
+    @Override
+    public void run() {
+      final long started = beforeScheduledRun(clock, due);
+      try {
+        task.run();
+      } finally {
+        afterRun(clock, started);
+        if (period > 0) {
+          due += period;
+        } else if (period < 0) {
+          due = clock.millis() - period;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * A scheduled callable which records how late it started and its running time.
+   */
+  private final class ScheduledCallable<V> implements Callable<V> {
+    private final Callable<V> task;
+    private final Clock clock;
+    private final long due;
+
+
+    ScheduledCallable(final Callable<V> task, final long delay) {
+      this.task = task;
+      clock = ScoreCard.getClock();
+      due = clock.millis() + delay;
+    }
+
+
+    @Override
+    public V call() throws Exception {
+      final long started = beforeScheduledRun(clock, due);
+      try {
+        return task.call();
+      } finally {
+        afterRun(clock, started);
+      }
+    }
+  }
+
+}
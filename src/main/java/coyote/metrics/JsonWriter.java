@@ -0,0 +1,336 @@
+package coyote.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streams monitors as a JSON document directly as UTF-8 bytes.
+ *
+ * <p>The document holds a timestamp and an array each of counters, gauges and timers:</p>
+ * <pre>
+ * {"timestamp":"2020-01-31T12:00:00.000Z",
+ *  "counters":[{"name":"requests","labels":{"env":"dev"},"value":42,"updates":42}],
+ *  "gauges":[{"name":"queue","labels":{},"value":3,"min":0,"max":9,"updates":12}],
+ *  "timers":[{"name":"checkout","labels":{},"hits":2,"count":2,"total":30,"avg":15,"stddev":7,"min":10,"max":20,
+ *             "active":0,"maxActive":1,"avgActive":1,"firstAccess":...,"lastAccess":...,
+ *             "percentiles":{"p50":12.5,"p90":18.5,"p99":19.85}}]}
+ * </pre>
+ *
+ * <p>Descriptions and units are included when they are set, and percentiles are estimated from the buckets of timers
+ * which have them. Timestamps are written either as epoch milliseconds or as ISO-8601 instants in UTC; both are
+ * computed arithmetically so there is no formatter to create or share between threads. As with the exposition
+ * formats, every field is encoded straight into the buffer, which is flushed after each monitor once it passes a
+ * threshold.</p>
+ */
+final class JsonWriter {
+  private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  private final Utf8Buffer buffer;
+  private final OutputStream out;
+  private final Writer writer;
+  private final boolean iso8601;
+  private final TimerSnapshot timer = new TimerSnapshot();
+  private boolean first;
+  private long flushed = 0;
+
+
+  /**
+   * @param buffer  the buffer into which the document is rendered
+   * @param out     the stream to which the buffer is flushed, null to render into the buffer or the writer
+   * @param writer  the writer to which the buffer is flushed, null to render into the buffer or the stream
+   * @param iso8601 true to write timestamps as ISO-8601 instants, false to write them as epoch milliseconds
+   */
+  JsonWriter(final Utf8Buffer buffer, final OutputStream out, final Writer writer, final boolean iso8601) {
+    this.buffer = buffer;
+    this.out = out;
+    this.writer = writer;
+    this.iso8601 = iso8601;
+  }
+
+
+  /**
+   * Write a document holding the given monitors.
+   *
+   * @param monitors the monitors to write
+   * @throws IOException if the output could not be written
+   */
+  void write(final Collection<? extends Monitor> monitors) throws IOException {
+    final long started = SelfMetrics.start();
+    final int initial = buffer.length();
+    buffer.append((byte) '{');
+    name("timestamp");
+    timestamp(System.currentTimeMillis());
+    writeArray("counters", monitors, Counter.class);
+    writeArray("gauges", monitors, Gauge.class);
+    writeArray("timers", monitors, TimingMaster.class);
+    buffer.append((byte) '}');
+    flush(0);
+    SelfMetrics.recordRender("json", started, flushed + buffer.length() - initial);
+  }
+
+
+  private void writeArray(final String name, final Collection<? extends Monitor> monitors, final Class<?> type) throws IOException {
+    buffer.append((byte) ',');
+    name(name);
+    buffer.append((byte) '[');
+    boolean firstMonitor = true;
+    for (final Monitor monitor : monitors) {
+      // gauges are counters, so match the exact type
+      if (type == Counter.class ? (monitor instanceof Counter && !(monitor instanceof Gauge)) : type.isInstance(monitor)) {
+        if (!firstMonitor) {
+          buffer.append((byte) ',');
+        }
+        firstMonitor = false;
+        writeMonitor(monitor);
+        flush(FamilyWriter.FLUSH_THRESHOLD);
+      }
+    }
+    buffer.append((byte) ']');
+  }
+
+
+  /**
+   * Write a single monitor as a JSON object.
+   *
+   * @param monitor the monitor to write
+   */
+  private void writeMonitor(final Monitor monitor) {
+    buffer.append((byte) '{');
+    first = true;
+    field("name");
+    string(monitor.getName());
+    if (monitor.getDescription() != null) {
+      field("description");
+      string(monitor.getDescription());
+    }
+    field("labels");
+    buffer.append((byte) '{');
+    final Map<String, String> labels = FamilyWriter.labelsOf(monitor);
+    if (labels != null) {
+      boolean firstLabel = true;
+      for (final Map.Entry<String, String> entry : labels.entrySet()) {
+        if (!firstLabel) {
+          buffer.append((byte) ',');
+        }
+        firstLabel = false;
+        name(entry.getKey());
+        string(entry.getValue());
+      }
+    }
+    buffer.append((byte) '}');
+
+    if (monitor instanceof TimingMaster) {
+      writeTimer((TimingMaster) monitor);
+    } else if (monitor instanceof Counter) {
+      writeCounter((Counter) monitor);
+    } else {
+      field("value");
+      buffer.append(monitor.getValue());
+    }
+    buffer.append((byte) '}');
+  }
+
+
+  private void writeCounter(final Counter counter) {
+    if (counter.getUnits() != null) {
+      field("units");
+      string(counter.getUnits());
+    }
+    field("value");
+    buffer.append(counter.getValue());
+    if (counter instanceof Gauge) {
+      field("min");
+      buffer.append(((Gauge) counter).getMinValue());
+      field("max");
+      buffer.append(((Gauge) counter).getMaxValue());
+    }
+    field("updates");
+    buffer.append(counter.getUpdateCount());
+  }
+
+
+  private void writeTimer(final TimingMaster master) {
+    timer.read(master);
+    field("hits");
+    buffer.append(master.getHits());
+    field("count");
+    buffer.append(timer.count);
+    field("total");
+    buffer.append(timer.sum);
+    if (timer.count > 0) {
+      field("avg");
+      buffer.append(timer.sum / timer.count);
+      field("stddev");
+      buffer.append(master.getStandardDeviation());
+      field("min");
+      buffer.append(timer.min);
+      field("max");
+      buffer.append(timer.max);
+    }
+    field("active");
+    buffer.append(master.getActiveCounter());
+    field("maxActive");
+    buffer.append(master.getMaxActive());
+    field("avgActive");
+    buffer.append((double) master.getAvgActive());
+    if (master.getFirstAccessTime() != 0) {
+      field("firstAccess");
+      timestamp(master.getFirstAccessTime());
+      field("lastAccess");
+      timestamp(master.getLastAccessTime());
+    }
+    if (timer.buckets != null && timer.count > 0) {
+      field("percentiles");
+      buffer.append((byte) '{');
+      name("p50");
+      buffer.append(timer.percentile(0.5));
+      buffer.append((byte) ',');
+      name("p90");
+      buffer.append(timer.percentile(0.9));
+      buffer.append((byte) ',');
+      name("p99");
+      buffer.append(timer.percentile(0.99));
+      buffer.append((byte) '}');
+    }
+  }
+
+
+  /**
+   * Start a field of the current object, preceded by a comma unless it is the first field.
+   */
+  private void field(final String name) {
+    if (!first) {
+      buffer.append((byte) ',');
+    }
+    first = false;
+    name(name);
+  }
+
+
+  private void name(final String name) {
+    string(name);
+    buffer.append((byte) ':');
+  }
+
+
+  /**
+   * Write a JSON string, escaping quotes, backslashes and control characters.
+   */
+  private void string(final String text) {
+    buffer.append((byte) '"');
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c < 0x20 || c == '"' || c == '\\') {
+        buffer.append(text, start, i);
+        buffer.append((byte) '\\');
+        switch (c) {
+          case '"':
+          case '\\':
+            buffer.append((byte) c);
+            break;
+          case '\n':
+            buffer.append((byte) 'n');
+            break;
+          case '\r':
+            buffer.append((byte) 'r');
+            break;
+          case '\t':
+            buffer.append((byte) 't');
+            break;
+          default:
+            buffer.append((byte) 'u').append((byte) '0').append((byte) '0');
+            buffer.append(HEX[c >> 4]).append(HEX[c & 0xF]);
+        }
+        start = i + 1;
+      }
+    }
+    buffer.append(text, start, text.length());
+    buffer.append((byte) '"');
+  }
+
+
+  private void timestamp(final long millis) {
+    if (iso8601) {
+      buffer.append((byte) '"');
+      appendIso8601(buffer, millis);
+      buffer.append((byte) '"');
+    } else {
+      buffer.append(millis);
+    }
+  }
+
+
+  /**
+   * Append the instant as an ISO-8601 UTC timestamp with milliseconds, e.g. {@code 2020-01-31T12:00:00.000Z}.
+   *
+   * <p>The civil date is computed from the epoch day with Howard Hinnant's days-to-civil algorithm, so no calendar or
+   * formatter is needed.</p>
+   *
+   * @param buf    the buffer to write
+   * @param millis the epoch time in milliseconds
+   */
+  static void appendIso8601(final Utf8Buffer buf, final long millis) {
+    final long days = Math.floorDiv(millis, 86400000L);
+    final long millisOfDay = Math.floorMod(millis, 86400000L);
+
+    final long z = days + 719468;
+    final long era = Math.floorDiv(z, 146097);
+    final long dayOfEra = z - era * 146097;
+    final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    final long mp = (5 * dayOfYear + 2) / 153;
+    final long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    final long month = mp < 10 ? mp + 3 : mp - 9;
+    final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    digits(buf, year, 4);
+    buf.append((byte) '-');
+    digits(buf, month, 2);
+    buf.append((byte) '-');
+    digits(buf, day, 2);
+    buf.append((byte) 'T');
+    digits(buf, millisOfDay / 3600000, 2);
+    buf.append((byte) ':');
+    digits(buf, (millisOfDay / 60000) % 60, 2);
+    buf.append((byte) ':');
+    digits(buf, (millisOfDay / 1000) % 60, 2);
+    buf.append((byte) '.');
+    digits(buf, millisOfDay % 1000, 3);
+    buf.append((byte) 'Z');
+  }
+
+
+  /**
+   * Append a non-negative value padded with leading zeros to the given width.
+   */
+  private static void digits(final Utf8Buffer buf, final long value, final int width) {
+    for (long limit = 10, i = 1; i < width; i++, limit *= 10) {
+      if (value < limit) {
+        buf.append((byte) '0');
+      }
+    }
+    buf.append(value);
+  }
+
+
+  private void flush(final int threshold) throws IOException {
+    if (buffer.length() > 0 && buffer.length() >= threshold) {
+      if (out != null || writer != null) {
+        flushed += buffer.length();
+      }
+      if (out != null) {
+        buffer.writeTo(out);
+        buffer.reset();
+      } else if (writer != null) {
+        // flushed only between monitors, where the buffer ends on a whole character
+        writer.write(buffer.toString());
+        buffer.reset();
+      }
+    }
+  }
+
+}
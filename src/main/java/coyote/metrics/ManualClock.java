@@ -0,0 +1,85 @@
+package coyote.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock which only moves when it is told to, for tests which need deterministic timings.
+ *
+ * <pre>
+ * ManualClock clock = new ManualClock();
+ * ScoreCard.setClock(clock);
+ * Timer timer = ScoreCard.startTimer("lookup");
+ * clock.advance(250, TimeUnit.MILLISECONDS);
+ * timer.stop(); // records exactly 250 milliseconds
+ * </pre>
+ *
+ * <p>The wall-clock and monotonic times move together, so the wall-clock time is always the time it was set to plus
+ * however far the clock was advanced since.</p>
+ */
+public final class ManualClock implements Clock {
+  private long baseMillis;
+  private long nanos = 0;
+
+
+  /**
+   * Create a clock set to the current time.
+   */
+  public ManualClock() {
+    this(System.currentTimeMillis());
+  }
+
+
+  /**
+   * @param millis the wall-clock time to start at in milliseconds since the epoch
+   */
+  public ManualClock(final long millis) {
+    baseMillis = millis;
+  }
+
+
+  @Override
+  public synchronized long millis() {
+    return baseMillis + nanos / 1000000;
+  }
+
+
+  @Override
+  public synchronized long nanos() {
+    return nanos;
+  }
+
+
+  /**
+   * Move the clock forward.
+   *
+   * @param duration how far to move the clock, not negative
+   * @param unit     the unit of the duration
+   * @return this clock
+   */
+  public synchronized ManualClock advance(final long duration, final TimeUnit unit) {
+    if (duration < 0) {
+      throw new IllegalArgumentException("A clock cannot go backwards: " + duration);
+    }
+    nanos += unit.toNanos(duration);
+    return this;
+  }
+
+
+  /**
+   * Set the wall-clock time without moving the monotonic time, as when the system clock is adjusted.
+   *
+   * @param millis the wall-clock time in milliseconds since the epoch
+   * @return this clock
+   */
+  public synchronized ManualClock setMillis(final long millis) {
+    baseMillis = millis - nanos / 1000000;
+    return this;
+  }
+
+
+  @Override
+  public synchronized String toString() {
+    return "ManualClock[" + millis() + "]";
+  }
+
+}
@@ -14,6 +14,18 @@ public abstract class Metric implements Monitor {
   protected String _description = null;
   protected long _updateCount = 0;
   protected Map<String, String> _labels = new HashMap<>();
+  /**
+   * The labels as rendered by the MetricFormatter, discarded whenever the labels change.
+   */
+  volatile byte[] _labelCache = null;
+  /**
+   * The labels sorted by name, discarded whenever the labels change.
+   */
+  volatile List<Map.Entry<String, String>> _sortedLabels = null;
+  /**
+   * The place of this metric in the change log of the ScoreCard.
+   */
+  final ChangeLog.Entry _changes = new ChangeLog.Entry(this);
 
 
   /**
@@ -78,6 +90,9 @@ public abstract class Metric implements Monitor {
       } else {
         _labels.remove(name);
       }
+      _labelCache = null;
+      _sortedLabels = null;
+      _changes.touch();
     }
     return this;
   }
@@ -1,47 +1,92 @@
 package coyote.metrics;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class MetricFormatter {
   public static final String METRIC_NAME_LABEL = "metric_name";
+  /**
+   * Content-type of the delimited protobuf exposition format.
+   */
+  public static final String PROTOBUF_CONTENT_TYPE = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+  /**
+   * Per-thread buffer used to stream records; it is flushed as it fills so it remains small.
+   */
+  private static final ThreadLocal<Utf8Buffer> BUFFER = new ThreadLocal<Utf8Buffer>() {
+    @Override
+    protected Utf8Buffer initialValue() {
+      return new Utf8Buffer(2 * FamilyWriter.FLUSH_THRESHOLD);
+    }
+  };
+  /**
+   * Per-thread format of the access times in the legacy JSON of a timer, as DateFormat is not thread-safe.
+   */
+  private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.DEFAULT);
+    }
+  };
+  /**
+   * The label holding the path of a nested timer within its tree.
+   */
+  public static final String SPAN_LABEL = "span";
+  public static final String NESTED_TOTAL = "nested_timer_total_ms";
+  public static final String NESTED_SELF = "nested_timer_self_ms";
+  public static final String NESTED_HITS = "nested_timer_hits";
+
+  /**
+   * Access the labels of a monitor sorted by name, as formats which order labels write them.
+   *
+   * <p>The sorted labels of counters, gauges and master timers are kept until their labels change, so writing them on
+   * every export creates no garbage. The returned list cannot be modified.</p>
+   *
+   * @param monitor the monitor whose labels are to be sorted
+   * @return the labels of the monitor in the order of their names.
+   */
+  public static List<Map.Entry<String, String>> getSortedLabels(Monitor monitor) {
+    return FamilyWriter.sortedLabelsOf(monitor);
+  }
 
+  /**
+   * Create a JSON representation of the master of the given timer.
+   *
+   * <p>This is the legacy representation: every value is a quoted string, the keys are the display names of the
+   * statistics and the access times are formatted in the short date and default time style of the default locale. The
+   * statistics of the intervals are only included once a timer has stopped. Use
+   * {@link #writeScoreCardToJson(OutputStream, boolean)} for a document with labels, numeric values and machine
+   * readable timestamps.</p>
+   *
+   * @param timer the timer whose master is to be represented
+   * @return a JSON object, empty if the timer has no master.
+   */
   public static String toJson(Timer timer) {
-    StringBuilder sb = new StringBuilder("{");
-    TimerMaster master = timer.getMaster();
+    final StringBuilder sb = new StringBuilder("{");
+    final TimerMaster master = timer.getMaster();
     if (master != null) {
-      sb.append(getField(TimingMaster.NAME, master.getName()));
-      sb.append(',');
-      sb.append(getField(TimingMaster.HITS, Integer.toString(master.getHits())));
-      sb.append(',');
-
+      appendField(sb, TimingMaster.NAME, master.getName()).append(',');
+      appendField(sb, TimingMaster.HITS, Integer.toString(master.getHits())).append(',');
       if ((master.getHits() - master.getActiveCounter()) > 0) {
-        sb.append(getField(TimingMaster.AVG, Long.toString(master.getAverage())));
-        sb.append(',');
-        sb.append(getField(TimingMaster.TOTAL, Long.toString(master.getTotal())));
-        sb.append(',');
-        sb.append(getField(TimingMaster.STANDARD_DEVIATION, Long.toString(master.getStandardDeviation())));
-        sb.append(',');
-        sb.append(getField(TimingMaster.MIN, Long.toString(master.getMinimum())));
-        sb.append(',');
-        sb.append(getField(TimingMaster.MAX, Long.toString(master.getMaximum())));
-        sb.append(',');
+        appendField(sb, TimingMaster.AVG, Long.toString(master.getAverage())).append(',');
+        appendField(sb, TimingMaster.TOTAL, Long.toString(master.getTotal())).append(',');
+        appendField(sb, TimingMaster.STANDARD_DEVIATION, Long.toString(master.getStandardDeviation())).append(',');
+        appendField(sb, TimingMaster.MIN, Long.toString(master.getMinimum())).append(',');
+        appendField(sb, TimingMaster.MAX, Long.toString(master.getMaximum())).append(',');
       }
-      // TODO: add labels
-      sb.append(getField(TimingMaster.ACTIVE, Long.toString(master.getActiveCounter())));
-      sb.append(',');
-      sb.append(getField(TimingMaster.MAXACTIVE, Long.toString(master.getMaxActive())));
-      sb.append(',');
-      sb.append(getField(TimingMaster.AVGACTIVE, Float.toString(master.getAvgActive())));
-      sb.append(',');
-      sb.append(getField(TimingMaster.FIRSTACCESS, getDateString(master.getFirstAccessTime())));
-      sb.append(',');
-      sb.append(getField(TimingMaster.LASTACCESS, getDateString(master.getLastAccessTime())));
+      appendField(sb, TimingMaster.ACTIVE, Long.toString(master.getActiveCounter())).append(',');
+      appendField(sb, TimingMaster.MAXACTIVE, Long.toString(master.getMaxActive())).append(',');
+      appendField(sb, TimingMaster.AVGACTIVE, Float.toString(master.getAvgActive())).append(',');
+      appendField(sb, TimingMaster.FIRSTACCESS, getDateString(master.getFirstAccessTime())).append(',');
+      appendField(sb, TimingMaster.LASTACCESS, getDateString(master.getLastAccessTime()));
     }
     sb.append("}");
     return sb.toString();
@@ -52,40 +97,224 @@ public class MetricFormatter {
     if (time == 0) {
       return "";
     } else {
-      return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.DEFAULT).format(new Date(time));
+      return DATE_FORMAT.get().format(new Date(time));
+    }
+  }
+
+
+  private static StringBuilder appendField(final StringBuilder sb, final String name, final String value) {
+    return sb.append('"').append(name).append("\":\"").append(value).append('"');
+  }
+
+
+  /**
+   * Create a JSON document holding all the counters, gauges and timers in the ScoreCard.
+   *
+   * @param iso8601 true to write timestamps as ISO-8601 instants in UTC, false to write them as epoch milliseconds
+   * @return a JSON document with a timestamp and an array each of counters, gauges and timers.
+   * @see #writeScoreCardToJson(OutputStream, boolean)
+   */
+  public static String convertScoreCardToJson(boolean iso8601) {
+    final Utf8Buffer buffer = new Utf8Buffer(FamilyWriter.FLUSH_THRESHOLD);
+    try {
+      new JsonWriter(buffer, null, null, iso8601).write(getScoreCardMonitors());
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // nothing is written to a stream
     }
+    return buffer.toString();
   }
 
 
-  private static String getField(String name, String value) {
-    return getQuoted(name).concat(":").concat(getQuoted(value));
+  /**
+   * Stream a JSON document holding all the counters, gauges and timers in the ScoreCard as UTF-8 bytes.
+   *
+   * <p>Each monitor is written with its description, labels and statistics, and timers with buckets include
+   * estimated percentiles. The document is rendered through a small per-thread buffer which is flushed to the
+   * stream as it fills.</p>
+   *
+   * @param out     the stream to which the document is written
+   * @param iso8601 true to write timestamps as ISO-8601 instants in UTC, false to write them as epoch milliseconds
+   * @throws IOException if the stream could not be written
+   */
+  public static void writeScoreCardToJson(OutputStream out, boolean iso8601) throws IOException {
+    new JsonWriter(BUFFER.get().reset(), out, null, iso8601).write(getScoreCardMonitors());
   }
 
-  private static String getQuoted(String value) {
-    return "\"" + value + "\"";
+
+  /**
+   * Stream a JSON document holding all the counters, gauges and timers in the ScoreCard to a character writer.
+   *
+   * @param writer  the writer to which the document is written
+   * @param iso8601 true to write timestamps as ISO-8601 instants in UTC, false to write them as epoch milliseconds
+   * @throws IOException if the writer could not be written
+   * @see #writeScoreCardToJson(OutputStream, boolean)
+   */
+  public static void writeScoreCardToJson(Writer writer, boolean iso8601) throws IOException {
+    new JsonWriter(BUFFER.get().reset(), null, writer, iso8601).write(getScoreCardMonitors());
   }
 
 
   /**
-   * Create a set of OpenMetric representations of all the counters, timers, and gauges in the Scorecard which have a
-   * label name of "metric_name".
+   * Stream a JSON document holding the given monitors as UTF-8 bytes.
    *
-   * <p>If the timer, counter or gauge contains a label with the name of "metric_help", that label will be used as the
-   * help text for the returned metric.</p>
+   * @param out      the stream to which the document is written
+   * @param monitors the monitors to write
+   * @param iso8601  true to write timestamps as ISO-8601 instants in UTC, false to write them as epoch milliseconds
+   * @throws IOException if the stream could not be written
+   */
+  public static void convertToJson(OutputStream out, List<Monitor> monitors, boolean iso8601) throws IOException {
+    new JsonWriter(BUFFER.get().reset(), out, null, iso8601).write(monitors);
+  }
+
+
+  /**
+   * Create a set of OpenMetric representations of all the counters, timers, and gauges in the Scorecard.
    *
-   * <p>The "job" will be the name of the timer, gauge or counter and the "instance" will be the hostname retrieved
-   * from the ScoreCard.</p>
+   * <p>Monitors with a label named "metric_name" are grouped into the metric family with that name and are labeled
+   * with a "job" label holding the name of the monitor, mirroring how {@code PushGatewayClient.pushJobNamedMetrics}
+   * uses monitor names as job names. All other monitors form a family named after the monitor. Each family is written
+   * with a single HELP and TYPE header; the description of the first member with one is used as the help text.</p>
    *
    * @return a set of OpenMetric records each terminated with a new line character, or an empty string if no timers,
    * counter or gauges were found in the ScoreCard.
    */
   public static String convertScoreCardToOpenMetrics() {
-    Writer writer = new StringWriter();
-    //TODO: implement this
-    // get a list of all the metric names for all types of metrics
-    // call all three types with each metric name to group metric names together so headers are not repeated unnecessarily
-    // concatenate all the results
-    return writer.toString();
+    final Utf8Buffer buffer = new Utf8Buffer(FamilyWriter.FLUSH_THRESHOLD);
+    writeScoreCardToOpenMetrics(buffer);
+    return buffer.toString();
+  }
+
+
+  /**
+   * Render the OpenMetric representations of all the counters, timers, and gauges in the ScoreCard into the given
+   * buffer as UTF-8 bytes.
+   *
+   * <p>Reusing the buffer across calls avoids all but a small amount of garbage per call.</p>
+   *
+   * @param buffer the buffer to which the records are appended
+   * @see #convertScoreCardToOpenMetrics()
+   */
+  public static void writeScoreCardToOpenMetrics(Utf8Buffer buffer) {
+    try {
+      new OpenMetricsWriter(buffer, null, true, true).write(getScoreCardMonitors());
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // nothing is written to a stream
+    }
+  }
+
+
+  /**
+   * Stream the OpenMetric representations of all the counters, timers, and gauges in the ScoreCard as UTF-8 bytes.
+   *
+   * <p>Records are rendered through a small per-thread buffer which is flushed to the stream as it fills, so the
+   * memory used does not depend on the number of series written.</p>
+   *
+   * @param out the stream to which the records are written
+   * @throws IOException if the stream could not be written
+   * @see #convertScoreCardToOpenMetrics()
+   */
+  public static void writeScoreCardToOpenMetrics(OutputStream out) throws IOException {
+    new OpenMetricsWriter(BUFFER.get().reset(), out, true, true).write(getScoreCardMonitors());
+  }
+
+
+  /**
+   * Stream the OpenMetric representations of the given monitors as UTF-8 bytes.
+   *
+   * <p>This is the byte-oriented equivalent of {@link #convertToOpenMetrics(Writer, List, boolean)}, except monitors
+   * in the same metric family share a single HELP and TYPE header.</p>
+   *
+   * @param out                  the stream to which the records are written
+   * @param monitors             the monitors to write
+   * @param honorMetricNameLabel true to use the "metric_name" label as the metric name
+   * @throws IOException if the stream could not be written
+   */
+  public static void convertToOpenMetrics(OutputStream out, List<Monitor> monitors, boolean honorMetricNameLabel) throws IOException {
+    new OpenMetricsWriter(BUFFER.get().reset(), out, honorMetricNameLabel, false).write(monitors);
+  }
+
+
+  /**
+   * Stream all the counters, timers, and gauges in the ScoreCard in the delimited protobuf exposition format.
+   *
+   * <p>Families are grouped and labeled as by {@link #convertScoreCardToOpenMetrics()}. The output should be sent
+   * with the {@link #PROTOBUF_CONTENT_TYPE} content-type.</p>
+   *
+   * @param out the stream to which the messages are written
+   * @throws IOException if the stream could not be written
+   */
+  public static void writeScoreCardToProtobuf(OutputStream out) throws IOException {
+    new ProtobufWriter(BUFFER.get().reset(), out, true, true).write(getScoreCardMonitors());
+  }
+
+
+  /**
+   * Stream the given monitors in the delimited protobuf exposition format.
+   *
+   * @param out                  the stream to which the messages are written
+   * @param monitors             the monitors to write
+   * @param honorMetricNameLabel true to use the "metric_name" label as the metric name
+   * @throws IOException if the stream could not be written
+   * @see #convertToOpenMetrics(OutputStream, List, boolean)
+   */
+  public static void convertToProtobuf(OutputStream out, List<Monitor> monitors, boolean honorMetricNameLabel) throws IOException {
+    new ProtobufWriter(BUFFER.get().reset(), out, honorMetricNameLabel, false).write(monitors);
+  }
+
+
+  /**
+   * Encode the whole ScoreCard as the series of Prometheus remote-write requests.
+   *
+   * @param shards          the buffers to which the series are appended
+   * @param timestampMillis the time of the samples in milliseconds since the epoch
+   * @return the number of series appended
+   * @see #convertToRemoteWrite(Utf8Buffer[], Collection, long, boolean)
+   */
+  public static int writeScoreCardToRemoteWrite(Utf8Buffer[] shards, long timestampMillis) {
+    return writeRemoteWrite(new RemoteWriteWriter(shards, timestampMillis, true, true), getScoreCardMonitors());
+  }
+
+
+  /**
+   * Encode the given monitors as the series of Prometheus remote-write requests.
+   *
+   * <p>Each series is appended to one of the buffers as a {@code timeseries} field, so each buffer holds the body of
+   * an uncompressed {@code WriteRequest}. The buffer is chosen by a hash of the monitor, so the series of a monitor
+   * always land in the same buffer. Families are named and labeled as by the text exposition format.</p>
+   *
+   * @param shards               the buffers to which the series are appended
+   * @param monitors             the monitors to encode
+   * @param timestampMillis      the time of the samples in milliseconds since the epoch
+   * @param honorMetricNameLabel true to use the "metric_name" label as the metric name
+   * @return the number of series appended
+   */
+  public static int convertToRemoteWrite(Utf8Buffer[] shards, Collection<? extends Monitor> monitors, long timestampMillis, boolean honorMetricNameLabel) {
+    return writeRemoteWrite(new RemoteWriteWriter(shards, timestampMillis, honorMetricNameLabel, false), monitors);
+  }
+
+
+  private static int writeRemoteWrite(RemoteWriteWriter writer, Collection<? extends Monitor> monitors) {
+    try {
+      writer.write(monitors);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // nothing is written to a stream
+    }
+    return writer.getSeriesCount();
+  }
+
+
+  /**
+   * @return all the timers, counters and gauges in the ScoreCard.
+   */
+  static List<Monitor> getScoreCardMonitors() {
+    final List<Monitor> retval = new ArrayList<>(ScoreCard.getCounterCount() + ScoreCard.getGaugeCount() + 16);
+    for (Iterator<TimingMaster> it = ScoreCard.getTimerIterator(); it.hasNext(); retval.add(it.next())) ;
+    for (Iterator<Counter> it = ScoreCard.getCounterIterator(); it.hasNext(); retval.add(it.next())) ;
+    for (Iterator<Gauge> it = ScoreCard.getGaugeIterator(); it.hasNext(); retval.add(it.next())) ;
+    if (SelfMetrics.isEnabled()) {
+      retval.addAll(SelfMetrics.getMonitors());
+    }
+    return retval;
   }
 
 
@@ -124,6 +353,61 @@ public class MetricFormatter {
     }
   }
 
+  /**
+   * Write the given nested timer trees as OpenMetric records.
+   *
+   * <p>Each node of each tree is written as three series, its total time, its self time and its number of hits. The
+   * series of every node share the same three metric names and are distinguished by a label named "span" holding the
+   * path of the node within its tree (e.g. "scenario/step"). The labels of each node are merged with those of its
+   * ancestors.</p>
+   *
+   * @param writer the writer to which the records are written
+   * @param roots  the roots of the nested timer trees to write
+   * @throws IOException if the writer could not be written
+   */
+  public static void convertNestedTimersToOpenMetrics(Writer writer, List<NestedTimingMaster> roots) throws IOException {
+    writer.append("# HELP " + NESTED_TOTAL + " Total time of the nested timer including its children in milliseconds\n");
+    writer.append("# TYPE " + NESTED_TOTAL + " counter\n");
+    for (NestedTimingMaster root : roots) {
+      for (NestedTimingMaster node : root.getDescendants()) {
+        writeNestedSeries(writer, NESTED_TOTAL, node, node.getTotal());
+      }
+    }
+    writer.append("# HELP " + NESTED_SELF + " Time of the nested timer excluding its children in milliseconds\n");
+    writer.append("# TYPE " + NESTED_SELF + " counter\n");
+    for (NestedTimingMaster root : roots) {
+      for (NestedTimingMaster node : root.getDescendants()) {
+        writeNestedSeries(writer, NESTED_SELF, node, node.getSelfTotal());
+      }
+    }
+    writer.append("# HELP " + NESTED_HITS + " Number of times the nested timer was started\n");
+    writer.append("# TYPE " + NESTED_HITS + " counter\n");
+    for (NestedTimingMaster root : roots) {
+      for (NestedTimingMaster node : root.getDescendants()) {
+        writeNestedSeries(writer, NESTED_HITS, node, node.getHits());
+      }
+    }
+  }
+
+  private static void writeNestedSeries(Writer writer, String metricName, NestedTimingMaster node, long value) throws IOException {
+    writer.append(metricName);
+    writer.append("{" + SPAN_LABEL + "=\"");
+    writeEscapedLabelValue(writer, node.getPath());
+    writer.write('"');
+    for (Map.Entry<String, String> entry : node.getInheritedLabels().entrySet()) {
+      if (!SPAN_LABEL.equals(entry.getKey())) {
+        writer.write(',');
+        writer.write(entry.getKey());
+        writer.write("=\"");
+        writeEscapedLabelValue(writer, entry.getValue());
+        writer.write('"');
+      }
+    }
+    writer.append("} ");
+    writer.append(Long.toString(value));
+    writer.append("\n");
+  }
+
   public static void convertToOpenMetrics(Writer writer, List<Monitor> monitors) throws IOException {
     convertToOpenMetrics(writer, monitors, false);
   }
@@ -131,6 +415,13 @@ public class MetricFormatter {
   public static void convertToOpenMetrics(Writer writer, List<Monitor> monitors, boolean honorMetricNameLabel) throws IOException {
 
     for (Monitor monitor : monitors) {
+      if (monitor instanceof TimingMaster) {
+        // timers are written as summaries or histograms, which only the byte-oriented writer knows how to render
+        final Utf8Buffer buffer = BUFFER.get().reset();
+        new OpenMetricsWriter(buffer, null, honorMetricNameLabel, false).write(Collections.singletonList(monitor));
+        writer.append(buffer.toString());
+        continue;
+      }
       String metricName = monitor.getName();
 
       if (honorMetricNameLabel && monitor.hasLabel(METRIC_NAME_LABEL)) {
@@ -0,0 +1,70 @@
+package coyote.metrics;
+
+/**
+ * The NestedTimer class models a timer which participates in a per-thread tree of timers.
+ *
+ * <p>While running, the timer sits on the stack of nested timers for the thread which started it. When stopped, the
+ * elapsed interval is added to the total of its master, the interval less the time spent in any child timers is added
+ * to the self time of its master, and the whole interval is attributed to the enclosing timer as child time.</p>
+ *
+ * <p>Nested timers should be stopped on the thread which started them. A timer stopped on another thread still
+ * records its total time, but its time is not attributed to its parent.</p>
+ */
+public class NestedTimer extends TimingTimer {
+  /**
+   * The stack of the thread which started this timer.
+   */
+  private TimerStack _stack = null;
+
+  /**
+   * Time spent in child timers during the current run.
+   */
+  private long _childAccrued = 0;
+
+
+  /**
+   *
+   */
+  NestedTimer(final NestedTimingMaster master) {
+    super(master);
+  }
+
+
+  @Override
+  public void start() {
+    if (!_isRunningFlag) {
+      _childAccrued = 0;
+      super.start();
+      _stack = TimerStack.current();
+      _stack.push(this);
+    }
+  }
+
+
+  @Override
+  public void stop() {
+    if (_isRunningFlag) {
+      final TimerStack stack = _stack;
+      _stack = null;
+      final boolean local = (stack == TimerStack.current()) && stack.remove(this);
+      final long elapsed = timeElapsedSinceLastStart();
+      super.stop();
+      ((NestedTimingMaster) _master).increaseSelf(Math.max(0, elapsed - _childAccrued));
+      if (local) {
+        final NestedTimer parent = stack.peek();
+        if (parent != null) {
+          parent._childAccrued += elapsed;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * @return the master of this timer as a node in the timer tree.
+   */
+  public NestedTimingMaster getNode() {
+    return (NestedTimingMaster) _master;
+  }
+
+}
@@ -0,0 +1,259 @@
+package coyote.metrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The NestedTimingMaster class models one node in a tree of timer masters.
+ *
+ * <p>When a nested timer is started while another nested timer is running on the same thread, the new timer is
+ * issued by a child of the running timer's master. The result is a call tree of masters where each node tracks the
+ * total time of its timers (including the time spent in its children) as well as its self time, which excludes the
+ * time spent in its children.</p>
+ *
+ * <p>Nodes are created on demand through {@link ScoreCard#startNestedTimer(String)} and live for the life of the
+ * runtime; the same child name under the same parent always resolves to the same node.</p>
+ */
+public class NestedTimingMaster extends TimingMaster {
+  /**
+   * The delimiter used to separate the names of the nodes in a path.
+   */
+  public static final String PATH_SEPARATOR = "/";
+  static final String SELF = "Self";
+
+  /**
+   * The node which issued the timers enclosing ours, null if we are a root.
+   */
+  private final NestedTimingMaster parent;
+
+  /**
+   * Child nodes by their name, in the order they were first seen. Guarded by the lock of this node.
+   */
+  private final Map<String, NestedTimingMaster> children = new LinkedHashMap<>();
+
+  /**
+   * The accrued time of all stopped timers less the time spent in their children.
+   */
+  private long selfTotal;
+
+
+  /**
+   * Create a root node with the given name.
+   */
+  public NestedTimingMaster(final String name) {
+    this(name, null);
+  }
+
+
+  /**
+   * Create a node with the given name under the given parent.
+   */
+  NestedTimingMaster(final String name, final NestedTimingMaster parent) {
+    super(name);
+    this.parent = parent;
+  }
+
+
+  @Override
+  TimingTimer newTimingTimer() {
+    return new NestedTimer(this);
+  }
+
+
+  /**
+   * @return the node enclosing this one or null if this is a root node.
+   */
+  public NestedTimingMaster getParent() {
+    return parent;
+  }
+
+
+  /**
+   * @return the root of the tree containing this node.
+   */
+  public NestedTimingMaster getRoot() {
+    NestedTimingMaster retval = this;
+    while (retval.parent != null) {
+      retval = retval.parent;
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the number of nodes between this node and its root.
+   */
+  public int getDepth() {
+    int retval = 0;
+    for (NestedTimingMaster node = parent; node != null; node = node.parent) {
+      retval++;
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the names of all the nodes from the root to this node separated by the {@link #PATH_SEPARATOR}.
+   */
+  public String getPath() {
+    if (parent == null) {
+      return _name;
+    }
+    return parent.getPath() + PATH_SEPARATOR + _name;
+  }
+
+
+  /**
+   * Return the child node with the given name, creating it if it does not exist.
+   *
+   * @param name the name of the child node
+   * @return the child node with the given name.
+   */
+  public NestedTimingMaster getChild(final String name) {
+    lock.lock();
+    try {
+      NestedTimingMaster retval = children.get(name);
+      if (retval == null) {
+        retval = new NestedTimingMaster(name, this);
+        children.put(name, retval);
+      }
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @param name the name of the child to find
+   * @return true if this node has a child with the given name, false otherwise.
+   */
+  public boolean hasChild(final String name) {
+    lock.lock();
+    try {
+      return children.containsKey(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of direct children of this node.
+   */
+  public int getChildCount() {
+    lock.lock();
+    try {
+      return children.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Get an iterator over the direct children of this node.
+   *
+   * <p>NOTE: this iterator is detached from the children of the node.</p>
+   *
+   * @return a detached iterator over the children of this node.
+   */
+  public Iterator<NestedTimingMaster> getChildIterator() {
+    final ArrayList<NestedTimingMaster> list;
+    lock.lock();
+    try {
+      list = new ArrayList<>(children.values());
+    } finally {
+      lock.unlock();
+    }
+    return list.iterator();
+  }
+
+
+  /**
+   * Collect this node and all of its descendants in depth-first order.
+   *
+   * @return a list with this node first followed by its descendants.
+   */
+  public List<NestedTimingMaster> getDescendants() {
+    final List<NestedTimingMaster> retval = new ArrayList<>();
+    collect(retval);
+    return retval;
+  }
+
+
+  private void collect(final List<NestedTimingMaster> list) {
+    list.add(this);
+    for (final Iterator<NestedTimingMaster> it = getChildIterator(); it.hasNext(); ) {
+      it.next().collect(list);
+    }
+  }
+
+
+  /**
+   * Return the labels of this node merged with those of its ancestors.
+   *
+   * <p>Labels placed on a node apply to all of its children so the labels of a scenario are reported with each of its
+   * steps. Labels on a node override those with the same name on its ancestors.</p>
+   *
+   * @return a mutable map of the name-value pairs in effect for this node.
+   */
+  public Map<String, String> getInheritedLabels() {
+    final Map<String, String> retval = (parent == null) ? new LinkedHashMap<String, String>() : parent.getInheritedLabels();
+    retval.putAll(getLabels());
+    return retval;
+  }
+
+
+  /**
+   * @return the total time of all stopped timers less the time spent in their children.
+   */
+  public long getSelfTotal() {
+    lock.lock();
+    try {
+      return selfTotal;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Add to the self time of this node.
+   *
+   * @param value the amount of time spent in this node and not its children.
+   */
+  void increaseSelf(final long value) {
+    lock.lock();
+    try {
+      selfTotal += value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  protected void resetThis() {
+    lock.lock();
+    try {
+      super.resetThis();
+      selfTotal = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return a string representing the timer along with its self time.
+   */
+  @Override
+  public String toString() {
+    return super.toString() + ", " + SELF + "=" + convertToString(getSelfTotal()) + " " + MILLISECONDS;
+  }
+
+}
@@ -0,0 +1,252 @@
+package coyote.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders monitors in the Prometheus text exposition format directly as UTF-8 bytes.
+ *
+ * <p>Monitors are grouped into metric families so each family has a single HELP and TYPE header. Counters and gauges
+ * are written as a single sample. Timers are written as histograms when they have buckets, and otherwise as summaries
+ * whose 0 and 1 quantiles are the minimum and maximum interval; either way with {@code _sum} and {@code _count}
+ * samples so they can be aggregated and rated.</p>
+ *
+ * <p>Names, labels and values are encoded straight into a {@link Utf8Buffer}; the rendered labels of each monitor are
+ * cached on the monitor until its labels change, and numbers are written digit by digit, so writing a series creates
+ * no garbage. When writing to a stream, the buffer is flushed whenever it passes a threshold, keeping its size bounded
+ * regardless of the number of series.</p>
+ */
+final class OpenMetricsWriter extends FamilyWriter {
+  private static final byte[] HELP = {'#', ' ', 'H', 'E', 'L', 'P', ' '};
+  private static final byte[] TYPE = {'#', ' ', 'T', 'Y', 'P', 'E', ' '};
+  private static final byte[] EMPTY = {};
+  private static final byte[] BUCKET = {'_', 'b', 'u', 'c', 'k', 'e', 't'};
+  private static final byte[] SUM = {'_', 's', 'u', 'm'};
+  private static final byte[] COUNT = {'_', 'c', 'o', 'u', 'n', 't'};
+  private static final byte[] QUANTILE_MIN = {'q', 'u', 'a', 'n', 't', 'i', 'l', 'e', '=', '"', '0', '"'};
+  private static final byte[] QUANTILE_MAX = {'q', 'u', 'a', 'n', 't', 'i', 'l', 'e', '=', '"', '1', '"'};
+
+
+  /**
+   * @param buffer               the buffer into which the records are rendered
+   * @param out                  the stream to which the buffer is flushed, null to render everything into the buffer
+   * @param honorMetricNameLabel true to name the family of a monitor after its "metric_name" label
+   * @param jobLabel             true to label monitors grouped by their "metric_name" label with their own name
+   */
+  OpenMetricsWriter(final Utf8Buffer buffer, final OutputStream out, final boolean honorMetricNameLabel, final boolean jobLabel) {
+    super(buffer, out, honorMetricNameLabel, jobLabel);
+  }
+
+
+  @Override
+  String format() {
+    return "openmetrics";
+  }
+
+
+  @Override
+  void writeFamily(final String family, final Monitor first, final List<Monitor> members) throws IOException {
+    final String help = helpOf(first, members);
+    if (help != null) {
+      buffer.append(HELP);
+      appendName(buffer, family);
+      buffer.append((byte) ' ');
+      appendEscaped(buffer, help, false);
+      buffer.append((byte) '\n');
+    }
+    buffer.append(TYPE);
+    appendName(buffer, family);
+    buffer.append((byte) ' ');
+    buffer.append(typeOf(first));
+    buffer.append((byte) '\n');
+
+    if (members == null) {
+      writeSeries(family, first);
+    } else {
+      for (final Monitor monitor : members) {
+        writeSeries(family, monitor);
+        flush(FLUSH_THRESHOLD);
+      }
+    }
+    flush(FLUSH_THRESHOLD);
+  }
+
+
+  private static String typeOf(final Monitor monitor) {
+    if (monitor instanceof TimingMaster) {
+      return (((TimingMaster) monitor).getBuckets() != null) ? "histogram" : "summary";
+    } else if (monitor instanceof Gauge) {
+      return "gauge";
+    } else if (monitor instanceof Counter) {
+      return "counter";
+    }
+    return "gauge";
+  }
+
+
+  private void writeSeries(final String family, final Monitor monitor) {
+    if (monitor instanceof TimingMaster) {
+      writeTimer(family, (TimingMaster) monitor);
+    } else {
+      writeSample(family, EMPTY, monitor, null, monitor.getValue());
+    }
+  }
+
+
+  /**
+   * Write the samples of a timer from a consistent snapshot of its statistics.
+   */
+  private void writeTimer(final String family, final TimingMaster master) {
+    timer.read(master);
+    if (timer.buckets != null) {
+      for (int i = 0; i < timer.buckets.size(); i++) {
+        writeSample(family, BUCKET, master, timer.buckets.getLabel(i), timer.counts[i]);
+      }
+    } else if (timer.count > 0) {
+      writeSample(family, EMPTY, master, QUANTILE_MIN, timer.min);
+      writeSample(family, EMPTY, master, QUANTILE_MAX, timer.max);
+    }
+    writeSample(family, SUM, master, null, timer.sum);
+    writeSample(family, COUNT, master, null, timer.count);
+  }
+
+
+  private void writeSample(final String family, final byte[] suffix, final Monitor monitor, final byte[] extra, final long value) {
+    appendName(buffer, family);
+    buffer.append(suffix);
+    writeLabels(family, monitor, extra);
+    buffer.append((byte) ' ');
+    buffer.append(value);
+    buffer.append((byte) '\n');
+  }
+
+
+  /**
+   * Write the label set of the monitor followed by the given pre-rendered label, including the braces, or nothing if
+   * there are no labels.
+   *
+   * @param extra a rendered label such as {@code le="5"} to write after the labels of the monitor, or null
+   */
+  void writeLabels(final String family, final Monitor monitor, final byte[] extra) {
+    final boolean job = isJobLabeled(family, monitor);
+    byte[] labels = EMPTY;
+    if (honorMetricNameLabel || !monitor.hasLabel(MetricFormatter.METRIC_NAME_LABEL)) {
+      labels = cachedLabels(monitor);
+    } else {
+      final Utf8Buffer rendered = new Utf8Buffer(64);
+      renderLabels(rendered, monitor.getLabels(), false);
+      labels = rendered.toByteArray();
+    }
+    if (!job && labels.length == 0 && extra == null) {
+      return;
+    }
+    buffer.append((byte) '{');
+    if (job) {
+      buffer.append(JOB_LABEL);
+      buffer.append((byte) '=').append((byte) '"');
+      appendEscaped(buffer, monitor.getName(), true);
+      buffer.append((byte) '"');
+      if (labels.length > 0 || extra != null) {
+        buffer.append((byte) ',');
+      }
+    }
+    buffer.append(labels);
+    if (extra != null) {
+      if (labels.length > 0) {
+        buffer.append((byte) ',');
+      }
+      buffer.append(extra);
+    }
+    buffer.append((byte) '}');
+  }
+
+
+  /**
+   * Return the rendered labels of the monitor, excluding the "metric_name" label, rendering them if they have
+   * changed since they were last rendered.
+   */
+  static byte[] cachedLabels(final Monitor monitor) {
+    if (monitor instanceof Metric) {
+      final Metric metric = (Metric) monitor;
+      byte[] retval = metric._labelCache;
+      if (retval == null) {
+        retval = renderLabels(metric._labels);
+        metric._labelCache = retval;
+      }
+      return retval;
+    } else if (monitor instanceof TimingMaster) {
+      final TimingMaster master = (TimingMaster) monitor;
+      byte[] retval = master.labelCache;
+      if (retval == null) {
+        retval = renderLabels(master.labels);
+        master.labelCache = retval;
+      }
+      return retval;
+    }
+    final Map<String, String> labels = monitor.getLabels();
+    return (labels == null) ? EMPTY : renderLabels(labels);
+  }
+
+
+  private static byte[] renderLabels(final Map<String, String> labels) {
+    if (labels.isEmpty() || (labels.size() == 1 && labels.containsKey(MetricFormatter.METRIC_NAME_LABEL))) {
+      return EMPTY;
+    }
+    final Utf8Buffer rendered = new Utf8Buffer(64);
+    renderLabels(rendered, labels, true);
+    return rendered.toByteArray();
+  }
+
+
+  private static void renderLabels(final Utf8Buffer rendered, final Map<String, String> labels, final boolean skipMetricName) {
+    for (final Map.Entry<String, String> entry : labels.entrySet()) {
+      if (skipMetricName && MetricFormatter.METRIC_NAME_LABEL.equalsIgnoreCase(entry.getKey())) {
+        continue;
+      }
+      if (rendered.length() > 0) {
+        rendered.append((byte) ',');
+      }
+      appendName(rendered, entry.getKey());
+      rendered.append((byte) '=').append((byte) '"');
+      appendEscaped(rendered, entry.getValue(), true);
+      rendered.append((byte) '"');
+    }
+  }
+
+
+  /**
+   * Append a metric or label name, replacing the characters not allowed in names with underscores.
+   */
+  static void appendName(final Utf8Buffer buf, final String name) {
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9')) {
+        buf.append((byte) c);
+      } else if (i == 0 && c >= '0' && c <= '9') {
+        buf.append((byte) '_').append((byte) c);
+      } else {
+        buf.append((byte) '_');
+      }
+    }
+  }
+
+
+  /**
+   * Append help text or a label value, escaping backslashes and new lines, and double quotes in label values.
+   */
+  static void appendEscaped(final Utf8Buffer buf, final String text, final boolean quotes) {
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c == '\\' || c == '\n' || (quotes && c == '"')) {
+        buf.append(text, start, i);
+        buf.append((byte) '\\').append((byte) (c == '\n' ? 'n' : c));
+        start = i + 1;
+      }
+    }
+    buf.append(text, start, text.length());
+  }
+
+}
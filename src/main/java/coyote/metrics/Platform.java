@@ -0,0 +1,26 @@
+package coyote.metrics;
+
+/**
+ * Isolates the parts of the library which depend on the release of the Java runtime.
+ *
+ * <p>This is the Java 8 implementation. The jar is a multi-release jar and carries a replacement of this class for
+ * newer runtimes under {@code META-INF/versions}, so callers always get the implementation for the runtime they are
+ * running on.</p>
+ */
+final class Platform {
+
+  /**
+   * No instances
+   */
+  private Platform() {
+  }
+
+
+  /**
+   * @return true if the calling thread is a virtual thread, which is never the case before Java 21.
+   */
+  static boolean isVirtualThread() {
+    return false;
+  }
+
+}
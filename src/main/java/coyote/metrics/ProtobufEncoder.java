@@ -0,0 +1,177 @@
+package coyote.metrics;
+
+/**
+ * Writes Protocol Buffers fields into a {@link Utf8Buffer}.
+ *
+ * <p>This is just enough of the protobuf wire format to encode metrics without depending on the protobuf runtime or
+ * generated classes. Fields are appended in the order they are written; an embedded message is encoded into a
+ * buffer of its own and then appended to its parent with {@link #message(Utf8Buffer, int, Utf8Buffer)}, so writers
+ * keep one reusable buffer for each level of nesting and encode without creating garbage.</p>
+ */
+public final class ProtobufEncoder {
+  public static final int WIRETYPE_VARINT = 0;
+  public static final int WIRETYPE_FIXED64 = 1;
+  public static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  public static final int WIRETYPE_FIXED32 = 5;
+
+
+  private ProtobufEncoder() {
+  }
+
+
+  /**
+   * Write the key of a field.
+   *
+   * @param buf      the buffer to write
+   * @param field    the number of the field
+   * @param wireType the wire type of the field
+   */
+  public static void tag(final Utf8Buffer buf, final int field, final int wireType) {
+    varint(buf, (field << 3) | wireType);
+  }
+
+
+  /**
+   * Write a value as a base 128 varint; negative values take ten bytes.
+   *
+   * @param buf   the buffer to write
+   * @param value the value to write
+   */
+  public static void varint(final Utf8Buffer buf, final long value) {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      buf.append((byte) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    buf.append((byte) remaining);
+  }
+
+
+  /**
+   * @return the number of bytes the value takes as a varint.
+   */
+  public static int varintSize(final long value) {
+    int retval = 1;
+    for (long remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+      retval++;
+    }
+    return retval;
+  }
+
+
+  /**
+   * Write a value as eight little-endian bytes.
+   *
+   * @param buf   the buffer to write
+   * @param value the value to write
+   */
+  public static void fixed64(final Utf8Buffer buf, final long value) {
+    for (int i = 0; i < 64; i += 8) {
+      buf.append((byte) (value >>> i));
+    }
+  }
+
+
+  /**
+   * Write a uint64, int64, bool or enum field.
+   */
+  public static void uint64(final Utf8Buffer buf, final int field, final long value) {
+    tag(buf, field, WIRETYPE_VARINT);
+    varint(buf, value);
+  }
+
+
+  /**
+   * Write a sint64 field, zigzag encoded so small negative values stay small.
+   */
+  public static void sint64(final Utf8Buffer buf, final int field, final long value) {
+    tag(buf, field, WIRETYPE_VARINT);
+    varint(buf, (value << 1) ^ (value >> 63));
+  }
+
+
+  /**
+   * Write a fixed64 or sfixed64 field.
+   */
+  public static void fixed64(final Utf8Buffer buf, final int field, final long value) {
+    tag(buf, field, WIRETYPE_FIXED64);
+    fixed64(buf, value);
+  }
+
+
+  /**
+   * Write a double field.
+   */
+  public static void doubleField(final Utf8Buffer buf, final int field, final double value) {
+    tag(buf, field, WIRETYPE_FIXED64);
+    fixed64(buf, Double.doubleToRawLongBits(value));
+  }
+
+
+  /**
+   * Write a string field in UTF-8.
+   */
+  public static void string(final Utf8Buffer buf, final int field, final CharSequence value) {
+    tag(buf, field, WIRETYPE_LENGTH_DELIMITED);
+    varint(buf, utf8Length(value));
+    buf.append(value);
+  }
+
+
+  /**
+   * Write a bytes field.
+   */
+  public static void bytes(final Utf8Buffer buf, final int field, final byte[] value, final int offset, final int length) {
+    tag(buf, field, WIRETYPE_LENGTH_DELIMITED);
+    varint(buf, length);
+    buf.append(value, offset, length);
+  }
+
+
+  /**
+   * Write an embedded message field whose contents have been encoded into the given buffer.
+   *
+   * @param buf     the buffer to write
+   * @param field   the number of the field
+   * @param message the encoded message
+   */
+  public static void message(final Utf8Buffer buf, final int field, final Utf8Buffer message) {
+    bytes(buf, field, message.array(), 0, message.length());
+  }
+
+
+  /**
+   * Write the given message preceded by its length as a varint, as in the delimited stream format.
+   *
+   * @param buf     the buffer to write
+   * @param message the encoded message
+   */
+  public static void delimited(final Utf8Buffer buf, final Utf8Buffer message) {
+    varint(buf, message.length());
+    buf.append(message.array(), 0, message.length());
+  }
+
+
+  /**
+   * @return the number of bytes the UTF-8 encoding of the text takes, as written by {@link Utf8Buffer}.
+   */
+  public static int utf8Length(final CharSequence text) {
+    final int length = text.length();
+    int retval = length;
+    for (int i = 0; i < length; i++) {
+      final char c = text.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+          retval += 2; // four bytes for the pair
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          retval += 2;
+        }
+      } else if (c >= 0x80) {
+        retval++;
+      }
+    }
+    return retval;
+  }
+
+}
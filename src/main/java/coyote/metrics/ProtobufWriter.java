@@ -0,0 +1,173 @@
+package coyote.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Encodes monitors as delimited {@code io.prometheus.client.MetricFamily} protobuf messages.
+ *
+ * <p>This is the binary exposition format negotiated by Prometheus servers, which parse it for a fraction of the
+ * cost of the text format. Each family is encoded into a reusable buffer for each level of message nesting and then
+ * appended to the output buffer preceded by its length, so encoding creates no garbage once the buffers have grown.
+ * Monitors are grouped and typed exactly as by the text exposition format.</p>
+ */
+final class ProtobufWriter extends FamilyWriter {
+
+  // MetricFamily
+  private static final int FAMILY_NAME = 1;
+  private static final int FAMILY_HELP = 2;
+  private static final int FAMILY_TYPE = 3;
+  private static final int FAMILY_METRIC = 4;
+
+  // MetricType
+  private static final int COUNTER = 0;
+  private static final int GAUGE = 1;
+  private static final int SUMMARY = 2;
+  private static final int HISTOGRAM = 4;
+
+  // Metric
+  private static final int METRIC_LABEL = 1;
+  private static final int METRIC_GAUGE = 2;
+  private static final int METRIC_COUNTER = 3;
+  private static final int METRIC_SUMMARY = 4;
+  private static final int METRIC_HISTOGRAM = 7;
+
+  // LabelPair, Gauge, Counter, Summary, Quantile, Histogram and Bucket
+  private static final int LABEL_NAME = 1;
+  private static final int LABEL_VALUE = 2;
+  private static final int VALUE = 1;
+  private static final int SAMPLE_COUNT = 1;
+  private static final int SAMPLE_SUM = 2;
+  private static final int SUMMARY_QUANTILE = 3;
+  private static final int QUANTILE = 1;
+  private static final int QUANTILE_VALUE = 2;
+  private static final int HISTOGRAM_BUCKET = 3;
+  private static final int CUMULATIVE_COUNT = 1;
+  private static final int UPPER_BOUND = 2;
+
+  private final Utf8Buffer family = new Utf8Buffer(256);
+  private final Utf8Buffer metric = new Utf8Buffer(128);
+  private final Utf8Buffer value = new Utf8Buffer(128);
+  private final Utf8Buffer item = new Utf8Buffer(32);
+  private final Utf8Buffer name = new Utf8Buffer(64);
+  /**
+   * Writes each label of a monitor. The labels are visited with forEach rather than an iterator, as whether the
+   * compiler removes an iterator depends on what else the JVM has run and it would otherwise be garbage per monitor.
+   */
+  private final BiConsumer<String, String> labelWriter = (labelName, labelValue) -> {
+    if (!honorMetricNameLabel || !MetricFormatter.METRIC_NAME_LABEL.equalsIgnoreCase(labelName)) {
+      writeLabel(labelName, labelValue);
+    }
+  };
+
+
+  /**
+   * @param buffer               the buffer into which the messages are encoded
+   * @param out                  the stream to which the buffer is flushed, null to encode everything into the buffer
+   * @param honorMetricNameLabel true to name the family of a monitor after its "metric_name" label
+   * @param jobLabel             true to label monitors grouped by their "metric_name" label with their own name
+   */
+  ProtobufWriter(final Utf8Buffer buffer, final OutputStream out, final boolean honorMetricNameLabel, final boolean jobLabel) {
+    super(buffer, out, honorMetricNameLabel, jobLabel);
+  }
+
+
+  @Override
+  String format() {
+    return "protobuf";
+  }
+
+
+  @Override
+  void writeFamily(final String familyName, final Monitor first, final List<Monitor> members) throws IOException {
+    family.reset();
+    name.reset();
+    OpenMetricsWriter.appendName(name, familyName);
+    ProtobufEncoder.message(family, FAMILY_NAME, name);
+    final String help = helpOf(first, members);
+    if (help != null) {
+      ProtobufEncoder.string(family, FAMILY_HELP, help);
+    }
+    ProtobufEncoder.uint64(family, FAMILY_TYPE, typeOf(first));
+
+    if (members == null) {
+      writeMetric(familyName, first);
+    } else {
+      for (final Monitor monitor : members) {
+        writeMetric(familyName, monitor);
+      }
+    }
+    ProtobufEncoder.delimited(buffer, family);
+    flush(FLUSH_THRESHOLD);
+  }
+
+
+  private static int typeOf(final Monitor monitor) {
+    if (monitor instanceof TimingMaster) {
+      return (((TimingMaster) monitor).getBuckets() != null) ? HISTOGRAM : SUMMARY;
+    } else if (monitor instanceof Counter && !(monitor instanceof Gauge)) {
+      return COUNTER;
+    }
+    return GAUGE;
+  }
+
+
+  /**
+   * Encode a Metric message for the monitor and append it to the family.
+   */
+  private void writeMetric(final String familyName, final Monitor monitor) {
+    metric.reset();
+    if (isJobLabeled(familyName, monitor)) {
+      writeLabel(JOB_LABEL, monitor.getName());
+    }
+    labelsOf(monitor).forEach(labelWriter);
+
+    value.reset();
+    if (monitor instanceof TimingMaster) {
+      timer.read((TimingMaster) monitor);
+      ProtobufEncoder.uint64(value, SAMPLE_COUNT, timer.count);
+      ProtobufEncoder.doubleField(value, SAMPLE_SUM, timer.sum);
+      if (timer.buckets != null) {
+        // the +Inf bucket is implied by the sample count
+        for (int i = 0; i < timer.buckets.size() - 1; i++) {
+          item.reset();
+          ProtobufEncoder.uint64(item, CUMULATIVE_COUNT, timer.counts[i]);
+          ProtobufEncoder.doubleField(item, UPPER_BOUND, timer.buckets.getBound(i));
+          ProtobufEncoder.message(value, HISTOGRAM_BUCKET, item);
+        }
+        ProtobufEncoder.message(metric, METRIC_HISTOGRAM, value);
+      } else {
+        if (timer.count > 0) {
+          writeQuantile(0, timer.min);
+          writeQuantile(1, timer.max);
+        }
+        ProtobufEncoder.message(metric, METRIC_SUMMARY, value);
+      }
+    } else {
+      ProtobufEncoder.doubleField(value, VALUE, monitor.getValue());
+      ProtobufEncoder.message(metric, (typeOf(monitor) == COUNTER) ? METRIC_COUNTER : METRIC_GAUGE, value);
+    }
+    ProtobufEncoder.message(family, FAMILY_METRIC, metric);
+  }
+
+
+  private void writeLabel(final String labelName, final String labelValue) {
+    item.reset();
+    name.reset();
+    OpenMetricsWriter.appendName(name, labelName);
+    ProtobufEncoder.message(item, LABEL_NAME, name);
+    ProtobufEncoder.string(item, LABEL_VALUE, labelValue);
+    ProtobufEncoder.message(metric, METRIC_LABEL, item);
+  }
+
+
+  private void writeQuantile(final double quantile, final long quantileValue) {
+    item.reset();
+    ProtobufEncoder.doubleField(item, QUANTILE, quantile);
+    ProtobufEncoder.doubleField(item, QUANTILE_VALUE, quantileValue);
+    ProtobufEncoder.message(value, SUMMARY_QUANTILE, item);
+  }
+
+}
@@ -0,0 +1,214 @@
+package coyote.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes monitors as the {@code prometheus.TimeSeries} messages of a Prometheus remote-write request.
+ *
+ * <p>Every sample of the text exposition format becomes a series of one sample stamped with the given time: counters
+ * and gauges are a single series, and timers have a series for each bucket or quantile along with their
+ * {@code _sum} and {@code _count}. Each series is labeled with its {@code __name__} and the labels of its monitor in
+ * name order, as receivers require.</p>
+ *
+ * <p>Each series is appended to one of several buffers as a {@code timeseries} field of a {@code WriteRequest}, so
+ * each buffer is a complete request on its own and requests can be split between any two series. The buffer is chosen
+ * by a hash of the family and labels of the monitor, so the series of a monitor always land in the same buffer and
+ * their samples stay in order when each buffer is sent by its own worker.</p>
+ */
+final class RemoteWriteWriter extends FamilyWriter {
+  static final String NAME_LABEL = "__name__";
+
+  // WriteRequest, TimeSeries, Label and Sample
+  private static final int WRITE_TIMESERIES = 1;
+  private static final int SERIES_LABELS = 1;
+  private static final int SERIES_SAMPLES = 2;
+  private static final int LABEL_NAME = 1;
+  private static final int LABEL_VALUE = 2;
+  private static final int SAMPLE_VALUE = 1;
+  private static final int SAMPLE_TIMESTAMP = 2;
+
+  private final Utf8Buffer[] shards;
+  private final long timestamp;
+  private final Utf8Buffer series = new Utf8Buffer(256);
+  private final Utf8Buffer item = new Utf8Buffer(64);
+  private final Utf8Buffer text = new Utf8Buffer(64);
+  private String[] names = new String[8];
+  private String[] values = new String[8];
+  private int labelCount;
+  private int written = 0;
+
+
+  /**
+   * @param shards               the buffers to which the series are appended
+   * @param timestampMillis      the time of the samples in milliseconds since the epoch
+   * @param honorMetricNameLabel true to name the family of a monitor after its "metric_name" label
+   * @param jobLabel             true to label monitors grouped by their "metric_name" label with their own name
+   */
+  RemoteWriteWriter(final Utf8Buffer[] shards, final long timestampMillis, final boolean honorMetricNameLabel, final boolean jobLabel) {
+    super(shards[0], null, honorMetricNameLabel, jobLabel);
+    this.shards = shards;
+    this.timestamp = timestampMillis;
+  }
+
+
+  /**
+   * @return the number of series written so far.
+   */
+  int getSeriesCount() {
+    return written;
+  }
+
+
+  @Override
+  String format() {
+    return "remote_write";
+  }
+
+
+  @Override
+  long length() {
+    long retval = 0;
+    for (final Utf8Buffer shard : shards) {
+      retval += shard.length();
+    }
+    return retval;
+  }
+
+
+  @Override
+  void writeFamily(final String family, final Monitor first, final List<Monitor> members) {
+    if (members == null) {
+      writeMonitor(family, first);
+    } else {
+      for (final Monitor monitor : members) {
+        writeMonitor(family, monitor);
+      }
+    }
+  }
+
+
+  private void writeMonitor(final String family, final Monitor monitor) {
+    final Map<String, String> labels = labelsOf(monitor);
+    final Utf8Buffer shard = shards[((31 * family.hashCode() + labels.hashCode()) & Integer.MAX_VALUE) % shards.length];
+    if (monitor instanceof TimingMaster) {
+      timer.read((TimingMaster) monitor);
+      if (timer.buckets != null) {
+        for (int i = 0; i < timer.buckets.size(); i++) {
+          final long bound = timer.buckets.getBound(i);
+          writeSeries(shard, family, "_bucket", monitor, Buckets.LE_LABEL, (bound == Long.MAX_VALUE) ? "+Inf" : Long.toString(bound), timer.counts[i]);
+        }
+      } else if (timer.count > 0) {
+        writeSeries(shard, family, "", monitor, "quantile", "0", timer.min);
+        writeSeries(shard, family, "", monitor, "quantile", "1", timer.max);
+      }
+      writeSeries(shard, family, "_sum", monitor, null, null, timer.sum);
+      writeSeries(shard, family, "_count", monitor, null, null, timer.count);
+    } else {
+      writeSeries(shard, family, "", monitor, null, null, monitor.getValue());
+    }
+  }
+
+
+  /**
+   * Append a series of one sample to the shard.
+   *
+   * @param extraName  the name of a label to add to those of the monitor, such as "le", or null
+   * @param extraValue the value of the extra label
+   */
+  private void writeSeries(final Utf8Buffer shard, final String family, final String suffix, final Monitor monitor, final String extraName, final String extraValue, final long value) {
+    labelCount = 0;
+    if (isJobLabeled(family, monitor)) {
+      addLabel(JOB_LABEL, monitor.getName());
+    }
+    for (final Map.Entry<String, String> entry : labelsOf(monitor).entrySet()) {
+      if (!honorMetricNameLabel || !MetricFormatter.METRIC_NAME_LABEL.equalsIgnoreCase(entry.getKey())) {
+        addLabel(sanitize(entry.getKey()), entry.getValue());
+      }
+    }
+    if (extraName != null) {
+      addLabel(extraName, extraValue);
+    }
+    sortLabels();
+
+    series.reset();
+    boolean named = false;
+    for (int i = 0; i <= labelCount; i++) {
+      // the name is written in its place among the labels, after any which sort before it such as capitalized ones
+      if (!named && (i == labelCount || names[i].compareTo(NAME_LABEL) > 0)) {
+        text.reset();
+        OpenMetricsWriter.appendName(text, family);
+        text.append(suffix);
+        writeLabel(NAME_LABEL, text);
+        named = true;
+      }
+      if (i < labelCount) {
+        text.reset();
+        text.append(values[i]);
+        writeLabel(names[i], text);
+      }
+    }
+    item.reset();
+    ProtobufEncoder.doubleField(item, SAMPLE_VALUE, value);
+    ProtobufEncoder.uint64(item, SAMPLE_TIMESTAMP, timestamp);
+    ProtobufEncoder.message(series, SERIES_SAMPLES, item);
+    ProtobufEncoder.message(shard, WRITE_TIMESERIES, series);
+    written++;
+  }
+
+
+  private void writeLabel(final String name, final Utf8Buffer value) {
+    item.reset();
+    ProtobufEncoder.string(item, LABEL_NAME, name);
+    ProtobufEncoder.message(item, LABEL_VALUE, value);
+    ProtobufEncoder.message(series, SERIES_LABELS, item);
+  }
+
+
+  private void addLabel(final String name, final String value) {
+    if (labelCount == names.length) {
+      names = Arrays.copyOf(names, 2 * labelCount);
+      values = Arrays.copyOf(values, 2 * labelCount);
+    }
+    names[labelCount] = name;
+    values[labelCount] = (value != null) ? value : "";
+    labelCount++;
+  }
+
+
+  /**
+   * Sort the labels by name with an insertion sort, as there are only a few.
+   */
+  private void sortLabels() {
+    for (int i = 1; i < labelCount; i++) {
+      final String name = names[i];
+      final String value = values[i];
+      int j = i - 1;
+      while (j >= 0 && names[j].compareTo(name) > 0) {
+        names[j + 1] = names[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      names[j + 1] = name;
+      values[j + 1] = value;
+    }
+  }
+
+
+  /**
+   * @return the label name with the characters not allowed in names replaced, the same instance if it is valid.
+   */
+  private String sanitize(final String name) {
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9'))) {
+        text.reset();
+        OpenMetricsWriter.appendName(text, name);
+        return text.toString();
+      }
+    }
+    return name;
+  }
+
+}
@@ -4,6 +4,8 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Runtime fixture to enable everything in the runtime to coordinate instrumentation.
@@ -11,14 +13,15 @@ import java.util.*;
 public class ScoreCard {
 
   /**
-   * Map of counters by their name
+   * Map of counters by their name. The registries are concurrent maps rather than maps guarded by monitors so looking
+   * up a monitor never blocks, nor pins the carrier of a virtual thread.
    */
-  private static final HashMap<String, Counter> counters = new HashMap<>();
+  private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
 
   /**
    * Map of gauges by their name
    */
-  private static final HashMap<String, Gauge> gauges = new HashMap<>();
+  private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
 
   /**
    * Re-usable null timer to save object creation and GC'n
@@ -27,11 +30,15 @@ public class ScoreCard {
   /**
    * Map of master timers by their name these are what create timer instances
    */
-  private static final HashMap<String, TimingMaster> masterTimers = new HashMap<String, TimingMaster>();
+  private static final ConcurrentHashMap<String, TimingMaster> masterTimers = new ConcurrentHashMap<>();
   /**
    * Map of timer instances by their name. These are what we start and stop
    */
-  private static final HashMap<String, Timer> timers = new HashMap<String, Timer>();
+  private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+  /**
+   * Map of the roots of the nested timer trees by their name
+   */
+  private static final ConcurrentHashMap<String, NestedTimingMaster> nestedTimers = new ConcurrentHashMap<>();
   /**
    * IP address of this host (instance)
    */
@@ -52,6 +59,14 @@ public class ScoreCard {
    * Timing is disabled by default
    */
   private static volatile boolean timingEnabled = true;
+  /**
+   * The histogram buckets given to new master timers, null to export them as summaries
+   */
+  private static volatile Buckets defaultBuckets = null;
+  /**
+   * The clock read by the timers
+   */
+  private static volatile Clock clock = Clock.SYSTEM;
 
   static {
     startedTimestamp = System.currentTimeMillis();
@@ -168,12 +183,7 @@ public class ScoreCard {
    * Get an iterator over all the Master Timers in the scorecard.
    */
   public static Iterator<TimingMaster> getTimerIterator() {
-    final ArrayList<TimingMaster> list = new ArrayList<TimingMaster>();
-    synchronized (masterTimers) {
-      for (final Iterator<TimingMaster> it = masterTimers.values().iterator(); it.hasNext(); list.add(it.next())) {
-      }
-    }
-    return list.iterator();
+    return new ArrayList<TimingMaster>(masterTimers.values()).iterator();
   }
 
   /**
@@ -183,9 +193,27 @@ public class ScoreCard {
    * @return The master timer with the given name or null if that timer does not exist.
    */
   public static TimingMaster getTimerMaster(final String name) {
-    synchronized (masterTimers) {
-      return masterTimers.get(name);
+    return masterTimers.get(name);
+  }
+
+  /**
+   * Get the master timer with the given name, creating it if it does not exist.
+   *
+   * @param name The name of the master timer to retrieve.
+   * @return The master timer with the given name.
+   */
+  public static TimingMaster getOrCreateTimerMaster(final String name) {
+    // looked up before computing, as computeIfAbsent locks the entry even when it is present
+    final TimingMaster master = masterTimers.get(name);
+    if (master != null) {
+      return master;
     }
+    return masterTimers.computeIfAbsent(name, key -> {
+      final TimingMaster created = new TimingMaster(key);
+      created.setBuckets(defaultBuckets);
+      ChangeLog.track(created.changes);
+      return created;
+    });
   }
 
   /**
@@ -300,22 +328,61 @@ public class ScoreCard {
   public static Timer startTimer(final String name) {
     Timer retval = null;
     if (timingEnabled) {
-      synchronized (masterTimers) {
-        TimingMaster master = masterTimers.get(name);
-        if (master == null) {
-          master = new TimingMaster(name);
-          masterTimers.put(name, master);
-        }
-        retval = master.createTimer();
-        timers.put(name, retval);
-        retval.start();
-      }
+      retval = getOrCreateTimerMaster(name).createTimer();
+      retval.start();
+      timers.put(name, retval);
     } else {
       retval = NULL_TIMER;
     }
     return retval;
   }
 
+  /**
+   * Open a timing scope with the given name.
+   *
+   * <p>The scope stops when it is closed, so it is intended for use in a try-with-resources statement; any exception
+   * leaving the block still stops the scope. Mark the scope successful as the last statement of the block, otherwise
+   * the interval is recorded as an error outcome:</p>
+   * <pre>
+   * try (TimerScope scope = ScoreCard.openScope("checkout")) {
+   *   checkout();
+   *   scope.success();
+   * }
+   * </pre>
+   * <p>This includes a block left by a {@code return}, {@code break} or {@code continue} before it marked the scope
+   * successful. A block with several ways out is better timed with {@link #openScope(String, Callable)}.</p>
+   *
+   * @param name The name of the master timer recording the interval.
+   * @return The running scope which should be closed when the interval is completed.
+   */
+  public static TimerScope openScope(final String name) {
+    if (timingEnabled) {
+      return getOrCreateTimerMaster(name).openScope();
+    }
+    return TimerScope.NULL_SCOPE;
+  }
+
+  /**
+   * Call a block in a scope with the given name, recording its interval as an error outcome only if it throws.
+   *
+   * <pre>
+   * Receipt receipt = ScoreCard.openScope("checkout", () -&gt; checkout());
+   * </pre>
+   *
+   * @param name  The name of the master timer recording the interval.
+   * @param block The block to time.
+   * @param <T>   The type of the result of the block.
+   * @return The result of the block.
+   * @throws Exception Whatever the block throws.
+   * @see TimingMaster#openScope(Callable)
+   */
+  public static <T> T openScope(final String name, final Callable<T> block) throws Exception {
+    if (timingEnabled) {
+      return getOrCreateTimerMaster(name).openScope(block);
+    }
+    return block.call();
+  }
+
   /**
    * Stop a timer with the given name.
    *
@@ -325,16 +392,66 @@ public class ScoreCard {
   public static Timer stopTimer(final String name) {
     Timer retval = null;
     if (timingEnabled) {
-      synchronized (masterTimers) {
-        retval = timers.get(name);
-        if (retval != null) retval.stop();
+      retval = timers.get(name);
+      if (retval != null) retval.stop();
+    } else {
+      retval = NULL_TIMER;
+    }
+    return retval;
+  }
+
+  /**
+   * Start a nested timer with the given name.
+   *
+   * <p>If another nested timer is running on the calling thread, the new timer is issued by the child of that timer's
+   * master with the given name, otherwise it is issued by the root master with the given name. This results in a tree
+   * of masters which records the time spent in each step of a scenario along with the time spent in the scenario
+   * itself.</p>
+   *
+   * <p>Use the returned Timer to stop the interval measurement. Stopping a timer also stops any of its nested timers
+   * which are still running.</p>
+   *
+   * @param name The name of the nested timer instance to start.
+   * @return The timer instance that should be stopped when the interval is completed.
+   */
+  public static Timer startNestedTimer(final String name) {
+    Timer retval = null;
+    if (timingEnabled) {
+      final NestedTimer parent = TimerStack.current().peek();
+      final NestedTimingMaster master;
+      if (parent != null) {
+        master = parent.getNode().getChild(name);
+      } else {
+        final NestedTimingMaster root = nestedTimers.get(name);
+        master = (root != null) ? root : nestedTimers.computeIfAbsent(name, NestedTimingMaster::new);
       }
+      retval = master.createTimer();
+      retval.start();
     } else {
       retval = NULL_TIMER;
     }
     return retval;
   }
 
+  /**
+   * Get the root of the nested timer tree with the given name.
+   *
+   * @param name The name of the root nested timer to retrieve.
+   * @return The root of the nested timer tree with the given name or null if that tree does not exist.
+   */
+  public static NestedTimingMaster getNestedTimerMaster(final String name) {
+    return nestedTimers.get(name);
+  }
+
+  /**
+   * Get an iterator over the roots of all the nested timer trees in the scorecard.
+   *
+   * @return a detached iterator over the roots of the nested timer trees.
+   */
+  public static Iterator<NestedTimingMaster> getNestedTimerIterator() {
+    return new ArrayList<NestedTimingMaster>(nestedTimers.values()).iterator();
+  }
+
   /**
    * Disable the timer with the given name.
    *
@@ -348,14 +465,7 @@ public class ScoreCard {
    * @param name The name of the timer to disable.
    */
   public static void disableTimer(final String name) {
-    synchronized (masterTimers) {
-      TimingMaster master = masterTimers.get(name);
-      if (master == null) {
-        master = new TimingMaster(name);
-        masterTimers.put(name, master);
-      }
-      master.setEnabled(false);
-    }
+    getOrCreateTimerMaster(name).setEnabled(false);
   }
 
   /**
@@ -367,15 +477,7 @@ public class ScoreCard {
    * @param name The name of the timer to enable.
    */
   public static void enableTimer(final String name) {
-    synchronized (masterTimers) {
-      // get an existing master timer or create a new one
-      TimingMaster master = masterTimers.get(name);
-      if (master == null) {
-        master = new TimingMaster(name);
-        masterTimers.put(name, master);
-      }
-      master.setEnabled(true);
-    }
+    getOrCreateTimerMaster(name).setEnabled(true);
   }
 
   /**
@@ -384,9 +486,91 @@ public class ScoreCard {
    * <p>When timing is enabled, functional timers are returned and their metrics are collected for later reporting.</p>
    */
   public static void enableTiming() {
-    synchronized (masterTimers) {
-      timingEnabled = true;
-    }
+    timingEnabled = true;
+  }
+
+  /**
+   * Set the histogram buckets given to master timers created from this point forward.
+   *
+   * <p>Master timers with buckets are exported as histograms; those without are exported as summaries of their
+   * count, sum, minimum and maximum. Existing master timers are not changed; use
+   * {@link TimingMaster#setBuckets(Buckets)} to change them.</p>
+   *
+   * @param buckets the buckets for new master timers, null to export new master timers as summaries.
+   */
+  public static void setDefaultBuckets(final Buckets buckets) {
+    defaultBuckets = buckets;
+  }
+
+  /**
+   * @return the histogram buckets given to new master timers, or null if they are exported as summaries.
+   */
+  public static Buckets getDefaultBuckets() {
+    return defaultBuckets;
+  }
+
+  /**
+   * Set the clock the timers read from this point forward.
+   *
+   * <p>Running timers keep measuring with the clock they started with.</p>
+   *
+   * @param source the clock to read, null for {@link Clock#SYSTEM}
+   */
+  public static void setClock(final Clock source) {
+    clock = (source != null) ? source : Clock.SYSTEM;
+  }
+
+  /**
+   * @return the clock the timers read.
+   */
+  public static Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * @return the epoch in which changes to the counters, gauges and master timers are currently recorded.
+   */
+  public static long getEpoch() {
+    return ChangeLog.getEpoch();
+  }
+
+  /**
+   * Start a new epoch of changes.
+   *
+   * <p>Exporters which send only what changed advance the epoch before each export, then export the monitors changed
+   * since the epoch returned by their previous advance:</p>
+   * <pre>
+   * long next = ScoreCard.advanceEpoch();
+   * export(ScoreCard.getChangedSince(since));
+   * since = next;
+   * </pre>
+   * <p>A change made while the export runs is recorded in the new epoch, so it is exported next time if not this
+   * time.</p>
+   *
+   * @return the new epoch
+   */
+  public static long advanceEpoch() {
+    return ChangeLog.advance();
+  }
+
+  /**
+   * Return the counters, gauges and master timers which changed in or after the given epoch.
+   *
+   * <p>Monitors count as changed when they are added to the ScoreCard, when their values change or are reset, and when
+   * their labels change. Finding them costs in proportion to the number changed, not the size of the ScoreCard.</p>
+   *
+   * @param epoch the first epoch of interest, 0 for every monitor in the ScoreCard
+   * @return the changed monitors, most recently changed first
+   */
+  public static List<Monitor> getChangedSince(final long epoch) {
+    return ChangeLog.changedSince(epoch);
+  }
+
+  /**
+   * @return True if fully-functional timers are being issued, false if null timers are being issued.
+   */
+  public static boolean isTimingEnabled() {
+    return timingEnabled;
   }
 
   /**
@@ -396,9 +580,30 @@ public class ScoreCard {
    * operational regardless of the runtime status of timing.
    */
   public static void disableTiming() {
-    synchronized (masterTimers) {
-      timingEnabled = false;
-    }
+    timingEnabled = false;
+  }
+
+  /**
+   * Keep metrics about the cost of the instrumentation itself, which are included in every export of the ScoreCard.
+   *
+   * @see SelfMetrics
+   */
+  public static void enableSelfMetrics() {
+    SelfMetrics.setEnabled(true);
+  }
+
+  /**
+   * Stop keeping metrics about the cost of the instrumentation; those kept so far are no longer exported.
+   */
+  public static void disableSelfMetrics() {
+    SelfMetrics.setEnabled(false);
+  }
+
+  /**
+   * @return True if metrics about the cost of the instrumentation are being kept, false otherwise.
+   */
+  public static boolean isSelfMetricsEnabled() {
+    return SelfMetrics.isEnabled();
   }
 
   /**
@@ -410,17 +615,18 @@ public class ScoreCard {
    * @return The counter with the given name.
    */
   public static Counter getCounter(final String name) {
-    Counter counter = null;
-    if (name != null) {
-      synchronized (counters) {
-        counter = counters.get(name);
-        if (counter == null) {
-          counter = new Counter(name);
-          counters.put(name, counter);
-        }
-      }
+    if (name == null) {
+      return null;
+    }
+    final Counter counter = counters.get(name);
+    if (counter != null) {
+      return counter;
     }
-    return counter;
+    return counters.computeIfAbsent(name, key -> {
+      final Counter created = new Counter(key);
+      ChangeLog.track(created._changes);
+      return created;
+    });
   }
 
   /**
@@ -439,8 +645,9 @@ public class ScoreCard {
   public static Counter removeCounter(final String name) {
     Counter retval = null;
     if (name != null) {
-      synchronized (counters) {
-        retval = counters.remove(name);
+      retval = counters.remove(name);
+      if (retval != null) {
+        ChangeLog.untrack(retval._changes);
       }
     }
     return retval;
@@ -456,10 +663,7 @@ public class ScoreCard {
    * @return a detached iterator over the counters.
    */
   public static Iterator<Counter> getCounterIterator() {
-    final ArrayList<Counter> list = new ArrayList<Counter>();
-    for (final Iterator<Counter> it = counters.values().iterator(); it.hasNext(); list.add(it.next())) {
-    }
-    return list.iterator();
+    return new ArrayList<Counter>(counters.values()).iterator();
   }
 
   /**
@@ -472,10 +676,7 @@ public class ScoreCard {
    * @return a detached iterator over the gauges.
    */
   public static Iterator<Gauge> getGaugeIterator() {
-    final ArrayList<Gauge> list = new ArrayList<>();
-    for (final Iterator<Gauge> it = gauges.values().iterator(); it.hasNext(); list.add(it.next())) {
-    }
-    return list.iterator();
+    return new ArrayList<Gauge>(gauges.values()).iterator();
   }
 
   /**
@@ -487,8 +688,9 @@ public class ScoreCard {
   public static Gauge removeGauge(final String name) {
     Gauge retval = null;
     if (name != null) {
-      synchronized (gauges) {
-        retval = gauges.remove(name);
+      retval = gauges.remove(name);
+      if (retval != null) {
+        ChangeLog.untrack(retval._changes);
       }
     }
     return retval;
@@ -503,17 +705,18 @@ public class ScoreCard {
    * @return The counter with the given name.
    */
   public static Gauge getGauge(final String name) {
-    Gauge gauge = null;
-    if (name != null) {
-      synchronized (gauges) {
-        gauge = gauges.get(name);
-        if (gauge == null) {
-          gauge = new Gauge(name);
-          gauges.put(name, gauge);
-        }
-      }
+    if (name == null) {
+      return null;
+    }
+    final Gauge gauge = gauges.get(name);
+    if (gauge != null) {
+      return gauge;
     }
-    return gauge;
+    return gauges.computeIfAbsent(name, key -> {
+      final Gauge created = new Gauge(key);
+      ChangeLog.track(created._changes);
+      return created;
+    });
   }
 
   /**
@@ -523,6 +726,20 @@ public class ScoreCard {
     return gauges.size();
   }
 
+  /**
+   * @return The number of master timers in the scorecard at the present time.
+   */
+  public static int getTimerCount() {
+    return masterTimers.size();
+  }
+
+  /**
+   * @return The number of nested timer trees in the scorecard at the present time.
+   */
+  public static int getNestedTimerCount() {
+    return nestedTimers.size();
+  }
+
   /**
    * Reset the counter with the given name returning a copy of the counter before the reset occurred.
    *
@@ -538,9 +755,7 @@ public class ScoreCard {
   public static Counter resetCounter(final String name) {
     Counter retval = null;
     if (name != null) {
-      synchronized (counters) {
-        retval = getCounter(name).reset();
-      }
+      retval = getCounter(name).reset();
     }
     return retval;
   }
@@ -560,9 +775,7 @@ public class ScoreCard {
   public static Gauge resetGauge(final String name) {
     Gauge retval = null;
     if (name != null) {
-      synchronized (gauges) {
-        retval = getGauge(name).reset();
-      }
+      retval = getGauge(name).reset();
     }
     return retval;
   }
@@ -0,0 +1,253 @@
+package coyote.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Metrics about what the instrumentation itself costs, all named with the {@value #PREFIX} prefix.
+ *
+ * <p>Once enabled with {@link ScoreCard#enableSelfMetrics()}, the following monitors are kept and included in every
+ * export of the ScoreCard:</p>
+ * <ul>
+ * <li>{@code tmetrix_counters}, {@code tmetrix_gauges}, {@code tmetrix_timers} and {@code tmetrix_nested_timers} -
+ * gauges of the number of each type of monitor in the ScoreCard,</li>
+ * <li>{@code tmetrix_lock_contended} - a counter of the updates of counters, gauges and master timers which had to
+ * wait for another thread to release the monitor,</li>
+ * <li>{@code tmetrix_timer_start_nanoseconds} and {@code tmetrix_timer_stop_nanoseconds} - master timers of the
+ * nanoseconds taken to start and stop timers, sampled at one call in {@value #SAMPLE_RATE},</li>
+ * <li>{@code "tmetrix_render_" + format + "_microseconds"} and {@code "tmetrix_render_" + format + "_bytes"} - a
+ * master timer of the time taken to render monitors in each exposition format and a counter of the bytes rendered,
+ * for the formats {@code openmetrics}, {@code protobuf}, {@code json} and {@code remote_write}, and</li>
+ * <li>{@code "tmetrix_push_" + exporter + "_microseconds"} and {@code "tmetrix_push_" + exporter + "_failures"} - a
+ * master timer of the time each request of an exporter took and a counter of those which failed, for the exporters
+ * {@code pushgateway}, {@code remote_write}, {@code otlp}, {@code influx}, {@code graphite} and {@code statsd}.</li>
+ * </ul>
+ *
+ * <p>These monitors are held here rather than in the ScoreCard, so they do not count towards its size and are not
+ * affected by removing or resetting monitors by name. They are cheap enough to leave on: while disabled each hot path
+ * pays one volatile read, contention is only counted on the path which waits anyway, and timer operations read the
+ * clock only when sampled.</p>
+ */
+public final class SelfMetrics {
+  /**
+   * The prefix of the names of all the self metrics.
+   */
+  public static final String PREFIX = "tmetrix_";
+
+  /**
+   * One in this many timer starts and stops is timed.
+   */
+  public static final int SAMPLE_RATE = 64;
+
+  private static volatile boolean enabled = false;
+
+  private static final LongAdder contended = new LongAdder();
+
+  private static final Gauge counters = gauge("counters", "The number of counters in the ScoreCard");
+  private static final Gauge gauges = gauge("gauges", "The number of gauges in the ScoreCard");
+  private static final Gauge timers = gauge("timers", "The number of master timers in the ScoreCard");
+  private static final Gauge nestedTimers = gauge("nested_timers", "The number of nested timer trees in the ScoreCard");
+  private static final Counter lockContended = counter("lock_contended", "Updates which waited for another thread to release the monitor");
+  private static final TimingMaster timerStart = master("timer_start_nanoseconds", "Sampled nanoseconds taken to start a timer");
+  private static final TimingMaster timerStop = master("timer_stop_nanoseconds", "Sampled nanoseconds taken to stop a timer");
+
+  /**
+   * The duration and byte count of the renders of each format, and the duration and failure count of the requests of
+   * each exporter, by the format or exporter.
+   */
+  private static final ConcurrentHashMap<String, TimingMaster> renderTimes = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Counter> renderBytes = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, TimingMaster> pushTimes = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Counter> pushFailures = new ConcurrentHashMap<>();
+
+
+  /**
+   * No instances
+   */
+  private SelfMetrics() {
+  }
+
+
+  /**
+   * @return true if the self metrics are being kept.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+
+  static void setEnabled(final boolean flag) {
+    enabled = flag;
+  }
+
+
+  /**
+   * Return all the self metrics, updated with the current size of the ScoreCard.
+   *
+   * @return the self metrics, empty if they are not being kept
+   */
+  public static synchronized List<Monitor> getMonitors() {
+    final List<Monitor> retval = new ArrayList<>();
+    if (!enabled) {
+      return retval;
+    }
+    set(counters, ScoreCard.getCounterCount());
+    set(gauges, ScoreCard.getGaugeCount());
+    set(timers, ScoreCard.getTimerCount());
+    set(nestedTimers, ScoreCard.getNestedTimerCount());
+    lockContended.increase(contended.sum() - lockContended.getValue());
+    retval.add(counters);
+    retval.add(gauges);
+    retval.add(timers);
+    retval.add(nestedTimers);
+    retval.add(lockContended);
+    retval.add(timerStart);
+    retval.add(timerStop);
+    retval.addAll(renderTimes.values());
+    retval.addAll(renderBytes.values());
+    retval.addAll(pushTimes.values());
+    retval.addAll(pushFailures.values());
+    return retval;
+  }
+
+
+  /**
+   * Note the start of an operation which is measured when self metrics are kept.
+   *
+   * @return the value of {@link System#nanoTime()} to pass to the matching record method, or 0 if self metrics are not
+   * being kept
+   */
+  public static long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+
+  /**
+   * Record a request of an exporter.
+   *
+   * @param exporter the name of the exporter, such as "otlp"
+   * @param started  the value returned by {@link #start()} before the request, 0 to record nothing
+   * @param success  true if the request was accepted, false if it failed
+   */
+  public static void recordPush(final String exporter, final long started, final boolean success) {
+    if (started != 0) {
+      final long elapsed = System.nanoTime() - started;
+      TimingMaster master = pushTimes.get(exporter);
+      if (master == null) {
+        // the counter is added first, so it is there for any thread which finds the master
+        add(pushFailures, exporter, counter("push_" + exporter + "_failures", "Requests of the " + exporter + " exporter which failed"));
+        master = add(pushTimes, exporter, master("push_" + exporter + "_microseconds", "Microseconds taken by each request of the " + exporter + " exporter"));
+      }
+      master.record(elapsed / 1000);
+      if (!success) {
+        pushFailures.get(exporter).increment();
+      }
+    }
+  }
+
+
+  /**
+   * Record the rendering of monitors in an exposition format.
+   *
+   * @param format  the name of the format, such as "openmetrics"
+   * @param started the value returned by {@link #start()} before rendering, 0 to record nothing
+   * @param bytes   the number of bytes rendered
+   */
+  static void recordRender(final String format, final long started, final long bytes) {
+    if (started != 0) {
+      final long elapsed = System.nanoTime() - started;
+      TimingMaster master = renderTimes.get(format);
+      if (master == null) {
+        add(renderBytes, format, counter("render_" + format + "_bytes", "Bytes rendered in the " + format + " format"));
+        master = add(renderTimes, format, master("render_" + format + "_microseconds", "Microseconds taken to render the " + format + " format"));
+      }
+      master.record(elapsed / 1000);
+      renderBytes.get(format).increase(bytes);
+    }
+  }
+
+
+  /**
+   * Decide whether to time a timer operation.
+   *
+   * @return the value of {@link System#nanoTime()} for one call in {@value #SAMPLE_RATE} while self metrics are kept,
+   * 0 otherwise
+   */
+  static long sample() {
+    return (enabled && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) ? System.nanoTime() : 0;
+  }
+
+
+  /**
+   * Record a sampled timer start.
+   *
+   * @param started the value returned by {@link #sample()}, 0 if the start was not sampled
+   */
+  static void recordTimerStart(final long started) {
+    if (started != 0) {
+      timerStart.record(System.nanoTime() - started);
+    }
+  }
+
+
+  /**
+   * Record a sampled timer stop.
+   *
+   * @param started the value returned by {@link #sample()}, 0 if the stop was not sampled
+   */
+  static void recordTimerStop(final long started) {
+    if (started != 0) {
+      timerStop.record(System.nanoTime() - started);
+    }
+  }
+
+
+  /**
+   * Acquire the lock of a monitor, counting the acquisition as contended if another thread holds it.
+   */
+  static void lock(final ReentrantLock lock) {
+    if (!lock.tryLock()) {
+      if (enabled) {
+        contended.increment();
+      }
+      lock.lock();
+    }
+  }
+
+
+  private static <T> T add(final ConcurrentHashMap<String, T> map, final String key, final T monitor) {
+    final T existing = map.putIfAbsent(key, monitor);
+    return (existing != null) ? existing : monitor;
+  }
+
+
+  private static void set(final Gauge gauge, final long value) {
+    gauge.increase(value - gauge.getValue());
+  }
+
+
+  private static Gauge gauge(final String name, final String description) {
+    final Gauge retval = new Gauge(PREFIX + name);
+    retval.setDescription(description);
+    return retval;
+  }
+
+
+  private static Counter counter(final String name, final String description) {
+    final Counter retval = new Counter(PREFIX + name);
+    retval.setDescription(description);
+    return retval;
+  }
+
+
+  private static TimingMaster master(final String name, final String description) {
+    final TimingMaster retval = new TimingMaster(PREFIX + name);
+    retval.setDescription(description);
+    return retval;
+  }
+
+}
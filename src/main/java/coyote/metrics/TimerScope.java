@@ -0,0 +1,167 @@
+package coyote.metrics;
+
+/**
+ * The TimerScope class models a timer which is stopped by closing it, allowing intervals to be measured with a
+ * try-with-resources statement.
+ *
+ * <p>A scope is opened already running. The block it guards should mark the scope successful as its last statement;
+ * a scope closed without being marked successful is taken to have been exited through an exception, and its interval
+ * is recorded in the error outcome series of its master (the master with the same name suffixed with "_error" and
+ * labeled "outcome=error") instead of in its master. Either way the scope is no longer counted as active.</p>
+ * <pre>
+ * try (TimerScope scope = ScoreCard.openScope("checkout")) {
+ *   checkout();
+ *   scope.success();
+ * }
+ * </pre>
+ *
+ * <p>A block left by a {@code return}, {@code break} or {@code continue} before marking the scope successful is
+ * therefore recorded as an error too. {@link ScoreCard#openScope(String, java.util.concurrent.Callable)} times a
+ * block without a scope object and records an error only when the block throws.</p>
+ *
+ * <p>Scopes are recycled through a small per-thread pool, so timing a hot method this way creates no garbage. A
+ * scope MUST NOT be referenced after it has been closed, as it may already be measuring another interval. Virtual
+ * threads are too numerous and short-lived to benefit from a pool, so they are issued a new scope each time.</p>
+ */
+public final class TimerScope extends TimerBase implements AutoCloseable {
+  /**
+   * The suffix of the master timer recording the intervals which ended in an exception.
+   */
+  public static final String ERROR_SUFFIX = "_error";
+
+  /**
+   * The label marking the outcome of the intervals in a master.
+   */
+  public static final String OUTCOME_LABEL = "outcome";
+  public static final String OUTCOME_ERROR = "error";
+
+  /**
+   * The maximum number of idle scopes retained by each thread.
+   */
+  private static final int POOL_SIZE = 8;
+
+  private static final ThreadLocal<Pool> POOL = new ThreadLocal<Pool>() {
+    @Override
+    protected Pool initialValue() {
+      return new Pool();
+    }
+  };
+
+  /**
+   * Scope issued when timing is disabled.
+   */
+  static final TimerScope NULL_SCOPE = new TimerScope(TimerBase.NULL_MASTER);
+
+  private long _startTime;
+  private long _active;
+  private Clock _clock = Clock.SYSTEM;
+  private boolean _success;
+
+
+  private TimerScope(final TimerMaster master) {
+    super(master);
+  }
+
+
+  /**
+   * Open a scope, recording the interval in the given master.
+   *
+   * @param master the master of the scope
+   * @return a running scope.
+   */
+  static TimerScope open(final TimingMaster master) {
+    TimerScope retval = null;
+    final Pool pool = Platform.isVirtualThread() ? null : POOL.get();
+    if (pool != null && pool.size > 0) {
+      retval = pool.scopes[--pool.size];
+      pool.scopes[pool.size] = null;
+      retval._master = master;
+    } else {
+      retval = new TimerScope(master);
+    }
+    retval.start();
+    return retval;
+  }
+
+
+  /**
+   * Mark the guarded block as having completed normally.
+   *
+   * @return this scope
+   */
+  public TimerScope success() {
+    _success = true;
+    return this;
+  }
+
+
+  /**
+   * @return the time that the scope has been running in milliseconds
+   */
+  public long getElapsed() {
+    return _isRunningFlag ? (_clock.nanos() - _startTime) / 1000000 : 0;
+  }
+
+
+  @Override
+  public void start() {
+    if (!_isRunningFlag && _master instanceof TimingMaster) {
+      _success = false;
+      _clock = ScoreCard.getClock();
+      _startTime = _clock.nanos();
+      _isRunningFlag = true;
+      _active = ((TimingMaster) _master).startScope();
+    }
+  }
+
+
+  /**
+   * Stop the scope, recording its interval by its outcome, and return it to the pool.
+   */
+  @Override
+  public void stop() {
+    if (_isRunningFlag) {
+      final long elapsed = (_clock.nanos() - _startTime) / 1000000;
+      _isRunningFlag = false;
+      ((TimingMaster) _master).stopScope(_active, elapsed, _success);
+      recycle();
+    }
+  }
+
+
+  /**
+   * Stop the scope; the same as calling {@link #stop()}.
+   */
+  @Override
+  public void close() {
+    stop();
+  }
+
+
+  @Override
+  public Timer setDescription(final String desc) {
+    _master.setDescription(desc);
+    return this;
+  }
+
+
+  private void recycle() {
+    _master = TimerBase.NULL_MASTER;
+    if (!Platform.isVirtualThread()) {
+      final Pool pool = POOL.get();
+      if (pool.size < POOL_SIZE) {
+        pool.scopes[pool.size++] = this;
+      }
+    }
+  }
+
+
+  /**
+   * The idle scopes of a thread.
+   */
+  private static final class Pool {
+    final TimerScope[] scopes = new TimerScope[POOL_SIZE];
+    int size = 0;
+  }
+
+}
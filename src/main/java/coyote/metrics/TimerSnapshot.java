@@ -0,0 +1,132 @@
+package coyote.metrics;
+
+/**
+ * A consistent copy of the statistics of a {@link TimingMaster} read by the exporters.
+ *
+ * <p>The statistics are read under the lock of the master, so an interval recorded while they are read is either
+ * entirely in the snapshot or not at all, and the count always matches the bucket counts. Reading them one by one
+ * from the master gives no such guarantee.</p>
+ *
+ * <p>A snapshot is meant to be reused for each timer an exporter writes so reading timers creates no garbage. It is
+ * not thread-safe.</p>
+ */
+public final class TimerSnapshot {
+  long count;
+  long sum;
+  long min;
+  long max;
+  Buckets buckets;
+  /**
+   * The cumulative bucket counts; only the first {@code buckets.size()} are valid.
+   */
+  long[] counts = new long[16];
+
+
+  /**
+   * Read the statistics of the given master under its lock.
+   *
+   * @param master the master to read
+   * @return this snapshot
+   */
+  public TimerSnapshot read(final TimingMaster master) {
+    master.lock.lock();
+    try {
+      count = master.getSampleCount();
+      sum = master.getTotal();
+      min = master.getMinimum();
+      max = master.getMaximum();
+      buckets = master.getBuckets();
+      if (buckets != null) {
+        if (counts.length < buckets.size()) {
+          counts = new long[buckets.size()];
+        }
+        master.copyBucketCounts(counts);
+      }
+    } finally {
+      master.lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @return the number of intervals recorded.
+   */
+  public long getSampleCount() {
+    return count;
+  }
+
+
+  /**
+   * @return the sum of the intervals recorded.
+   */
+  public long getTotal() {
+    return sum;
+  }
+
+
+  /**
+   * @return the shortest interval recorded, only meaningful if there are any.
+   */
+  public long getMinimum() {
+    return min;
+  }
+
+
+  /**
+   * @return the longest interval recorded, only meaningful if there are any.
+   */
+  public long getMaximum() {
+    return max;
+  }
+
+
+  /**
+   * @return the histogram buckets of the master, or null if it has none.
+   */
+  public Buckets getBuckets() {
+    return buckets;
+  }
+
+
+  /**
+   * @param index the index of a bucket, less than the size of the buckets
+   * @return the number of intervals counted in the bucket and all the buckets below it.
+   */
+  public long getBucketCount(final int index) {
+    if (buckets == null || index < 0 || index >= buckets.size()) {
+      throw new IndexOutOfBoundsException("No bucket " + index);
+    }
+    return counts[index];
+  }
+
+
+  /**
+   * Estimate a percentile from the bucket counts.
+   *
+   * <p>The rank is located in its bucket and interpolated linearly between the bounds of the bucket, as
+   * Prometheus' {@code histogram_quantile} does, except the bounds are narrowed to the observed minimum and maximum
+   * so the estimate never falls outside the observed range.</p>
+   *
+   * @param quantile the quantile to estimate, from 0 to 1
+   * @return the estimated interval, or NaN if there are no buckets or no intervals.
+   */
+  double percentile(final double quantile) {
+    if (buckets == null || count == 0) {
+      return Double.NaN;
+    }
+    final double rank = quantile * count;
+    int i = 0;
+    while (i < buckets.size() - 1 && counts[i] < rank) {
+      i++;
+    }
+    final long below = (i == 0) ? 0 : counts[i - 1];
+    final double lower = Math.max(min, (i == 0) ? 0 : buckets.getBound(i - 1));
+    final double upper = Math.min(max, buckets.getBound(i));
+    if (counts[i] == below || upper <= lower) {
+      return upper;
+    }
+    return lower + (upper - lower) * (rank - below) / (counts[i] - below);
+  }
+
+}
@@ -0,0 +1,122 @@
+package coyote.metrics;
+
+/**
+ * The TimerStack class models the nested timers running on a single thread.
+ *
+ * <p>Each thread has its own stack which is only ever modified by that thread, so no synchronization is performed.
+ * Frames are held in an array which only grows, so pushing and popping timers performs no allocation once the stack
+ * has reached the deepest level of nesting used by the thread.</p>
+ *
+ * <p>Virtual threads are cheap and numerous, so each gets a small stack which is released as soon as its last timer
+ * is stopped. A virtual thread which is parked for a long time or never stops running does not hold onto a stack it
+ * no longer uses.</p>
+ */
+final class TimerStack {
+  private static final int INITIAL_DEPTH = 16;
+  private static final int VIRTUAL_INITIAL_DEPTH = 4;
+
+  private static final ThreadLocal<TimerStack> LOCAL = new ThreadLocal<TimerStack>() {
+    @Override
+    protected TimerStack initialValue() {
+      return Platform.isVirtualThread() ? new TimerStack(VIRTUAL_INITIAL_DEPTH, true) : new TimerStack(INITIAL_DEPTH, false);
+    }
+  };
+
+  private NestedTimer[] frames;
+  private int depth = 0;
+  private final boolean release;
+
+
+  /**
+   * @param capacity the initial number of frames
+   * @param release  true to release the stack from its thread whenever it becomes empty
+   */
+  private TimerStack(final int capacity, final boolean release) {
+    frames = new NestedTimer[capacity];
+    this.release = release;
+  }
+
+
+  /**
+   * @return the stack of nested timers for the calling thread.
+   */
+  static TimerStack current() {
+    return LOCAL.get();
+  }
+
+
+  /**
+   * Place the given timer on the top of the stack.
+   *
+   * @param timer the timer which was just started
+   */
+  void push(final NestedTimer timer) {
+    discardStopped();
+    if (depth == frames.length) {
+      final NestedTimer[] grown = new NestedTimer[frames.length * 2];
+      System.arraycopy(frames, 0, grown, 0, depth);
+      frames = grown;
+    }
+    frames[depth++] = timer;
+  }
+
+
+  /**
+   * @return the running timer on the top of the stack or null if no nested timers are running on this thread.
+   */
+  NestedTimer peek() {
+    discardStopped();
+    return (depth == 0) ? null : frames[depth - 1];
+  }
+
+
+  /**
+   * Remove the given timer from the stack.
+   *
+   * <p>Any timers above the given timer were started within it and are stopped first so their time is attributed to
+   * the correct parent.</p>
+   *
+   * @param timer the timer being stopped
+   * @return true if the timer was on this stack, false otherwise.
+   */
+  boolean remove(final NestedTimer timer) {
+    for (int i = depth - 1; i >= 0; i--) {
+      if (frames[i] == timer) {
+        while (depth - 1 > i) {
+          final NestedTimer top = frames[depth - 1];
+          if (top.isRunning()) {
+            top.stop(); // pops itself
+          }
+          if (depth - 1 > i && frames[depth - 1] == top) {
+            frames[--depth] = null;
+          }
+        }
+        frames[--depth] = null;
+        if (depth == 0 && release) {
+          LOCAL.remove();
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * @return the number of frames on the stack.
+   */
+  int depth() {
+    return depth;
+  }
+
+
+  /**
+   * Timers stopped from another thread cannot remove themselves, so they are removed here once they reach the top.
+   */
+  private void discardStopped() {
+    while (depth > 0 && !frames[depth - 1].isRunning()) {
+      frames[--depth] = null;
+    }
+  }
+
+}
@@ -4,6 +4,9 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -30,11 +33,28 @@ public class TimingMaster implements TimerMaster {
   /**
    * The number of global timers currently active.
    */
-  private static volatile long globalCounter;
+  private static final AtomicLong globalCounter = new AtomicLong();
+  /**
+   * Guards the statistics of this master. An explicit lock is used instead of a monitor so virtual threads starting
+   * and stopping timers do not pin their carrier threads.
+   */
+  final ReentrantLock lock = new ReentrantLock();
   /**
    * Name-value pairs for labeling of metrics
    */
   protected Map<String, String> labels = new HashMap<>();
+  /**
+   * The labels as rendered by the MetricFormatter, discarded whenever the labels change.
+   */
+  volatile byte[] labelCache = null;
+  /**
+   * The labels sorted by name, discarded whenever the labels change.
+   */
+  volatile List<Map.Entry<String, String>> sortedLabels = null;
+  /**
+   * The place of this master in the change log of the ScoreCard.
+   */
+  final ChangeLog.Entry changes = new ChangeLog.Entry(this);
 
   protected String description = null;
   /**
@@ -71,11 +91,27 @@ public class TimingMaster implements TimerMaster {
   private long maxActive = 0;
 
   private long totalActive = 0;
+  /**
+   * The master recording the intervals of our scopes which ended in an exception, created when first needed.
+   */
+  private volatile TimingMaster errorMaster = null;
   private long min = Long.MAX_VALUE;
   private long max = Long.MIN_VALUE;
   private int hits;
   private long total;
   private long sumOfSquares;
+  /**
+   * The number of intervals added to the statistics
+   */
+  private long samples;
+  /**
+   * The histogram buckets of the intervals, null to export this master as a summary
+   */
+  private volatile Buckets buckets = null;
+  /**
+   * The number of intervals falling in each bucket (not cumulative)
+   */
+  private long[] bucketCounts = null;
 
   /**
    *
@@ -116,8 +152,13 @@ public class TimingMaster implements TimerMaster {
   public Timer createTimer() {
     Timer retval;
     if (_enabled) {
-      retval = new TimingTimer(this);
-      hits++;
+      retval = newTimingTimer();
+      SelfMetrics.lock(lock);
+      try {
+        hits++;
+      } finally {
+        lock.unlock();
+      }
     } else {
       retval = new NullTimer(this);
     }
@@ -125,6 +166,79 @@ public class TimingMaster implements TimerMaster {
     return retval;
   }
 
+  /**
+   * Open a scope which measures the interval until it is closed.
+   *
+   * <p>Intended for use in a try-with-resources statement; see {@link TimerScope}. The scope cannot tell how its block
+   * was left, so a block left by a {@code return}, {@code break} or {@code continue} before it marked the scope
+   * successful is recorded as an error; {@link #openScope(Callable)} tells them apart itself.</p>
+   *
+   * @return A running scope which records its interval when closed.
+   */
+  public TimerScope openScope() {
+    if (_enabled) {
+      return TimerScope.open(this);
+    }
+    return TimerScope.NULL_SCOPE;
+  }
+
+  /**
+   * Call a block in a scope, recording its interval in this master if it returns and in the
+   * {@link #getErrorMaster() error master} if it throws.
+   *
+   * <p>Unlike a scope opened by {@link #openScope()}, the block need not mark its success, and any way it returns is a
+   * success.</p>
+   *
+   * @param block the block to time
+   * @param <T>   the type of the result of the block
+   * @return the result of the block
+   * @throws Exception whatever the block throws
+   */
+  public <T> T openScope(final Callable<T> block) throws Exception {
+    if (!_enabled) {
+      return block.call();
+    }
+    final Clock clock = ScoreCard.getClock();
+    final long started = clock.nanos();
+    final long active = startScope();
+    boolean success = false;
+    try {
+      final T retval = block.call();
+      success = true;
+      return retval;
+    } finally {
+      stopScope(active, (clock.nanos() - started) / 1000000, success);
+    }
+  }
+
+  /**
+   * Access the master recording the intervals of the scopes of this master which ended in an exception.
+   *
+   * <p>The error master is kept in the ScoreCard alongside this master so it is reported with the other timers.</p>
+   *
+   * @return the master of the error outcome of this master.
+   */
+  public TimingMaster getErrorMaster() {
+    TimingMaster retval = errorMaster;
+    if (retval == null) {
+      retval = ScoreCard.getOrCreateTimerMaster(_name + TimerScope.ERROR_SUFFIX);
+      retval.addLabel(TimerScope.OUTCOME_LABEL, TimerScope.OUTCOME_ERROR);
+      errorMaster = retval;
+    }
+    return retval;
+  }
+
+  /**
+   * Create the working timer instance issued by {@link #createTimer()}.
+   *
+   * <p>Sub-classes override this to issue timers with additional behavior.</p>
+   *
+   * @return a new timer bound to this master.
+   */
+  TimingTimer newTimingTimer() {
+    return new TimingTimer(this);
+  }
+
   /**
    * @return Returns the accrued datum for all stopped timers.
    */
@@ -212,7 +326,7 @@ public class TimingMaster implements TimerMaster {
    * @return Returns the number of timers currently active (started) for all master timers.
    */
   public long getGloballyActive() {
-    return TimingMaster.globalCounter;
+    return TimingMaster.globalCounter.get();
   }
 
   /**
@@ -279,6 +393,75 @@ public class TimingMaster implements TimerMaster {
     return maxActive;
   }
 
+  /**
+   * @return the number of intervals added to the statistics of this master.
+   */
+  public long getSampleCount() {
+    return samples;
+  }
+
+  /**
+   * @return the histogram buckets of this master, or null if it is exported as a summary.
+   */
+  public Buckets getBuckets() {
+    return buckets;
+  }
+
+  /**
+   * Set the histogram buckets of this master.
+   *
+   * <p>Intervals are only counted in buckets from this point forward. The intervals already recorded cannot be placed
+   * in the new buckets, so setting the buckets discards them: the statistics of this master are reset as by
+   * {@link #resetThis()}, keeping the count and sum of a histogram consistent with its buckets.</p>
+   *
+   * @param bkts the buckets to count intervals in, null to stop counting them and export this master as a summary.
+   * @return this master
+   */
+  public TimingMaster setBuckets(final Buckets bkts) {
+    lock.lock();
+    try {
+      clearStatistics();
+      bucketCounts = (bkts == null) ? null : new long[bkts.size()];
+      buckets = bkts;
+      changes.touch();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * Access the number of intervals in each histogram bucket.
+   *
+   * @return the cumulative count of each bucket in the order of the buckets, the last being the "+Inf" bucket, or an
+   * empty array if this master has no buckets.
+   */
+  public long[] getBucketCounts() {
+    lock.lock();
+    try {
+      return copyBucketCounts(new long[bucketCounts == null ? 0 : bucketCounts.length]);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Copy the cumulative bucket counts into the given array; the caller must hold the lock.
+   *
+   * @param dest the array to fill, at least as long as the number of buckets
+   * @return the given array.
+   */
+  long[] copyBucketCounts(final long[] dest) {
+    if (bucketCounts != null) {
+      long cumulative = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        cumulative += bucketCounts[i];
+        dest[i] = cumulative;
+      }
+    }
+    return dest;
+  }
+
 
   /**
    * Increase the time by the specified amount of milliseconds.
@@ -288,22 +471,32 @@ public class TimingMaster implements TimerMaster {
    * @param value the amount to increase the accrued value.
    */
   @Override
-  public synchronized void increase(final long value) {
-    if (value < min) {
-      min = value;
-    }
-    if (value > max) {
-      max = value;
+  public void increase(final long value) {
+    SelfMetrics.lock(lock);
+    try {
+      if (value < min) {
+        min = value;
+      }
+      if (value > max) {
+        max = value;
+      }
+      accrued += value;
+      total += value;
+      sumOfSquares += value * value;
+      samples++;
+      if (bucketCounts != null) {
+        bucketCounts[buckets.indexOf(value)]++;
+      }
+      changes.touch();
+    } finally {
+      lock.unlock();
     }
-    accrued += value;
-    total += value;
-    sumOfSquares += value * value;
   }
 
   /**
    * @return True if the timer set is enabled, false otherwise.
    */
-  public synchronized boolean isEnabled() {
+  public boolean isEnabled() {
     return _enabled;
   }
 
@@ -312,7 +505,7 @@ public class TimingMaster implements TimerMaster {
    *
    * @param flag True to enable the timer, false to keep it from processing.
    */
-  public synchronized void setEnabled(final boolean flag) {
+  public void setEnabled(final boolean flag) {
     _enabled = flag;
   }
 
@@ -322,11 +515,28 @@ public class TimingMaster implements TimerMaster {
    * <p>The effect of this is to reset this objects variables to the state they were in when the object was first
    * created.
    */
-  synchronized protected void resetThis() {
+  protected void resetThis() {
+    lock.lock();
+    try {
+      clearStatistics();
+      firstAccessTime = lastAccessTime = ScoreCard.getClock().millis();
+      changes.touch();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Clear the statistics of the intervals; the caller must hold the lock.
+   */
+  private void clearStatistics() {
     min = Long.MAX_VALUE;
     max = Long.MIN_VALUE;
     total = accrued = sumOfSquares = maxActive = totalActive = hits = 0;
-    firstAccessTime = lastAccessTime = System.currentTimeMillis();
+    samples = 0;
+    if (bucketCounts != null) {
+      Arrays.fill(bucketCounts, 0);
+    }
   }
 
   /**
@@ -335,17 +545,112 @@ public class TimingMaster implements TimerMaster {
    * @param timr the timer to start.
    */
   @Override
-  public synchronized void start(final Timer timr) {
-    activeCounter++;
-    TimingMaster.globalCounter++;
+  public void start(final Timer timr) {
+    SelfMetrics.lock(lock);
+    try {
+      activeCounter++;
+      TimingMaster.globalCounter.incrementAndGet();
+
+      if (activeCounter > maxActive) {
+        maxActive = activeCounter;
+      }
+
+      totalActive += activeCounter;
+
+      touch(ScoreCard.getClock().millis());
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    if (activeCounter > maxActive) {
-      maxActive = activeCounter;
+
+  /**
+   * Record an interval which was measured outside of a timer issued by this master.
+   *
+   * <p>This is used when the start and end of an interval are observed by different parties, such as work handed
+   * between threads, where issuing and holding a timer would be awkward. The interval counts as a hit and its value is
+   * added to the statistics just as if a timer had been started and stopped.</p>
+   *
+   * @param value the length of the interval in milliseconds.
+   */
+  public void record(final long value) {
+    SelfMetrics.lock(lock);
+    try {
+      hits++;
+      totalActive += activeCounter + 1;
+      touch(ScoreCard.getClock().millis());
+      increase(value);
+    } finally {
+      lock.unlock();
     }
+  }
+
 
-    totalActive += activeCounter;
+  /**
+   * Open the interval of a scope.
+   *
+   * <p>The scope is counted as a hit and as active, like a timer which has been created and started, but its share of
+   * the average and maximum number active is only counted by {@link #stopScope(long, long, boolean)} when it succeeds,
+   * so an interval which ends in an exception leaves no trace in this master.</p>
+   *
+   * @return the number of intervals active in this master including the one opened, to pass to
+   * {@link #stopScope(long, long, boolean)}.
+   */
+  long startScope() {
+    SelfMetrics.lock(lock);
+    try {
+      hits++;
+      activeCounter++;
+      TimingMaster.globalCounter.incrementAndGet();
+      touch(ScoreCard.getClock().millis());
+      return activeCounter;
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    final long now = System.currentTimeMillis();
+
+  /**
+   * Close the interval of a scope opened with {@link #startScope()}.
+   *
+   * <p>A successful interval is recorded in this master; a failed one is withdrawn from it and recorded in the
+   * {@link #getErrorMaster() error master} instead.</p>
+   *
+   * @param active  the value returned by {@link #startScope()} when the scope was opened
+   * @param value   the length of the interval in milliseconds
+   * @param success true if the scope completed normally, false if it was exited through an exception
+   */
+  void stopScope(final long active, final long value, final boolean success) {
+    SelfMetrics.lock(lock);
+    try {
+      activeCounter--;
+      TimingMaster.globalCounter.decrementAndGet();
+      if (success) {
+        totalActive += active;
+        if (active > maxActive) {
+          maxActive = active;
+        }
+        touch(ScoreCard.getClock().millis());
+        increase(value);
+      } else if (hits > 0) {
+        // the hit may already have been cleared by a reset
+        hits--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (!success) {
+      getErrorMaster().record(value);
+    }
+  }
+
+
+  /**
+   * Update the access times of this master.
+   *
+   * @param now the current epoch time in milliseconds
+   */
+  private void touch(final long now) {
     lastAccessTime = now;
 
     if (isFirstAccess) {
@@ -361,10 +666,15 @@ public class TimingMaster implements TimerMaster {
    * @param mon the timer to stop.
    */
   @Override
-  public synchronized void stop(final Timer mon) {
-    activeCounter--;
-    TimingMaster.globalCounter--;
-    accrued += mon.getAccrued();
+  public void stop(final Timer mon) {
+    SelfMetrics.lock(lock);
+    try {
+      activeCounter--;
+      TimingMaster.globalCounter.decrementAndGet();
+      accrued += mon.getAccrued();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
@@ -395,6 +705,9 @@ public class TimingMaster implements TimerMaster {
       } else {
         labels.remove(name);
       }
+      labelCache = null;
+      sortedLabels = null;
+      changes.touch();
     }
     return this;
   }
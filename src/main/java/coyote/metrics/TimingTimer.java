@@ -5,7 +5,11 @@ package coyote.metrics;
  */
 public class TimingTimer extends TimerBase {
   volatile long _accrued;
-  volatile private long _startTime = 0;
+  /**
+   * The monotonic time the timer started in nanoseconds, read from the clock the timer started with
+   */
+  volatile long _startTime = 0;
+  volatile Clock _clock = Clock.SYSTEM;
 
 
   /**
@@ -51,9 +55,12 @@ public class TimingTimer extends TimerBase {
   @Override
   public void start() {
     if (!_isRunningFlag) {
-      _startTime = System.currentTimeMillis();
+      final long sampled = SelfMetrics.sample();
+      _clock = ScoreCard.getClock();
+      _startTime = _clock.nanos();
       _isRunningFlag = true;
       _master.start(this);
+      SelfMetrics.recordTimerStart(sampled);
     }
   }
 
@@ -61,10 +68,12 @@ public class TimingTimer extends TimerBase {
   @Override
   public void stop() {
     if (_isRunningFlag) {
+      final long sampled = SelfMetrics.sample();
       increase(timeElapsedSinceLastStart());
       _master.increase(_accrued);
       _master.stop(this);
       _isRunningFlag = false;
+      SelfMetrics.recordTimerStop(sampled);
     }
   }
 
@@ -80,9 +89,9 @@ public class TimingTimer extends TimerBase {
    *
    * @return the number of milliseconds since the last start.
    */
-  private long timeElapsedSinceLastStart() {
+  long timeElapsedSinceLastStart() {
     if (isRunning()) {
-      return System.currentTimeMillis() - _startTime;
+      return (_clock.nanos() - _startTime) / 1000000;
     } else {
       return 0;
     }
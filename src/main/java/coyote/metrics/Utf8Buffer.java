@@ -0,0 +1,274 @@
+package coyote.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable buffer of UTF-8 encoded bytes used to render metrics without creating intermediate Strings.
+ *
+ * <p>Text is encoded directly into the buffer as it is appended and numbers are written digit by digit, so rendering
+ * a metric creates no garbage once the buffer has grown to the size of the largest output. A buffer is meant to be
+ * reset and reused; it is not thread-safe.</p>
+ */
+public final class Utf8Buffer {
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * Digits of the longest long value; Long.MIN_VALUE is -9223372036854775808.
+   */
+  private static final int MAX_LONG_DIGITS = 20;
+
+  private byte[] bytes;
+  private int length = 0;
+
+
+  /**
+   * Create a buffer with the default initial capacity.
+   */
+  public Utf8Buffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+
+  /**
+   * @param capacity the initial capacity of the buffer in bytes.
+   */
+  public Utf8Buffer(final int capacity) {
+    bytes = new byte[Math.max(16, capacity)];
+  }
+
+
+  /**
+   * @return the number of bytes in the buffer.
+   */
+  public int length() {
+    return length;
+  }
+
+
+  /**
+   * Discard the contents of the buffer, retaining its capacity.
+   *
+   * @return this buffer
+   */
+  public Utf8Buffer reset() {
+    length = 0;
+    return this;
+  }
+
+
+  /**
+   * Access the array backing this buffer. Only the first {@link #length()} bytes are valid and the array is replaced
+   * as the buffer grows.
+   *
+   * @return the array backing this buffer.
+   */
+  public byte[] array() {
+    return bytes;
+  }
+
+
+  /**
+   * @return a copy of the bytes in the buffer.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, length);
+  }
+
+
+  /**
+   * Write the contents of the buffer to the given stream.
+   *
+   * @param out the stream to write
+   * @throws IOException if the stream could not be written
+   */
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(bytes, 0, length);
+  }
+
+
+  /**
+   * Make room for at least the given number of bytes.
+   *
+   * @param needed the number of bytes about to be appended
+   */
+  private void ensure(final int needed) {
+    if (length + needed > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + needed));
+    }
+  }
+
+
+  /**
+   * Append a single byte.
+   *
+   * @param b the byte to append
+   * @return this buffer
+   */
+  public Utf8Buffer append(final byte b) {
+    ensure(1);
+    bytes[length++] = b;
+    return this;
+  }
+
+
+  /**
+   * Append the given bytes.
+   *
+   * @param data the bytes to append
+   * @return this buffer
+   */
+  public Utf8Buffer append(final byte[] data) {
+    return append(data, 0, data.length);
+  }
+
+
+  /**
+   * Append a range of the given bytes.
+   *
+   * @param data   the bytes to append
+   * @param offset the offset of the first byte to append
+   * @param count  the number of bytes to append
+   * @return this buffer
+   */
+  public Utf8Buffer append(final byte[] data, final int offset, final int count) {
+    ensure(count);
+    System.arraycopy(data, offset, bytes, length, count);
+    length += count;
+    return this;
+  }
+
+
+  /**
+   * Append a character from the Basic Multilingual Plane; surrogate pairs must be appended as a sequence.
+   *
+   * @param c the character to encode
+   * @return this buffer
+   */
+  public Utf8Buffer append(final char c) {
+    if (c < 0x80) {
+      ensure(1);
+      bytes[length++] = (byte) c;
+    } else if (c < 0x800) {
+      ensure(2);
+      bytes[length++] = (byte) (0xC0 | (c >> 6));
+      bytes[length++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isSurrogate(c)) {
+      ensure(1);
+      bytes[length++] = '?';
+    } else {
+      ensure(3);
+      bytes[length++] = (byte) (0xE0 | (c >> 12));
+      bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      bytes[length++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return this;
+  }
+
+
+  /**
+   * Append the UTF-8 encoding of the given text.
+   *
+   * @param text the text to encode
+   * @return this buffer
+   */
+  public Utf8Buffer append(final CharSequence text) {
+    return append(text, 0, text.length());
+  }
+
+
+  /**
+   * Append the UTF-8 encoding of a range of the given text.
+   *
+   * @param text  the text to encode
+   * @param start the index of the first character to encode
+   * @param end   the index after the last character to encode
+   * @return this buffer
+   */
+  public Utf8Buffer append(final CharSequence text, final int start, final int end) {
+    ensure(end - start);
+    for (int i = start; i < end; i++) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        if (length == bytes.length) {
+          ensure(end - i);
+        }
+        bytes[length++] = (byte) c;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, text.charAt(++i));
+        ensure(4);
+        bytes[length++] = (byte) (0xF0 | (cp >> 18));
+        bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+      } else {
+        append(c);
+      }
+    }
+    return this;
+  }
+
+
+  /**
+   * Append the decimal representation of the given value.
+   *
+   * @param value the value to write
+   * @return this buffer
+   */
+  public Utf8Buffer append(final long value) {
+    ensure(MAX_LONG_DIGITS);
+    if (value == Long.MIN_VALUE) {
+      // cannot be negated; a constant so it does not allocate
+      return append("-9223372036854775808");
+    }
+    long remaining = value;
+    if (remaining < 0) {
+      bytes[length++] = '-';
+      remaining = -remaining;
+    }
+    int digits = 1;
+    for (long scan = remaining; scan >= 10; scan /= 10) {
+      digits++;
+    }
+    int pos = length + digits;
+    length = pos;
+    do {
+      bytes[--pos] = (byte) ('0' + (remaining % 10));
+      remaining /= 10;
+    } while (remaining != 0);
+    return this;
+  }
+
+
+  /**
+   * Append the representation of the given value used by the Prometheus text formats.
+   *
+   * <p>Whole values are written as integers without creating any objects; other values are written as
+   * {@link Double#toString(double)} writes them.</p>
+   *
+   * @param value the value to write
+   * @return this buffer
+   */
+  public Utf8Buffer append(final double value) {
+    if (Double.isNaN(value)) {
+      return append("NaN");
+    } else if (Double.isInfinite(value)) {
+      return append(value > 0 ? "+Inf" : "-Inf");
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e18) {
+      return append((long) value);
+    }
+    return append(Double.toString(value));
+  }
+
+
+  /**
+   * @return the contents of the buffer decoded as UTF-8.
+   */
+  @Override
+  public String toString() {
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,653 @@
+package coyote.metrics.graphite;
+
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.Monitor;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.TimerSnapshot;
+import coyote.metrics.TimingMaster;
+import coyote.metrics.Utf8Buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends the ScoreCard to Graphite over one persistent TCP connection to Carbon, in the plaintext or pickle protocol.
+ *
+ * <p>Monitors are mapped to dotted paths: the optional prefix, the name of the monitor, then the key and value of each
+ * label in key order. Characters other than letters, digits, underscores and hyphens are replaced by underscores, as
+ * are dots in labels. Counters and gauges are sent as their value; master timers as {@code count} and {@code sum}
+ * paths, and {@code min}, {@code max} and {@code mean} once they have an interval:</p>
+ * <pre>
+ * ci.requests.endpoint._api 42 1700000000
+ * ci.latency.count 3 1700000000
+ * </pre>
+ *
+ * <p>The pickle protocol, usually on port 2004, is considerably cheaper for Carbon to parse. Metrics are sent in
+ * length-prefixed pickled lists of at most {@link #PICKLE_BATCH} metrics.</p>
+ *
+ * <p>Writers only render metrics into messages and queue them; a daemon thread sends them. When Carbon cannot be
+ * reached the thread reconnects with an exponential backoff with jitter while the messages wait. The queue is bounded
+ * in bytes and drops its oldest messages when full, so an outage costs the oldest metrics rather than unbounded
+ * memory. Carbon does not acknowledge metrics, so a message written just as the connection breaks may be lost.</p>
+ */
+public class GraphiteSink implements Closeable {
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+  public static final int PICKLE_BATCH = 500;
+  /**
+   * The size at which plaintext messages are split.
+   */
+  private static final int PLAINTEXT_MESSAGE_BYTES = 64 * 1024;
+
+  // pickle protocol 2 opcodes
+  private static final byte PROTO = (byte) 0x80;
+  private static final byte EMPTY_LIST = ']';
+  private static final byte MARK = '(';
+  private static final byte APPENDS = 'e';
+  private static final byte BINUNICODE = 'X';
+  private static final byte BININT = 'J';
+  private static final byte LONG1 = (byte) 0x8a;
+  private static final byte BINFLOAT = 'G';
+  private static final byte TUPLE2 = (byte) 0x86;
+  private static final byte STOP = '.';
+
+  private final String host;
+  private final int port;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final Deque<Message> queue = new ArrayDeque<>();
+  private final Utf8Buffer buffer = new Utf8Buffer(PLAINTEXT_MESSAGE_BYTES + 1024);
+  private final Utf8Buffer path = new Utf8Buffer(256);
+  private final TimerSnapshot timer = new TimerSnapshot();
+  private boolean pickle = false;
+  private String prefix = "";
+  private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+  private int connectTimeout = 5000;
+  private long baseBackoff = 100;
+  private long maxBackoff = 10000;
+  private long queuedBytes = 0;
+  private boolean sending = false;
+  /**
+   * The number of metrics in the message being rendered in the buffer.
+   */
+  private int batched = 0;
+  private boolean closed = false;
+  private long retryAt = 0;
+  private int failures = 0;
+  private long sentMetrics = 0;
+  private long droppedMetrics = 0;
+  private long connections = 0;
+  private volatile Socket socket = null;
+  private Thread thread = null;
+  private ScheduledExecutorService executor = null;
+
+
+  /**
+   * @param host the host of Carbon
+   * @param port the port of its plaintext receiver, usually 2003, or of its pickle receiver, usually 2004
+   */
+  public GraphiteSink(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+
+  /**
+   * @param flag true to send the pickle protocol, false to send plaintext
+   * @return this sink for fluent method chaining
+   */
+  public GraphiteSink setPickle(boolean flag) {
+    lock.lock();
+    try {
+      pickle = flag;
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @param text prepended to every path, such as "ci."
+   * @return this sink for fluent method chaining
+   */
+  public GraphiteSink setPrefix(String text) {
+    lock.lock();
+    try {
+      prefix = (text != null) ? text : "";
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @param bytes the most bytes of messages waiting to be sent, default 4 MB
+   * @return this sink for fluent method chaining
+   */
+  public GraphiteSink setMaxBufferedBytes(long bytes) {
+    lock.lock();
+    try {
+      maxBufferedBytes = Math.max(1, bytes);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Set how connections are retried.
+   *
+   * <p>The n-th attempt after a failure waits between half and all of {@code base * 2^(n-1)} milliseconds, up to the
+   * maximum.</p>
+   *
+   * @param connectMillis milliseconds to wait for a connection, default 5 seconds
+   * @param base          milliseconds to wait before the first attempt to reconnect, default 100
+   * @param max           the most milliseconds to wait before any attempt, default 10 seconds
+   * @return this sink for fluent method chaining
+   */
+  public GraphiteSink setReconnect(int connectMillis, long base, long max) {
+    lock.lock();
+    try {
+      connectTimeout = connectMillis;
+      baseBackoff = Math.max(1, base);
+      maxBackoff = Math.max(baseBackoff, max);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Write the ScoreCard periodically on a daemon thread.
+   *
+   * @param periodMillis milliseconds between writes
+   * @return this sink for fluent method chaining
+   */
+  public GraphiteSink start(long periodMillis) {
+    lock.lock();
+    try {
+      if (executor == null) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread retval = new Thread(runnable, "GraphiteSink-writer");
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            writeScoreCard();
+          }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Queue the metrics of the whole ScoreCard stamped with the current time.
+   *
+   * @return the number of metrics queued
+   */
+  public int writeScoreCard() {
+    final List<Monitor> monitors = new ArrayList<>();
+    for (final Iterator<TimingMaster> it = ScoreCard.getTimerIterator(); it.hasNext(); monitors.add(it.next())) ;
+    for (final Iterator<Counter> it = ScoreCard.getCounterIterator(); it.hasNext(); monitors.add(it.next())) ;
+    for (final Iterator<Gauge> it = ScoreCard.getGaugeIterator(); it.hasNext(); monitors.add(it.next())) ;
+    monitors.addAll(SelfMetrics.getMonitors());
+    return write(monitors);
+  }
+
+
+  /**
+   * Queue the metrics of the given monitors stamped with the current time.
+   *
+   * @param monitors the monitors to write
+   * @return the number of metrics queued
+   */
+  public int write(Collection<? extends Monitor> monitors) {
+    final long timestamp = System.currentTimeMillis() / 1000;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("GraphiteSink is closed");
+      }
+      start();
+      int retval = 0;
+      begin();
+      for (final Monitor monitor : monitors) {
+        if (monitor instanceof TimingMaster) {
+          timer.read((TimingMaster) monitor);
+          final long count = timer.getSampleCount();
+          final long sum = timer.getTotal();
+          retval += metric(monitor, ".count", count, Double.NaN, timestamp);
+          retval += metric(monitor, ".sum", sum, Double.NaN, timestamp);
+          if (count > 0) {
+            retval += metric(monitor, ".min", timer.getMinimum(), Double.NaN, timestamp);
+            retval += metric(monitor, ".max", timer.getMaximum(), Double.NaN, timestamp);
+            retval += metric(monitor, ".mean", 0, (double) sum / count, timestamp);
+          }
+        } else {
+          retval += metric(monitor, null, monitor.getValue(), Double.NaN, timestamp);
+        }
+      }
+      end();
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Send everything queued, waiting until it has been written to the connection or the deadline passes.
+   *
+   * @param timeoutMillis the most milliseconds to wait
+   * @return true if everything queued was written before the deadline, false otherwise
+   */
+  public boolean flush(long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      retryAt = Math.min(retryAt, System.currentTimeMillis());
+      changed.signalAll();
+      try {
+        long remaining;
+        while ((!queue.isEmpty() || sending) && thread != null && (remaining = deadline - System.nanoTime()) > 0) {
+          changed.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return queue.isEmpty() && !sending;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Send everything queued, waiting up to ten seconds, then close the connection and stop the sink.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    flush(10000);
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    closeSocket();
+  }
+
+
+  /**
+   * @return the number of metrics written to the connection.
+   */
+  public long getSentCount() {
+    lock.lock();
+    try {
+      return sentMetrics;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of metrics dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    lock.lock();
+    try {
+      return droppedMetrics;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of bytes of messages waiting to be sent.
+   */
+  public long getBufferedBytes() {
+    lock.lock();
+    try {
+      return queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of connections made to Carbon.
+   */
+  public long getConnectionCount() {
+    lock.lock();
+    try {
+      return connections;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Start a message in the buffer; the caller must hold the lock.
+   */
+  private void begin() {
+    buffer.reset();
+    batched = 0;
+    if (pickle) {
+      // the length of the pickle is patched in when the message ends
+      buffer.append((byte) 0).append((byte) 0).append((byte) 0).append((byte) 0);
+      buffer.append(PROTO).append((byte) 2).append(EMPTY_LIST).append(MARK);
+    }
+  }
+
+
+  /**
+   * Finish the message in the buffer and queue it, dropping the oldest messages if the queue is full; the caller
+   * must hold the lock.
+   */
+  private void end() {
+    final int metrics = batched;
+    if (metrics == 0) {
+      return;
+    }
+    if (pickle) {
+      buffer.append(APPENDS).append(STOP);
+      final int length = buffer.length() - 4;
+      final byte[] bytes = buffer.array();
+      bytes[0] = (byte) (length >>> 24);
+      bytes[1] = (byte) (length >>> 16);
+      bytes[2] = (byte) (length >>> 8);
+      bytes[3] = (byte) length;
+    }
+    final Message message = new Message(buffer.toByteArray(), metrics);
+    if (message.data.length > maxBufferedBytes) {
+      droppedMetrics += metrics;
+      return;
+    }
+    while (queuedBytes + message.data.length > maxBufferedBytes && !queue.isEmpty()) {
+      final Message oldest = queue.removeFirst();
+      queuedBytes -= oldest.data.length;
+      droppedMetrics += oldest.metrics;
+    }
+    queue.addLast(message);
+    queuedBytes += message.data.length;
+    changed.signalAll();
+  }
+
+
+  /**
+   * Render one metric into the message, first queueing the message if it is full; the caller must hold the lock.
+   *
+   * @param real the value if it is not a whole number, otherwise NaN and the value is {@code whole}
+   * @return 1, the number of metrics rendered
+   */
+  private int metric(Monitor monitor, String suffix, long whole, double real, long timestamp) {
+    if (pickle ? batched >= PICKLE_BATCH : buffer.length() >= PLAINTEXT_MESSAGE_BYTES) {
+      end();
+      begin();
+    }
+    batched++;
+    path.reset();
+    appendPath(path, prefix, monitor, suffix);
+    if (pickle) {
+      buffer.append(BINUNICODE);
+      appendIntLE(buffer, path.length());
+      buffer.append(path.array(), 0, path.length());
+      appendLong(buffer, timestamp);
+      if (Double.isNaN(real)) {
+        appendLong(buffer, whole);
+      } else {
+        final long bits = Double.doubleToLongBits(real);
+        buffer.append(BINFLOAT);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          buffer.append((byte) (bits >>> shift));
+        }
+      }
+      buffer.append(TUPLE2).append(TUPLE2);
+    } else {
+      buffer.append(path.array(), 0, path.length()).append(' ');
+      if (Double.isNaN(real)) {
+        buffer.append(whole);
+      } else {
+        buffer.append(real);
+      }
+      buffer.append(' ').append(timestamp).append('\n');
+    }
+    return 1;
+  }
+
+
+  /**
+   * Append the dotted path of a monitor.
+   */
+  static void appendPath(Utf8Buffer out, String prefix, Monitor monitor, String suffix) {
+    out.append(prefix);
+    appendSanitized(out, monitor.getName(), true);
+    final Map<String, String> labels = monitor.getLabels();
+    if (!labels.isEmpty()) {
+      final String[] keys = labels.keySet().toArray(new String[labels.size()]);
+      Arrays.sort(keys);
+      for (final String key : keys) {
+        out.append('.');
+        appendSanitized(out, key, false);
+        out.append('.');
+        appendSanitized(out, labels.get(key), false);
+      }
+    }
+    if (suffix != null) {
+      out.append(suffix);
+    }
+  }
+
+
+  private static void appendSanitized(Utf8Buffer out, String text, boolean dots) {
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-' || (dots && c == '.')) {
+        out.append(c);
+      } else {
+        out.append('_');
+      }
+    }
+  }
+
+
+  private static void appendIntLE(Utf8Buffer out, int value) {
+    out.append((byte) value).append((byte) (value >>> 8)).append((byte) (value >>> 16)).append((byte) (value >>> 24));
+  }
+
+
+  /**
+   * Append a pickled integer: a signed 32-bit int when it fits, otherwise a long in as few bytes as it needs.
+   */
+  private static void appendLong(Utf8Buffer out, long value) {
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      out.append(BININT);
+      appendIntLE(out, (int) value);
+    } else {
+      int bytes = 8;
+      while (bytes > 1 && (value >> (8 * (bytes - 1) - 1)) == (value >> 63)) {
+        bytes--;
+      }
+      out.append(LONG1).append((byte) bytes);
+      for (int i = 0; i < bytes; i++) {
+        out.append((byte) (value >>> (8 * i)));
+      }
+    }
+  }
+
+
+  /**
+   * Start the thread which sends the messages; the caller must hold the lock.
+   */
+  private void start() {
+    if (thread == null) {
+      thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "GraphiteSink");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+
+  private void work() {
+    lock.lock();
+    try {
+      while (!closed) {
+        final long now = System.currentTimeMillis();
+        if (queue.isEmpty() || now < retryAt) {
+          try {
+            if (queue.isEmpty()) {
+              changed.await();
+            } else {
+              changed.await(retryAt - now, TimeUnit.MILLISECONDS);
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          continue;
+        }
+
+        // the message leaves the queue while it is sent so it cannot be dropped from under the sender
+        final Message message = queue.removeFirst();
+        queuedBytes -= message.data.length;
+        sending = true;
+        final long started = SelfMetrics.start();
+        final boolean sent = send(message);
+        SelfMetrics.recordPush("graphite", started, sent);
+        sending = false;
+        if (sent) {
+          failures = 0;
+          sentMetrics += message.metrics;
+        } else {
+          failures++;
+          final long delay = Math.min(maxBackoff, baseBackoff << Math.min(failures - 1, 30));
+          retryAt = System.currentTimeMillis() + delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+          if (queuedBytes + message.data.length <= maxBufferedBytes) {
+            queue.addFirst(message);
+            queuedBytes += message.data.length;
+          } else {
+            droppedMetrics += message.metrics;
+          }
+        }
+        changed.signalAll();
+      }
+    } finally {
+      thread = null;
+      changed.signalAll();
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Write a message to the connection, connecting first if necessary, without holding the lock.
+   *
+   * @return true if the message was written, false if the connection failed and was closed
+   */
+  private boolean send(Message message) {
+    final int timeout = connectTimeout;
+    lock.unlock();
+    try {
+      Socket current = socket;
+      if (current == null) {
+        current = new Socket();
+        current.connect(new InetSocketAddress(host, port), timeout);
+        current.setKeepAlive(true);
+        socket = current;
+        lock.lock();
+        try {
+          connections++;
+        } finally {
+          lock.unlock();
+        }
+      }
+      // messages are whole batches, so they are written without further buffering
+      final OutputStream out = current.getOutputStream();
+      out.write(message.data);
+      return true;
+    } catch (IOException e) {
+      closeSocket();
+      return false;
+    } finally {
+      lock.lock();
+    }
+  }
+
+
+  private void closeSocket() {
+    final Socket current = socket;
+    socket = null;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        // nothing more to do
+      }
+    }
+  }
+
+
+  /**
+   * A rendered message and the number of metrics it holds.
+   */
+  private static final class Message {
+    final byte[] data;
+    final int metrics;
+
+    Message(byte[] data, int metrics) {
+      this.data = data;
+      this.metrics = metrics;
+    }
+  }
+
+}
@@ -0,0 +1,453 @@
+package coyote.metrics.influx;
+
+import coyote.metrics.Monitor;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.Utf8Buffer;
+import coyote.metrics.prom.BasicAuthHttpConnectionFactory;
+import coyote.metrics.prom.DefaultHttpConnectionFactory;
+import coyote.metrics.prom.HttpConnectionFactory;
+import coyote.metrics.prom.HttpPost;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes points to InfluxDB in gzip compressed batches.
+ *
+ * <p>Points are rendered into a batch as they are written and a background daemon thread posts the batch when it
+ * reaches a size or has waited long enough, whichever comes first, so writers never wait for InfluxDB. The URL is the
+ * complete write endpoint of the database, such as {@code http://influx:8086/write?db=tests} for InfluxDB 1.x or
+ * {@code http://influx:8086/api/v2/write?org=ci&bucket=tests} for 2.x:</p>
+ * <pre>
+ * InfluxWriter writer = new InfluxWriter(url).setToken(token);
+ * writer.writeScoreCard();
+ * ...
+ * writer.close();
+ * </pre>
+ *
+ * <p>While a batch is being posted the next batch is filled, and a batch which outgrew the batch size while waiting
+ * is posted in several requests split between lines. Points written while four batches worth are waiting are dropped
+ * rather than holding an unbounded amount of memory, as are points InfluxDB does not accept; both are counted.</p>
+ */
+public class InfluxWriter implements Closeable {
+  public static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+  public static final long DEFAULT_MAX_DELAY = 1000;
+  public static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+  private static final int MILLISECONDS_PER_SECOND = 1000;
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final String url;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private volatile HttpConnectionFactory connectionFactory = new DefaultHttpConnectionFactory();
+  private volatile Map<String, String> headers = Collections.emptyMap();
+  private int batchBytes = DEFAULT_BATCH_BYTES;
+  private long maxDelay = DEFAULT_MAX_DELAY;
+  private int connectTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private int readTimeout = 10 * MILLISECONDS_PER_SECOND;
+  /**
+   * The batch being filled, and the one being posted, which are swapped when a batch is posted.
+   */
+  private Utf8Buffer batch = new Utf8Buffer(DEFAULT_BATCH_BYTES + 1024);
+  private Utf8Buffer sending = new Utf8Buffer(DEFAULT_BATCH_BYTES + 1024);
+  private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(DEFAULT_BATCH_BYTES / 4);
+  private int batchPoints = 0;
+  private long batchStarted = 0;
+  private boolean posting = false;
+  private boolean flushRequested = false;
+  private boolean closed = false;
+  private Thread thread = null;
+  private long writtenPoints = 0;
+  private long droppedPoints = 0;
+  private long failedBatches = 0;
+  private IOException lastFailure = null;
+
+
+  /**
+   * @param url the write endpoint of the database
+   * @throws IOException if the URL is malformed
+   */
+  public InfluxWriter(String url) throws IOException {
+    new URL(url);
+    this.url = url;
+  }
+
+
+  /**
+   * Authenticate with an InfluxDB 2.x API token.
+   *
+   * @param token the API token
+   * @return this writer for fluent method chaining
+   */
+  public InfluxWriter setToken(String token) {
+    headers = (token != null) ? Collections.singletonMap("Authorization", "Token " + token) : Collections.<String, String>emptyMap();
+    return this;
+  }
+
+
+  /**
+   * Set the basic auth credentials for preemptive authentication, as InfluxDB 1.x accepts.
+   *
+   * @param username the username of the account to be authenticated
+   * @param password the password credential to authenticate the account
+   * @return this writer for fluent method chaining
+   */
+  public InfluxWriter setCredentials(String username, String password) {
+    connectionFactory = new BasicAuthHttpConnectionFactory(connectionFactory, username, password);
+    return this;
+  }
+
+
+  /**
+   * Set when a batch is posted.
+   *
+   * @param bytes       the size of the uncompressed batch at which it is posted, default 256 KB
+   * @param delayMillis the longest a point waits in a batch before the batch is posted, default one second
+   * @return this writer for fluent method chaining
+   */
+  public InfluxWriter setBatching(int bytes, long delayMillis) {
+    lock.lock();
+    try {
+      batchBytes = Math.max(1, bytes);
+      maxDelay = Math.max(1, delayMillis);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Set how long to wait for InfluxDB.
+   *
+   * @param connectMillis milliseconds to wait for a connection, default 10 seconds
+   * @param readMillis    milliseconds to wait for each read of the response, default 10 seconds
+   * @return this writer for fluent method chaining
+   */
+  public InfluxWriter setTimeouts(int connectMillis, int readMillis) {
+    connectTimeout = connectMillis;
+    readTimeout = readMillis;
+    return this;
+  }
+
+
+  /**
+   * Write the points of the whole ScoreCard stamped with the current time.
+   *
+   * @return the number of points written, 0 if they were dropped
+   */
+  public int writeScoreCard() {
+    return write(LineProtocolFormatter.scoreCardMonitors());
+  }
+
+
+  /**
+   * Write the point of a monitor stamped with the current time.
+   *
+   * @param monitor the monitor to write
+   * @return true if the point was written, false if it was dropped
+   */
+  public boolean write(Monitor monitor) {
+    return write(Collections.singletonList(monitor)) > 0;
+  }
+
+
+  /**
+   * Write the points of the given monitors stamped with the current time.
+   *
+   * @param monitors the monitors to write
+   * @return the number of points written, 0 if they were dropped
+   */
+  public int write(Collection<? extends Monitor> monitors) {
+    lock.lock();
+    try {
+      final int mark = beginWrite();
+      if (mark < 0) {
+        droppedPoints += monitors.size();
+        return 0;
+      }
+      return endWrite(mark, LineProtocolFormatter.appendPoints(batch, monitors, System.currentTimeMillis() * NANOS_PER_MILLI));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Post everything written so far, waiting until it has been posted or the deadline passes.
+   *
+   * @param timeoutMillis the most milliseconds to wait
+   * @return true if every batch was posted before the deadline, false otherwise
+   */
+  public boolean flush(long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      flushRequested = true;
+      changed.signalAll();
+      try {
+        long remaining;
+        while ((batchPoints > 0 || posting) && thread != null && (remaining = deadline - System.nanoTime()) > 0) {
+          changed.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return batchPoints == 0 && !posting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Post everything written so far, waiting up to ten seconds, and stop the writer.
+   */
+  @Override
+  public void close() {
+    flush(10 * MILLISECONDS_PER_SECOND);
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of points posted to and accepted by InfluxDB.
+   */
+  public long getWrittenCount() {
+    lock.lock();
+    try {
+      return writtenPoints;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of points dropped because the batches were full or InfluxDB did not accept them.
+   */
+  public long getDroppedCount() {
+    lock.lock();
+    try {
+      return droppedPoints;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of batches InfluxDB could not be reached for or did not accept.
+   */
+  public long getFailedCount() {
+    lock.lock();
+    try {
+      return failedBatches;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the reason the last failed batch failed, or null if none has failed.
+   */
+  public IOException getLastFailure() {
+    lock.lock();
+    try {
+      return lastFailure;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Prepare to render points into the batch; the caller must hold the lock.
+   *
+   * @return the length of the batch before the points, or -1 if the batch is too full to take them
+   */
+  private int beginWrite() {
+    if (closed) {
+      throw new IllegalStateException("InfluxWriter is closed");
+    }
+    start();
+    // the batch may grow past its size while the previous batch is being posted, but not without bound
+    if (batch.length() >= 4 * batchBytes) {
+      return -1;
+    }
+    if (batchPoints == 0) {
+      batchStarted = System.currentTimeMillis();
+    }
+    return batch.length();
+  }
+
+
+  /**
+   * Account for points rendered into the batch; the caller must hold the lock.
+   */
+  private int endWrite(int mark, int points) {
+    if (batch.length() > mark) {
+      // the worker waits without a deadline while the batch is empty, so wake it to time the first points
+      if (batchPoints == 0 || batch.length() >= batchBytes) {
+        changed.signalAll();
+      }
+      batchPoints += points;
+    }
+    return points;
+  }
+
+
+  /**
+   * Start the thread which posts the batches; the caller must hold the lock.
+   */
+  private void start() {
+    if (thread == null) {
+      thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "InfluxWriter");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+
+  private void work() {
+    lock.lock();
+    try {
+      while (!closed) {
+        if (batchPoints == 0) {
+          flushRequested = false;
+          changed.signalAll();
+          changed.awaitUninterruptibly();
+          continue;
+        }
+        final long wait = batchStarted + maxDelay - System.currentTimeMillis();
+        if (!flushRequested && batch.length() < batchBytes && wait > 0) {
+          try {
+            changed.await(wait, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          continue;
+        }
+
+        final Utf8Buffer full = batch;
+        batch = sending.reset();
+        sending = full;
+        batchPoints = 0;
+        posting = true;
+        post(full);
+        posting = false;
+        changed.signalAll();
+      }
+    } finally {
+      thread = null;
+      changed.signalAll();
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Post the points in requests of at most the batch size, split between lines; the caller must hold the lock, which
+   * is released while each request is sent.
+   */
+  private void post(Utf8Buffer points) {
+    final byte[] bytes = points.array();
+    final int length = points.length();
+    int offset = 0;
+    while (offset < length) {
+      int end = Math.min(length, offset + batchBytes);
+      if (end < length) {
+        // end after the last complete line, or after the first line when a single line is larger than a batch
+        int split = end;
+        while (split > offset && bytes[split - 1] != '\n') {
+          split--;
+        }
+        end = (split > offset) ? split : indexAfterLine(bytes, offset + batchBytes, length);
+      }
+      int lines = 0;
+      for (int i = offset; i < end; i++) {
+        if (bytes[i] == '\n') {
+          lines++;
+        }
+      }
+      final IOException failure = send(bytes, offset, end - offset);
+      if (failure == null) {
+        writtenPoints += lines;
+      } else {
+        failedBatches++;
+        droppedPoints += lines;
+        lastFailure = failure;
+      }
+      offset = end;
+    }
+  }
+
+
+  private static int indexAfterLine(byte[] bytes, int from, int length) {
+    for (int i = from; i < length; i++) {
+      if (bytes[i] == '\n') {
+        return i + 1;
+      }
+    }
+    return length;
+  }
+
+
+  /**
+   * Post a range of points without holding the lock.
+   *
+   * @return the reason the request failed, or null if it was accepted.
+   */
+  private IOException send(byte[] bytes, int offset, int count) {
+    lock.unlock();
+    final long started = SelfMetrics.start();
+    boolean accepted = false;
+    try {
+      request(bytes, offset, count);
+      accepted = true;
+      return null;
+    } catch (IOException e) {
+      return e;
+    } catch (RuntimeException e) {
+      return new IOException(e);
+    } finally {
+      SelfMetrics.recordPush("influx", started, accepted);
+      lock.lock();
+    }
+  }
+
+
+  /**
+   * Compress and post a range of points; only called by the posting thread.
+   */
+  private void request(byte[] bytes, int offset, int count) throws IOException {
+    compressed.reset();
+    final GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192);
+    gzip.write(bytes, offset, count);
+    gzip.close();
+    HttpPost.send(connectionFactory, url, CONTENT_TYPE, "gzip", headers, compressed.size(), compressed::writeTo, connectTimeout, readTimeout);
+  }
+
+}
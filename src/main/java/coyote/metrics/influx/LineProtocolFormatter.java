@@ -0,0 +1,168 @@
+package coyote.metrics.influx;
+
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.MetricFormatter;
+import coyote.metrics.Monitor;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.TimerSnapshot;
+import coyote.metrics.TimingMaster;
+import coyote.metrics.Utf8Buffer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders monitors as points in the InfluxDB line protocol.
+ *
+ * <p>Each monitor becomes one point measured by its name, tagged with its labels in key order as InfluxDB prefers,
+ * and stamped with a timestamp in nanoseconds, the default precision of every InfluxDB version:</p>
+ * <pre>
+ * requests,endpoint=/api value=42i 1700000000000000000
+ * connections value=7i,min=0i,max=12i 1700000000000000000
+ * latency count=3i,sum=66i,min=12i,max=31i,mean=22.0 1700000000000000000
+ * </pre>
+ *
+ * <p>Counters have their value, gauges also their minimum and maximum, and master timers the number and sum of their
+ * intervals, with the minimum, maximum and mean once they have an interval. Labels with empty values are left out,
+ * as the protocol does not allow empty tags.</p>
+ */
+public final class LineProtocolFormatter {
+  private static final long NANOS_PER_MILLI = 1000000L;
+  /**
+   * Per-thread snapshot the master timers are read into, so rendering them creates no garbage.
+   */
+  private static final ThreadLocal<TimerSnapshot> TIMER = new ThreadLocal<TimerSnapshot>() {
+    @Override
+    protected TimerSnapshot initialValue() {
+      return new TimerSnapshot();
+    }
+  };
+
+
+  private LineProtocolFormatter() {
+  }
+
+
+  /**
+   * Render the whole ScoreCard stamped with the current time.
+   *
+   * @return the points of every counter, gauge and master timer, one per line
+   */
+  public static String convertScoreCard() {
+    final Utf8Buffer buffer = new Utf8Buffer(16 * 1024);
+    appendScoreCard(buffer, System.currentTimeMillis() * NANOS_PER_MILLI);
+    return buffer.toString();
+  }
+
+
+  /**
+   * Append the points of the whole ScoreCard.
+   *
+   * @param out            the buffer to append to
+   * @param timestampNanos the time of the points in nanoseconds since the epoch
+   * @return the number of points appended
+   */
+  public static int appendScoreCard(final Utf8Buffer out, final long timestampNanos) {
+    return appendPoints(out, scoreCardMonitors(), timestampNanos);
+  }
+
+
+  /**
+   * @return every counter, gauge and master timer of the ScoreCard, and the self metrics.
+   */
+  static List<Monitor> scoreCardMonitors() {
+    final List<Monitor> retval = new ArrayList<>();
+    for (final Iterator<TimingMaster> it = ScoreCard.getTimerIterator(); it.hasNext(); retval.add(it.next())) ;
+    for (final Iterator<Counter> it = ScoreCard.getCounterIterator(); it.hasNext(); retval.add(it.next())) ;
+    for (final Iterator<Gauge> it = ScoreCard.getGaugeIterator(); it.hasNext(); retval.add(it.next())) ;
+    retval.addAll(SelfMetrics.getMonitors());
+    return retval;
+  }
+
+
+  /**
+   * Append the points of the given monitors.
+   *
+   * @param out            the buffer to append to
+   * @param monitors       the monitors to render
+   * @param timestampNanos the time of the points in nanoseconds since the epoch
+   * @return the number of points appended
+   */
+  public static int appendPoints(final Utf8Buffer out, final Collection<? extends Monitor> monitors, final long timestampNanos) {
+    for (final Monitor monitor : monitors) {
+      appendPoint(out, monitor, timestampNanos);
+    }
+    return monitors.size();
+  }
+
+
+  /**
+   * Append the point of a monitor, terminated by a newline.
+   *
+   * @param out            the buffer to append to
+   * @param monitor        the monitor to render
+   * @param timestampNanos the time of the point in nanoseconds since the epoch
+   */
+  public static void appendPoint(final Utf8Buffer out, final Monitor monitor, final long timestampNanos) {
+    appendEscaped(out, monitor.getName(), false);
+    appendTags(out, MetricFormatter.getSortedLabels(monitor));
+    out.append(' ');
+    if (monitor instanceof TimingMaster) {
+      // read at once so the fields of the point are consistent
+      final TimerSnapshot timer = TIMER.get().read((TimingMaster) monitor);
+      final long count = timer.getSampleCount();
+      final long sum = timer.getTotal();
+      out.append("count=").append(count).append("i,sum=").append(sum).append('i');
+      if (count > 0) {
+        out.append(",min=").append(timer.getMinimum()).append("i,max=").append(timer.getMaximum()).append('i');
+        out.append(",mean=").append((double) sum / count);
+      }
+    } else if (monitor instanceof Gauge) {
+      final Gauge gauge = (Gauge) monitor;
+      out.append("value=").append(gauge.getValue()).append("i,min=").append(gauge.getMinValue());
+      out.append("i,max=").append(gauge.getMaxValue()).append('i');
+    } else {
+      out.append("value=").append(monitor.getValue()).append('i');
+    }
+    out.append(' ').append(timestampNanos).append('\n');
+  }
+
+
+  private static void appendTags(final Utf8Buffer out, final List<Map.Entry<String, String>> labels) {
+    // indexed rather than iterated so rendering the cached labels creates no garbage
+    for (int i = 0; i < labels.size(); i++) {
+      final String key = labels.get(i).getKey();
+      final String value = labels.get(i).getValue();
+      if (!key.isEmpty() && value != null && !value.isEmpty()) {
+        out.append(',');
+        appendEscaped(out, key, true);
+        out.append('=');
+        appendEscaped(out, value, true);
+      }
+    }
+  }
+
+
+  /**
+   * Append a measurement name, tag key or tag value, escaping the characters the protocol requires: commas and
+   * spaces, and also equals signs in tags. Line breaks cannot be escaped, so they are written as escaped spaces.
+   */
+  static void appendEscaped(final Utf8Buffer out, final String text, final boolean tag) {
+    int start = 0;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      final char c = text.charAt(i);
+      if (c == ',' || c == ' ' || (tag && c == '=') || c == '\n' || c == '\r') {
+        out.append(text, start, i).append('\\').append((c == '\n' || c == '\r') ? ' ' : c);
+        start = i + 1;
+      }
+    }
+    out.append(text, start, length);
+  }
+
+}
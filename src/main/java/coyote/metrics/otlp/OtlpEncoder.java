@@ -0,0 +1,494 @@
+package coyote.metrics.otlp;
+
+import coyote.metrics.Buckets;
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.Monitor;
+import coyote.metrics.ProtobufEncoder;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.TimerSnapshot;
+import coyote.metrics.TimingMaster;
+import coyote.metrics.Utf8Buffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Encodes monitors as an OTLP {@code ExportMetricsServiceRequest} protobuf message.
+ *
+ * <p>This is the payload an OpenTelemetry Collector accepts on {@code /v1/metrics}, encoded with
+ * {@link ProtobufEncoder} into a reusable buffer for each level of message nesting rather than with the
+ * OpenTelemetry SDK and the protobuf runtime. Counters become monotonic sums, gauges become gauges, and master timers
+ * become explicit bucket histograms in milliseconds; a master timer without buckets is a histogram with only the
+ * overflow bucket. Labels become string attributes of the data points, and the resource attributes describe the
+ * process the ScoreCard belongs to.</p>
+ *
+ * <p>Sums and histograms are reported with cumulative temporality by default: each data point covers everything since
+ * the monitor started, or since it was last reset. With delta temporality each data point covers only the time since
+ * the previous successful export, and monitors which did not change are left out. An encoder remembers what it
+ * reported of each monitor, so a separate encoder is needed for each destination; what was encoded is only taken as
+ * reported once {@link #commit()} is called, so an export which fails is included in the next delta.</p>
+ *
+ * <p>An encoder is not thread-safe.</p>
+ */
+public class OtlpEncoder {
+  /**
+   * Each data point covers the time since the previous export.
+   */
+  public static final int TEMPORALITY_DELTA = 1;
+  /**
+   * Each data point covers the time since the monitor started, the default.
+   */
+  public static final int TEMPORALITY_CUMULATIVE = 2;
+  public static final String SCOPE_NAME = "coyote.metrics";
+  public static final String UNIT_MILLISECONDS = "ms";
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  // ExportMetricsServiceRequest, ResourceMetrics, Resource and ScopeMetrics
+  private static final int REQUEST_RESOURCE_METRICS = 1;
+  private static final int RESOURCE = 1;
+  private static final int RESOURCE_SCOPE_METRICS = 2;
+  private static final int RESOURCE_ATTRIBUTES = 1;
+  private static final int SCOPE = 1;
+  private static final int SCOPE_METRICS = 2;
+  private static final int SCOPE_NAME_FIELD = 1;
+
+  // Metric, Gauge, Sum and Histogram
+  private static final int METRIC_NAME = 1;
+  private static final int METRIC_DESCRIPTION = 2;
+  private static final int METRIC_UNIT = 3;
+  private static final int METRIC_GAUGE = 5;
+  private static final int METRIC_SUM = 7;
+  private static final int METRIC_HISTOGRAM = 9;
+  private static final int DATA_POINTS = 1;
+  private static final int AGGREGATION_TEMPORALITY = 2;
+  private static final int IS_MONOTONIC = 3;
+
+  // NumberDataPoint and HistogramDataPoint
+  private static final int START_TIME = 2;
+  private static final int TIME = 3;
+  private static final int NUMBER_AS_INT = 6;
+  private static final int NUMBER_ATTRIBUTES = 7;
+  private static final int HISTOGRAM_COUNT = 4;
+  private static final int HISTOGRAM_SUM = 5;
+  private static final int HISTOGRAM_BUCKET_COUNTS = 6;
+  private static final int HISTOGRAM_EXPLICIT_BOUNDS = 7;
+  private static final int HISTOGRAM_ATTRIBUTES = 9;
+  private static final int HISTOGRAM_MIN = 11;
+  private static final int HISTOGRAM_MAX = 12;
+
+  // KeyValue and AnyValue
+  private static final int KEY = 1;
+  private static final int VALUE = 2;
+  private static final int STRING_VALUE = 1;
+
+  private final Map<String, String> resource = new LinkedHashMap<>();
+  /**
+   * What was reported of each monitor, and what the encoded request reports until it is committed.
+   */
+  private final Map<Monitor, Reported> reported = new WeakHashMap<>();
+  private final List<Reported> pending = new ArrayList<>();
+  private int temporality = TEMPORALITY_CUMULATIVE;
+
+  private final Utf8Buffer resourceMetrics = new Utf8Buffer(256);
+  private final Utf8Buffer scopeMetrics = new Utf8Buffer(4096);
+  private final Utf8Buffer metric = new Utf8Buffer(256);
+  private final Utf8Buffer data = new Utf8Buffer(256);
+  private final Utf8Buffer point = new Utf8Buffer(256);
+  private final Utf8Buffer packed = new Utf8Buffer(128);
+  private final Utf8Buffer attribute = new Utf8Buffer(64);
+  private final Utf8Buffer value = new Utf8Buffer(64);
+  private long[] counts = new long[16];
+  private final TimerSnapshot timer = new TimerSnapshot();
+
+
+  public OtlpEncoder() {
+    resource.put("service.name", "unknown_service:java");
+    resource.put("service.instance.id", ScoreCard.getId());
+  }
+
+
+  /**
+   * Set an attribute of the resource the metrics describe, such as {@code service.name} or
+   * {@code deployment.environment}.
+   *
+   * @param key   the key of the attribute
+   * @param value the value of the attribute, null to remove it
+   * @return this encoder for fluent method chaining
+   */
+  public OtlpEncoder setResourceAttribute(String key, String value) {
+    if (value == null) {
+      resource.remove(key);
+    } else {
+      resource.put(key, value);
+    }
+    return this;
+  }
+
+
+  /**
+   * @return a copy of the resource attributes.
+   */
+  public Map<String, String> getResourceAttributes() {
+    return new LinkedHashMap<>(resource);
+  }
+
+
+  /**
+   * Set the aggregation temporality of sums and histograms.
+   *
+   * @param temporality {@link #TEMPORALITY_CUMULATIVE}, the default, or {@link #TEMPORALITY_DELTA}
+   * @return this encoder for fluent method chaining
+   * @throws IllegalArgumentException if the temporality is neither
+   */
+  public OtlpEncoder setTemporality(int temporality) {
+    if (temporality != TEMPORALITY_DELTA && temporality != TEMPORALITY_CUMULATIVE) {
+      throw new IllegalArgumentException("Unknown aggregation temporality: " + temporality);
+    }
+    this.temporality = temporality;
+    return this;
+  }
+
+
+  /**
+   * @return the aggregation temporality of sums and histograms.
+   */
+  public int getTemporality() {
+    return temporality;
+  }
+
+
+  /**
+   * Encode the whole ScoreCard.
+   *
+   * @param out        the buffer to append the request to
+   * @param timeMillis the time of the data points in milliseconds since the epoch
+   * @return the number of metrics encoded
+   */
+  public int encodeScoreCard(final Utf8Buffer out, final long timeMillis) {
+    final List<Monitor> monitors = new ArrayList<>();
+    for (final Iterator<Counter> it = ScoreCard.getCounterIterator(); it.hasNext(); monitors.add(it.next())) ;
+    for (final Iterator<Gauge> it = ScoreCard.getGaugeIterator(); it.hasNext(); monitors.add(it.next())) ;
+    monitors.addAll(SelfMetrics.getMonitors());
+    for (final Iterator<TimingMaster> it = ScoreCard.getTimerIterator(); it.hasNext(); monitors.add(it.next())) ;
+    return encode(out, monitors, timeMillis);
+  }
+
+
+  /**
+   * Encode the given monitors.
+   *
+   * <p>Anything encoded but not committed is forgotten, so a request which was not exported can simply be encoded
+   * again.</p>
+   *
+   * @param out        the buffer to append the request to
+   * @param monitors   the monitors to encode
+   * @param timeMillis the time of the data points in milliseconds since the epoch
+   * @return the number of metrics encoded
+   */
+  public int encode(final Utf8Buffer out, final Collection<? extends Monitor> monitors, final long timeMillis) {
+    pending.clear();
+    final long now = timeMillis * NANOS_PER_MILLI;
+    scopeMetrics.reset();
+    value.reset();
+    ProtobufEncoder.string(value, SCOPE_NAME_FIELD, SCOPE_NAME);
+    ProtobufEncoder.message(scopeMetrics, SCOPE, value);
+    int retval = 0;
+    for (final Monitor monitor : monitors) {
+      Reported last = reported.get(monitor);
+      if (last == null) {
+        last = new Reported(monitor, ScoreCard.getStartedTime() * NANOS_PER_MILLI);
+        reported.put(monitor, last);
+      }
+      metric.reset();
+      final boolean encoded;
+      if (monitor instanceof TimingMaster) {
+        encoded = encodeHistogram((TimingMaster) monitor, last, now);
+      } else if (monitor instanceof Gauge) {
+        encodeGauge(monitor, now);
+        encoded = true;
+      } else {
+        encoded = encodeSum(monitor, last, now);
+      }
+      if (encoded) {
+        ProtobufEncoder.message(scopeMetrics, SCOPE_METRICS, metric);
+        retval++;
+      }
+    }
+
+    resourceMetrics.reset();
+    data.reset();
+    for (final Map.Entry<String, String> entry : resource.entrySet()) {
+      writeAttribute(data, RESOURCE_ATTRIBUTES, entry.getKey(), entry.getValue());
+    }
+    ProtobufEncoder.message(resourceMetrics, RESOURCE, data);
+    ProtobufEncoder.message(resourceMetrics, RESOURCE_SCOPE_METRICS, scopeMetrics);
+    ProtobufEncoder.message(out, REQUEST_RESOURCE_METRICS, resourceMetrics);
+    return retval;
+  }
+
+
+  /**
+   * Take everything in the last encoded request as reported, so the next delta starts from there.
+   */
+  public void commit() {
+    for (final Reported last : pending) {
+      last.commit();
+    }
+    pending.clear();
+  }
+
+
+  private void encodeGauge(final Monitor monitor, final long now) {
+    writeDescription(monitor, null);
+    point.reset();
+    writeAttributes(point, NUMBER_ATTRIBUTES, monitor);
+    ProtobufEncoder.fixed64(point, TIME, now);
+    ProtobufEncoder.fixed64(point, NUMBER_AS_INT, monitor.getValue());
+    data.reset();
+    ProtobufEncoder.message(data, DATA_POINTS, point);
+    ProtobufEncoder.message(metric, METRIC_GAUGE, data);
+  }
+
+
+  /**
+   * Encode a counter as a monotonic sum.
+   *
+   * @return false if the counter is left out as it did not change since the previous delta
+   */
+  private boolean encodeSum(final Monitor monitor, final Reported last, final long now) {
+    final long total = monitor.getValue();
+    // a counter which went down was reset, and everything since the reset is new
+    final boolean reset = total < last.count;
+    final long start;
+    final long reportedValue;
+    if (temporality == TEMPORALITY_DELTA) {
+      reportedValue = reset ? total : total - last.count;
+      if (reportedValue == 0 && !reset) {
+        return false;
+      }
+      start = last.time;
+    } else {
+      reportedValue = total;
+      start = reset ? now : last.start;
+    }
+    last.pending(reset ? now : last.start, now, total, 0, null, 0);
+    pending.add(last);
+
+    writeDescription(monitor, null);
+    point.reset();
+    writeAttributes(point, NUMBER_ATTRIBUTES, monitor);
+    ProtobufEncoder.fixed64(point, START_TIME, start);
+    ProtobufEncoder.fixed64(point, TIME, now);
+    ProtobufEncoder.fixed64(point, NUMBER_AS_INT, reportedValue);
+    data.reset();
+    ProtobufEncoder.message(data, DATA_POINTS, point);
+    ProtobufEncoder.uint64(data, AGGREGATION_TEMPORALITY, temporality);
+    ProtobufEncoder.uint64(data, IS_MONOTONIC, 1);
+    ProtobufEncoder.message(metric, METRIC_SUM, data);
+    return true;
+  }
+
+
+  /**
+   * Encode a master timer as a histogram in milliseconds.
+   *
+   * @return false if the master is left out as it recorded nothing since the previous delta
+   */
+  private boolean encodeHistogram(final TimingMaster master, final Reported last, final long now) {
+    // read at once so the count matches the bucket counts, as OTLP requires
+    timer.read(master);
+    final Buckets buckets = timer.getBuckets();
+    final long count = timer.getSampleCount();
+    final long sum = timer.getTotal();
+    final long min = timer.getMinimum();
+    final long max = timer.getMaximum();
+    final int size = (buckets != null) ? buckets.size() : 1;
+    if (counts.length < size) {
+      counts = new long[size];
+    }
+    if (buckets != null) {
+      // the bucket counts of OTLP are not cumulative
+      long below = 0;
+      for (int i = 0; i < size; i++) {
+        final long upTo = timer.getBucketCount(i);
+        counts[i] = upTo - below;
+        below = upTo;
+      }
+    } else {
+      counts[0] = count;
+    }
+    // a master which went down was reset, and one whose buckets changed starts counting its buckets again
+    final boolean reset = count < last.count || buckets != last.buckets;
+
+    final long start;
+    final long reportedCount;
+    final long reportedSum;
+    if (temporality == TEMPORALITY_DELTA) {
+      if (reset) {
+        reportedCount = count;
+        reportedSum = sum;
+      } else {
+        reportedCount = count - last.count;
+        reportedSum = sum - last.sum;
+        for (int i = 0; i < size; i++) {
+          counts[i] -= last.counts[i];
+        }
+      }
+      if (reportedCount == 0 && !reset) {
+        return false;
+      }
+      start = last.time;
+    } else {
+      reportedCount = count;
+      reportedSum = sum;
+      start = reset ? now : last.start;
+    }
+    last.pending(reset ? now : last.start, now, count, sum, buckets, size);
+    if (temporality == TEMPORALITY_DELTA) {
+      // remember the totals of the buckets rather than what this delta reports
+      for (int i = 0; i < size; i++) {
+        last.pendingCounts[i] = counts[i] + ((reset) ? 0 : last.counts[i]);
+      }
+    } else {
+      System.arraycopy(counts, 0, last.pendingCounts, 0, size);
+    }
+    pending.add(last);
+
+    writeDescription(master, UNIT_MILLISECONDS);
+    point.reset();
+    writeAttributes(point, HISTOGRAM_ATTRIBUTES, master);
+    ProtobufEncoder.fixed64(point, START_TIME, start);
+    ProtobufEncoder.fixed64(point, TIME, now);
+    ProtobufEncoder.fixed64(point, HISTOGRAM_COUNT, reportedCount);
+    ProtobufEncoder.doubleField(point, HISTOGRAM_SUM, reportedSum);
+    packed.reset();
+    for (int i = 0; i < size; i++) {
+      ProtobufEncoder.fixed64(packed, counts[i]);
+    }
+    ProtobufEncoder.message(point, HISTOGRAM_BUCKET_COUNTS, packed);
+    if (buckets != null) {
+      packed.reset();
+      for (int i = 0; i < size - 1; i++) {
+        ProtobufEncoder.fixed64(packed, Double.doubleToRawLongBits(buckets.getBound(i)));
+      }
+      ProtobufEncoder.message(point, HISTOGRAM_EXPLICIT_BOUNDS, packed);
+    }
+    // the minimum and maximum cover the whole life of the master, so they only describe cumulative points
+    if (temporality == TEMPORALITY_CUMULATIVE && count > 0) {
+      ProtobufEncoder.doubleField(point, HISTOGRAM_MIN, min);
+      ProtobufEncoder.doubleField(point, HISTOGRAM_MAX, max);
+    }
+    data.reset();
+    ProtobufEncoder.message(data, DATA_POINTS, point);
+    ProtobufEncoder.uint64(data, AGGREGATION_TEMPORALITY, temporality);
+    ProtobufEncoder.message(metric, METRIC_HISTOGRAM, data);
+    return true;
+  }
+
+
+  private void writeDescription(final Monitor monitor, final String unit) {
+    ProtobufEncoder.string(metric, METRIC_NAME, monitor.getName());
+    final String description = monitor.getDescription();
+    if (description != null && !description.isEmpty()) {
+      ProtobufEncoder.string(metric, METRIC_DESCRIPTION, description);
+    }
+    if (unit != null) {
+      ProtobufEncoder.string(metric, METRIC_UNIT, unit);
+    }
+  }
+
+
+  /**
+   * Write the labels of a monitor as attributes in key order.
+   */
+  private void writeAttributes(final Utf8Buffer buf, final int field, final Monitor monitor) {
+    final Map<String, String> labels = monitor.getLabels();
+    if (labels.isEmpty()) {
+      return;
+    }
+    final String[] keys = labels.keySet().toArray(new String[labels.size()]);
+    if (keys.length > 1) {
+      Arrays.sort(keys);
+    }
+    for (final String key : keys) {
+      final String label = labels.get(key);
+      writeAttribute(buf, field, key, (label != null) ? label : "");
+    }
+  }
+
+
+  private void writeAttribute(final Utf8Buffer buf, final int field, final String key, final String text) {
+    value.reset();
+    ProtobufEncoder.string(value, STRING_VALUE, text);
+    attribute.reset();
+    ProtobufEncoder.string(attribute, KEY, key);
+    ProtobufEncoder.message(attribute, VALUE, value);
+    ProtobufEncoder.message(buf, field, attribute);
+  }
+
+
+  /**
+   * What was reported of a monitor, and what the encoded request reports of it.
+   */
+  private static class Reported {
+    /**
+     * When the cumulative values started, when they were last reported, and what they were.
+     */
+    long start;
+    long time;
+    long count;
+    long sum;
+    Buckets buckets;
+    long[] counts = new long[1];
+    long pendingStart;
+    long pendingTime;
+    long pendingCount;
+    long pendingSum;
+    Buckets pendingBuckets;
+    long[] pendingCounts = new long[1];
+
+
+    Reported(final Monitor monitor, final long started) {
+      start = started;
+      time = started;
+      if (monitor instanceof TimingMaster) {
+        buckets = ((TimingMaster) monitor).getBuckets();
+        counts = new long[(buckets != null) ? buckets.size() : 1];
+      }
+    }
+
+
+    void pending(final long start, final long time, final long count, final long sum, final Buckets buckets, final int size) {
+      pendingStart = start;
+      pendingTime = time;
+      pendingCount = count;
+      pendingSum = sum;
+      pendingBuckets = buckets;
+      if (pendingCounts.length < size) {
+        pendingCounts = new long[size];
+      }
+    }
+
+
+    void commit() {
+      start = pendingStart;
+      time = pendingTime;
+      count = pendingCount;
+      sum = pendingSum;
+      buckets = pendingBuckets;
+      if (counts.length < pendingCounts.length) {
+        counts = new long[pendingCounts.length];
+      }
+      System.arraycopy(pendingCounts, 0, counts, 0, pendingCounts.length);
+    }
+  }
+
+}
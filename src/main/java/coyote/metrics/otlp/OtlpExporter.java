@@ -0,0 +1,351 @@
+package coyote.metrics.otlp;
+
+import coyote.metrics.Monitor;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.Utf8Buffer;
+import coyote.metrics.prom.BasicAuthHttpConnectionFactory;
+import coyote.metrics.prom.DefaultHttpConnectionFactory;
+import coyote.metrics.prom.HttpConnectionFactory;
+import coyote.metrics.prom.HttpPost;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the ScoreCard to an OpenTelemetry Collector, or any other OTLP receiver, with OTLP/HTTP and protobuf.
+ *
+ * <p>Requests are encoded by an {@link OtlpEncoder} without the OpenTelemetry SDK, so the library stays free of
+ * dependencies. The URL is the complete metrics endpoint of the receiver, usually
+ * {@code http://collector:4318/v1/metrics}:</p>
+ * <pre>
+ * OtlpExporter exporter = new OtlpExporter(url).setResourceAttribute("service.name", "checkout").start(10000);
+ * ...
+ * exporter.close();
+ * </pre>
+ *
+ * <p>Exports on the interval run on a daemon thread. An export which fails is counted and its deltas are carried
+ * into the next export, so with delta temporality nothing is lost while the receiver is unreachable; with cumulative
+ * temporality the next export reports the totals anyway.</p>
+ */
+public class OtlpExporter implements Closeable {
+  public static final String CONTENT_TYPE = "application/x-protobuf";
+  private static final int MILLISECONDS_PER_SECOND = 1000;
+
+  private final String url;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final OtlpEncoder encoder = new OtlpEncoder();
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private HttpConnectionFactory connectionFactory = new DefaultHttpConnectionFactory();
+  private final Utf8Buffer request = new Utf8Buffer(16 * 1024);
+  private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(4096);
+  private boolean gzip = true;
+  private int connectTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private int readTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private ScheduledExecutorService executor = null;
+  private long exportedMetrics = 0;
+  private long failedExports = 0;
+  private IOException lastFailure = null;
+
+
+  /**
+   * @param url the metrics endpoint of the receiver
+   * @throws IOException if the URL is malformed
+   */
+  public OtlpExporter(String url) throws IOException {
+    new URL(url);
+    this.url = url;
+  }
+
+
+  /**
+   * Set an attribute of the resource the metrics describe.
+   *
+   * @see OtlpEncoder#setResourceAttribute(String, String)
+   */
+  public OtlpExporter setResourceAttribute(String key, String value) {
+    lock.lock();
+    try {
+      encoder.setResourceAttribute(key, value);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Set the aggregation temporality of sums and histograms.
+   *
+   * @see OtlpEncoder#setTemporality(int)
+   */
+  public OtlpExporter setTemporality(int temporality) {
+    lock.lock();
+    try {
+      encoder.setTemporality(temporality);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Send a header with each request, such as an API key.
+   *
+   * @param name  the name of the header
+   * @param value the value of the header, null to stop sending it
+   * @return this exporter for fluent method chaining
+   */
+  public OtlpExporter setHeader(String name, String value) {
+    lock.lock();
+    try {
+      if (value == null) {
+        headers.remove(name);
+      } else {
+        headers.put(name, value);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Set the basic auth credentials for preemptive authentication.
+   *
+   * @param username the username of the account to be authenticated
+   * @param password the password credential to authenticate the account
+   * @return this exporter for fluent method chaining
+   */
+  public OtlpExporter setCredentials(String username, String password) {
+    lock.lock();
+    try {
+      connectionFactory = new BasicAuthHttpConnectionFactory(connectionFactory, username, password);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @param flag true to gzip compress requests, the default, false to send them uncompressed
+   * @return this exporter for fluent method chaining
+   */
+  public OtlpExporter setCompression(boolean flag) {
+    lock.lock();
+    try {
+      gzip = flag;
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Set how long to wait for the receiver.
+   *
+   * @param connectMillis milliseconds to wait for a connection, default 10 seconds
+   * @param readMillis    milliseconds to wait for each read of the response, default 10 seconds
+   * @return this exporter for fluent method chaining
+   */
+  public OtlpExporter setTimeouts(int connectMillis, int readMillis) {
+    lock.lock();
+    try {
+      connectTimeout = connectMillis;
+      readTimeout = readMillis;
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Export the ScoreCard periodically on a daemon thread.
+   *
+   * @param periodMillis milliseconds between exports
+   * @return this exporter for fluent method chaining
+   */
+  public OtlpExporter start(long periodMillis) {
+    lock.lock();
+    try {
+      if (executor == null) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread retval = new Thread(runnable, "OtlpExporter");
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              exportScoreCard();
+            } catch (IOException e) {
+              // counted, and carried into the next export
+            }
+          }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Export the whole ScoreCard now.
+   *
+   * @return the number of metrics exported
+   * @throws IOException if the receiver could not be reached or did not accept the request
+   */
+  public int exportScoreCard() throws IOException {
+    lock.lock();
+    try {
+      request.reset();
+      return send(encoder.encodeScoreCard(request, System.currentTimeMillis()));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Export the given monitors now.
+   *
+   * @param monitors the monitors to export
+   * @return the number of metrics exported
+   * @throws IOException if the receiver could not be reached or did not accept the request
+   */
+  public int export(Collection<? extends Monitor> monitors) throws IOException {
+    lock.lock();
+    try {
+      request.reset();
+      return send(encoder.encode(request, monitors, System.currentTimeMillis()));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of metrics the receiver accepted.
+   */
+  public long getExportedCount() {
+    lock.lock();
+    try {
+      return exportedMetrics;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of exports which failed.
+   */
+  public long getFailedCount() {
+    lock.lock();
+    try {
+      return failedExports;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the reason the last failed export failed, or null if none has failed.
+   */
+  public IOException getLastFailure() {
+    lock.lock();
+    try {
+      return lastFailure;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Stop exporting periodically and make a last export of the ScoreCard, ignoring whether it fails.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+        try {
+          exportScoreCard();
+        } catch (IOException e) {
+          // counted
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Post the encoded request and commit it once accepted; the caller must hold the lock.
+   */
+  private int send(int metrics) throws IOException {
+    if (metrics == 0) {
+      encoder.commit();
+      return 0;
+    }
+    final long started = SelfMetrics.start();
+    boolean accepted = false;
+    try {
+      post();
+      accepted = true;
+    } catch (IOException e) {
+      failedExports++;
+      lastFailure = e;
+      throw e;
+    } catch (RuntimeException e) {
+      failedExports++;
+      lastFailure = new IOException(e);
+      throw lastFailure;
+    } finally {
+      SelfMetrics.recordPush("otlp", started, accepted);
+    }
+    encoder.commit();
+    exportedMetrics += metrics;
+    return metrics;
+  }
+
+
+  private void post() throws IOException {
+    if (gzip) {
+      compressed.reset();
+      final GZIPOutputStream out = new GZIPOutputStream(compressed, 8192);
+      out.write(request.array(), 0, request.length());
+      out.close();
+      HttpPost.send(connectionFactory, url, CONTENT_TYPE, "gzip", headers, compressed.size(), compressed::writeTo, connectTimeout, readTimeout);
+    } else {
+      HttpPost.send(connectionFactory, url, CONTENT_TYPE, null, headers, request.length(), request::writeTo, connectTimeout, readTimeout);
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package coyote.metrics.prom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * Posts the bodies of the exporters which batch their requests, over connections from a
+ * {@link HttpConnectionFactory} so they can be authenticated or replaced like those of the push clients.
+ *
+ * <p>The whole response is read so the connection is kept alive for the next request, unless the exchange fails part
+ * way, in which case the connection is closed.</p>
+ */
+public final class HttpPost {
+
+  /**
+   * A request body of known length, such as a {@code Utf8Buffer} or a {@code ByteArrayOutputStream}.
+   */
+  public interface Body {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+
+  private HttpPost() {
+  }
+
+
+  /**
+   * Post a body and read the response.
+   *
+   * @param factory         the factory of the connection
+   * @param url             the URL to post to
+   * @param contentType     the type of the body
+   * @param contentEncoding the encoding of the body, null if it is not encoded
+   * @param headers         further headers to send
+   * @param length          the number of bytes in the body
+   * @param body            the body, which writes exactly {@code length} bytes
+   * @param connectTimeout  milliseconds to wait for a connection
+   * @param readTimeout     milliseconds to wait for each read of the response
+   * @throws IOException if the request could not be sent or its response code was not 2xx
+   */
+  public static void send(HttpConnectionFactory factory, String url, String contentType, String contentEncoding, Map<String, String> headers, int length, Body body, int connectTimeout, int readTimeout) throws IOException {
+    final HttpURLConnection connection = factory.create(url);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", contentType);
+    if (contentEncoding != null) {
+      connection.setRequestProperty("Content-Encoding", contentEncoding);
+    }
+    for (final Map.Entry<String, String> header : headers.entrySet()) {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(length);
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+
+    // the connection is kept alive for the next request unless the exchange fails part way
+    boolean complete = false;
+    try {
+      final OutputStream out = connection.getOutputStream();
+      body.writeTo(out);
+      out.close();
+      final int response = connection.getResponseCode();
+      final InputStream in = (response >= 400) ? connection.getErrorStream() : connection.getInputStream();
+      final String text = drain(in);
+      complete = true;
+      if (response / 100 != 2) {
+        throw new PushGatewayClient.ResponseException("Response code from " + url + " was " + response + (text.isEmpty() ? "" : ", response body: " + text), response);
+      }
+    } finally {
+      if (!complete) {
+        connection.disconnect();
+      }
+    }
+  }
+
+
+  /**
+   * Read the rest of a response body and close it, allowing its connection to be reused.
+   *
+   * @return the start of the body, for error messages
+   */
+  private static String drain(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    final ByteArrayOutputStream retval = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[512];
+    for (int n; (n = in.read(buffer)) != -1; ) {
+      if (retval.size() < 1024) {
+        retval.write(buffer, 0, n);
+      }
+    }
+    in.close();
+    return retval.toString("UTF-8");
+  }
+
+}
@@ -0,0 +1,276 @@
+package coyote.metrics.prom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.MetricFormatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An embedded HTTP server which serves the live ScoreCard at {@code /metrics} for Prometheus to scrape.
+ *
+ * <p>This complements the PushGatewayClient for long-running processes such as soak and load tests, which are better
+ * scraped periodically than pushed once when they end.</p>
+ * <pre>
+ * MetricsServer server = new MetricsServer(9400).start();
+ * ...
+ * server.stop();
+ * </pre>
+ *
+ * <p>The format of the response is negotiated from the Accept header of the request: the delimited protobuf format
+ * when it is accepted, as Prometheus servers request it, JSON when only JSON is accepted, and the text exposition
+ * format otherwise. Responses are gzip compressed when the client accepts it.</p>
+ *
+ * <p>Each format is rendered at most once per cache period, default one second, no matter how many scrapes arrive;
+ * concurrent scrapes of a stale rendering wait for the single scrape which renders it rather than each rendering the
+ * ScoreCard. The compressed body is cached alongside the rendering.</p>
+ */
+public class MetricsServer {
+  public static final String PATH = "/metrics";
+  public static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+  public static final long DEFAULT_CACHE_TTL = 1000;
+
+  private static final int TEXT = 0;
+  private static final int PROTOBUF = 1;
+  private static final int JSON = 2;
+  private static final String[] CONTENT_TYPES = {PushGatewayClient.CONTENT_TYPE_004, MetricFormatter.PROTOBUF_CONTENT_TYPE, CONTENT_TYPE_JSON};
+
+  private final InetSocketAddress address;
+  private final Rendering[] renderings = {new Rendering(TEXT), new Rendering(PROTOBUF), new Rendering(JSON)};
+  private volatile long cacheTtl = DEFAULT_CACHE_TTL;
+  private HttpServer server = null;
+  private ExecutorService executor = null;
+
+
+  /**
+   * Create a server listening on the given port of all interfaces.
+   *
+   * @param port the port to listen on, 0 to use any free port
+   */
+  public MetricsServer(int port) {
+    this(new InetSocketAddress(port));
+  }
+
+
+  /**
+   * Create a server listening on the given address.
+   *
+   * @param address the address to listen on
+   */
+  public MetricsServer(InetSocketAddress address) {
+    this.address = address;
+  }
+
+
+  /**
+   * Set how long a rendering of the ScoreCard is served before the ScoreCard is rendered again.
+   *
+   * @param millis the period in milliseconds, 0 to render the ScoreCard for every scrape
+   * @return this server instance for fluent method chaining
+   */
+  public MetricsServer setCacheTtl(long millis) {
+    cacheTtl = Math.max(0, millis);
+    return this;
+  }
+
+
+  /**
+   * Start serving the ScoreCard.
+   *
+   * @return this server instance for fluent method chaining
+   * @throws IOException if the server could not listen on its address
+   */
+  public synchronized MetricsServer start() throws IOException {
+    if (server == null) {
+      server = HttpServer.create(address, 0);
+      executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread retval = new Thread(runnable, "MetricsServer");
+          retval.setDaemon(true);
+          return retval;
+        }
+      });
+      server.setExecutor(executor);
+      server.createContext(PATH, new MetricsHandler());
+      server.start();
+    }
+    return this;
+  }
+
+
+  /**
+   * Stop serving the ScoreCard, waiting up to a second for scrapes in progress to complete.
+   */
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(1);
+      executor.shutdownNow();
+      server = null;
+      executor = null;
+    }
+  }
+
+
+  /**
+   * @return the port the server is listening on, useful when it was started on any free port.
+   */
+  public synchronized int getPort() {
+    return (server != null) ? server.getAddress().getPort() : address.getPort();
+  }
+
+
+  /**
+   * Select the format of the response from the Accept header of the request.
+   */
+  static int negotiate(String accept) {
+    if (accept != null) {
+      String value = accept.toLowerCase(Locale.ROOT);
+      if (value.contains("application/vnd.google.protobuf") && value.contains("io.prometheus.client.metricfamily")) {
+        return PROTOBUF;
+      }
+      if (value.contains("application/json") && !value.contains("text/plain") && !value.contains("*/*")) {
+        return JSON;
+      }
+    }
+    return TEXT;
+  }
+
+
+  /**
+   * @return true if the Accept-Encoding header of the request accepts gzip.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding != null) {
+      for (String coding : acceptEncoding.split(",")) {
+        String value = coding.trim().toLowerCase(Locale.ROOT);
+        if ((value.equals("gzip") || value.startsWith("gzip;")) && !value.replace(" ", "").endsWith("q=0")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+
+  private class MetricsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+          exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+          exchange.sendResponseHeaders(405, -1);
+          return;
+        }
+        int format = negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+        boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        byte[] body = renderings[format].get(gzip);
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPES[format]);
+        exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+        if (gzip) {
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        if ("HEAD".equals(method)) {
+          exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+          exchange.sendResponseHeaders(200, -1);
+        } else {
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+
+  /**
+   * The most recent rendering of the ScoreCard in one format.
+   */
+  private class Rendering {
+    private final int format;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile byte[] plain = null;
+    private volatile byte[] compressed = null;
+    private volatile long renderedAt = 0;
+
+    Rendering(int format) {
+      this.format = format;
+    }
+
+    /**
+     * Return the current rendering, rendering the ScoreCard if the rendering is stale. Only one thread renders; the
+     * others wait for its rendering.
+     */
+    byte[] get(boolean gzip) throws IOException {
+      byte[] retval = fresh(gzip);
+      if (retval == null) {
+        lock.lock();
+        try {
+          retval = fresh(gzip);
+          if (retval == null) {
+            if (plain == null || expired()) {
+              compressed = null;
+              plain = render();
+              renderedAt = System.currentTimeMillis();
+            }
+            if (gzip) {
+              compressed = compress(plain);
+              retval = compressed;
+            } else {
+              retval = plain;
+            }
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      return retval;
+    }
+
+    private byte[] fresh(boolean gzip) {
+      byte[] retval = gzip ? compressed : plain;
+      return (retval != null && !expired()) ? retval : null;
+    }
+
+    private boolean expired() {
+      return System.currentTimeMillis() - renderedAt >= cacheTtl;
+    }
+
+    private byte[] render() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+      if (format == PROTOBUF) {
+        MetricFormatter.writeScoreCardToProtobuf(out);
+      } else if (format == JSON) {
+        MetricFormatter.writeScoreCardToJson(out, true);
+      } else {
+        MetricFormatter.writeScoreCardToOpenMetrics(out);
+      }
+      return out.toByteArray();
+    }
+  }
+
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(512, data.length / 4));
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(data);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+}
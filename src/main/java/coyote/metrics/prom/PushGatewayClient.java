@@ -9,6 +9,15 @@ import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This is a utility class to send data to a PushGateway
@@ -22,11 +31,25 @@ public class PushGatewayClient {
    * Content-type for text version 0.0.4.
    */
   public final static String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+  /**
+   * Content-type for the delimited protobuf format.
+   */
+  public final static String CONTENT_TYPE_PROTOBUF = MetricFormatter.PROTOBUF_CONTENT_TYPE;
   public static final String DEFAULT_URL = "http://localhost:9091";
   private static final String POST = "POST";
   private static final int MILLISECONDS_PER_SECOND = 1000;
   private String gatewayUrl;
   private HttpConnectionFactory connectionFactory;
+  private boolean protobuf = false;
+  private boolean gzip = false;
+  private int connectTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private int readTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private int parallelism = 4;
+  private PushSpool spool = null;
+  /**
+   * The state of the pushes of changes of each job.
+   */
+  private final ConcurrentHashMap<String, PushedJob> pushedJobs = new ConcurrentHashMap<>();
 
   /**
    * Default constructor pointing to http://localhost:9091
@@ -70,6 +93,7 @@ public class PushGatewayClient {
     while ((length = is.read(buffer)) != -1) {
       result.write(buffer, 0, length);
     }
+    is.close();
     return result.toString("UTF-8");
   }
 
@@ -96,6 +120,78 @@ public class PushGatewayClient {
     return this;
   }
 
+  /**
+   * Select the format in which metrics are sent.
+   *
+   * <p>The protobuf format is considerably cheaper for the gateway and the Prometheus servers to parse than the text
+   * format, which matters for large payloads.</p>
+   *
+   * @param flag true to send metrics in the delimited protobuf format, false to send the text format
+   * @return this client instance for fluent method chaining
+   */
+  public PushGatewayClient setProtobuf(boolean flag) {
+    protobuf = flag;
+    return this;
+  }
+
+  /**
+   * Compress the metrics sent to the gateway.
+   *
+   * <p>Compressed requests are streamed in chunks through a deflater as the metrics are rendered, so the request body
+   * is never held in memory. The text format typically compresses tenfold, which shortens pushes over slow links.</p>
+   *
+   * @param flag true to send metrics with a gzip content-encoding
+   * @return this client instance for fluent method chaining
+   */
+  public PushGatewayClient setGzip(boolean flag) {
+    gzip = flag;
+    return this;
+  }
+
+  /**
+   * Set how long to wait for the gateway.
+   *
+   * @param connectMillis milliseconds to wait for a connection to the gateway, default 10 seconds
+   * @param readMillis    milliseconds to wait for each read of the response, default 10 seconds
+   * @return this client instance for fluent method chaining
+   */
+  public PushGatewayClient setTimeouts(int connectMillis, int readMillis) {
+    connectTimeout = connectMillis;
+    readTimeout = readMillis;
+    return this;
+  }
+
+  /**
+   * Set how many requests may be sent at once when a push takes several requests.
+   *
+   * <p>Connections are kept alive and reused between requests. The JDK keeps at most five idle connections to a
+   * host by default (the {@code http.maxConnections} system property), so more parallel requests than that will not
+   * all be able to reuse their connections.</p>
+   *
+   * @param threads the number of concurrent requests, default 4
+   * @return this client instance for fluent method chaining
+   */
+  public PushGatewayClient setParallelism(int threads) {
+    parallelism = Math.max(1, threads);
+    return this;
+  }
+
+  /**
+   * Spool pushes which fail because the gateway cannot be reached, and replay them when it can.
+   *
+   * <p>When a spool is set, pushes are rendered in full before they are sent. A push which cannot be sent because the
+   * gateway is unreachable, overloaded or failing is appended to the spool and the push returns normally; the spool is
+   * replayed in order before the next push is sent. Pushes the gateway rejects still throw, as do failures to write
+   * the spool.</p>
+   *
+   * @param spool the spool, or null to throw when a push fails
+   * @return this client instance for fluent method chaining
+   */
+  public PushGatewayClient setSpool(PushSpool spool) {
+    this.spool = spool;
+    return this;
+  }
+
   /**
    * Send the given monitors to the push gateway.
    *
@@ -137,38 +233,193 @@ public class PushGatewayClient {
       }
     }
 
-    HttpURLConnection connection = connectionFactory.create(url);
-    connection.setRequestProperty("Content-Type", CONTENT_TYPE_004);
-    if (!method.equals("DELETE")) {
-      connection.setDoOutput(true);
+    String contentType = protobuf ? CONTENT_TYPE_PROTOBUF : CONTENT_TYPE_004;
+    String contentEncoding = gzip ? "gzip" : null;
+    if (spool != null) {
+      // the body is rendered up front so it can be spooled as it was when the push was made
+      byte[] body = new byte[0];
+      if (!method.equals("DELETE")) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        writeBody(out, monitors, honorMetricNameLabel);
+        body = out.toByteArray();
+      }
+      sendOrSpool(new PushSpool.Push(method, url, contentType, contentEncoding, body));
+      return;
     }
-    connection.setRequestMethod(method);
-    connection.setConnectTimeout(10 * MILLISECONDS_PER_SECOND);
-    connection.setReadTimeout(10 * MILLISECONDS_PER_SECOND);
-    connection.connect();
 
+    final long started = SelfMetrics.start();
+    boolean accepted = false;
+    HttpURLConnection connection = null;
+    // the connection is returned to the keep-alive cache once its response has been read, so it is only
+    // disconnected when the exchange fails part way and the state of the connection is unknown
+    boolean complete = false;
     try {
+      connection = open(url, method, contentType, contentEncoding, -1);
       if (!method.equals("DELETE")) {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
-        MetricFormatter.convertToOpenMetrics(writer, monitors, honorMetricNameLabel);
-        writer.flush();
-        writer.close();
+        writeBody(connection.getOutputStream(), monitors, honorMetricNameLabel);
+      }
+      IOException failure = readResponse(connection, url);
+      complete = true;
+      if (failure != null) {
+        throw failure;
+      }
+      accepted = true;
+    } finally {
+      if (!complete && connection != null) {
+        connection.disconnect();
       }
+      SelfMetrics.recordPush("pushgateway", started, accepted);
+    }
+  }
 
-      int response = connection.getResponseCode();
-      if (response != HttpURLConnection.HTTP_ACCEPTED) {
-        String errorMessage;
-        InputStream errorStream = connection.getErrorStream();
-        if (response >= 400 && errorStream != null) {
-          String errBody = readFromStream(errorStream);
-          errorMessage = "Response code from " + url + " was " + response + ", response body: " + errBody;
-        } else {
-          errorMessage = "Response code from " + url + " was " + response;
+  /**
+   * Replay the spool and send the push, spooling the push instead if the gateway cannot be reached.
+   *
+   * @param push the rendered push
+   * @throws IOException if the gateway rejected the push, or it could not be spooled
+   */
+  private void sendOrSpool(PushSpool.Push push) throws IOException {
+    if (spool.replay(this)) {
+      try {
+        send(push);
+        return;
+      } catch (IOException e) {
+        if (!isRetriable(e)) {
+          throw e;
         }
-        throw new IOException(errorMessage);
       }
+    }
+    // spooled behind older pushes which could not be replayed, so the gateway receives them in order
+    spool.append(push);
+  }
+
+  /**
+   * Send a rendered push to the gateway.
+   *
+   * @param push the method, location and body of the request
+   * @throws IOException if there were problems sending the push to the gateway
+   */
+  void send(PushSpool.Push push) throws IOException {
+    final long started = SelfMetrics.start();
+    boolean accepted = false;
+    try {
+      request(push);
+      accepted = true;
     } finally {
-      connection.disconnect();
+      SelfMetrics.recordPush("pushgateway", started, accepted);
+    }
+  }
+
+  /**
+   * Write a push to the gateway and read its response.
+   */
+  private void request(PushSpool.Push push) throws IOException {
+    HttpURLConnection connection = open(push.url, push.method, push.contentType, push.contentEncoding, push.body.length);
+    boolean complete = false;
+    try {
+      if (!push.method.equals("DELETE")) {
+        OutputStream out = connection.getOutputStream();
+        out.write(push.body);
+        out.close();
+      }
+      IOException failure = readResponse(connection, push.url);
+      complete = true;
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      if (!complete) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Open a connection for a request.
+   *
+   * @param length the length of the body, or -1 if it is not known before it is written
+   */
+  private HttpURLConnection open(String url, String method, String contentType, String contentEncoding, int length) throws IOException {
+    HttpURLConnection connection = connectionFactory.create(url);
+    connection.setRequestProperty("Content-Type", contentType);
+    if (!method.equals("DELETE")) {
+      connection.setDoOutput(true);
+      if (contentEncoding != null) {
+        connection.setRequestProperty("Content-Encoding", contentEncoding);
+      }
+      if (length >= 0) {
+        connection.setFixedLengthStreamingMode(length);
+      } else if (contentEncoding != null) {
+        connection.setChunkedStreamingMode(0); // do not buffer the body to learn its length
+      }
+    }
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    connection.connect();
+    return connection;
+  }
+
+  /**
+   * Render the monitors in the configured format and encoding, closing the stream.
+   */
+  private void writeBody(OutputStream out, List<Monitor> monitors, boolean honorMetricNameLabel) throws IOException {
+    if (gzip) {
+      out = new GZIPOutputStream(out, 8192);
+    }
+    if (protobuf) {
+      MetricFormatter.convertToProtobuf(out, monitors, honorMetricNameLabel);
+      out.close();
+    } else {
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      MetricFormatter.convertToOpenMetrics(writer, monitors, honorMetricNameLabel);
+      writer.flush();
+      writer.close();
+    }
+  }
+
+  /**
+   * Read the response to a request, leaving the connection ready for reuse.
+   *
+   * @return the reason the gateway did not accept the request, or null if it was accepted
+   */
+  private static IOException readResponse(HttpURLConnection connection, String url) throws IOException {
+    int response = connection.getResponseCode();
+    if (response == HttpURLConnection.HTTP_ACCEPTED) {
+      drain(connection.getInputStream());
+      return null;
+    }
+    String errorMessage;
+    InputStream errorStream = connection.getErrorStream();
+    if (response >= 400 && errorStream != null) {
+      String errBody = readFromStream(errorStream);
+      errorMessage = "Response code from " + url + " was " + response + ", response body: " + errBody;
+    } else {
+      drain(response >= 400 ? errorStream : connection.getInputStream());
+      errorMessage = "Response code from " + url + " was " + response;
+    }
+    return new ResponseException(errorMessage, response);
+  }
+
+  /**
+   * @return true if the failure might not happen again: the gateway could not be reached, was overloaded or failed.
+   */
+  static boolean isRetriable(IOException e) {
+    if (e instanceof ResponseException) {
+      int response = ((ResponseException) e).response;
+      return response >= 500 || response == 429;
+    }
+    return true;
+  }
+
+  /**
+   * Read the rest of a response body and close it, allowing its connection to be reused.
+   */
+  private static void drain(InputStream in) throws IOException {
+    if (in != null) {
+      byte[] buffer = new byte[512];
+      while (in.read(buffer) != -1) ;
+      in.close();
     }
   }
 
@@ -196,12 +447,66 @@ public class PushGatewayClient {
       }
       Map<String, String> groupingKey = new HashMap<>();
       groupingKey.put("instance", ScoreCard.getHostname());
-      List<Monitor> monitorList = new ArrayList<>();
-      for (Monitor monitor : monitors) {
-        monitorList.add(monitor); // only one monitor per request since monitor names are used as job names
-        doRequest(monitor.getName(), groupingKey, POST, monitorList, true);
-        monitorList.clear();
+      pushEach(monitors, groupingKey);
+    }
+  }
+
+  /**
+   * Push each monitor as its own job, named after the monitor, sending up to the configured number of requests at
+   * once.
+   *
+   * <p>Every monitor is pushed even if some pushes fail; the failures are then reported together as the suppressed
+   * exceptions of a single exception.</p>
+   *
+   * @param monitors    the monitors to push
+   * @param groupingKey the grouping key of every push
+   * @throws IOException if any of the pushes failed
+   */
+  private void pushEach(List<Monitor> monitors, final Map<String, String> groupingKey) throws IOException {
+    int threads = Math.min(parallelism, monitors.size());
+    if (threads == 0) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread retval = new Thread(runnable, "PushGatewayClient");
+        retval.setDaemon(true);
+        return retval;
+      }
+    });
+    try {
+      List<Future<?>> results = new ArrayList<>(monitors.size());
+      for (final Monitor monitor : monitors) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            // only one monitor per request since monitor names are used as job names
+            doRequest(monitor.getName(), groupingKey, POST, Collections.singletonList(monitor), true);
+            return null;
+          }
+        }));
       }
+      List<Throwable> failures = new ArrayList<>();
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          failures.add(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted pushing " + monitors.size() + " jobs");
+        }
+      }
+      if (!failures.isEmpty()) {
+        IOException exception = new IOException(failures.size() + " of " + monitors.size() + " job pushes failed");
+        for (Throwable failure : failures) {
+          exception.addSuppressed(failure);
+        }
+        throw exception;
+      }
+    } finally {
+      executor.shutdownNow();
     }
   }
 
@@ -219,6 +524,7 @@ public class PushGatewayClient {
     for (Iterator<TimingMaster> it = ScoreCard.getTimerIterator(); it.hasNext(); monitors.add(it.next())) ;
     for (Iterator<Counter> it = ScoreCard.getCounterIterator(); it.hasNext(); monitors.add(it.next())) ;
     for (Iterator<Gauge> it = ScoreCard.getGaugeIterator(); it.hasNext(); monitors.add(it.next())) ;
+    monitors.addAll(SelfMetrics.getMonitors());
 
     Map<String, String> groupingKey = new HashMap<>();
     groupingKey.put("instance", ScoreCard.getHostname());
@@ -227,6 +533,36 @@ public class PushGatewayClient {
     doRequest(jobName, groupingKey, POST, monitors);
   }
 
+  /**
+   * Push only the metrics in the ScoreCard which changed since the last time this client pushed changes for the job.
+   *
+   * <p>The first push for a job sends the whole ScoreCard. The gateway replaces only the metrics in a push, keeping
+   * the others of the group, so frequent pushes of a large ScoreCard cost in proportion to what changed. Should a push
+   * fail, the next push for the job sends its changes again.</p>
+   *
+   * @param jobName The name of the job these metrics represent
+   * @throws IOException if there were problems posting the changes to the push gateway
+   */
+  public void pushChanges(String jobName) throws IOException {
+    // pushes of the same job are sent one at a time so the gateway never receives older values after newer ones,
+    // while different jobs are pushed concurrently
+    PushedJob job = pushedJobs.computeIfAbsent(jobName, name -> new PushedJob());
+    job.lock.lock();
+    try {
+      long next = ScoreCard.advanceEpoch();
+      List<Monitor> monitors = ScoreCard.getChangedSince(job.epoch);
+      if (!monitors.isEmpty()) {
+        Map<String, String> groupingKey = new HashMap<>();
+        groupingKey.put("instance", ScoreCard.getHostname());
+        groupingKey.put("job", jobName);
+        doRequest(jobName, groupingKey, POST, monitors);
+      }
+      job.epoch = next;
+    } finally {
+      job.lock.unlock();
+    }
+  }
+
   /**
    * Push all the metrics in the ScoreCard with the given name to the gateway.
    *
@@ -259,4 +595,32 @@ public class PushGatewayClient {
     doRequest(jobName, groupingKey, POST, monitors);
   }
 
+  /**
+   * The changes pushed for a job.
+   */
+  private static final class PushedJob {
+    /**
+     * Held while the changes of the job are pushed.
+     */
+    final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The epoch from which the changes of the job are yet to be pushed, 0 until they were first pushed.
+     */
+    long epoch = 0;
+  }
+
+  /**
+   * The gateway answered a request with something other than 202 Accepted.
+   */
+  static class ResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int response;
+
+    ResponseException(String message, int response) {
+      super(message);
+      this.response = response;
+    }
+  }
+
 }
@@ -0,0 +1,430 @@
+package coyote.metrics.prom;
+
+import coyote.metrics.ScoreCard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes the ScoreCard to a gateway in the background so callers never wait for the gateway.
+ *
+ * <p>Pushes are requested on demand with {@link #push(String)} or periodically with {@link #schedule(String, long)}
+ * and are sent one at a time by a single daemon thread. Requests for a job are coalesced while they wait: the
+ * ScoreCard is rendered when the push is sent, so however many requests a job has pending, only one push carrying
+ * the latest state is sent. The number of jobs with pending pushes is bounded; requests beyond it are dropped.</p>
+ *
+ * <p>A failed push is retried after an exponential backoff with jitter, so a struggling gateway is not hammered by
+ * every client at once, and is dropped after a number of attempts.</p>
+ *
+ * <p>{@link #flush(long)} sends everything pending within a deadline; {@link #installShutdownHook(long)} does so
+ * when the JVM exits, so test teardown is delayed at most by the deadline even if the gateway is unresponsive.</p>
+ *
+ * <p>The scheduler records its own behavior in the ScoreCard, so it is pushed along with everything else: the number
+ * of pending pushes, the latency of each push, and counts of failed, retried and dropped pushes.</p>
+ */
+public class PushScheduler implements Closeable {
+  public static final String PENDING_GAUGE = "pushgateway_pending";
+  public static final String PUSH_TIMER = "pushgateway_push";
+  public static final String FAILURE_COUNTER = "pushgateway_push_failures";
+  public static final String RETRY_COUNTER = "pushgateway_push_retries";
+  public static final String DROPPED_COUNTER = "pushgateway_push_dropped";
+
+  private final PushGatewayClient client;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  /**
+   * Pushes waiting to be sent by job, in the order they were requested.
+   */
+  private final Map<String, Pending> pending = new LinkedHashMap<>();
+  /**
+   * Periodic pushes by job.
+   */
+  private final Map<String, Periodic> periodic = new HashMap<>();
+  private int maxPending = 64;
+  private long baseBackoff = 500;
+  private long maxBackoff = 30000;
+  private int maxAttempts = 5;
+  private String inFlight = null;
+  private boolean flushing = false;
+  private boolean closed = false;
+  private long reportedPending = 0;
+  private Thread thread = null;
+
+
+  /**
+   * @param client the client used to send the pushes
+   */
+  public PushScheduler(PushGatewayClient client) {
+    this.client = client;
+  }
+
+
+  /**
+   * Set how failed pushes are retried.
+   *
+   * <p>The n-th retry waits between half and all of {@code base * 2^(n-1)} milliseconds, up to the maximum.</p>
+   *
+   * @param base        milliseconds to wait before the first retry, default 500
+   * @param max         the most milliseconds to wait before any retry, default 30 seconds
+   * @param maxAttempts the number of attempts after which a push is dropped, default 5
+   * @return this scheduler for fluent method chaining
+   */
+  public PushScheduler setBackoff(long base, long max, int maxAttempts) {
+    lock.lock();
+    try {
+      baseBackoff = Math.max(1, base);
+      maxBackoff = Math.max(baseBackoff, max);
+      this.maxAttempts = Math.max(1, maxAttempts);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @param max the number of jobs which may have a push pending, default 64
+   * @return this scheduler for fluent method chaining
+   */
+  public PushScheduler setMaxPending(int max) {
+    lock.lock();
+    try {
+      maxPending = Math.max(1, max);
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Request the ScoreCard be pushed for the given job as soon as possible.
+   *
+   * @param job the name of the job
+   * @return true if the push is pending, false if it was dropped because too many jobs have pushes pending
+   */
+  public boolean push(String job) {
+    lock.lock();
+    try {
+      start();
+      boolean retval = enqueue(job, System.currentTimeMillis());
+      changed.signalAll();
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Push the ScoreCard for the given job periodically, replacing any previous schedule for the job.
+   *
+   * @param job          the name of the job
+   * @param periodMillis milliseconds between pushes
+   * @return this scheduler for fluent method chaining
+   */
+  public PushScheduler schedule(String job, long periodMillis) {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+    }
+    lock.lock();
+    try {
+      start();
+      periodic.put(job, new Periodic(periodMillis, System.currentTimeMillis() + periodMillis));
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Stop pushing the ScoreCard for the given job periodically. A push already pending is still sent.
+   *
+   * @param job the name of the job
+   */
+  public void cancel(String job) {
+    lock.lock();
+    try {
+      periodic.remove(job);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of jobs with a push waiting to be sent.
+   */
+  public int getPendingCount() {
+    lock.lock();
+    try {
+      return pending.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Send a push for every pending and periodic job, waiting until they are sent or the deadline passes.
+   *
+   * <p>Pushes which fail while flushing are not retried.</p>
+   *
+   * @param timeoutMillis the most milliseconds to wait
+   * @return true if every push was attempted before the deadline, false otherwise.
+   */
+  public boolean flush(long timeoutMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      if (closed) {
+        return pending.isEmpty();
+      }
+      start();
+      long now = System.currentTimeMillis();
+      for (String job : periodic.keySet()) {
+        enqueue(job, now);
+      }
+      for (Pending push : pending.values()) {
+        push.due = now;
+      }
+      flushing = true;
+      changed.signalAll();
+      try {
+        long remaining;
+        while ((!pending.isEmpty() || inFlight != null) && (remaining = deadline - System.nanoTime()) > 0) {
+          changed.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return pending.isEmpty() && inFlight == null;
+    } finally {
+      flushing = false;
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Flush the scheduler when the JVM shuts down.
+   *
+   * @param deadlineMillis the most milliseconds to delay the shutdown
+   * @return this scheduler for fluent method chaining
+   */
+  public PushScheduler installShutdownHook(final long deadlineMillis) {
+    Runtime.getRuntime().addShutdownHook(new Thread("PushScheduler-shutdown") {
+      @Override
+      public void run() {
+        flush(deadlineMillis);
+        close();
+      }
+    });
+    return this;
+  }
+
+
+  /**
+   * Stop the scheduler, discarding any pending pushes. A push being sent is allowed to complete.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      pending.clear();
+      periodic.clear();
+      updatePendingGauge();
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Start the thread which sends the pushes; the caller must hold the lock.
+   */
+  private void start() {
+    if (closed) {
+      throw new IllegalStateException("PushScheduler is closed");
+    }
+    if (thread == null) {
+      thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "PushScheduler");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+
+  /**
+   * Add a push for the job unless one is already pending; the caller must hold the lock.
+   */
+  private boolean enqueue(String job, long due) {
+    Pending existing = pending.get(job);
+    if (existing != null) {
+      existing.due = Math.min(existing.due, due);
+      return true;
+    }
+    if (pending.size() >= maxPending) {
+      ScoreCard.incrementCounter(DROPPED_COUNTER);
+      return false;
+    }
+    pending.put(job, new Pending(due, 0));
+    updatePendingGauge();
+    return true;
+  }
+
+
+  private void work() {
+    lock.lock();
+    try {
+      while (!closed) {
+        long now = System.currentTimeMillis();
+        long wake = Long.MAX_VALUE;
+        for (Map.Entry<String, Periodic> entry : periodic.entrySet()) {
+          Periodic schedule = entry.getValue();
+          if (schedule.next <= now) {
+            enqueue(entry.getKey(), now);
+            schedule.next = now + schedule.period;
+          }
+          wake = Math.min(wake, schedule.next);
+        }
+
+        String job = null;
+        Pending push = null;
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+          if (entry.getValue().due <= now) {
+            job = entry.getKey();
+            push = entry.getValue();
+            break;
+          }
+          wake = Math.min(wake, entry.getValue().due);
+        }
+
+        if (push == null) {
+          try {
+            if (wake == Long.MAX_VALUE) {
+              changed.await();
+            } else {
+              changed.await(wake - now, TimeUnit.MILLISECONDS);
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          continue;
+        }
+
+        // requests arriving while this push is sent are rendered afterwards, so they queue a new push
+        pending.remove(job);
+        updatePendingGauge();
+        inFlight = job;
+        IOException failure = send(job);
+        inFlight = null;
+        if (failure != null) {
+          ScoreCard.incrementCounter(FAILURE_COUNTER);
+          retry(job, push.attempts + 1);
+        }
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Push the ScoreCard for the job without holding the lock.
+   *
+   * @return the reason the push failed, or null if it was sent.
+   */
+  private IOException send(String job) {
+    lock.unlock();
+    try {
+      long start = System.currentTimeMillis();
+      client.push(job);
+      ScoreCard.getOrCreateTimerMaster(PUSH_TIMER).record(System.currentTimeMillis() - start);
+      return null;
+    } catch (IOException e) {
+      return e;
+    } catch (RuntimeException e) {
+      return new IOException(e);
+    } finally {
+      lock.lock();
+    }
+  }
+
+
+  /**
+   * Schedule another attempt of a failed push unless it has run out of attempts; the caller must hold the lock.
+   */
+  private void retry(String job, int attempts) {
+    if (flushing || attempts >= maxAttempts) {
+      ScoreCard.incrementCounter(DROPPED_COUNTER);
+      return;
+    }
+    long delay = Math.min(maxBackoff, baseBackoff << Math.min(attempts - 1, 30));
+    long due = System.currentTimeMillis() + delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    Pending newer = pending.get(job);
+    if (newer != null) {
+      // a newer request supersedes the failed push, but must still respect its backoff
+      newer.due = Math.max(newer.due, due);
+      newer.attempts = attempts;
+    } else {
+      pending.put(job, new Pending(due, attempts));
+      updatePendingGauge();
+    }
+    ScoreCard.incrementCounter(RETRY_COUNTER);
+  }
+
+
+  /**
+   * Bring the pending gauge in line with the number of pending pushes; the caller must hold the lock.
+   */
+  private void updatePendingGauge() {
+    long delta = pending.size() - reportedPending;
+    if (delta > 0) {
+      ScoreCard.increaseGauge(PENDING_GAUGE, delta);
+    } else if (delta < 0) {
+      ScoreCard.decreaseGauge(PENDING_GAUGE, -delta);
+    }
+    reportedPending = pending.size();
+  }
+
+
+  private static class Pending {
+    long due;
+    int attempts;
+
+    Pending(long due, int attempts) {
+      this.due = due;
+      this.attempts = attempts;
+    }
+  }
+
+
+  private static class Periodic {
+    final long period;
+    long next;
+
+    Periodic(long period, long next) {
+      this.period = period;
+      this.next = next;
+    }
+  }
+
+}
@@ -0,0 +1,515 @@
+package coyote.metrics.prom;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable local queue of pushes which could not be sent because the gateway was unreachable.
+ *
+ * <p>Pushes are appended to segment files in a directory as checksummed records holding the request exactly as it
+ * would have been sent, so the metrics of a CI run survive a gateway outage and even the exit of the JVM:</p>
+ * <pre>
+ * new PushGatewayClient(url).setSpool(new PushSpool(new File("build/push-spool")));
+ * </pre>
+ *
+ * <p>The spool is replayed in the order the pushes were spooled before the next push is sent, so the gateway ends up
+ * with the latest state of each group. A segment is deleted once all its records were sent. A record interrupted by
+ * a crash fails its checksum and is skipped along with the rest of its segment. Records sent before a replay fails
+ * are not sent again by the same spool, but may be sent again after a restart.</p>
+ *
+ * <p>The spool is capped in size; when a push would exceed the cap, the oldest segments are deleted to make room.</p>
+ */
+public class PushSpool implements Closeable {
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  static final int MAGIC = 0x54505331; // "TPS1"
+  private static final String PREFIX = "push-";
+  private static final String SUFFIX = ".spool";
+  private static final long MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+  /**
+   * The magic number, payload length and checksum framing every record.
+   */
+  private static final int FRAME_BYTES = 12;
+
+  private final File directory;
+  private final long maxBytes;
+  private final long segmentBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  /**
+   * Held while the spool is replayed, so the pushes are sent in order. The spool lock is only held to read each
+   * record, not while it is sent, so pushes can be appended during a slow replay.
+   */
+  private final ReentrantLock replaying = new ReentrantLock();
+  /**
+   * The segment files, oldest first.
+   */
+  private final Deque<File> segments = new ArrayDeque<>();
+  private long size = 0;
+  private long nextSequence = 0;
+  private FileOutputStream current = null;
+  private long currentBytes = 0;
+  /**
+   * The number of bytes at the start of the oldest segment which were already replayed.
+   */
+  private long replayed = 0;
+  private long droppedCount = 0;
+  private long corruptCount = 0;
+
+
+  /**
+   * Open a spool of at most {@link #DEFAULT_MAX_BYTES} in the given directory.
+   *
+   * @param directory the directory holding the segments, created if necessary
+   * @throws IOException if the directory could not be created
+   */
+  public PushSpool(File directory) throws IOException {
+    this(directory, DEFAULT_MAX_BYTES);
+  }
+
+
+  /**
+   * Open a spool in the given directory, picking up any segments left by a previous spool.
+   *
+   * @param directory the directory holding the segments, created if necessary
+   * @param maxBytes  the most bytes the segments may occupy
+   * @throws IOException if the directory could not be created
+   */
+  public PushSpool(File directory, long maxBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+    this.directory = directory;
+    this.maxBytes = Math.max(1, maxBytes);
+    this.segmentBytes = Math.max(1, Math.min(this.maxBytes / 8, MAX_SEGMENT_BYTES));
+
+    File[] files = directory.listFiles();
+    long[] sequences = new long[(files != null) ? files.length : 0];
+    int count = 0;
+    for (int i = 0; i < sequences.length; i++) {
+      long sequence = sequenceOf(files[i].getName());
+      if (sequence >= 0) {
+        sequences[count++] = sequence;
+      }
+    }
+    Arrays.sort(sequences, 0, count);
+    for (int i = 0; i < count; i++) {
+      File segment = segmentFile(sequences[i]);
+      segments.addLast(segment);
+      size += segment.length();
+      nextSequence = sequences[i] + 1;
+    }
+  }
+
+
+  /**
+   * @return the number of bytes occupied by the segments.
+   */
+  public long getSize() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return true if there are no pushes waiting to be replayed.
+   */
+  public boolean isEmpty() {
+    lock.lock();
+    try {
+      return segments.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of pushes dropped to keep the spool within its size, or rejected by the gateway on replay.
+   */
+  public long getDroppedCount() {
+    lock.lock();
+    try {
+      return droppedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of segments whose remainder was skipped because a record failed its checksum.
+   */
+  public long getCorruptCount() {
+    lock.lock();
+    try {
+      return corruptCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Append a push to the spool, deleting the oldest segments if it would otherwise exceed its size.
+   *
+   * @param push the push to append
+   * @return true if the push was spooled, false if it is larger than the whole spool and was dropped
+   * @throws IOException if the push could not be written
+   */
+  boolean append(Push push) throws IOException {
+    byte[] record = encode(push);
+    lock.lock();
+    try {
+      if (record.length > maxBytes) {
+        droppedCount++;
+        return false;
+      }
+      while (size + record.length > maxBytes && !segments.isEmpty()) {
+        dropOldest();
+      }
+      if (current == null || currentBytes + record.length > segmentBytes) {
+        roll();
+      }
+      // a single write of the whole record, forced to disk, so a crash leaves at most one torn record
+      current.write(record);
+      current.getChannel().force(false);
+      currentBytes += record.length;
+      size += record.length;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Send the spooled pushes in order with the given client, deleting each segment once it has been sent.
+   *
+   * <p>Replay stops at the first push which fails in a way worth retrying; pushes the gateway rejects outright are
+   * dropped, as sending them again would not help. Pushes appended while the spool is replayed are sent by the same
+   * replay.</p>
+   *
+   * @param client the client sending the pushes
+   * @return true if the spool is now empty, false if a push could not be sent
+   * @throws IOException if a segment could not be read
+   */
+  boolean replay(PushGatewayClient client) throws IOException {
+    replaying.lock();
+    try {
+      lock.lock();
+      try {
+        // later pushes start a new segment so the records of this one do not change while they are sent
+        closeCurrent();
+      } finally {
+        lock.unlock();
+      }
+      DataInputStream in = null;
+      File segment = null;
+      long position = 0;
+      try {
+        while (true) {
+          Push push = null;
+          lock.lock();
+          try {
+            if (in != null && (segment != segments.peekFirst() || position != replayed)) {
+              // the segment was dropped to make room while the last push was sent
+              in.close();
+              in = null;
+            }
+            while (push == null) {
+              if (segments.isEmpty()) {
+                return true;
+              }
+              try {
+                if (in == null) {
+                  segment = segments.peekFirst();
+                  in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+                  position = replayed;
+                  skipFully(in, replayed);
+                }
+                push = read(in);
+              } catch (CorruptRecordException e) {
+                corruptCount++;
+              }
+              if (push == null) {
+                // the segment was sent in full, or the rest of it is unreadable
+                in.close();
+                in = null;
+                if (current != null && segments.size() == 1) {
+                  closeCurrent();
+                }
+                deleteOldest();
+              }
+            }
+          } finally {
+            lock.unlock();
+          }
+
+          boolean accepted = true;
+          try {
+            client.send(push);
+          } catch (IOException e) {
+            if (PushGatewayClient.isRetriable(e)) {
+              return false;
+            }
+            accepted = false;
+          }
+
+          lock.lock();
+          try {
+            if (segment == segments.peekFirst() && position == replayed) {
+              replayed += FRAME_BYTES + push.payloadLength;
+              position = replayed;
+              if (!accepted) {
+                droppedCount++;
+              }
+            }
+          } finally {
+            lock.unlock();
+          }
+        }
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+      }
+    } finally {
+      replaying.unlock();
+    }
+  }
+
+
+  /**
+   * Close the segment being appended to. The spool may still be used, and starts a new segment when it is.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closeCurrent();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Start a new segment; the caller must hold the lock.
+   */
+  private void roll() throws IOException {
+    closeCurrent();
+    File segment = segmentFile(nextSequence++);
+    current = new FileOutputStream(segment, true);
+    currentBytes = 0;
+    segments.addLast(segment);
+  }
+
+
+  /**
+   * The caller must hold the lock.
+   */
+  private void closeCurrent() throws IOException {
+    if (current != null) {
+      FileOutputStream out = current;
+      current = null;
+      out.close();
+    }
+  }
+
+
+  /**
+   * Delete the oldest segment and count the pushes it held as dropped; the caller must hold the lock.
+   */
+  private void dropOldest() throws IOException {
+    File segment = segments.peekFirst();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+    try {
+      skipFully(in, replayed);
+      while (read(in) != null) {
+        droppedCount++;
+      }
+    } catch (CorruptRecordException e) {
+      corruptCount++;
+    } finally {
+      in.close();
+    }
+    if (current != null && segments.size() == 1) {
+      closeCurrent();
+    }
+    deleteOldest();
+  }
+
+
+  /**
+   * The caller must hold the lock.
+   */
+  private void deleteOldest() throws IOException {
+    File segment = segments.removeFirst();
+    size -= segment.length();
+    replayed = 0;
+    if (!segment.delete() && segment.exists()) {
+      throw new IOException("Could not delete spool segment " + segment);
+    }
+  }
+
+
+  private File segmentFile(long sequence) {
+    return new File(directory, PREFIX + String.format("%019d", sequence) + SUFFIX);
+  }
+
+
+  /**
+   * @return the sequence number of a segment file name, or -1 if the name is not a segment.
+   */
+  private static long sequenceOf(String name) {
+    if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+      try {
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        // not one of ours
+      }
+    }
+    return -1;
+  }
+
+
+  /**
+   * Encode a push as a record: magic number, payload length, payload and the CRC32 of the payload.
+   */
+  static byte[] encode(Push push) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(FRAME_BYTES + 256 + push.body.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(0); // patched below
+    out.writeUTF(push.method);
+    out.writeUTF(push.url);
+    out.writeUTF(push.contentType);
+    out.writeUTF((push.contentEncoding != null) ? push.contentEncoding : "");
+    out.writeInt(push.body.length);
+    out.write(push.body);
+    out.writeInt(0); // patched below
+    out.close();
+
+    byte[] retval = bytes.toByteArray();
+    int length = retval.length - FRAME_BYTES;
+    putInt(retval, 4, length);
+    CRC32 crc = new CRC32();
+    crc.update(retval, 8, length);
+    putInt(retval, retval.length - 4, (int) crc.getValue());
+    return retval;
+  }
+
+
+  /**
+   * Read the next record of a segment.
+   *
+   * @return the push, or null at the end of the segment
+   * @throws CorruptRecordException if the record is torn or fails its checksum
+   */
+  static Push read(DataInputStream in) throws IOException {
+    int magic;
+    try {
+      magic = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    try {
+      int length = in.readInt();
+      if (magic != MAGIC || length < 0 || length > Integer.MAX_VALUE - FRAME_BYTES) {
+        throw new CorruptRecordException();
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, length);
+      if (in.readInt() != (int) crc.getValue()) {
+        throw new CorruptRecordException();
+      }
+
+      DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+      String method = fields.readUTF();
+      String url = fields.readUTF();
+      String contentType = fields.readUTF();
+      String contentEncoding = fields.readUTF();
+      byte[] body = new byte[fields.readInt()];
+      fields.readFully(body);
+      return new Push(method, url, contentType, contentEncoding.isEmpty() ? null : contentEncoding, body, length);
+    } catch (EOFException e) {
+      throw new CorruptRecordException();
+    }
+  }
+
+
+  private static void putInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        throw new CorruptRecordException();
+      }
+      count -= skipped;
+    }
+  }
+
+
+  /**
+   * A request to the gateway, complete with its rendered body.
+   */
+  static final class Push {
+    final String method;
+    final String url;
+    final String contentType;
+    final String contentEncoding;
+    final byte[] body;
+    final int payloadLength;
+
+    Push(String method, String url, String contentType, String contentEncoding, byte[] body) {
+      this(method, url, contentType, contentEncoding, body, -1);
+    }
+
+    private Push(String method, String url, String contentType, String contentEncoding, byte[] body, int payloadLength) {
+      this.method = method;
+      this.url = url;
+      this.contentType = contentType;
+      this.contentEncoding = contentEncoding;
+      this.body = body;
+      this.payloadLength = payloadLength;
+    }
+  }
+
+
+  private static class CorruptRecordException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptRecordException() {
+      super("Spool record is torn or fails its checksum");
+    }
+  }
+
+}
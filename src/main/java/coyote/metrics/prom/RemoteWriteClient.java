@@ -0,0 +1,624 @@
+package coyote.metrics.prom;
+
+import coyote.metrics.MetricFormatter;
+import coyote.metrics.Monitor;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.Utf8Buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes ScoreCard snapshots straight into a time series database with the Prometheus remote-write protocol.
+ *
+ * <p>Each write takes a snapshot of the monitors as series of one sample stamped with the current time, named and
+ * labeled as in the text exposition format, so any database accepting remote-write (Prometheus with its receiver
+ * enabled, Mimir, Thanos, VictoriaMetrics...) stores the same series a scrape would. The URL is the complete write
+ * endpoint, such as {@code http://prometheus:9090/api/v1/write}:</p>
+ * <pre>
+ * RemoteWriteClient client = new RemoteWriteClient(url).start(15000);
+ * ...
+ * client.close();
+ * </pre>
+ *
+ * <p>The series are spread over a few shards by a hash of their monitor, so the samples of a series are always sent
+ * in order by the same shard. Each shard has a daemon thread which sends its queued series in snappy compressed
+ * requests of a bounded number of series, once enough are queued or the oldest has waited long enough. A request the
+ * receiver could not be reached for, failed with a server error, or throttled is retried with exponential backoff
+ * and jitter; a request it rejected, or which still failed after the last attempt, is dropped and counted. Each shard
+ * holds a bounded number of bytes; series written while it is full are dropped and counted rather than holding an
+ * unbounded amount of memory while the receiver is unreachable.</p>
+ */
+public class RemoteWriteClient implements Closeable {
+  public static final String CONTENT_TYPE = "application/x-protobuf";
+  public static final String VERSION = "0.1.0";
+  public static final int DEFAULT_SHARDS = 4;
+  public static final int DEFAULT_MAX_SERIES_PER_SEND = 2000;
+  public static final long DEFAULT_MAX_DELAY = 1000;
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 16 * 1024 * 1024;
+  private static final int MILLISECONDS_PER_SECOND = 1000;
+  private static final Map<String, String> VERSION_HEADER = Collections.singletonMap("X-Prometheus-Remote-Write-Version", VERSION);
+
+  private final String url;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Shard[] shards;
+  /**
+   * The series of a snapshot for each shard, before they are queued.
+   */
+  private final Utf8Buffer[] snapshot;
+  private HttpConnectionFactory connectionFactory = new DefaultHttpConnectionFactory();
+  private volatile int maxSeriesPerSend = DEFAULT_MAX_SERIES_PER_SEND;
+  private volatile long maxDelay = DEFAULT_MAX_DELAY;
+  private volatile int maxShardBytes = DEFAULT_MAX_BUFFERED_BYTES / DEFAULT_SHARDS;
+  private volatile int maxAttempts = 10;
+  private volatile long minBackoff = 30;
+  private volatile long maxBackoff = 5 * MILLISECONDS_PER_SECOND;
+  private volatile int connectTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private volatile int readTimeout = 10 * MILLISECONDS_PER_SECOND;
+  private ScheduledExecutorService executor = null;
+  private boolean closed = false;
+
+
+  /**
+   * @param url the remote-write endpoint of the receiver
+   */
+  public RemoteWriteClient(String url) {
+    this(url, DEFAULT_SHARDS);
+  }
+
+
+  /**
+   * @param url    the remote-write endpoint of the receiver
+   * @param shards the number of shards sending concurrently
+   */
+  public RemoteWriteClient(String url, int shards) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.url = url;
+    this.shards = new Shard[shards];
+    snapshot = new Utf8Buffer[shards];
+    for (int i = 0; i < shards; i++) {
+      this.shards[i] = new Shard(i);
+      snapshot[i] = new Utf8Buffer(4096);
+    }
+  }
+
+
+  /**
+   * Set the basic auth credentials for preemptive authentication.
+   *
+   * @param username the username of the account to be authenticated
+   * @param password the password credential to authenticate the account
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient setCredentials(String username, String password) {
+    connectionFactory = new BasicAuthHttpConnectionFactory(connectionFactory, username, password);
+    return this;
+  }
+
+
+  /**
+   * Set when a shard sends its queued series.
+   *
+   * @param seriesPerSend the most series sent in one request, at which a shard sends without waiting, default 2000
+   * @param delayMillis   the longest a series waits to be sent, default one second
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient setBatching(int seriesPerSend, long delayMillis) {
+    maxSeriesPerSend = Math.max(1, seriesPerSend);
+    maxDelay = Math.max(1, delayMillis);
+    return this;
+  }
+
+
+  /**
+   * @param bytes the most bytes of uncompressed series queued over all the shards, default 16 MB
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient setMaxBufferedBytes(int bytes) {
+    maxShardBytes = Math.max(1, bytes / shards.length);
+    return this;
+  }
+
+
+  /**
+   * Set how failed requests are retried.
+   *
+   * @param attempts         the most times a request is sent, default 10
+   * @param minBackoffMillis the wait before the first retry, which doubles with each retry, default 30 milliseconds
+   * @param maxBackoffMillis the longest wait between retries, default 5 seconds
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient setRetry(int attempts, long minBackoffMillis, long maxBackoffMillis) {
+    maxAttempts = Math.max(1, attempts);
+    minBackoff = Math.max(1, minBackoffMillis);
+    maxBackoff = Math.max(minBackoff, maxBackoffMillis);
+    return this;
+  }
+
+
+  /**
+   * Set how long to wait for the receiver.
+   *
+   * @param connectMillis milliseconds to wait for a connection, default 10 seconds
+   * @param readMillis    milliseconds to wait for each read of the response, default 10 seconds
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient setTimeouts(int connectMillis, int readMillis) {
+    connectTimeout = connectMillis;
+    readTimeout = readMillis;
+    return this;
+  }
+
+
+  /**
+   * Write a snapshot of the ScoreCard periodically on a daemon thread.
+   *
+   * @param periodMillis milliseconds between snapshots
+   * @return this client for fluent method chaining
+   */
+  public RemoteWriteClient start(long periodMillis) {
+    lock.lock();
+    try {
+      if (executor == null) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread retval = new Thread(runnable, "RemoteWriteClient");
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            writeScoreCard();
+          }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Queue a snapshot of the whole ScoreCard stamped with the current time.
+   *
+   * @return the number of series queued
+   */
+  public int writeScoreCard() {
+    lock.lock();
+    try {
+      beginWrite();
+      MetricFormatter.writeScoreCardToRemoteWrite(snapshot, System.currentTimeMillis());
+      return endWrite();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Queue a snapshot of the given monitors stamped with the current time.
+   *
+   * @param monitors the monitors to write
+   * @return the number of series queued
+   */
+  public int write(Collection<? extends Monitor> monitors) {
+    lock.lock();
+    try {
+      beginWrite();
+      MetricFormatter.convertToRemoteWrite(snapshot, monitors, System.currentTimeMillis(), false);
+      return endWrite();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Send everything queued so far, waiting until it has been sent or the deadline passes.
+   *
+   * @param timeoutMillis the most milliseconds to wait
+   * @return true if every shard sent its series before the deadline, false otherwise
+   */
+  public boolean flush(long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    boolean retval = true;
+    for (final Shard shard : shards) {
+      retval &= shard.flush(deadline);
+    }
+    return retval;
+  }
+
+
+  /**
+   * Stop writing periodically, send everything queued so far waiting up to ten seconds, and stop the shards.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+    flush(10 * MILLISECONDS_PER_SECOND);
+    for (final Shard shard : shards) {
+      shard.close();
+    }
+  }
+
+
+  /**
+   * @return the number of series the receiver accepted.
+   */
+  public long getSentCount() {
+    long retval = 0;
+    for (final Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        retval += shard.sentSeries;
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the number of series dropped because a shard was full, or the receiver rejected or kept failing them.
+   */
+  public long getDroppedCount() {
+    long retval = 0;
+    for (final Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        retval += shard.droppedSeries;
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the number of requests which were retried.
+   */
+  public long getRetriedCount() {
+    long retval = 0;
+    for (final Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        retval += shard.retries;
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the reason the last request which was dropped failed, or null if none has been dropped.
+   */
+  public IOException getLastFailure() {
+    IOException retval = null;
+    long latest = 0;
+    for (final Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        if (shard.lastFailure != null && shard.failedAt >= latest) {
+          retval = shard.lastFailure;
+          latest = shard.failedAt;
+        }
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Prepare to encode a snapshot; the caller must hold the lock.
+   */
+  private void beginWrite() {
+    if (closed) {
+      throw new IllegalStateException("RemoteWriteClient is closed");
+    }
+    for (final Utf8Buffer buffer : snapshot) {
+      buffer.reset();
+    }
+  }
+
+
+  /**
+   * Queue the encoded snapshot on the shards; the caller must hold the lock.
+   */
+  private int endWrite() {
+    int retval = 0;
+    for (int i = 0; i < shards.length; i++) {
+      retval += shards[i].offer(snapshot[i]);
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the index after the series starting at the given index of a WriteRequest.
+   */
+  static int nextSeries(final byte[] request, int index) {
+    index++; // the key of the timeseries field
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      final byte b = request[index++];
+      length |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return index + length;
+      }
+    }
+  }
+
+
+  /**
+   * The queue of series of one shard and the daemon thread sending them.
+   */
+  private class Shard {
+    final int number;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition changed = lock.newCondition();
+    final Snappy snappy = new Snappy();
+    /**
+     * The series being queued, and the ones being sent, which are swapped when the shard sends.
+     */
+    Utf8Buffer queued = new Utf8Buffer(4096);
+    Utf8Buffer sending = new Utf8Buffer(4096);
+    byte[] compressed = new byte[0];
+    int queuedSeries = 0;
+    long queuedSince = 0;
+    boolean posting = false;
+    boolean flushRequested = false;
+    boolean stopped = false;
+    Thread thread = null;
+    long sentSeries = 0;
+    long droppedSeries = 0;
+    long retries = 0;
+    IOException lastFailure = null;
+    long failedAt = 0;
+
+
+    Shard(final int number) {
+      this.number = number;
+    }
+
+
+    /**
+     * Queue the series in the buffer.
+     *
+     * @return the number of series queued, 0 if they were dropped
+     */
+    int offer(final Utf8Buffer series) {
+      if (series.length() == 0) {
+        return 0;
+      }
+      int count = 0;
+      for (int i = 0; i < series.length(); i = nextSeries(series.array(), i)) {
+        count++;
+      }
+      lock.lock();
+      try {
+        if (queued.length() + series.length() > maxShardBytes) {
+          droppedSeries += count;
+          return 0;
+        }
+        if (queuedSeries == 0) {
+          queuedSince = System.currentTimeMillis();
+        }
+        queued.append(series.array(), 0, series.length());
+        queuedSeries += count;
+        start();
+        changed.signalAll();
+        return count;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+
+    boolean flush(final long deadline) {
+      lock.lock();
+      try {
+        flushRequested = true;
+        changed.signalAll();
+        try {
+          long remaining;
+          while ((queuedSeries > 0 || posting) && thread != null && (remaining = deadline - System.nanoTime()) > 0) {
+            changed.awaitNanos(remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return queuedSeries == 0 && !posting;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+
+    void close() {
+      lock.lock();
+      try {
+        stopped = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+
+    /**
+     * Start the thread which sends the series; the caller must hold the lock.
+     */
+    private void start() {
+      if (thread == null && !stopped) {
+        thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            work();
+          }
+        }, "RemoteWriteClient-" + number);
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+
+    private void work() {
+      lock.lock();
+      try {
+        while (!stopped) {
+          if (queuedSeries == 0) {
+            flushRequested = false;
+            changed.signalAll();
+            changed.awaitUninterruptibly();
+            continue;
+          }
+          final long wait = queuedSince + maxDelay - System.currentTimeMillis();
+          if (!flushRequested && queuedSeries < maxSeriesPerSend && wait > 0) {
+            try {
+              changed.await(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+              return;
+            }
+            continue;
+          }
+
+          final Utf8Buffer full = queued;
+          queued = sending.reset();
+          sending = full;
+          queuedSeries = 0;
+          posting = true;
+          sendAll(full);
+          posting = false;
+          changed.signalAll();
+        }
+      } finally {
+        thread = null;
+        changed.signalAll();
+        lock.unlock();
+      }
+    }
+
+
+    /**
+     * Send the series in requests of at most the batch size; the caller must hold the lock, which is released while
+     * each request is sent.
+     */
+    private void sendAll(final Utf8Buffer series) {
+      final byte[] bytes = series.array();
+      final int length = series.length();
+      int offset = 0;
+      while (offset < length) {
+        int end = offset;
+        int count = 0;
+        while (end < length && count < maxSeriesPerSend) {
+          end = nextSeries(bytes, end);
+          count++;
+        }
+        lock.unlock();
+        final long started = SelfMetrics.start();
+        IOException failure = null;
+        try {
+          failure = send(bytes, offset, end - offset);
+        } finally {
+          SelfMetrics.recordPush("remote_write", started, failure == null);
+          lock.lock();
+        }
+        if (failure == null) {
+          sentSeries += count;
+        } else {
+          droppedSeries += count;
+          lastFailure = failure;
+          failedAt = System.currentTimeMillis();
+        }
+        offset = end;
+      }
+    }
+
+
+    /**
+     * Compress and send a request, retrying while it fails in a way which might not happen again; only called by
+     * the sending thread without the lock.
+     *
+     * @return the reason the request was dropped, or null if it was accepted.
+     */
+    private IOException send(final byte[] bytes, final int offset, final int length) {
+      final int maxLength = Snappy.maxCompressedLength(length);
+      if (compressed.length < maxLength) {
+        compressed = new byte[maxLength];
+      }
+      final int compressedLength = snappy.compress(bytes, offset, length, compressed);
+      for (int attempt = 1; ; attempt++) {
+        try {
+          post(compressed, compressedLength);
+          return null;
+        } catch (IOException e) {
+          if (!PushGatewayClient.isRetriable(e) || attempt >= maxAttempts || isStopped()) {
+            return e;
+          }
+        } catch (RuntimeException e) {
+          return new IOException(e);
+        }
+        lock.lock();
+        try {
+          retries++;
+        } finally {
+          lock.unlock();
+        }
+        final long delay = Math.min(maxBackoff, minBackoff << Math.min(attempt - 1, 30));
+        try {
+          Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return new IOException("Interrupted while waiting to retry " + url);
+        }
+      }
+    }
+
+
+    private boolean isStopped() {
+      lock.lock();
+      try {
+        return stopped;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+
+  private void post(final byte[] body, final int length) throws IOException {
+    HttpPost.send(connectionFactory, url, CONTENT_TYPE, "snappy", VERSION_HEADER, length, out -> out.write(body, 0, length), connectTimeout, readTimeout);
+  }
+
+}
@@ -0,0 +1,140 @@
+package coyote.metrics.prom;
+
+import java.util.Arrays;
+
+/**
+ * Compresses data in the snappy block format, which Prometheus remote-write requires of its requests.
+ *
+ * <p>This is a plain greedy encoder after the reference implementation: the input is split into 64 KB blocks, each
+ * four byte sequence is looked up in a hash table of where it was last seen in the block, and a match is extended
+ * and emitted as a copy while the bytes in between are emitted as a literal. Positions which keep failing to match
+ * are skipped at a growing stride, so incompressible data passes through quickly. It compresses somewhat less than
+ * the reference encoder but decodes with any snappy decoder.</p>
+ *
+ * <p>An instance reuses its hash table and is not thread-safe.</p>
+ */
+final class Snappy {
+  private static final int BLOCK_SIZE = 1 << 16;
+  private static final int HASH_BITS = 14;
+  private static final int MIN_MATCH = 4;
+
+  private static final int TAG_LITERAL = 0;
+  private static final int TAG_COPY_1 = 1;
+  private static final int TAG_COPY_2 = 2;
+
+  private final int[] table = new int[1 << HASH_BITS];
+
+
+  /**
+   * @return the most bytes the compressed form of the given number of bytes can take.
+   */
+  static int maxCompressedLength(final int length) {
+    return 32 + length + length / 6;
+  }
+
+
+  /**
+   * Compress a range of bytes.
+   *
+   * @param in     the bytes to compress
+   * @param offset the start of the range
+   * @param length the number of bytes to compress
+   * @param out    the array to compress into, at least {@link #maxCompressedLength(int)} long
+   * @return the number of compressed bytes
+   */
+  int compress(final byte[] in, final int offset, final int length, final byte[] out) {
+    // the uncompressed length as a varint
+    int op = 0;
+    int remaining = length;
+    while ((remaining & ~0x7F) != 0) {
+      out[op++] = (byte) ((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    out[op++] = (byte) remaining;
+    final int end = offset + length;
+    for (int base = offset; base < end; base += BLOCK_SIZE) {
+      op = compressBlock(in, base, Math.min(end, base + BLOCK_SIZE), out, op);
+    }
+    return op;
+  }
+
+
+  private int compressBlock(final byte[] in, final int base, final int end, final byte[] out, int op) {
+    Arrays.fill(table, -1);
+    int literal = base;
+    int ip = base;
+    while (ip + MIN_MATCH <= end) {
+      final int bytes = read32(in, ip);
+      final int hash = (bytes * 0x1e35a7bd) >>> (32 - HASH_BITS);
+      final int candidate = table[hash];
+      table[hash] = ip;
+      if (candidate < 0 || read32(in, candidate) != bytes) {
+        // skip further ahead the longer nothing has matched
+        ip += 1 + ((ip - literal) >>> 5);
+        continue;
+      }
+      op = emitLiteral(in, literal, ip - literal, out, op);
+      int matched = MIN_MATCH;
+      while (ip + matched < end && in[candidate + matched] == in[ip + matched]) {
+        matched++;
+      }
+      op = emitCopy(ip - candidate, matched, out, op);
+      ip += matched;
+      literal = ip;
+    }
+    return emitLiteral(in, literal, end - literal, out, op);
+  }
+
+
+  private static int emitLiteral(final byte[] in, final int from, final int length, final byte[] out, int op) {
+    if (length == 0) {
+      return op;
+    }
+    final int n = length - 1;
+    if (n < 60) {
+      out[op++] = (byte) ((n << 2) | TAG_LITERAL);
+    } else {
+      // tags 60 to 63 are followed by the length less one in one to four little-endian bytes
+      final int count = (n < 1 << 8) ? 1 : (n < 1 << 16) ? 2 : (n < 1 << 24) ? 3 : 4;
+      out[op++] = (byte) (((59 + count) << 2) | TAG_LITERAL);
+      for (int i = 0; i < count; i++) {
+        out[op++] = (byte) (n >>> (8 * i));
+      }
+    }
+    System.arraycopy(in, from, out, op, length);
+    return op + length;
+  }
+
+
+  private static int emitCopy(final int distance, int length, final byte[] out, int op) {
+    // a two byte offset copies at most 64 bytes, and leaving at least four keeps the rest a valid copy
+    while (length >= 68) {
+      op = emitCopy2(distance, 64, out, op);
+      length -= 64;
+    }
+    if (length > 64) {
+      op = emitCopy2(distance, 60, out, op);
+      length -= 60;
+    }
+    if (length < 12 && distance < 2048) {
+      out[op++] = (byte) (((distance >>> 8) << 5) | ((length - 4) << 2) | TAG_COPY_1);
+      out[op++] = (byte) distance;
+      return op;
+    }
+    return emitCopy2(distance, length, out, op);
+  }
+
+
+  private static int emitCopy2(final int distance, final int length, final byte[] out, int op) {
+    out[op++] = (byte) (((length - 1) << 2) | TAG_COPY_2);
+    out[op++] = (byte) distance;
+    out[op++] = (byte) (distance >>> 8);
+    return op;
+  }
+
+
+  private static int read32(final byte[] in, final int i) {
+    return (in[i] & 0xFF) | (in[i + 1] & 0xFF) << 8 | (in[i + 2] & 0xFF) << 16 | (in[i + 3] & 0xFF) << 24;
+  }
+
+}
@@ -0,0 +1,465 @@
+package coyote.metrics.statsd;
+
+import coyote.metrics.Buckets;
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.Monitor;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.SelfMetrics;
+import coyote.metrics.TimerSnapshot;
+import coyote.metrics.TimingMaster;
+import coyote.metrics.Utf8Buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Emits the ScoreCard to a StatsD or DogStatsD agent over UDP without a gateway.
+ *
+ * <p>Updates are aggregated where they are made, in the counters, gauges and master timers of the ScoreCard, so an
+ * update costs no more than it does without the sink. Every flush interval the sink sends what changed since the
+ * previous flush, found from the change epochs of the ScoreCard without visiting unchanged monitors: the increase of
+ * each counter, the value of each gauge, and the intervals recorded by each master timer.</p>
+ * <pre>
+ * StatsdSink sink = new StatsdSink("localhost", 8125).setPrefix("checkout.").start(10000);
+ * ...
+ * sink.close();
+ * </pre>
+ *
+ * <p>StatsD expects timers as individual samples, which master timers do not keep. Each histogram bucket of a master
+ * timer is instead sent as one sample at the middle of the bucket with a sample rate of one over the number of
+ * intervals in the bucket, so the agent counts every interval and sees their distribution at the resolution of the
+ * buckets. Master timers without buckets are sent as their mean interval at a rate of one over their number of
+ * intervals, which keeps the count and sum the agent computes exact.</p>
+ *
+ * <p>As many lines as fit are packed into each datagram, up to a size which should stay within the MTU of the path to
+ * the agent. Datagrams are sent through a non-blocking channel; any the socket cannot take at once are dropped and
+ * counted, as UDP gives no guarantee of delivery anyway.</p>
+ */
+public class StatsdSink implements Closeable {
+  /**
+   * The largest payload which fits the 1500 byte MTU of Ethernet with room for IP options and tunnels.
+   */
+  public static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+
+  private final InetSocketAddress address;
+  private final DatagramChannel channel;
+  private final ReentrantLock lock = new ReentrantLock();
+  /**
+   * What was sent of each monitor, so only the increase since then is sent.
+   */
+  private final Map<Monitor, Sent> sent = new WeakHashMap<>();
+  private final Utf8Buffer line = new Utf8Buffer(256);
+  private final TimerSnapshot timer = new TimerSnapshot();
+  private ByteBuffer packet = ByteBuffer.allocate(DEFAULT_MAX_PACKET_SIZE);
+  private String prefix = "";
+  private boolean tags = false;
+  private long since = 0;
+  private long sentPackets = 0;
+  private long droppedPackets = 0;
+  private ScheduledExecutorService executor = null;
+
+
+  /**
+   * @param host the host of the agent
+   * @param port the port of the agent, usually 8125
+   * @throws IOException if the channel could not be opened
+   */
+  public StatsdSink(String host, int port) throws IOException {
+    this(new InetSocketAddress(host, port));
+  }
+
+
+  /**
+   * @param address the address of the agent
+   * @throws IOException if the channel could not be opened
+   */
+  public StatsdSink(InetSocketAddress address) throws IOException {
+    this.address = address;
+    channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+  }
+
+
+  /**
+   * @param text prepended to the name of every metric, such as "service."
+   * @return this sink for fluent method chaining
+   */
+  public StatsdSink setPrefix(String text) {
+    lock.lock();
+    try {
+      prefix = (text != null) ? text : "";
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Send the labels of monitors as DogStatsD tags; plain StatsD agents do not understand tags.
+   *
+   * @param flag true to send labels as tags
+   * @return this sink for fluent method chaining
+   */
+  public StatsdSink setTags(boolean flag) {
+    lock.lock();
+    try {
+      tags = flag;
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * @param bytes the most bytes sent in a datagram, default {@link #DEFAULT_MAX_PACKET_SIZE}; up to 8932 is safe on
+   *              loopback and networks with jumbo frames
+   * @return this sink for fluent method chaining
+   */
+  public StatsdSink setMaxPacketSize(int bytes) {
+    lock.lock();
+    try {
+      packet = ByteBuffer.allocate(Math.max(64, bytes));
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Flush the ScoreCard periodically on a daemon thread.
+   *
+   * @param periodMillis milliseconds between flushes
+   * @return this sink for fluent method chaining
+   */
+  public StatsdSink start(long periodMillis) {
+    lock.lock();
+    try {
+      if (executor == null) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread retval = new Thread(runnable, "StatsdSink");
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+
+  /**
+   * Send everything which changed in the ScoreCard since the previous flush.
+   *
+   * @return the number of lines sent
+   */
+  public int flush() {
+    lock.lock();
+    try {
+      final long next = ScoreCard.advanceEpoch();
+      final List<Monitor> changed = ScoreCard.getChangedSince(since);
+      since = next;
+      int retval = 0;
+      packet.clear();
+      // the change log lists the most recent changes first
+      for (int i = changed.size() - 1; i >= 0; i--) {
+        retval += emit(changed.get(i));
+      }
+      // the self metrics are not in the change log, but only what changed of them is packed
+      for (final Monitor monitor : SelfMetrics.getMonitors()) {
+        retval += emit(monitor);
+      }
+      sendPacket();
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of datagrams sent.
+   */
+  public long getSentCount() {
+    lock.lock();
+    try {
+      return sentPackets;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return the number of datagrams dropped because the socket could not take them.
+   */
+  public long getDroppedCount() {
+    lock.lock();
+    try {
+      return droppedPackets;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Stop flushing periodically, flush what changed since the last flush, and close the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      flush();
+      channel.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Pack the lines of a changed monitor; the caller must hold the lock.
+   *
+   * @return the number of lines packed
+   */
+  private int emit(Monitor monitor) {
+    Sent last = sent.get(monitor);
+    if (last == null) {
+      last = new Sent();
+      sent.put(monitor, last);
+    }
+    if (monitor instanceof TimingMaster) {
+      return emitTimer((TimingMaster) monitor, last);
+    } else if (monitor instanceof Gauge) {
+      final long value = monitor.getValue();
+      if (last.count > 0 && value == last.value) {
+        return 0;
+      }
+      line.reset();
+      if (value < 0) {
+        // a signed value changes a gauge rather than setting it, so negative values are set by way of zero
+        appendLine(monitor, 0, "g", 1);
+        line.append('\n');
+      }
+      appendLine(monitor, value, "g", 1);
+      pack();
+      last.value = value;
+      last.count = 1;
+      return (value < 0) ? 2 : 1;
+    } else if (monitor instanceof Counter) {
+      final long value = monitor.getValue();
+      // a counter which went down was reset, and everything since the reset is new
+      final long delta = (value >= last.value) ? value - last.value : value;
+      last.value = value;
+      if (delta == 0) {
+        return 0;
+      }
+      line.reset();
+      appendLine(monitor, delta, "c", 1);
+      pack();
+      return 1;
+    }
+    return 0;
+  }
+
+
+  /**
+   * Pack the intervals a master timer recorded since the last flush; the caller must hold the lock.
+   */
+  private int emitTimer(TimingMaster master, Sent last) {
+    // read at once so the intervals sent match the intervals in the buckets
+    timer.read(master);
+    final Buckets buckets = timer.getBuckets();
+    final int size = (buckets != null) ? buckets.size() : 0;
+    final long count = timer.getSampleCount();
+    final long sum = timer.getTotal();
+    if (count < last.count || (buckets != null && (last.counts == null || last.counts.length != size))) {
+      // the master was reset or its buckets changed
+      last.count = 0;
+      last.value = 0;
+      last.counts = (buckets != null) ? new long[size] : null;
+    }
+    final long intervals = count - last.count;
+    final long total = sum - last.value;
+    int retval = 0;
+    if (intervals > 0) {
+      if (buckets == null) {
+        line.reset();
+        appendLine(master, (double) total / intervals, "ms", intervals);
+        pack();
+        retval++;
+      } else {
+        long below = 0;
+        long lastBelow = 0;
+        for (int i = 0; i < size; i++) {
+          final long upTo = timer.getBucketCount(i);
+          final long inBucket = (upTo - below) - (last.counts[i] - lastBelow);
+          below = upTo;
+          lastBelow = last.counts[i];
+          last.counts[i] = upTo;
+          if (inBucket > 0) {
+            final long lower = (i == 0) ? 0 : buckets.getBound(i - 1);
+            final long upper = (i == size - 1) ? Math.max(lower, timer.getMaximum()) : buckets.getBound(i);
+            line.reset();
+            appendLine(master, (lower + upper) / 2.0, "ms", inBucket);
+            pack();
+            retval++;
+          }
+        }
+      }
+    }
+    last.count = count;
+    last.value = sum;
+    return retval;
+  }
+
+
+  private void appendLine(Monitor monitor, long value, String type, long intervals) {
+    appendName(monitor);
+    line.append(value);
+    appendSuffix(monitor, type, intervals);
+  }
+
+
+  private void appendLine(Monitor monitor, double value, String type, long intervals) {
+    appendName(monitor);
+    line.append(value);
+    appendSuffix(monitor, type, intervals);
+  }
+
+
+  private void appendName(Monitor monitor) {
+    appendSanitized(prefix, false);
+    appendSanitized(monitor.getName(), false);
+    line.append(':');
+  }
+
+
+  private void appendSuffix(Monitor monitor, String type, long intervals) {
+    line.append('|').append(type);
+    if (intervals > 1) {
+      line.append("|@").append(1.0 / intervals);
+    }
+    if (tags) {
+      final Map<String, String> labels = monitor.getLabels();
+      if (!labels.isEmpty()) {
+        final String[] keys = labels.keySet().toArray(new String[labels.size()]);
+        Arrays.sort(keys);
+        line.append("|#");
+        for (int i = 0; i < keys.length; i++) {
+          final String key = keys[i];
+          if (i > 0) {
+            line.append(',');
+          }
+          appendSanitized(key, true);
+          line.append(':');
+          appendSanitized(labels.get(key), true);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Append text, replacing the characters which delimit the parts of a line.
+   */
+  private void appendSanitized(String text, boolean tag) {
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c == ':' || c == '|' || c == '@' || c == '\n' || c == '\r' || (tag && (c == ',' || c == '#'))) {
+        line.append(text, start, i).append('_');
+        start = i + 1;
+      }
+    }
+    line.append(text, start, text.length());
+  }
+
+
+  /**
+   * Add the rendered line to the packet, sending the packet first if the line does not fit.
+   */
+  private void pack() {
+    final int needed = line.length() + ((packet.position() > 0) ? 1 : 0);
+    if (needed > packet.remaining()) {
+      sendPacket();
+    }
+    if (line.length() > packet.remaining()) {
+      // a line longer than a packet is sent on its own
+      send(ByteBuffer.wrap(line.array(), 0, line.length()));
+      return;
+    }
+    if (packet.position() > 0) {
+      packet.put((byte) '\n');
+    }
+    packet.put(line.array(), 0, line.length());
+  }
+
+
+  private void sendPacket() {
+    if (packet.position() > 0) {
+      packet.flip();
+      send(packet);
+      packet.clear();
+    }
+  }
+
+
+  private void send(ByteBuffer datagram) {
+    final long started = SelfMetrics.start();
+    boolean sent = false;
+    try {
+      if (channel.send(datagram, address) > 0) {
+        sentPackets++;
+        sent = true;
+      } else {
+        droppedPackets++;
+      }
+    } catch (IOException e) {
+      // the agent may not be running; metrics over UDP are best effort
+      droppedPackets++;
+    }
+    SelfMetrics.recordPush("statsd", started, sent);
+  }
+
+
+  /**
+   * What was last sent of a monitor: the value of a counter or gauge, or the intervals of a master timer.
+   */
+  private static class Sent {
+    long value;
+    long count;
+    long[] counts;
+  }
+
+}
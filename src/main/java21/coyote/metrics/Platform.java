@@ -0,0 +1,24 @@
+package coyote.metrics;
+
+/**
+ * Isolates the parts of the library which depend on the release of the Java runtime.
+ *
+ * <p>This is the Java 21 implementation, packaged under {@code META-INF/versions/21} of the multi-release jar.</p>
+ */
+final class Platform {
+
+  /**
+   * No instances
+   */
+  private Platform() {
+  }
+
+
+  /**
+   * @return true if the calling thread is a virtual thread.
+   */
+  static boolean isVirtualThread() {
+    return Thread.currentThread().isVirtual();
+  }
+
+}
@@ -0,0 +1,188 @@
+package coyote.metrics;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import coyote.metrics.influx.LineProtocolFormatter;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Fails the build when an instrumentation hot path allocates more per operation than its budget.
+ *
+ * <p>Each operation is run until it is compiled and then measured over several rounds of many iterations with the
+ * allocation counter of the thread, so the figure is the steady state garbage of one call. The budgets are the bytes per operation in
+ * {@code allocation-budgets.properties}; when a change makes an operation allocate more, either remove the garbage or
+ * raise the budget in the same change, and lower budgets when an operation gets cheaper. Every operation must have a
+ * budget and every budget an operation.</p>
+ */
+class AllocationBudgetTest {
+  private static final String BUDGETS = "allocation-budgets.properties";
+  private static final int WARMUP = 50000;
+  private static final int ROUNDS = 5;
+  private static final int ITERATIONS = 20000;
+
+  private static final OutputStream DISCARD = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+
+  /**
+   * An operation on a hot path.
+   */
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+
+  private static Map<String, Operation> operations() {
+    final Map<String, Operation> retval = new LinkedHashMap<>();
+    ScoreCard.enableTiming();
+    retval.put("ScoreCard.incrementCounter", () -> ScoreCard.incrementCounter("alloc_counter"));
+    retval.put("ScoreCard.increaseCounter", () -> ScoreCard.increaseCounter("alloc_counter", 5));
+    retval.put("ScoreCard.getCounter", () -> ScoreCard.getCounter("alloc_counter"));
+    retval.put("ScoreCard.incrementGauge", () -> ScoreCard.incrementGauge("alloc_gauge"));
+    retval.put("ScoreCard.decrementGauge", () -> ScoreCard.decrementGauge("alloc_gauge"));
+    retval.put("ScoreCard.startTimer.stop", () -> ScoreCard.startTimer("alloc_timer").stop());
+    retval.put("ScoreCard.startTimer.stopTimer", () -> {
+      ScoreCard.startTimer("alloc_timer");
+      ScoreCard.stopTimer("alloc_timer");
+    });
+    retval.put("ScoreCard.startNestedTimer", () -> {
+      final Timer outer = ScoreCard.startNestedTimer("alloc_nested");
+      ScoreCard.startNestedTimer("alloc_nested_step").stop();
+      outer.stop();
+    });
+    retval.put("ScoreCard.openScope", () -> {
+      try (TimerScope scope = ScoreCard.openScope("alloc_scope")) {
+        scope.success();
+      }
+    });
+
+    final Counter counter = new Counter("alloc_direct_counter");
+    retval.put("Counter.increment", counter::increment);
+    final Gauge gauge = new Gauge("alloc_direct_gauge");
+    retval.put("Gauge.increase", () -> gauge.increase(3));
+
+    final TimingMaster master = new TimingMaster("alloc_master");
+    master.setBuckets(new Buckets(1, 10, 100, 1000));
+    master.addLabel("region", "eu");
+    master.addLabel("zone", "a");
+    retval.put("TimingMaster.createTimer", () -> master.createTimer().stop());
+    retval.put("TimingMaster.createTimer.start", () -> {
+      final Timer timer = master.createTimer();
+      timer.start();
+      timer.stop();
+    });
+    retval.put("TimingMaster.record", () -> master.record(42));
+    retval.put("TimingMaster.openScope", () -> master.openScope().close());
+    retval.put("TimingMaster.getLabels", master::getLabels);
+
+    final Utf8Buffer buffer = new Utf8Buffer(1024);
+    retval.put("Utf8Buffer.append(long)", () -> buffer.reset().append(1234567890123L));
+
+    final List<Monitor> monitors = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      final Counter exported = new Counter("alloc_export_" + i);
+      exported.addLabel("instance", "host-" + i);
+      exported.increase(1000L * i);
+      monitors.add(exported);
+    }
+    monitors.add(master);
+    retval.put("MetricFormatter.convertToJson", () -> MetricFormatter.convertToJson(DISCARD, monitors, true));
+    retval.put("MetricFormatter.convertToOpenMetrics", () -> MetricFormatter.convertToOpenMetrics(DISCARD, monitors, false));
+    retval.put("MetricFormatter.convertToProtobuf", () -> MetricFormatter.convertToProtobuf(DISCARD, monitors, false));
+    final Utf8Buffer[] shards = {new Utf8Buffer(8192)};
+    retval.put("MetricFormatter.convertToRemoteWrite", () -> {
+      shards[0].reset();
+      MetricFormatter.convertToRemoteWrite(shards, monitors, 1700000000000L, false);
+    });
+    final Utf8Buffer points = new Utf8Buffer(8192);
+    retval.put("LineProtocolFormatter.appendPoints", () -> LineProtocolFormatter.appendPoints(points.reset(), monitors, 1700000000000000000L));
+    return retval;
+  }
+
+
+  @Test
+  void staysWithinAllocationBudgets() throws Exception {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "thread allocation counters are not available");
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported(), "thread allocation counters are not supported");
+    threads.setThreadAllocatedMemoryEnabled(true);
+    // object sizes, and so the budgets, depend on the size of references
+    assumeTrue(isEnabled("UseCompressedOops") && isEnabled("UseCompressedClassPointers"), "the budgets were measured with compressed references");
+
+    final Properties budgets = new Properties();
+    try (InputStream in = getClass().getResourceAsStream(BUDGETS)) {
+      assertNotNull(in, BUDGETS + " is missing");
+      budgets.load(in);
+    }
+
+    final List<String> failures = new ArrayList<>();
+    final StringBuilder measurements = new StringBuilder("\nmeasured bytes per operation:");
+    final long thread = Thread.currentThread().getId();
+    final Map<String, Operation> operations = operations();
+    for (final Map.Entry<String, Operation> entry : operations.entrySet()) {
+      final Operation operation = entry.getValue();
+      for (int i = 0; i < WARMUP; i++) {
+        operation.run();
+      }
+      // the least of several rounds, as the compiler removes some allocations only after a while
+      long measured = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+          operation.run();
+        }
+        measured = Math.min(measured, (threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS);
+      }
+      final String budget = budgets.getProperty(entry.getKey());
+      measurements.append('\n').append(entry.getKey()).append('=').append(measured);
+      if (budget == null) {
+        failures.add(entry.getKey() + " allocates " + measured + " bytes per operation and has no budget");
+      } else if (measured > Long.parseLong(budget.trim())) {
+        failures.add(entry.getKey() + " allocates " + measured + " bytes per operation, over its budget of " + budget.trim());
+      }
+    }
+    for (final String name : budgets.stringPropertyNames()) {
+      if (!operations.containsKey(name)) {
+        failures.add(name + " has a budget but is not measured");
+      }
+    }
+    assertTrue(failures.isEmpty(), String.join("\n", failures) + measurements);
+  }
+
+
+  /**
+   * @return true if the HotSpot option is on, false if it is off or this is not a HotSpot JVM.
+   */
+  private static boolean isEnabled(final String option) {
+    final HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    if (hotspot == null) {
+      return false;
+    }
+    try {
+      return Boolean.parseBoolean(hotspot.getVMOption(option).getValue());
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+}
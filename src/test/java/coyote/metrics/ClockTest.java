@@ -0,0 +1,123 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClockTest {
+
+  @AfterEach
+  void restoreClock() {
+    ScoreCard.setClock(null);
+  }
+
+
+  @Test
+  void manualClockMakesTimingsDeterministic() {
+    ManualClock clock = new ManualClock(1700000000000L);
+    ScoreCard.setClock(clock);
+    assertSame(clock, ScoreCard.getClock());
+
+    TimingMaster master = new TimingMaster("clock_manual");
+    Timer timer = master.createTimer();
+    timer.start();
+    assertEquals(1700000000000L, master.getLastAccessTime());
+    clock.advance(250, TimeUnit.MILLISECONDS);
+    assertEquals(250, timer.getAccrued());
+    timer.stop();
+    assertEquals(250, master.getTotal());
+
+    try (TimerScope scope = master.openScope()) {
+      clock.advance(1500, TimeUnit.MICROSECONDS);
+      scope.success();
+    }
+    assertEquals(251, master.getTotal());
+    assertEquals(1700000000251L, master.getLastAccessTime());
+  }
+
+
+  @Test
+  void durationsIgnoreWallClockAdjustments() {
+    ManualClock clock = new ManualClock(1700000000000L);
+    ScoreCard.setClock(clock);
+    TimingMaster master = new TimingMaster("clock_adjusted");
+    Timer timer = master.createTimer();
+    timer.start();
+    clock.setMillis(1600000000000L);
+    clock.advance(40, TimeUnit.MILLISECONDS);
+    timer.stop();
+    assertEquals(40, master.getTotal());
+    assertEquals(1600000000040L, clock.millis());
+  }
+
+
+  @Test
+  void nestedTimersUseTheClock() {
+    ManualClock clock = new ManualClock();
+    ScoreCard.setClock(clock);
+    Timer outer = ScoreCard.startNestedTimer("clock_outer");
+    clock.advance(10, TimeUnit.MILLISECONDS);
+    Timer inner = ScoreCard.startNestedTimer("clock_inner");
+    clock.advance(30, TimeUnit.MILLISECONDS);
+    inner.stop();
+    outer.stop();
+    NestedTimingMaster root = ScoreCard.getNestedTimerMaster("clock_outer");
+    assertEquals(40, root.getTotal());
+    assertEquals(10, root.getSelfTotal());
+  }
+
+
+  @Test
+  void executorsUseTheClock() throws Exception {
+    final ManualClock clock = new ManualClock();
+    ScoreCard.setClock(clock);
+    final InstrumentedExecutorService executor = new InstrumentedExecutorService("clock_pool", Executors.newSingleThreadExecutor());
+    try {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      Future<?> first = executor.submit(() -> {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        clock.advance(30, TimeUnit.MILLISECONDS);
+      });
+      started.await();
+      Future<?> second = executor.submit(() -> {
+        clock.advance(5, TimeUnit.MILLISECONDS);
+      });
+      clock.advance(20, TimeUnit.MILLISECONDS);
+      release.countDown();
+      first.get();
+      second.get();
+    } finally {
+      executor.shutdown();
+    }
+    // the second task waited while the first ran for 50ms
+    assertEquals(50, ScoreCard.getTimerMaster("clock_pool" + FutureTimer.QUEUE_SUFFIX).getTotal());
+    assertEquals(55, ScoreCard.getTimerMaster("clock_pool" + FutureTimer.RUN_SUFFIX).getTotal());
+  }
+
+
+  @Test
+  void coarseClockFollowsSystemTime() throws InterruptedException {
+    try (CoarseClock clock = new CoarseClock(1)) {
+      long before = clock.millis();
+      assertTrue(Math.abs(System.currentTimeMillis() - before) < 1000);
+      Thread.sleep(50);
+      assertTrue(clock.millis() > before, "the ticker updates the time");
+      long nanos = clock.nanos();
+      assertTrue(clock.nanos() >= nanos);
+    }
+    assertThrows(IllegalArgumentException.class, () -> new CoarseClock(0));
+  }
+
+}
@@ -0,0 +1,69 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FutureTimerTest {
+
+  private static void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+    }
+  }
+
+
+  @Test
+  public void splitsQueueAndRunTime() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // occupy the only thread so the timed task has to wait in the queue
+      CountDownLatch latch = new CountDownLatch(1);
+      executor.execute(() -> {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+        }
+      });
+      CompletableFuture<String> future = FutureTimer.supplyAsync("splitsQueueAndRunTime", () -> {
+        pause(30);
+        return "done";
+      }, executor);
+      pause(30);
+      latch.countDown();
+      assertEquals("done", future.get());
+    } finally {
+      executor.shutdown();
+    }
+
+    TimingMaster queue = ScoreCard.getTimerMaster("splitsQueueAndRunTime" + FutureTimer.QUEUE_SUFFIX);
+    TimingMaster run = ScoreCard.getTimerMaster("splitsQueueAndRunTime" + FutureTimer.RUN_SUFFIX);
+    TimingMaster total = ScoreCard.getTimerMaster("splitsQueueAndRunTime");
+    assertEquals(1, queue.getHits());
+    assertEquals(1, run.getHits());
+    assertTrue(queue.getTotal() >= 25, "Queue time was " + queue.getTotal());
+    assertTrue(run.getTotal() >= 25, "Run time was " + run.getTotal());
+
+    // the total is recorded on completion which may happen just after get() returns
+    for (int i = 0; i < 100 && total.getHits() == 0; i++) pause(10);
+    assertEquals(1, total.getHits());
+    assertTrue(total.getTotal() >= queue.getTotal(), "Total time less than queue time");
+  }
+
+
+  @Test
+  public void timesStage() throws Exception {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    assertSame(future, FutureTimer.time("timesStage", future));
+    assertEquals(0, ScoreCard.getTimerMaster("timesStage").getHits(), "Recorded before completion");
+    future.completeExceptionally(new IllegalStateException());
+    assertEquals(1, ScoreCard.getTimerMaster("timesStage").getHits(), "Failure was not recorded");
+  }
+
+}
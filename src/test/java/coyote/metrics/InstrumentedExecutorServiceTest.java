@@ -0,0 +1,133 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstrumentedExecutorServiceTest {
+
+  @Test
+  public void tracksQueueAndRejections() throws Exception {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+    InstrumentedExecutorService executor = new InstrumentedExecutorService("tracksQueue", pool);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch running = new CountDownLatch(1);
+
+    Future<?> first = executor.submit(() -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+      }
+    });
+    running.await();
+    Future<String> second = executor.submit(() -> "second");
+    assertEquals(1, executor.getActiveCount(), "First task should be running");
+    assertEquals(1, executor.getQueuedCount(), "Second task should be queued");
+
+    assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+    }));
+    assertEquals(1, executor.getRejectedCount(), "Rejection was not counted");
+    assertEquals(1, executor.getQueuedCount(), "Rejected task should not remain queued");
+
+    release.countDown();
+    first.get();
+    assertEquals("second", second.get());
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(0, executor.getQueuedCount());
+    assertEquals(0, executor.getActiveCount());
+    assertEquals(2, ScoreCard.getTimerMaster("tracksQueue" + FutureTimer.QUEUE_SUFFIX).getHits());
+    assertEquals(2, ScoreCard.getTimerMaster("tracksQueue" + FutureTimer.RUN_SUFFIX).getHits());
+  }
+
+
+  @Test
+  public void tracksScheduledRuns() throws Exception {
+    InstrumentedScheduledExecutorService executor = new InstrumentedScheduledExecutorService("tracksScheduled", Executors.newScheduledThreadPool(1));
+    ScheduledFuture<Integer> future = executor.schedule(() -> 42, 10, TimeUnit.MILLISECONDS);
+    assertEquals(0, executor.getQueuedCount(), "Delayed tasks are not queued");
+    assertEquals(42, (int) future.get());
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(1, ScoreCard.getTimerMaster("tracksScheduled" + FutureTimer.RUN_SUFFIX).getHits());
+  }
+
+
+  @Test
+  public void drainsQueueOnShutdownNow() throws Exception {
+    InstrumentedExecutorService executor = new InstrumentedExecutorService("drainsQueue", Executors.newSingleThreadExecutor());
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+      }
+    });
+    running.await();
+    executor.execute(() -> {
+    });
+    Future<String> submitted = executor.submit(() -> "drained");
+    assertEquals(2, executor.getQueuedCount());
+
+    List<Runnable> drained = executor.shutdownNow();
+    assertEquals(2, drained.size());
+    assertEquals(0, executor.getQueuedCount(), "Drained tasks are still queued");
+    for (Runnable task : drained) {
+      task.run();
+    }
+    assertEquals("drained", submitted.get());
+    assertEquals(0, executor.getQueuedCount(), "Running drained tasks uncounted them again");
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getActiveCount());
+  }
+
+
+  @Test
+  public void uncountsTasksCancelledBeforeStarting() throws Exception {
+    InstrumentedExecutorService executor = new InstrumentedExecutorService("cancelsQueued", Executors.newSingleThreadExecutor());
+    List<Callable<String>> tasks = new ArrayList<>();
+    tasks.add(() -> {
+      Thread.sleep(50);
+      return "first";
+    });
+    for (int i = 0; i < 5; i++) {
+      tasks.add(() -> {
+        Thread.sleep(50);
+        return "later";
+      });
+    }
+    assertNotNull(executor.invokeAny(tasks));
+    assertEquals(0, executor.getQueuedCount(), "Tasks cancelled by invokeAny are still queued");
+
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+      }
+    });
+    running.await();
+    Future<?> cancelled = executor.submit(() -> {
+    });
+    assertEquals(1, executor.getQueuedCount());
+    cancelled.cancel(false);
+    assertEquals(0, executor.getQueuedCount(), "Cancelled task is still queued");
+    release.countDown();
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedCount());
+    assertEquals(0, executor.getActiveCount());
+  }
+
+}
@@ -0,0 +1,273 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricFormatterTest {
+
+  @Test
+  public void writesNumbers() {
+    Utf8Buffer buffer = new Utf8Buffer(16);
+    long[] values = {0, 7, -7, 10, 999, 1000, Long.MAX_VALUE, Long.MIN_VALUE, 1234567890123L};
+    for (long value : values) {
+      buffer.reset().append(value);
+      assertEquals(Long.toString(value), buffer.toString());
+    }
+    assertEquals("12", buffer.reset().append(12.0d).toString());
+    assertEquals("0.5", buffer.reset().append(0.5d).toString());
+    assertEquals("+Inf", buffer.reset().append(Double.POSITIVE_INFINITY).toString());
+  }
+
+
+  @Test
+  public void encodesUtf8() {
+    String text = "caf\u00e9 \u20ac \ud83d\ude00";
+    Utf8Buffer buffer = new Utf8Buffer(4);
+    buffer.append(text);
+    assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+  }
+
+
+  @Test
+  public void groupsFamilies() throws IOException {
+    Counter a = new Counter("login");
+    a.addLabel(MetricFormatter.METRIC_NAME_LABEL, "test_duration");
+    a.setDescription("Duration of the test");
+    a.increase(5);
+    Counter b = new Counter("logout");
+    b.addLabel(MetricFormatter.METRIC_NAME_LABEL, "test_duration");
+    b.addLabel("env", "dev \"one\"");
+    b.increase(7);
+    Gauge c = new Gauge("queue depth");
+    c.increase(3);
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(a);
+    monitors.add(c);
+    monitors.add(b);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new OpenMetricsWriter(new Utf8Buffer(), out, true, true).write(monitors);
+    String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+    assertEquals("# TYPE queue_depth gauge\n"
+            + "queue_depth 3\n"
+            + "# HELP test_duration Duration of the test\n"
+            + "# TYPE test_duration counter\n"
+            + "test_duration{job=\"login\"} 5\n"
+            + "test_duration{job=\"logout\",env=\"dev \\\"one\\\"\"} 7\n", text);
+  }
+
+
+  @Test
+  public void refreshesCachedLabels() throws IOException {
+    Gauge gauge = new Gauge("refreshesCachedLabels");
+    gauge.addLabel("env", "dev");
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(gauge);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricFormatter.convertToOpenMetrics(out, monitors, false);
+    assertTrue(out.toString("UTF-8").contains("refreshesCachedLabels{env=\"dev\"} 0"));
+
+    gauge.addLabel("env", "prod");
+    out.reset();
+    MetricFormatter.convertToOpenMetrics(out, monitors, false);
+    assertTrue(out.toString("UTF-8").contains("refreshesCachedLabels{env=\"prod\"} 0"), "Stale labels were written");
+  }
+
+
+  @Test
+  public void exportsSummary() throws IOException {
+    TimingMaster master = new TimingMaster("request_ms");
+    master.addLabel("env", "dev");
+    master.record(4);
+    master.record(10);
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(master);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricFormatter.convertToOpenMetrics(out, monitors, false);
+
+    assertEquals("# TYPE request_ms summary\n"
+            + "request_ms{env=\"dev\",quantile=\"0\"} 4\n"
+            + "request_ms{env=\"dev\",quantile=\"1\"} 10\n"
+            + "request_ms_sum{env=\"dev\"} 14\n"
+            + "request_ms_count{env=\"dev\"} 2\n", out.toString("UTF-8"));
+  }
+
+
+  @Test
+  public void exportsHistogram() throws IOException {
+    TimingMaster master = new TimingMaster("query_ms");
+    master.setBuckets(new Buckets(5, 50));
+    master.record(1);
+    master.record(5);
+    master.record(20);
+    master.record(700);
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(master);
+
+    StringWriter writer = new StringWriter();
+    MetricFormatter.convertToOpenMetrics(writer, monitors);
+
+    assertEquals("# TYPE query_ms histogram\n"
+            + "query_ms_bucket{le=\"5\"} 2\n"
+            + "query_ms_bucket{le=\"50\"} 3\n"
+            + "query_ms_bucket{le=\"+Inf\"} 4\n"
+            + "query_ms_sum 726\n"
+            + "query_ms_count 4\n", writer.toString());
+    assertArrayEquals(new long[]{2, 3, 4}, master.getBucketCounts());
+  }
+
+
+  @Test
+  public void bucketsSetAfterRecording() throws IOException {
+    TimingMaster master = new TimingMaster("late_buckets_ms");
+    master.record(3);
+    master.record(30);
+    master.setBuckets(new Buckets(5, 50));
+    master.record(40);
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(master);
+
+    StringWriter writer = new StringWriter();
+    MetricFormatter.convertToOpenMetrics(writer, monitors);
+
+    assertEquals("# TYPE late_buckets_ms histogram\n"
+            + "late_buckets_ms_bucket{le=\"5\"} 0\n"
+            + "late_buckets_ms_bucket{le=\"50\"} 1\n"
+            + "late_buckets_ms_bucket{le=\"+Inf\"} 1\n"
+            + "late_buckets_ms_sum 40\n"
+            + "late_buckets_ms_count 1\n", writer.toString());
+    assertEquals(master.getSampleCount(), master.getBucketCounts()[2], "+Inf bucket differs from the count");
+  }
+
+
+  @Test
+  public void encodesProtobuf() throws IOException {
+    Counter counter = new Counter("c");
+    counter.addLabel("a", "b");
+    counter.increase(3);
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(counter);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricFormatter.convertToProtobuf(out, monitors, false);
+
+    byte[] expected = {
+            0x1a, // length of the MetricFamily
+            0x0a, 0x01, 'c', // name
+            0x18, 0x00, // type COUNTER
+            0x22, 0x13, // metric
+            0x0a, 0x06, 0x0a, 0x01, 'a', 0x12, 0x01, 'b', // label a="b"
+            0x1a, 0x09, 0x09, 0, 0, 0, 0, 0, 0, 0x08, 0x40 // counter value 3.0
+    };
+    assertArrayEquals(expected, out.toByteArray());
+
+    monitors.set(0, new Gauge("g"));
+    out.reset();
+    MetricFormatter.convertToProtobuf(out, monitors, false);
+    byte[] gauge = out.toByteArray();
+    assertEquals(0x01, gauge[5], "Gauge not typed GAUGE");
+    assertEquals(0x12, gauge[8], "Gauge value not in the gauge field");
+  }
+
+
+  @Test
+  public void encodesVarints() {
+    Utf8Buffer buffer = new Utf8Buffer(16);
+    ProtobufEncoder.varint(buffer, 300);
+    assertArrayEquals(new byte[]{(byte) 0xac, 0x02}, buffer.toByteArray());
+    assertEquals(2, ProtobufEncoder.varintSize(300));
+    assertEquals(10, ProtobufEncoder.varintSize(-1));
+    assertEquals(5, ProtobufEncoder.utf8Length("\u00e9\u20ac"), "Two and three byte characters");
+  }
+
+
+  @Test
+  public void writesJson() throws IOException {
+    Counter counter = new Counter("hits");
+    counter.addLabel("path", "/a\"b");
+    counter.increase(2);
+    Gauge gauge = new Gauge("depth");
+    gauge.setDescription("line\none");
+    gauge.increase(3);
+    TimingMaster master = new TimingMaster("call");
+    master.setBuckets(new Buckets(10, 100));
+    for (int i = 0; i < 10; i++) {
+      master.record(i < 5 ? 5 : 50);
+    }
+    List<Monitor> monitors = new ArrayList<>();
+    monitors.add(master);
+    monitors.add(gauge);
+    monitors.add(counter);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricFormatter.convertToJson(out, monitors, false);
+    String json = out.toString("UTF-8");
+
+    assertTrue(json.contains("\"counters\":[{\"name\":\"hits\",\"labels\":{\"path\":\"/a\\\"b\"},\"value\":2,\"updates\":1}]"), json);
+    assertTrue(json.contains("\"gauges\":[{\"name\":\"depth\",\"description\":\"line\\none\",\"labels\":{},\"value\":3,\"min\":0,\"max\":3,\"updates\":1}]"), json);
+    assertTrue(json.contains("\"count\":10,\"total\":275,\"avg\":27,"), json);
+    assertTrue(json.contains("\"percentiles\":{\"p50\":10,\"p90\":42,\"p99\":49.2}"), json);
+  }
+
+
+  @Test
+  public void keepsLegacyTimerJson() {
+    ManualClock clock = new ManualClock(1700000000000L);
+    ScoreCard.setClock(clock);
+    try {
+      TimingMaster master = new TimingMaster("legacy_json");
+      master.addLabel("region", "eu");
+      Timer timer = master.createTimer();
+      timer.start();
+      String date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.DEFAULT).format(new Date(1700000000000L));
+      assertEquals("{\"Name\":\"legacy_json\",\"Hits\":\"1\",\"Active\":\"1\",\"Max Active\":\"1\",\"Avg Active\":\"1.0\","
+              + "\"First Access\":\"" + date + "\",\"Last Access\":\"" + date + "\"}", MetricFormatter.toJson(timer));
+
+      clock.advance(40, TimeUnit.MILLISECONDS);
+      timer.stop();
+      assertEquals("{\"Name\":\"legacy_json\",\"Hits\":\"1\",\"Avg\":\"40\",\"Total\":\"40\",\"Std Dev\":\"0\","
+              + "\"Min Value\":\"40\",\"Max Value\":\"40\",\"Active\":\"0\",\"Max Active\":\"1\",\"Avg Active\":\"1.0\","
+              + "\"First Access\":\"" + date + "\",\"Last Access\":\"" + date + "\"}", MetricFormatter.toJson(timer));
+    } finally {
+      ScoreCard.setClock(null);
+    }
+  }
+
+
+  @Test
+  public void formatsIso8601() {
+    DateTimeFormatter format = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    long[] instants = {0, 951782400000L, 951868799999L, 1583020800123L, 4102444799999L, 1234567890123L};
+    Utf8Buffer buffer = new Utf8Buffer(32);
+    for (long instant : instants) {
+      JsonWriter.appendIso8601(buffer.reset(), instant);
+      assertEquals(format.format(Instant.ofEpochMilli(instant)), buffer.toString());
+    }
+  }
+
+
+  @Test
+  public void convertsScoreCard() {
+    ScoreCard.increaseCounter("convertsScoreCard", 42);
+    String text = MetricFormatter.convertScoreCardToOpenMetrics();
+    assertTrue(text.contains("# TYPE convertsScoreCard counter\nconvertsScoreCard 42\n"), text);
+  }
+
+}
@@ -0,0 +1,91 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NestedTimingMasterTest {
+
+  private static void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+    }
+  }
+
+
+  @Test
+  public void buildsTree() {
+    Timer scenario = ScoreCard.startNestedTimer("buildsTree");
+    Timer step1 = ScoreCard.startNestedTimer("step1");
+    pause(20);
+    step1.stop();
+    Timer step2 = ScoreCard.startNestedTimer("step2");
+    Timer inner = ScoreCard.startNestedTimer("inner");
+    pause(20);
+    inner.stop();
+    step2.stop();
+    scenario.stop();
+
+    NestedTimingMaster root = ScoreCard.getNestedTimerMaster("buildsTree");
+    assertNotNull(root, "Root was not registered");
+    assertEquals(2, root.getChildCount(), "Wrong number of children");
+    assertTrue(root.hasChild("step1"), "Missing step1");
+    assertTrue(root.getChild("step2").hasChild("inner"), "Missing inner step");
+
+    NestedTimingMaster node = root.getChild("step2").getChild("inner");
+    assertEquals("buildsTree/step2/inner", node.getPath());
+    assertEquals(2, node.getDepth());
+    assertSame(root, node.getRoot());
+    assertEquals(1, node.getHits());
+
+    assertTrue(root.getSelfTotal() <= root.getTotal(), "Self time exceeds total time");
+    assertTrue(root.getChild("step1").getTotal() + root.getChild("step2").getTotal() <= root.getTotal(), "Children exceed the parent");
+    assertTrue(root.getTotal() - root.getSelfTotal() >= 40, "Child time was not removed from the self time");
+    assertEquals(4, root.getDescendants().size(), "Wrong number of nodes");
+  }
+
+
+  @Test
+  public void stopsRunningChildren() {
+    Timer scenario = ScoreCard.startNestedTimer("stopsRunningChildren");
+    Timer step = ScoreCard.startNestedTimer("step");
+    scenario.stop();
+
+    assertFalse(step.isRunning(), "Child timer was left running");
+    assertEquals(0, TimerStack.current().depth(), "Stack was not unwound");
+    assertEquals(0, ScoreCard.getNestedTimerMaster("stopsRunningChildren").getChild("step").getActiveCounter());
+  }
+
+
+  @Test
+  public void siblingsRoots() {
+    ScoreCard.startNestedTimer("siblingA").stop();
+    Timer b = ScoreCard.startNestedTimer("siblingB");
+    b.stop();
+    assertEquals(0, ScoreCard.getNestedTimerMaster("siblingA").getChildCount(), "Sequential timers should not nest");
+    assertEquals("siblingB", ((NestedTimer) b).getNode().getPath());
+  }
+
+
+  @Test
+  public void export() throws IOException {
+    Timer scenario = ScoreCard.startNestedTimer("export");
+    scenario.addLabel("env", "test");
+    ScoreCard.startNestedTimer("step").stop();
+    scenario.stop();
+
+    StringWriter writer = new StringWriter();
+    List<NestedTimingMaster> roots = Collections.singletonList(ScoreCard.getNestedTimerMaster("export"));
+    MetricFormatter.convertNestedTimersToOpenMetrics(writer, roots);
+    String text = writer.toString();
+    assertTrue(text.contains("nested_timer_hits{span=\"export/step\",env=\"test\"} 1"), text);
+    assertTrue(text.contains("nested_timer_self_ms{span=\"export\",env=\"test\"}"), text);
+  }
+
+}
@@ -15,7 +15,10 @@ import java.text.NumberFormat;
 import java.util.Locale;
 
 /**
+ * A quick check of counter throughput by name.
  *
+ * <p>The JMH benchmarks under src/jmh/java measure this and the other hot paths repeatably and at several thread
+ * counts; run them with {@code gradlew jmh}.</p>
  */
 public class ScoreCardPerf {
 
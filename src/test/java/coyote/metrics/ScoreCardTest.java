@@ -3,9 +3,13 @@ package coyote.metrics;
 import org.junit.jupiter.api.Test;
 
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class ScoreCardTest {
 
@@ -45,4 +49,68 @@ public class ScoreCardTest {
     InetAddress address = ScoreCard.getHostIpAddress();
     assertNotNull(address);
   }
+
+  @Test
+  void tracksChangesByEpoch() {
+    Counter counter = ScoreCard.getCounter("epochCounter");
+    Gauge gauge = ScoreCard.getGauge("epochGauge");
+    TimingMaster master = ScoreCard.getOrCreateTimerMaster("epochTimer");
+    List<Monitor> all = ScoreCard.getChangedSince(0);
+    assertTrue(all.contains(counter) && all.contains(gauge) && all.contains(master), "new monitors count as changed");
+
+    long since = ScoreCard.advanceEpoch();
+    assertEquals(since, ScoreCard.getEpoch());
+    assertFalse(ScoreCard.getChangedSince(since).contains(counter));
+    counter.increment();
+    counter.increase(2);
+    master.record(5);
+    List<Monitor> changed = ScoreCard.getChangedSince(since);
+    assertEquals(1, Collections.frequency(changed, counter));
+    assertTrue(changed.contains(master));
+    assertFalse(changed.contains(gauge));
+
+    // superseded places in the log are compacted away
+    for (int i = 0; i < 1000; i++) {
+      ScoreCard.advanceEpoch();
+      gauge.decrement();
+    }
+    assertEquals(1, Collections.frequency(ScoreCard.getChangedSince(0), gauge));
+    assertEquals(1, Collections.frequency(ScoreCard.getChangedSince(since), counter));
+
+    since = ScoreCard.advanceEpoch();
+    ScoreCard.removeCounter("epochCounter");
+    counter.increment();
+    assertFalse(ScoreCard.getChangedSince(0).contains(counter), "removed monitors are not tracked");
+  }
+
+  @Test
+  void createsOneMonitorPerNameConcurrently() throws InterruptedException {
+    final Set<Object> counters = ConcurrentHashMap.newKeySet();
+    final Set<Object> masters = ConcurrentHashMap.newKeySet();
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int j = 0; j < 100; j++) {
+          counters.add(ScoreCard.getCounter("concurrentCounter"));
+          masters.add(ScoreCard.getOrCreateTimerMaster("concurrentTimer"));
+          ScoreCard.startTimer("concurrentTimer").stop();
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, counters.size());
+    assertEquals(1, masters.size());
+    assertEquals(800, ScoreCard.getTimerMaster("concurrentTimer").getHits());
+  }
+
 }
@@ -0,0 +1,154 @@
+package coyote.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.prom.PushGatewayClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelfMetricsTest {
+
+  @AfterEach
+  void disable() {
+    ScoreCard.disableSelfMetrics();
+  }
+
+
+  private static Map<String, Monitor> monitors() {
+    Map<String, Monitor> retval = new HashMap<>();
+    for (Monitor monitor : SelfMetrics.getMonitors()) {
+      retval.put(monitor.getName(), monitor);
+    }
+    return retval;
+  }
+
+
+  @Test
+  void disabledByDefault() {
+    assertFalse(ScoreCard.isSelfMetricsEnabled());
+    assertTrue(SelfMetrics.getMonitors().isEmpty());
+    assertEquals(0, SelfMetrics.start());
+    ScoreCard.incrementCounter("self_hidden");
+    assertFalse(MetricFormatter.convertScoreCardToOpenMetrics().contains(SelfMetrics.PREFIX));
+  }
+
+
+  @Test
+  void reportsRegistrySizeAndRendering() {
+    ScoreCard.enableSelfMetrics();
+    ScoreCard.incrementCounter("self_counter");
+    ScoreCard.incrementGauge("self_gauge");
+    ScoreCard.getOrCreateTimerMaster("self_timer");
+    TimingMaster render = (TimingMaster) monitors().get("tmetrix_render_openmetrics_microseconds");
+    long renders = (render != null) ? render.getSampleCount() : 0;
+    Monitor bytes = monitors().get("tmetrix_render_openmetrics_bytes");
+    long rendered = (bytes != null) ? bytes.getValue() : 0;
+
+    String text = MetricFormatter.convertScoreCardToOpenMetrics();
+    assertTrue(text.contains("tmetrix_counters " + ScoreCard.getCounterCount()), text);
+    assertTrue(text.contains("tmetrix_timers " + ScoreCard.getTimerCount()), text);
+
+    Map<String, Monitor> monitors = monitors();
+    assertEquals(ScoreCard.getGaugeCount(), monitors.get("tmetrix_gauges").getValue());
+    assertEquals(renders + 1, ((TimingMaster) monitors.get("tmetrix_render_openmetrics_microseconds")).getSampleCount());
+    assertEquals(rendered + text.getBytes(StandardCharsets.UTF_8).length, monitors.get("tmetrix_render_openmetrics_bytes").getValue());
+  }
+
+
+  @Test
+  void samplesTimerOperations() {
+    ScoreCard.enableSelfMetrics();
+    TimingMaster master = new TimingMaster("self_sampled");
+    for (int i = 0; i < 100 * SelfMetrics.SAMPLE_RATE; i++) {
+      Timer timer = master.createTimer();
+      timer.start();
+      timer.stop();
+    }
+    Map<String, Monitor> monitors = monitors();
+    long starts = ((TimingMaster) monitors.get("tmetrix_timer_start_nanoseconds")).getSampleCount();
+    long stops = ((TimingMaster) monitors.get("tmetrix_timer_stop_nanoseconds")).getSampleCount();
+    assertTrue(starts > 20 && starts < 300, "sampled " + starts + " starts");
+    assertTrue(stops > 20 && stops < 300, "sampled " + stops + " stops");
+  }
+
+
+  @Test
+  void countsContendedLocks() throws InterruptedException {
+    ScoreCard.enableSelfMetrics();
+    long before = monitors().get("tmetrix_lock_contended").getValue();
+    final ReentrantLock lock = new ReentrantLock();
+    lock.lock();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter = new Thread(() -> {
+      SelfMetrics.lock(lock);
+      lock.unlock();
+      acquired.countDown();
+    });
+    waiter.start();
+    while (!lock.hasQueuedThreads()) {
+      Thread.sleep(1);
+    }
+    lock.unlock();
+    acquired.await();
+    SelfMetrics.lock(lock);
+    lock.unlock();
+    assertEquals(before + 1, monitors().get("tmetrix_lock_contended").getValue());
+  }
+
+
+  @Test
+  void recordsPushes() {
+    ScoreCard.enableSelfMetrics();
+    SelfMetrics.recordPush("selftest", SelfMetrics.start(), true);
+    SelfMetrics.recordPush("selftest", SelfMetrics.start(), false);
+    SelfMetrics.recordPush("selftest", 0, false);
+    Map<String, Monitor> monitors = monitors();
+    assertEquals(2, ((TimingMaster) monitors.get("tmetrix_push_selftest_microseconds")).getSampleCount());
+    assertEquals(1, monitors.get("tmetrix_push_selftest_failures").getValue());
+  }
+
+
+
+  @Test
+  void recordsGatewayPushesWithoutSpool() throws IOException {
+    ScoreCard.enableSelfMetrics();
+    final AtomicInteger requests = new AtomicInteger();
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", exchange -> {
+      InputStream in = exchange.getRequestBody();
+      while (in.read() != -1) ;
+      exchange.sendResponseHeaders(requests.incrementAndGet() == 1 ? 202 : 500, -1);
+      exchange.close();
+    });
+    gateway.start();
+    try {
+      TimingMaster pushes = (TimingMaster) monitors().get("tmetrix_push_pushgateway_microseconds");
+      long before = (pushes != null) ? pushes.getSampleCount() : 0;
+      Monitor failures = monitors().get("tmetrix_push_pushgateway_failures");
+      long failed = (failures != null) ? failures.getValue() : 0;
+
+      PushGatewayClient client = new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort());
+      ScoreCard.incrementCounter("self_pushed");
+      client.push("self_job");
+      assertThrows(IOException.class, () -> client.push("self_job"));
+
+      Map<String, Monitor> monitors = monitors();
+      assertEquals(before + 2, ((TimingMaster) monitors.get("tmetrix_push_pushgateway_microseconds")).getSampleCount());
+      assertEquals(failed + 1, monitors.get("tmetrix_push_pushgateway_failures").getValue());
+    } finally {
+      gateway.stop(0);
+    }
+  }
+
+}
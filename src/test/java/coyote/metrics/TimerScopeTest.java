@@ -0,0 +1,117 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerScopeTest {
+
+  @Test
+  public void recordsSuccess() {
+    try (TimerScope scope = ScoreCard.openScope("recordsSuccess")) {
+      assertTrue(scope.isRunning(), "Scope should open running");
+      assertEquals(1, ScoreCard.getTimerMaster("recordsSuccess").getActiveCounter());
+      scope.success();
+    }
+    TimingMaster master = ScoreCard.getTimerMaster("recordsSuccess");
+    assertEquals(1, master.getHits());
+    assertEquals(1.0f, master.getAvgActive(), "Scope activity counted more than once");
+    assertEquals(0, master.getActiveCounter(), "Closed scope is still active");
+    assertNull(ScoreCard.getTimerMaster("recordsSuccess" + TimerScope.ERROR_SUFFIX), "Error series created without an error");
+  }
+
+
+  @Test
+  public void recordsException() {
+    try {
+      try (TimerScope scope = ScoreCard.openScope("recordsException")) {
+        throw new IllegalStateException("failed");
+      }
+    } catch (IllegalStateException expected) {
+    }
+    TimingMaster master = ScoreCard.getTimerMaster("recordsException");
+    assertEquals(0, master.getHits(), "Failed call recorded as success");
+    assertEquals(0.0f, master.getAvgActive(), "Failed call counted as active");
+    assertEquals(0, master.getMaxActive(), "Failed call counted as active");
+    assertEquals(0, master.getActiveCounter(), "Exception leaked a running timer");
+
+    TimingMaster errors = ScoreCard.getTimerMaster("recordsException" + TimerScope.ERROR_SUFFIX);
+    assertNotNull(errors, "Error series missing");
+    assertEquals(1, errors.getHits());
+    assertEquals(1.0f, errors.getAvgActive());
+    assertEquals(TimerScope.OUTCOME_ERROR, errors.getLabelValue(TimerScope.OUTCOME_LABEL));
+  }
+
+
+  @Test
+  public void recyclesScopes() {
+    TimerScope first;
+    try (TimerScope scope = ScoreCard.openScope("recyclesScopes")) {
+      first = scope;
+      scope.success();
+    }
+    try (TimerScope scope = ScoreCard.openScope("recyclesScopes")) {
+      assertSame(first, scope, "Closed scope was not reused");
+      assertEquals("recyclesScopes", scope.getName());
+      scope.success();
+    }
+    assertEquals(2, ScoreCard.getTimerMaster("recyclesScopes").getHits());
+  }
+
+
+  @Test
+  public void nestedScopes() {
+    try (TimerScope outer = ScoreCard.openScope("nestedOuter")) {
+      try (TimerScope inner = ScoreCard.openScope("nestedInner")) {
+        assertNotSame(outer, inner, "Open scope was issued twice");
+        inner.success();
+      }
+      outer.success();
+    }
+    assertEquals(1, ScoreCard.getTimerMaster("nestedOuter").getHits());
+    assertEquals(1, ScoreCard.getTimerMaster("nestedInner").getHits());
+  }
+
+
+  @Test
+  public void countsOverlappingScopes() {
+    try (TimerScope outer = ScoreCard.openScope("overlapping")) {
+      try (TimerScope inner = ScoreCard.openScope("overlapping")) {
+        assertEquals(2, ScoreCard.getTimerMaster("overlapping").getActiveCounter());
+        inner.success();
+      }
+      outer.success();
+    }
+    TimingMaster master = ScoreCard.getTimerMaster("overlapping");
+    assertEquals(2, master.getHits());
+    assertEquals(1.5f, master.getAvgActive());
+    assertEquals(2, master.getMaxActive());
+  }
+
+  @Test
+  public void callsBlocksInScopes() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      final int attempt = i;
+      // an early return is a success
+      assertEquals(attempt, (int) ScoreCard.openScope("callsBlocks", () -> {
+        if (attempt > 0) {
+          return attempt;
+        }
+        return 0;
+      }));
+    }
+    IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> ScoreCard.openScope("callsBlocks", () -> {
+      throw new IllegalStateException("failed");
+    }));
+    assertEquals("failed", thrown.getMessage());
+
+    TimingMaster master = ScoreCard.getTimerMaster("callsBlocks");
+    assertEquals(3, master.getHits());
+    assertEquals(1.0f, master.getAvgActive());
+    assertEquals(0, master.getActiveCounter());
+    TimingMaster errors = master.getErrorMaster();
+    assertEquals(1, errors.getHits());
+    assertEquals(0, errors.getActiveCounter());
+  }
+
+}
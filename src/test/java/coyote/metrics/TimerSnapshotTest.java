@@ -0,0 +1,48 @@
+package coyote.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerSnapshotTest {
+
+  @Test
+  void readsStatistics() {
+    TimingMaster master = new TimingMaster("snapshot");
+    master.setBuckets(new Buckets(10, 100));
+    master.record(5);
+    master.record(50);
+    master.record(500);
+
+    TimerSnapshot snapshot = new TimerSnapshot().read(master);
+    assertEquals(3, snapshot.getSampleCount());
+    assertEquals(555, snapshot.getTotal());
+    assertEquals(5, snapshot.getMinimum());
+    assertEquals(500, snapshot.getMaximum());
+    assertSame(master.getBuckets(), snapshot.getBuckets());
+    assertEquals(1, snapshot.getBucketCount(0));
+    assertEquals(2, snapshot.getBucketCount(1));
+    assertEquals(3, snapshot.getBucketCount(2));
+    assertThrows(IndexOutOfBoundsException.class, () -> snapshot.getBucketCount(3));
+  }
+
+
+  @Test
+  void countMatchesBucketsWhileRecording() throws InterruptedException {
+    TimingMaster master = new TimingMaster("snapshotRace");
+    master.setBuckets(Buckets.DEFAULT);
+    Thread recorder = new Thread(() -> {
+      for (int i = 0; i < 200000; i++) {
+        master.record(i % 20000);
+      }
+    });
+    recorder.start();
+    TimerSnapshot snapshot = new TimerSnapshot();
+    while (recorder.isAlive()) {
+      snapshot.read(master);
+      assertEquals(snapshot.getSampleCount(), snapshot.getBucketCount(Buckets.DEFAULT.size() - 1));
+    }
+    recorder.join();
+  }
+
+}
@@ -0,0 +1,79 @@
+package coyote.metrics.graphite;
+
+import coyote.metrics.ScoreCard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Measures how many metrics per second the Graphite sink renders and sends to a local Carbon stand-in which discards
+ * what it receives.
+ * <pre>
+ * java coyote.metrics.graphite.GraphiteSinkBenchmark [series, default 20000]
+ * </pre>
+ */
+public class GraphiteSinkBenchmark {
+  private static final int RUNS = 20;
+
+
+  public static void main(String[] args) throws Exception {
+    final int series = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    for (int created = 0; created < series; created += 4) {
+      ScoreCard.getCounter("requests_" + created).addLabel("endpoint", "/api/v1/resource/" + created);
+      ScoreCard.increaseCounter("requests_" + created, created);
+      ScoreCard.increaseGauge("connections_" + created, created % 97);
+      ScoreCard.getOrCreateTimerMaster("latency_" + created).record(created % 250);
+    }
+
+    final ServerSocket carbon = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread discard = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = carbon.accept();
+            Thread reader = new Thread(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  InputStream in = socket.getInputStream();
+                  byte[] buffer = new byte[65536];
+                  while (in.read(buffer) != -1) ;
+                } catch (IOException e) {
+                  // closed
+                }
+              }
+            });
+            reader.setDaemon(true);
+            reader.start();
+          }
+        } catch (IOException e) {
+          // stopped
+        }
+      }
+    });
+    discard.setDaemon(true);
+    discard.start();
+
+    System.out.println("protocol\tmetrics/sec");
+    for (boolean pickle : new boolean[]{false, true}) {
+      GraphiteSink sink = new GraphiteSink("localhost", carbon.getLocalPort()).setPickle(pickle).setMaxBufferedBytes(256 * 1024 * 1024);
+      sink.writeScoreCard(); // warm up
+      sink.flush(60000);
+      long metrics = 0;
+      long start = System.nanoTime();
+      for (int run = 0; run < RUNS; run++) {
+        metrics += sink.writeScoreCard();
+      }
+      sink.flush(60000);
+      long elapsed = System.nanoTime() - start;
+      System.out.println((pickle ? "pickle" : "plaintext") + "\t" + (metrics * 1000000000L / elapsed) + " (" + metrics + " metrics, dropped " + sink.getDroppedCount() + ")");
+      sink.close();
+    }
+    carbon.close();
+  }
+
+}
@@ -0,0 +1,303 @@
+package coyote.metrics.graphite;
+
+import coyote.metrics.Counter;
+import coyote.metrics.Monitor;
+import coyote.metrics.TimingMaster;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphiteSinkTest {
+  private static final Object MARK = new Object();
+
+  private ServerSocket carbon;
+  private final List<ByteArrayOutputStream> connections = Collections.synchronizedList(new ArrayList<ByteArrayOutputStream>());
+  private volatile boolean dropFirstConnection = false;
+
+
+  @BeforeEach
+  void startCarbon() throws IOException {
+    carbon = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = carbon.accept();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final boolean drop = dropFirstConnection && connections.isEmpty();
+            connections.add(received);
+            Thread reader = new Thread(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  InputStream in = socket.getInputStream();
+                  byte[] buffer = new byte[8192];
+                  for (int n; (n = in.read(buffer)) != -1; ) {
+                    synchronized (received) {
+                      received.write(buffer, 0, n);
+                    }
+                    if (drop) {
+                      break; // an outage right after the first message
+                    }
+                  }
+                  socket.close();
+                } catch (IOException e) {
+                  // the connection was closed
+                }
+              }
+            });
+            reader.setDaemon(true);
+            reader.start();
+          }
+        } catch (IOException e) {
+          // stopped
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+
+  @AfterEach
+  void stopCarbon() throws IOException {
+    carbon.close();
+  }
+
+
+  @Test
+  void writesPlaintextPaths() throws Exception {
+    Counter counter = new Counter("requests");
+    counter.addLabel("endpoint", "/api/v1.2");
+    counter.increase(42);
+    TimingMaster master = new TimingMaster("db.latency");
+    master.record(12);
+    master.record(31);
+
+    GraphiteSink sink = new GraphiteSink("localhost", carbon.getLocalPort()).setPrefix("ci.");
+    assertEquals(6, sink.write(Arrays.<Monitor>asList(counter, master)));
+    assertTrue(sink.flush(5000));
+    sink.close();
+
+    List<String> lines = awaitLines(6);
+    long now = System.currentTimeMillis() / 1000;
+    assertTrue(lines.get(0).startsWith("ci.requests.endpoint._api_v1_2 42 "), lines.get(0));
+    assertTrue(Math.abs(Long.parseLong(lines.get(0).split(" ")[2]) - now) < 5);
+    assertTrue(lines.get(1).startsWith("ci.db.latency.count 2 "), lines.get(1));
+    assertTrue(lines.get(2).startsWith("ci.db.latency.sum 43 "), lines.get(2));
+    assertTrue(lines.get(5).startsWith("ci.db.latency.mean 21.5 "), lines.get(5));
+    assertEquals(6, sink.getSentCount());
+  }
+
+
+  @Test
+  void writesPickleBatches() throws Exception {
+    List<Monitor> counters = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      Counter counter = new Counter("pickled_" + i);
+      counter.increase(i == 0 ? 5000000000L : i);
+      counters.add(counter);
+    }
+    GraphiteSink sink = new GraphiteSink("localhost", carbon.getLocalPort()).setPickle(true);
+    assertEquals(1200, sink.write(counters));
+    assertTrue(sink.flush(5000));
+    sink.close();
+
+    List<Object[]> metrics = new ArrayList<>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(awaitBytes(1)));
+    int frames = 0;
+    while (in.available() > 0) {
+      byte[] frame = new byte[in.readInt()];
+      in.readFully(frame);
+      for (Object item : (List<?>) unpickle(frame)) {
+        metrics.add((Object[]) item);
+      }
+      frames++;
+    }
+    assertEquals(3, frames, "metrics were not split into batches of " + GraphiteSink.PICKLE_BATCH);
+    assertEquals(1200, metrics.size());
+    assertEquals("pickled_0", metrics.get(0)[0]);
+    assertEquals(5000000000L, ((Object[]) metrics.get(0)[1])[1]);
+    assertEquals("pickled_1199", metrics.get(1199)[0]);
+    assertEquals(1199L, ((Object[]) metrics.get(1199)[1])[1]);
+  }
+
+
+  @Test
+  void splitsTimersAcrossPickleBatches() throws Exception {
+    List<Monitor> timers = new ArrayList<>();
+    for (int i = 0; i < 101; i++) {
+      TimingMaster master = new TimingMaster("pickled.timer_" + i);
+      master.record(i);
+      timers.add(master);
+    }
+    GraphiteSink sink = new GraphiteSink("localhost", carbon.getLocalPort()).setPickle(true);
+    assertEquals(505, sink.write(timers));
+    assertTrue(sink.flush(5000));
+    sink.close();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(awaitBytes(1)));
+    List<Integer> sizes = new ArrayList<>();
+    while (in.available() > 0) {
+      byte[] frame = new byte[in.readInt()];
+      in.readFully(frame);
+      sizes.add(((List<?>) unpickle(frame)).size());
+    }
+    assertEquals(Arrays.asList(GraphiteSink.PICKLE_BATCH, 5), sizes);
+  }
+
+
+  @Test
+  void reconnectsAfterOutage() throws Exception {
+    dropFirstConnection = true;
+    Counter counter = new Counter("reconnected");
+    GraphiteSink sink = new GraphiteSink("localhost", carbon.getLocalPort()).setReconnect(1000, 10, 50);
+    sink.write(Collections.singletonList(counter));
+    assertTrue(sink.flush(5000));
+
+    // writes into the broken connection may be lost, but the sink reconnects and later writes arrive
+    long deadline = System.currentTimeMillis() + 10000;
+    while (connections.size() < 2 || connections.get(1).size() == 0) {
+      assertTrue(System.currentTimeMillis() < deadline, "the sink did not reconnect");
+      counter.increment();
+      sink.write(Collections.singletonList(counter));
+      Thread.sleep(20);
+    }
+    assertTrue(sink.getConnectionCount() >= 2);
+    sink.close();
+  }
+
+
+  @Test
+  void boundsBufferDuringOutage() throws Exception {
+    ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    int port = unused.getLocalPort();
+    unused.close();
+
+    GraphiteSink sink = new GraphiteSink("localhost", port).setMaxBufferedBytes(2000).setReconnect(100, 10000, 10000);
+    for (int i = 0; i < 20; i++) {
+      List<Monitor> counters = new ArrayList<>();
+      for (int j = 0; j < 10; j++) {
+        counters.add(new Counter("outage_" + i + "_" + j));
+      }
+      sink.write(counters);
+      assertTrue(sink.getBufferedBytes() <= 2000);
+    }
+    assertTrue(sink.getDroppedCount() > 0);
+    assertEquals(0, sink.getSentCount());
+    sink.close();
+  }
+
+
+  private byte[] awaitBytes(int connection) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    byte[] retval = new byte[0];
+    while (System.currentTimeMillis() < deadline) {
+      if (connections.size() >= connection) {
+        ByteArrayOutputStream received = connections.get(connection - 1);
+        synchronized (received) {
+          retval = received.toByteArray();
+        }
+        if (retval.length > 0) {
+          // give the rest of the data a moment to arrive
+          Thread.sleep(100);
+          synchronized (received) {
+            return received.toByteArray();
+          }
+        }
+      }
+      Thread.sleep(10);
+    }
+    return retval;
+  }
+
+
+  private List<String> awaitLines(int count) throws InterruptedException {
+    List<String> retval = Arrays.asList(new String(awaitBytes(1), StandardCharsets.UTF_8).split("\n"));
+    assertEquals(count, retval.size(), retval.toString());
+    return retval;
+  }
+
+
+  /**
+   * Decode the subset of pickle protocol 2 Carbon receives.
+   */
+  private static Object unpickle(byte[] data) {
+    ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    Deque<Object> stack = new ArrayDeque<>();
+    while (true) {
+      int op = in.get() & 0xFF;
+      switch (op) {
+        case 0x80:
+          assertEquals(2, in.get());
+          break;
+        case ']':
+          stack.push(new ArrayList<Object>());
+          break;
+        case '(':
+          stack.push(MARK);
+          break;
+        case 'X':
+          byte[] text = new byte[in.getInt()];
+          in.get(text);
+          stack.push(new String(text, StandardCharsets.UTF_8));
+          break;
+        case 'J':
+          stack.push((long) in.getInt());
+          break;
+        case 0x8a:
+          int count = in.get();
+          long value = 0;
+          for (int i = 0; i < count; i++) {
+            value |= (in.get() & 0xFFL) << (8 * i);
+          }
+          stack.push((value << (64 - 8 * count)) >> (64 - 8 * count));
+          break;
+        case 'G':
+          stack.push(in.order(ByteOrder.BIG_ENDIAN).getDouble());
+          in.order(ByteOrder.LITTLE_ENDIAN);
+          break;
+        case 0x86:
+          Object second = stack.pop();
+          stack.push(new Object[]{stack.pop(), second});
+          break;
+        case 'e':
+          List<Object> items = new ArrayList<>();
+          for (Object item; (item = stack.pop()) != MARK; ) {
+            items.add(0, item);
+          }
+          @SuppressWarnings("unchecked")
+          List<Object> list = (List<Object>) stack.peek();
+          list.addAll(items);
+          break;
+        case '.':
+          assertFalse(in.hasRemaining());
+          return stack.pop();
+        default:
+          fail("unexpected opcode " + op);
+      }
+    }
+  }
+
+}
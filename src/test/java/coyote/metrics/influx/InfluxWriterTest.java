@@ -0,0 +1,227 @@
+package coyote.metrics.influx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.MetricFormatter;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.TimingMaster;
+import coyote.metrics.Utf8Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxWriterTest {
+  private HttpServer influx;
+  private String url;
+  private volatile int status = 204;
+  private volatile CountDownLatch stall = null;
+  private final List<String> batches = Collections.synchronizedList(new ArrayList<String>());
+
+
+  @BeforeEach
+  void startInflux() throws IOException {
+    influx = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    influx.createContext("/write", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        InputStream request = exchange.getRequestBody();
+        for (int b; (b = request.read()) != -1; raw.write(b)) ;
+        InputStream in = new ByteArrayInputStream(raw.toByteArray());
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+          in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; body.write(b)) ;
+        batches.add(exchange.getRequestHeaders().getFirst("Authorization") + "\n" + new String(body.toByteArray(), StandardCharsets.UTF_8));
+        CountDownLatch latch = stall;
+        if (latch != null) {
+          try {
+            latch.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    influx.start();
+    url = "http://localhost:" + influx.getAddress().getPort() + "/write?db=tests";
+  }
+
+
+  @AfterEach
+  void stopInflux() {
+    influx.stop(0);
+  }
+
+
+  @Test
+  void formatsPoints() {
+    Counter counter = new Counter("requests total");
+    counter.addLabel("endpoint", "/api,v1");
+    counter.addLabel("a=b", "x y");
+    counter.addLabel("empty", "");
+    counter.increase(42);
+    Gauge gauge = new Gauge("connections");
+    gauge.increase(12);
+    gauge.decrease(5);
+    TimingMaster master = new TimingMaster("latency");
+    master.record(12);
+    master.record(31);
+
+    Utf8Buffer buffer = new Utf8Buffer();
+    LineProtocolFormatter.appendPoint(buffer, counter, 1000);
+    LineProtocolFormatter.appendPoint(buffer, gauge, 1000);
+    LineProtocolFormatter.appendPoint(buffer, master, 1000);
+    LineProtocolFormatter.appendPoint(buffer, new TimingMaster("idle"), 1000);
+    assertEquals("requests\\ total,a\\=b=x\\ y,endpoint=/api\\,v1 value=42i 1000\n"
+        + "connections value=7i,min=0i,max=12i 1000\n"
+        + "latency count=2i,sum=43i,min=12i,max=31i,mean=21.5 1000\n"
+        + "idle count=0i,sum=0i 1000\n", buffer.toString());
+  }
+
+
+  @Test
+  void formatsChangedLabels() {
+    Counter counter = new Counter("relabeled");
+    counter.addLabel("zone", "a");
+    Utf8Buffer buffer = new Utf8Buffer();
+    LineProtocolFormatter.appendPoint(buffer, counter, 1000);
+    assertSame(MetricFormatter.getSortedLabels(counter), MetricFormatter.getSortedLabels(counter), "sorted labels are not cached");
+    counter.addLabel("region", "eu");
+    LineProtocolFormatter.appendPoint(buffer, counter, 2000);
+    assertEquals("relabeled,zone=a value=0i 1000\n"
+        + "relabeled,region=eu,zone=a value=0i 2000\n", buffer.toString());
+  }
+
+
+  @Test
+  void batchesBySize() throws Exception {
+    InfluxWriter writer = new InfluxWriter(url).setToken("secret").setBatching(1024, 60000);
+    List<Counter> counters = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Counter counter = new Counter("batched_" + i);
+      counter.increase(i);
+      counters.add(counter);
+    }
+    for (Counter counter : counters) {
+      assertTrue(writer.write(counter));
+    }
+    assertTrue(writer.flush(5000));
+    writer.close();
+
+    assertTrue(batches.size() > 1, "points were not split into batches");
+    StringBuilder all = new StringBuilder();
+    for (String batch : batches) {
+      assertTrue(batch.startsWith("Token secret\n"), batch);
+      all.append(batch.substring(batch.indexOf('\n') + 1));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertTrue(all.indexOf("batched_" + i + " value=" + i + "i ") >= 0, "missing point " + i);
+    }
+    assertEquals(100, writer.getWrittenCount());
+  }
+
+
+  @Test
+  void sendsCredentials() throws Exception {
+    InfluxWriter writer = new InfluxWriter(url).setCredentials("influx", "secret");
+    assertTrue(writer.write(new Counter("authenticated")));
+    assertTrue(writer.flush(5000));
+    writer.close();
+    assertEquals(1, batches.size());
+    assertTrue(batches.get(0).startsWith("Basic aW5mbHV4OnNlY3JldA==\n"), batches.get(0));
+  }
+
+
+  @Test
+  void batchesByTime() throws Exception {
+    InfluxWriter writer = new InfluxWriter(url).setBatching(1024 * 1024, 50);
+    Gauge gauge = new Gauge("timed");
+    gauge.increase(3);
+    writer.write(gauge);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, batches.size(), "a small batch was not posted after its delay");
+    assertTrue(batches.get(0).contains("timed value=3i"));
+
+    status = 400;
+    writer.write(gauge);
+    assertTrue(writer.flush(5000));
+    assertEquals(1, writer.getFailedCount());
+    assertEquals(1, writer.getDroppedCount());
+    assertNotNull(writer.getLastFailure());
+    writer.close();
+  }
+
+
+  @Test
+  void batchesByTimeAfterPosting() throws Exception {
+    InfluxWriter writer = new InfluxWriter(url).setBatching(1024 * 1024, 50);
+    Gauge gauge = new Gauge("timed");
+    gauge.increase(3);
+    writer.write(gauge);
+    awaitBatches(1);
+    assertEquals(1, batches.size(), "a small batch was not posted after its delay");
+
+    gauge.increase(4);
+    writer.write(gauge);
+    awaitBatches(2);
+    assertEquals(2, batches.size(), "a later small batch was not posted after its delay");
+    assertTrue(batches.get(1).contains("timed value=7i"));
+    writer.close();
+  }
+
+
+  @Test
+  void countsPointsDroppedFromFullBatches() throws Exception {
+    ScoreCard.getCounter("influx_dropped_test").increase(1);
+    stall = new CountDownLatch(1);
+    InfluxWriter writer = new InfluxWriter(url).setBatching(64, 60000);
+    Counter counter = new Counter("filler");
+    // the first batch is held by the stalled request while the next fills up to its limit
+    int written = 0;
+    while (written < 1000 && writer.write(counter)) {
+      written++;
+    }
+    assertTrue(written < 1000, "the batches never filled up");
+    assertEquals(1, writer.getDroppedCount());
+
+    assertEquals(0, writer.writeScoreCard());
+    assertEquals(1 + LineProtocolFormatter.scoreCardMonitors().size(), writer.getDroppedCount());
+    stall.countDown();
+    assertTrue(writer.flush(5000));
+    writer.close();
+  }
+
+
+  private void awaitBatches(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (batches.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+package coyote.metrics.influx;
+
+import coyote.metrics.Monitor;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.Utf8Buffer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Measures how many points per second the line protocol formatter serializes from a realistic ScoreCard.
+ * <pre>
+ * java coyote.metrics.influx.LineProtocolBenchmark [series, default 20000]
+ * </pre>
+ */
+public class LineProtocolBenchmark {
+  private static final int RUNS = 20;
+
+
+  public static void main(String[] args) {
+    final int series = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    // a realistic mix: labeled counters and gauges, and timers with several fields each
+    for (int created = 0; created < series; created += 4) {
+      ScoreCard.getCounter("requests_" + created).addLabel("endpoint", "/api/v1/resource/" + created);
+      ScoreCard.getCounter("requests_" + created).addLabel("method", "GET");
+      ScoreCard.increaseCounter("requests_" + created, created);
+      ScoreCard.increaseGauge("connections_" + created, created % 97);
+      ScoreCard.getOrCreateTimerMaster("latency_" + created).record(created % 250);
+      ScoreCard.getOrCreateTimerMaster("latency_" + created).record(created % 50);
+    }
+    List<Monitor> monitors = new ArrayList<>();
+    for (Iterator<?> it = ScoreCard.getTimerIterator(); it.hasNext(); monitors.add((Monitor) it.next())) ;
+    for (Iterator<?> it = ScoreCard.getCounterIterator(); it.hasNext(); monitors.add((Monitor) it.next())) ;
+    for (Iterator<?> it = ScoreCard.getGaugeIterator(); it.hasNext(); monitors.add((Monitor) it.next())) ;
+
+    Utf8Buffer buffer = new Utf8Buffer(4 * 1024 * 1024);
+    long timestamp = System.currentTimeMillis() * 1000000L;
+    for (int warmup = 0; warmup < RUNS; warmup++) {
+      LineProtocolFormatter.appendPoints(buffer.reset(), monitors, timestamp);
+    }
+    long points = 0;
+    long start = System.nanoTime();
+    for (int run = 0; run < RUNS; run++) {
+      points += LineProtocolFormatter.appendPoints(buffer.reset(), monitors, timestamp);
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println("points=" + monitors.size() + " bytes=" + buffer.length());
+    System.out.println("points/sec=" + (points * 1000000000L / elapsed) + " ns/point=" + (elapsed / points));
+  }
+
+}
@@ -0,0 +1,260 @@
+package coyote.metrics.otlp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.Buckets;
+import coyote.metrics.Counter;
+import coyote.metrics.Gauge;
+import coyote.metrics.Monitor;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.TimingMaster;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OtlpExporterTest {
+  private HttpServer collector;
+  private String url;
+  private volatile int status = 200;
+  private volatile String authorization = null;
+  private final List<byte[]> requests = Collections.synchronizedList(new ArrayList<byte[]>());
+
+
+  @BeforeEach
+  void startCollector() throws IOException {
+    collector = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    collector.createContext("/v1/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        InputStream request = exchange.getRequestBody();
+        for (int b; (b = request.read()) != -1; raw.write(b)) ;
+        assertEquals(OtlpExporter.CONTENT_TYPE, exchange.getRequestHeaders().getFirst("Content-Type"));
+        authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        InputStream in = new ByteArrayInputStream(raw.toByteArray());
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+          in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; body.write(b)) ;
+        if (status == 200) {
+          requests.add(body.toByteArray());
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    collector.start();
+    url = "http://localhost:" + collector.getAddress().getPort() + "/v1/metrics";
+  }
+
+
+  @AfterEach
+  void stopCollector() {
+    collector.stop(0);
+  }
+
+
+  @Test
+  void exportsCumulativeMetrics() throws IOException {
+    Counter counter = new Counter("otlp.requests");
+    counter.addLabel("endpoint", "/api");
+    counter.increase(42);
+    Gauge gauge = new Gauge("otlp.connections");
+    gauge.increase(7);
+    TimingMaster master = new TimingMaster("otlp.latency");
+    master.setBuckets(new Buckets(10, 100));
+    master.record(5);
+    master.record(7);
+    master.record(50);
+
+    OtlpExporter exporter = new OtlpExporter(url).setResourceAttribute("service.name", "ci");
+    assertEquals(3, exporter.export(Arrays.<Monitor>asList(counter, gauge, master)));
+    assertEquals(3, exporter.getExportedCount());
+
+    Map<Integer, List<Object>> resourceMetrics = message(decode(requests.get(0)), 1);
+    Map<String, String> resource = new HashMap<>();
+    for (Object attribute : message(resourceMetrics, 1).get(1)) {
+      Map<Integer, List<Object>> keyValue = decode((byte[]) attribute);
+      resource.put(string(keyValue, 1), string(message(keyValue, 2), 1));
+    }
+    assertEquals("ci", resource.get("service.name"));
+    List<Object> metrics = message(resourceMetrics, 2).get(2);
+    assertEquals(3, metrics.size());
+
+    Map<Integer, List<Object>> sum = decode((byte[]) metrics.get(0));
+    assertEquals("otlp.requests", string(sum, 1));
+    Map<Integer, List<Object>> data = message(sum, 7);
+    assertEquals(2L, data.get(2).get(0), "cumulative temporality");
+    assertEquals(1L, data.get(3).get(0), "monotonic");
+    Map<Integer, List<Object>> point = message(data, 1);
+    assertEquals(42L, point.get(6).get(0));
+    Map<Integer, List<Object>> attribute = message(point, 7);
+    assertEquals("endpoint", string(attribute, 1));
+    assertEquals("/api", string(message(attribute, 2), 1));
+
+    Map<Integer, List<Object>> gaugePoint = message(message(decode((byte[]) metrics.get(1)), 5), 1);
+    assertEquals(7L, gaugePoint.get(6).get(0));
+
+    Map<Integer, List<Object>> histogram = decode((byte[]) metrics.get(2));
+    assertEquals("ms", string(histogram, 3));
+    point = message(message(histogram, 9), 1);
+    assertEquals(3L, point.get(4).get(0));
+    assertEquals(62.0, Double.longBitsToDouble((Long) point.get(5).get(0)));
+    assertEquals(Arrays.asList(2L, 1L, 0L), fixed64s((byte[]) point.get(6).get(0)));
+    assertEquals(Arrays.asList(Double.doubleToLongBits(10), Double.doubleToLongBits(100)), fixed64s((byte[]) point.get(7).get(0)));
+    assertEquals(5.0, Double.longBitsToDouble((Long) point.get(11).get(0)));
+    assertEquals(50.0, Double.longBitsToDouble((Long) point.get(12).get(0)));
+  }
+
+
+  @Test
+  void carriesDeltasOverFailedExports() throws Exception {
+    Counter counter = new Counter("otlp.delta");
+    Counter idle = new Counter("otlp.idle");
+    idle.increment();
+    List<Monitor> monitors = Arrays.<Monitor>asList(counter, idle);
+    OtlpExporter exporter = new OtlpExporter(url).setTemporality(OtlpEncoder.TEMPORALITY_DELTA).setCompression(false);
+
+    counter.increase(5);
+    assertEquals(2, exporter.export(monitors));
+    Map<Integer, List<Object>> first = message(message(deltaSum(0, "otlp.delta"), 7), 1);
+    assertEquals(5L, first.get(6).get(0));
+
+    counter.increase(3);
+    Thread.sleep(5);
+    status = 503;
+    assertThrows(IOException.class, () -> exporter.export(monitors));
+    assertEquals(1, exporter.getFailedCount());
+    assertTrue(exporter.getLastFailure().getMessage().contains("503"));
+
+    counter.increase(2);
+    status = 200;
+    assertEquals(1, exporter.export(monitors), "the idle counter did not change");
+    Map<Integer, List<Object>> second = message(message(deltaSum(1, "otlp.delta"), 7), 1);
+    assertEquals(5L, second.get(6).get(0), "the failed delta was carried over");
+    assertEquals(first.get(3).get(0), second.get(2).get(0), "the delta starts where the last exported one ended");
+  }
+
+
+  @Test
+  void sendsCredentials() throws IOException {
+    OtlpExporter exporter = new OtlpExporter(url).setCredentials("otlp", "secret");
+    assertEquals(1, exporter.export(Collections.<Monitor>singletonList(new Counter("otlp.auth"))));
+    assertEquals("Basic b3RscDpzZWNyZXQ=", authorization);
+  }
+
+
+  @Test
+  void exportsOnInterval() throws Exception {
+    ScoreCard.getCounter("otlp.interval").increment();
+    OtlpExporter exporter = new OtlpExporter(url).start(20);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (requests.size() < 2) {
+      assertTrue(System.currentTimeMillis() < deadline, "no periodic exports");
+      Thread.sleep(10);
+    }
+    exporter.close();
+    assertEquals(0, exporter.getFailedCount());
+  }
+
+
+  private Map<Integer, List<Object>> deltaSum(int request, String name) {
+    for (Object item : message(message(decode(requests.get(request)), 1), 2).get(2)) {
+      Map<Integer, List<Object>> metric = decode((byte[]) item);
+      if (name.equals(string(metric, 1))) {
+        assertEquals(1L, message(metric, 7).get(2).get(0), "delta temporality");
+        return metric;
+      }
+    }
+    fail(name + " was not exported");
+    return null;
+  }
+
+
+  private static Map<Integer, List<Object>> message(Map<Integer, List<Object>> fields, int field) {
+    return decode((byte[]) fields.get(field).get(0));
+  }
+
+
+  private static String string(Map<Integer, List<Object>> fields, int field) {
+    return new String((byte[]) fields.get(field).get(0), StandardCharsets.UTF_8);
+  }
+
+
+  private static List<Long> fixed64s(byte[] packed) {
+    ByteBuffer in = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    List<Long> retval = new ArrayList<>();
+    while (in.hasRemaining()) {
+      retval.add(in.getLong());
+    }
+    return retval;
+  }
+
+
+  /**
+   * Decode the fields of a protobuf message: varint and fixed64 fields as longs and length delimited ones as bytes.
+   */
+  private static Map<Integer, List<Object>> decode(byte[] message) {
+    ByteBuffer in = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+    Map<Integer, List<Object>> retval = new HashMap<>();
+    while (in.hasRemaining()) {
+      long key = varint(in);
+      Object value;
+      switch ((int) (key & 7)) {
+        case 0:
+          value = varint(in);
+          break;
+        case 1:
+          value = in.getLong();
+          break;
+        case 2:
+          byte[] bytes = new byte[(int) varint(in)];
+          in.get(bytes);
+          value = bytes;
+          break;
+        default:
+          throw new AssertionError("unexpected wire type in key " + key);
+      }
+      List<Object> values = retval.get((int) (key >>> 3));
+      if (values == null) {
+        values = new ArrayList<>();
+        retval.put((int) (key >>> 3), values);
+      }
+      values.add(value);
+    }
+    return retval;
+  }
+
+
+  private static long varint(ByteBuffer in) {
+    long retval = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      retval |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return retval;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package coyote.metrics.prom;
+
+import coyote.metrics.MetricFormatter;
+import coyote.metrics.ScoreCard;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsServerTest {
+  private static MetricsServer server;
+
+
+  @BeforeAll
+  static void startServer() throws IOException {
+    server = new MetricsServer(0).setCacheTtl(60000).start();
+  }
+
+
+  @AfterAll
+  static void stopServer() {
+    server.stop();
+  }
+
+
+  private static HttpURLConnection get(String accept, String encoding) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + MetricsServer.PATH).openConnection();
+    if (accept != null) connection.setRequestProperty("Accept", accept);
+    if (encoding != null) connection.setRequestProperty("Accept-Encoding", encoding);
+    assertEquals(200, connection.getResponseCode());
+    return connection;
+  }
+
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n; (n = in.read(buffer)) != -1; out.write(buffer, 0, n)) ;
+    in.close();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+
+  @Test
+  void servesCachedText() throws IOException {
+    ScoreCard.increaseCounter("servesCachedText", 5);
+    HttpURLConnection connection = get("text/plain", null);
+    assertEquals(PushGatewayClient.CONTENT_TYPE_004, connection.getContentType());
+    String first = read(connection.getInputStream());
+    assertTrue(first.contains("servesCachedText 5"), first);
+
+    ScoreCard.increaseCounter("servesCachedText", 5);
+    String second = read(get("text/plain", null).getInputStream());
+    assertEquals(first, second, "Scrape within the cache period was rendered again");
+  }
+
+
+  @Test
+  void negotiatesFormatAndGzip() throws IOException {
+    ScoreCard.increaseCounter("negotiatesFormatAndGzip", 1);
+    HttpURLConnection connection = get("application/json", "gzip");
+    assertEquals("gzip", connection.getContentEncoding());
+    assertEquals(MetricsServer.CONTENT_TYPE_JSON, connection.getContentType());
+    String json = read(new GZIPInputStream(connection.getInputStream()));
+    assertTrue(json.startsWith("{\"timestamp\":"), json);
+
+    connection = get(MetricFormatter.PROTOBUF_CONTENT_TYPE + ";q=0.7,text/plain;version=0.0.4;q=0.3", null);
+    assertEquals(MetricFormatter.PROTOBUF_CONTENT_TYPE, connection.getContentType());
+  }
+
+}
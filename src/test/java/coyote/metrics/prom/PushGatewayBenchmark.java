@@ -0,0 +1,103 @@
+package coyote.metrics.prom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.ScoreCard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the wire bytes and latency of plain and gzip compressed pushes of realistic registry sizes.
+ *
+ * <p>Pushes go to a local stand-in for the push gateway which reads request bodies no faster than the given
+ * bandwidth, emulating a CI runner behind a slow link:</p>
+ * <pre>
+ * java coyote.metrics.prom.PushGatewayBenchmark [bytes per second, default 1048576]
+ * </pre>
+ */
+public class PushGatewayBenchmark {
+  private static final int[] SERIES = {1000, 5000, 20000};
+  private static final int RUNS = 5;
+
+  private static final AtomicLong received = new AtomicLong();
+
+
+  public static void main(String[] args) throws Exception {
+    final long bandwidth = (args.length > 0) ? Long.parseLong(args[0]) : 1024 * 1024;
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", new ThrottledGateway(bandwidth));
+    gateway.start();
+    String url = "http://localhost:" + gateway.getAddress().getPort();
+
+    System.out.println("bandwidth=" + bandwidth + " bytes/s");
+    System.out.println("series\tencoding\twire bytes\tmedian ms");
+    int created = 0;
+    for (int series : SERIES) {
+      // a realistic mix: labeled counters and gauges, and timers exporting several samples each
+      for (; created < series; created += 4) {
+        ScoreCard.getCounter("requests_" + created).addLabel("endpoint", "/api/v1/resource/" + created);
+        ScoreCard.increaseCounter("requests_" + created, created);
+        ScoreCard.increaseGauge("connections_" + created, created % 97);
+        ScoreCard.getOrCreateTimerMaster("latency_" + created).record(created % 250);
+      }
+      for (boolean gzip : new boolean[]{false, true}) {
+        PushGatewayClient client = new PushGatewayClient(url).setGzip(gzip);
+        client.push("benchmark"); // warm up
+        long[] elapsed = new long[RUNS];
+        long bytes = 0;
+        for (int run = 0; run < RUNS; run++) {
+          received.set(0);
+          long start = System.nanoTime();
+          client.push("benchmark");
+          elapsed[run] = System.nanoTime() - start;
+          bytes = received.get();
+        }
+        Arrays.sort(elapsed);
+        System.out.println(series + "\t" + (gzip ? "gzip" : "identity") + "\t" + bytes + "\t" + (elapsed[RUNS / 2] / 1000000));
+      }
+    }
+    gateway.stop(0);
+  }
+
+
+  /**
+   * Accepts pushes, reading their bodies no faster than the given bandwidth.
+   */
+  private static class ThrottledGateway implements HttpHandler {
+    private final long bandwidth;
+
+    ThrottledGateway(long bandwidth) {
+      this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      InputStream in = exchange.getRequestBody();
+      byte[] buffer = new byte[8192];
+      long start = System.nanoTime();
+      long total = 0;
+      for (int n; (n = in.read(buffer)) != -1; ) {
+        total += n;
+        long due = start + total * 1000000000L / bandwidth;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+      received.addAndGet(total);
+      exchange.sendResponseHeaders(202, -1);
+      exchange.close();
+    }
+  }
+
+}
@@ -1,10 +1,33 @@
 package coyote.metrics.prom;
 
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.MetricFormatter;
 import coyote.metrics.ScoreCard;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 class PushGatewayClientTest {
 
@@ -47,4 +70,227 @@ class PushGatewayClientTest {
 
   }
 
-}
\ No newline at end of file
+
+  @Test
+  void pushesJobsConcurrentlyOverKeptAliveConnections() throws IOException {
+    final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+    final Set<String> jobs = Collections.synchronizedSet(new HashSet<String>());
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    gateway.setExecutor(executor);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) ;
+        connections.add(exchange.getRemoteAddress().getPort());
+        String path = exchange.getRequestURI().getPath();
+        jobs.add(path);
+        exchange.sendResponseHeaders(path.contains("keepAliveJob7/") ? 500 : 202, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+    try {
+      for (int i = 0; i < 40; i++) {
+        ScoreCard.getCounter("keepAliveJob" + i).addLabel(MetricFormatter.METRIC_NAME_LABEL, "keep_alive_test");
+      }
+      PushGatewayClient client = new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort()).setParallelism(4);
+      try {
+        client.pushJobNamedMetrics("keep_alive_test");
+        fail("Failed push was not reported");
+      } catch (IOException expected) {
+        assertEquals(1, expected.getSuppressed().length, expected.getMessage());
+      }
+      assertEquals(40, jobs.size(), "A failed push stopped the others");
+      assertTrue(connections.size() <= 4, "Connections were not reused: " + connections.size());
+    } finally {
+      gateway.stop(0);
+      executor.shutdown();
+    }
+  }
+
+
+
+  @Test
+  void pushesOnlyChanges() throws IOException {
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; body.write(b)) ;
+        bodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+    try {
+      ScoreCard.increaseCounter("changes_pushed", 1);
+      ScoreCard.increaseCounter("changes_unchanged", 1);
+      PushGatewayClient client = new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort());
+      client.pushChanges("changesJob");
+      assertTrue(bodies.get(0).contains("changes_pushed 1"));
+      assertTrue(bodies.get(0).contains("changes_unchanged 1"), "the first push sends everything");
+
+      ScoreCard.increaseCounter("changes_pushed", 1);
+      client.pushChanges("changesJob");
+      String last = bodies.get(bodies.size() - 1);
+      assertTrue(last.contains("changes_pushed 2"), last);
+      assertFalse(last.contains("changes_unchanged"), last);
+    } finally {
+      gateway.stop(0);
+    }
+  }
+
+
+  @Test
+  void pushesChangesOfOtherJobsWhileOneIsSlow() throws Exception {
+    final CountDownLatch arrived = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    ExecutorService handlers = Executors.newFixedThreadPool(2);
+    gateway.setExecutor(handlers);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) ;
+        if (exchange.getRequestURI().getPath().contains("/slowJob/")) {
+          arrived.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+    ExecutorService pushers = Executors.newFixedThreadPool(2);
+    try {
+      ScoreCard.increaseCounter("changes_concurrent", 1);
+      final PushGatewayClient client = new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort());
+      Future<?> slow = pushers.submit(() -> {
+        client.pushChanges("slowJob");
+        return null;
+      });
+      assertTrue(arrived.await(10, TimeUnit.SECONDS));
+      Future<?> fast = pushers.submit(() -> {
+        client.pushChanges("fastJob");
+        return null;
+      });
+      fast.get(10, TimeUnit.SECONDS);
+      release.countDown();
+      slow.get(10, TimeUnit.SECONDS);
+    } finally {
+      release.countDown();
+      pushers.shutdown();
+      gateway.stop(0);
+      handlers.shutdown();
+    }
+  }
+
+
+  /**
+   * Start a gateway accepting every push, recording the headers and raw body of each request.
+   */
+  private static HttpServer recordingGateway(final List<Headers> headers, final List<byte[]> bodies) throws IOException {
+    HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; body.write(b)) ;
+        headers.add(exchange.getRequestHeaders());
+        bodies.add(body.toByteArray());
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+    return gateway;
+  }
+
+
+  @Test
+  void pushesGzippedBody() throws IOException {
+    final List<Headers> headers = Collections.synchronizedList(new ArrayList<Headers>());
+    final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    HttpServer gateway = recordingGateway(headers, bodies);
+    try {
+      ScoreCard.increaseCounter("gzip_pushed", 12);
+      String url = "http://localhost:" + gateway.getAddress().getPort();
+      new PushGatewayClient(url).push("gzipJob", "gzip_pushed");
+      new PushGatewayClient(url).setGzip(true).push("gzipJob", "gzip_pushed");
+
+      assertNull(headers.get(0).getFirst("Content-Encoding"));
+      assertEquals("gzip", headers.get(1).getFirst("Content-Encoding"));
+      assertEquals("chunked", headers.get(1).getFirst("Transfer-Encoding"));
+      assertNull(headers.get(1).getFirst("Content-Length"), "the compressed body was buffered to learn its length");
+
+      ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bodies.get(1)))) {
+        for (int b; (b = in.read()) != -1; inflated.write(b)) ;
+      }
+      String identity = new String(bodies.get(0), StandardCharsets.UTF_8);
+      assertTrue(identity.contains("gzip_pushed 12"), identity);
+      assertEquals(identity, new String(inflated.toByteArray(), StandardCharsets.UTF_8));
+    } finally {
+      gateway.stop(0);
+    }
+  }
+
+
+  @Test
+  void pushesProtobufBody() throws IOException {
+    final List<Headers> headers = Collections.synchronizedList(new ArrayList<Headers>());
+    final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    HttpServer gateway = recordingGateway(headers, bodies);
+    try {
+      ScoreCard.increaseCounter("proto_pushed", 3);
+      ScoreCard.increaseGauge("proto_pushed", 4);
+      new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort()).setProtobuf(true).push("protoJob", "proto_pushed");
+
+      assertEquals(PushGatewayClient.CONTENT_TYPE_PROTOBUF, headers.get(0).getFirst("Content-Type"));
+      ByteArrayInputStream in = new ByteArrayInputStream(bodies.get(0));
+      int families = 0;
+      while (in.available() > 0) {
+        int length = (int) readVarint(in);
+        assertTrue(length > 0 && length <= in.available(), "truncated MetricFamily");
+        byte[] family = new byte[length];
+        assertEquals(length, in.read(family, 0, length));
+        // field 1 of a MetricFamily is its name
+        ByteArrayInputStream fields = new ByteArrayInputStream(family);
+        assertEquals(0x0a, fields.read());
+        byte[] name = new byte[(int) readVarint(fields)];
+        assertEquals(name.length, fields.read(name, 0, name.length));
+        assertEquals("proto_pushed", new String(name, StandardCharsets.UTF_8));
+        families++;
+      }
+      assertEquals(2, families, "one family for each of the counter and the gauge");
+    } finally {
+      gateway.stop(0);
+    }
+  }
+
+
+  private static long readVarint(InputStream in) throws IOException {
+    long retval = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.read();
+      assertTrue(b != -1, "truncated varint");
+      retval |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return retval;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,106 @@
+package coyote.metrics.prom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.ScoreCard;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PushSchedulerTest {
+  private HttpServer gateway;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile CountDownLatch release = new CountDownLatch(0);
+  private final CountDownLatch received = new CountDownLatch(1);
+
+
+  @BeforeEach
+  void startGateway() throws IOException {
+    gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) ;
+        requests.incrementAndGet();
+        received.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) {
+        }
+        exchange.sendResponseHeaders(failures.getAndDecrement() > 0 ? 503 : 202, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+  }
+
+
+  @AfterEach
+  void stopGateway() {
+    gateway.stop(0);
+  }
+
+
+  private PushScheduler newScheduler() {
+    return new PushScheduler(new PushGatewayClient("http://localhost:" + gateway.getAddress().getPort()));
+  }
+
+
+  @Test
+  void coalescesPendingPushes() throws Exception {
+    release = new CountDownLatch(1);
+    PushScheduler scheduler = newScheduler();
+    assertTrue(scheduler.push("coalesce"));
+    assertTrue(received.await(5, TimeUnit.SECONDS), "First push never arrived");
+    for (int i = 0; i < 5; i++) {
+      assertTrue(scheduler.push("coalesce"));
+    }
+    assertEquals(1, scheduler.getPendingCount(), "Requests for the same job were not coalesced");
+    release.countDown();
+    assertTrue(scheduler.flush(5000));
+    assertEquals(2, requests.get());
+    scheduler.close();
+  }
+
+
+  @Test
+  void retriesWithBackoff() {
+    failures.set(2);
+    long retries = ScoreCard.getCounter(PushScheduler.RETRY_COUNTER).getValue();
+    PushScheduler scheduler = newScheduler().setBackoff(10, 50, 5);
+    scheduler.push("retry");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (requests.get() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+    assertEquals(3, requests.get(), "Failed pushes were not retried");
+    assertEquals(retries + 2, ScoreCard.getCounter(PushScheduler.RETRY_COUNTER).getValue());
+    scheduler.close();
+  }
+
+
+  @Test
+  void flushMeetsDeadline() {
+    release = new CountDownLatch(1);
+    PushScheduler scheduler = newScheduler();
+    scheduler.push("slow");
+    long start = System.currentTimeMillis();
+    assertFalse(scheduler.flush(200), "Flush reported an unfinished push as sent");
+    assertTrue(System.currentTimeMillis() - start < 2000, "Flush overran its deadline");
+    release.countDown();
+    scheduler.close();
+  }
+
+}
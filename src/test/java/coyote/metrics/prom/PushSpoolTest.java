@@ -0,0 +1,217 @@
+package coyote.metrics.prom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.ScoreCard;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PushSpoolTest {
+  private HttpServer gateway;
+  private String url;
+  private File directory;
+  private volatile int status = 202;
+  /**
+   * When set, the gateway counts down the first latch and waits for the second before answering.
+   */
+  private volatile CountDownLatch[] stall = null;
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+
+  @BeforeEach
+  void startGateway() throws IOException {
+    directory = Files.createTempDirectory("push-spool").toFile();
+    gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    gateway.createContext("/metrics/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; body.write(b)) ;
+        CountDownLatch[] latches = stall;
+        if (latches != null) {
+          latches[0].countDown();
+          try {
+            latches[1].await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (status == 202) {
+          received.add(exchange.getRequestURI().getPath() + "\n" + new String(body.toByteArray(), StandardCharsets.UTF_8));
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    gateway.start();
+    url = "http://localhost:" + gateway.getAddress().getPort();
+  }
+
+
+  @AfterEach
+  void stopGateway() {
+    gateway.stop(0);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+
+  @Test
+  void spoolsDuringOutageAndReplaysInOrder() throws IOException {
+    PushSpool spool = new PushSpool(directory);
+    PushGatewayClient client = new PushGatewayClient(url).setSpool(spool);
+
+    status = 503;
+    ScoreCard.increaseGauge("spool_outage", 1);
+    client.push("spoolA");
+    ScoreCard.increaseGauge("spool_outage", 1);
+    client.push("spoolB");
+    assertFalse(spool.isEmpty());
+    assertTrue(received.isEmpty());
+
+    // the gateway recovers: the next push replays the outage in order before sending the current state
+    status = 202;
+    ScoreCard.increaseGauge("spool_outage", 1);
+    client.push("spoolC");
+    assertTrue(spool.isEmpty());
+    assertEquals(0, directory.listFiles().length);
+    assertEquals(3, received.size());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(received.get(i).contains("/job/spool" + (char) ('A' + i) + "/"), received.get(i));
+      assertTrue(received.get(i).contains("spool_outage " + (i + 1) + "\n"), received.get(i));
+    }
+    spool.close();
+  }
+
+
+  @Test
+  void rejectedPushesAreNotSpooled() throws IOException {
+    PushSpool spool = new PushSpool(directory);
+    status = 400;
+    try {
+      new PushGatewayClient(url).setSpool(spool).push("spoolRejected");
+      fail("a rejected push must throw");
+    } catch (IOException expected) {
+      // the gateway will never accept it
+    }
+    assertTrue(spool.isEmpty());
+    spool.close();
+  }
+
+
+  @Test
+  void dropsOldestPushesWhenFull() throws IOException {
+    PushSpool spool = new PushSpool(directory, 4096);
+    for (int i = 0; i < 50; i++) {
+      assertTrue(spool.append(push(i, 200)));
+      assertTrue(spool.getSize() <= 4096);
+    }
+    assertTrue(spool.getDroppedCount() > 0);
+
+    assertTrue(spool.replay(new PushGatewayClient(url)));
+    assertEquals(50 - spool.getDroppedCount(), received.size());
+    for (int i = 0; i < received.size(); i++) {
+      assertTrue(received.get(i).endsWith("push " + (spool.getDroppedCount() + i)), received.get(i));
+    }
+    assertFalse(spool.append(push(50, 8192)));
+    spool.close();
+  }
+
+
+  @Test
+  void survivesRestartWithTornRecord() throws IOException {
+    PushSpool spool = new PushSpool(directory);
+    for (int i = 0; i < 3; i++) {
+      spool.append(push(i, 10));
+    }
+    spool.close();
+
+    // a crash part way through appending the last record
+    File[] segments = directory.listFiles();
+    assertEquals(1, segments.length);
+    RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+    file.setLength(file.length() - 5);
+    file.close();
+
+    PushSpool reopened = new PushSpool(directory);
+    reopened.append(push(3, 10));
+    assertTrue(reopened.replay(new PushGatewayClient(url)));
+    assertEquals(1, reopened.getCorruptCount());
+    assertEquals(3, received.size());
+    assertTrue(received.get(0).endsWith("push 0"));
+    assertTrue(received.get(1).endsWith("push 1"));
+    assertTrue(received.get(2).endsWith("push 3"));
+    reopened.close();
+  }
+
+
+  @Test
+  void appendsWhileReplaying() throws Exception {
+    final PushSpool spool = new PushSpool(directory);
+    spool.append(push(0, 10));
+    spool.append(push(1, 10));
+    CountDownLatch arrived = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    stall = new CountDownLatch[]{arrived, release};
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Boolean> replay = executor.submit(() -> spool.replay(new PushGatewayClient(url)));
+      assertTrue(arrived.await(10, TimeUnit.SECONDS));
+
+      // the spool is usable while a push is being replayed
+      Future<Boolean> appended = executor.submit(() -> !spool.isEmpty() && spool.getSize() > 0 && spool.append(push(2, 10)));
+      assertTrue(appended.get(10, TimeUnit.SECONDS), "the spool is blocked by the replay");
+
+      stall = null;
+      release.countDown();
+      assertTrue(replay.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+    assertTrue(spool.isEmpty());
+    assertEquals(3, received.size());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(received.get(i).endsWith("push " + i), received.get(i));
+    }
+    spool.close();
+  }
+
+
+  private PushSpool.Push push(int n, int padding) {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < padding; i++) {
+      body.append('#');
+    }
+    body.append("\npush ").append(n);
+    return new PushSpool.Push("POST", url + "/metrics/job/spooled", PushGatewayClient.CONTENT_TYPE_004, null, body.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+}
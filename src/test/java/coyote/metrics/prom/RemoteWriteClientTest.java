@@ -0,0 +1,251 @@
+package coyote.metrics.prom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import coyote.metrics.Buckets;
+import coyote.metrics.Counter;
+import coyote.metrics.Monitor;
+import coyote.metrics.TimingMaster;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RemoteWriteClientTest {
+  private HttpServer receiver;
+  private String url;
+  /**
+   * The status codes to answer with before answering 204.
+   */
+  private final ConcurrentLinkedQueue<Integer> statuses = new ConcurrentLinkedQueue<>();
+  private final List<byte[]> requests = Collections.synchronizedList(new ArrayList<byte[]>());
+
+
+  @BeforeEach
+  void startReceiver() throws IOException {
+    receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    receiver.createContext("/api/v1/write", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        InputStream request = exchange.getRequestBody();
+        for (int b; (b = request.read()) != -1; raw.write(b)) ;
+        Integer status = statuses.poll();
+        if (status == null) {
+          assertEquals("snappy", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+          assertEquals(RemoteWriteClient.VERSION, exchange.getRequestHeaders().getFirst("X-Prometheus-Remote-Write-Version"));
+          requests.add(uncompress(raw.toByteArray()));
+          status = 204;
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    receiver.start();
+    url = "http://localhost:" + receiver.getAddress().getPort() + "/api/v1/write";
+  }
+
+
+  @AfterEach
+  void stopReceiver() {
+    receiver.stop(0);
+  }
+
+
+  @Test
+  void compressesSnappyBlocks() {
+    Random random = new Random(42);
+    byte[] noise = new byte[70000];
+    random.nextBytes(noise);
+    byte[] repetitive = new byte[200000];
+    for (int i = 0; i < repetitive.length; i++) {
+      repetitive[i] = (byte) ("series_" + (i / 97 % 13)).charAt(i % 8);
+    }
+    Snappy snappy = new Snappy();
+    for (byte[] input : Arrays.asList(new byte[0], new byte[]{1, 2, 3}, noise, repetitive)) {
+      byte[] compressed = new byte[Snappy.maxCompressedLength(input.length)];
+      int length = snappy.compress(input, 0, input.length, compressed);
+      assertArrayEquals(input, uncompress(Arrays.copyOf(compressed, length)));
+    }
+    byte[] compressed = new byte[Snappy.maxCompressedLength(repetitive.length)];
+    assertTrue(snappy.compress(repetitive, 0, repetitive.length, compressed) < repetitive.length / 10);
+  }
+
+
+  @Test
+  void writesSeriesAcrossShards() {
+    Counter counter = new Counter("rw_requests");
+    counter.addLabel("zone", "a");
+    counter.addLabel("Region", "eu");
+    counter.increase(42);
+    TimingMaster master = new TimingMaster("rw_latency");
+    master.setBuckets(new Buckets(10));
+    master.record(5);
+    master.record(50);
+
+    RemoteWriteClient client = new RemoteWriteClient(url, 3).setBatching(2, 60000);
+    long now = System.currentTimeMillis();
+    assertEquals(5, client.write(Arrays.<Monitor>asList(counter, master)));
+    assertTrue(client.flush(5000));
+    client.close();
+    assertEquals(5, client.getSentCount());
+
+    List<List<String>> series = new ArrayList<>();
+    for (byte[] request : requests) {
+      int count = 0;
+      for (ByteBuffer field : fields(request, 1)) {
+        List<String> labels = new ArrayList<>();
+        for (ByteBuffer label : fields(field.duplicate(), 1)) {
+          labels.add(string(fields(label.duplicate(), 1).get(0)) + "=" + string(fields(label.duplicate(), 2).get(0)));
+        }
+        List<String> sorted = new ArrayList<>(labels);
+        Collections.sort(sorted);
+        assertEquals(sorted, labels, "labels are sorted by name");
+        ByteBuffer sample = fields(field.duplicate(), 2).get(0).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(9, sample.get());
+        labels.add(Double.toString(sample.getDouble()));
+        assertEquals(2 << 3, sample.get());
+        assertTrue(Math.abs(varint(sample) - now) < 5000);
+        series.add(labels);
+        count++;
+      }
+      assertTrue(count <= 2, "requests hold at most the batch of series");
+    }
+    assertTrue(series.contains(Arrays.asList("Region=eu", "__name__=rw_requests", "zone=a", "42.0")), series.toString());
+    assertTrue(series.contains(Arrays.asList("__name__=rw_latency_bucket", "le=10", "1.0")), series.toString());
+    assertTrue(series.contains(Arrays.asList("__name__=rw_latency_bucket", "le=+Inf", "2.0")), series.toString());
+    assertTrue(series.contains(Arrays.asList("__name__=rw_latency_sum", "55.0")), series.toString());
+    assertTrue(series.contains(Arrays.asList("__name__=rw_latency_count", "2.0")), series.toString());
+  }
+
+
+  @Test
+  void retriesServerErrorsAndDropsRejections() {
+    RemoteWriteClient client = new RemoteWriteClient(url, 1).setRetry(5, 1, 10);
+    statuses.add(503);
+    statuses.add(429);
+    client.write(Collections.singletonList(new Counter("rw_retried")));
+    assertTrue(client.flush(5000));
+    assertEquals(1, client.getSentCount());
+    assertEquals(2, client.getRetriedCount());
+
+    statuses.add(400);
+    client.write(Collections.singletonList(new Counter("rw_rejected")));
+    assertTrue(client.flush(5000));
+    assertEquals(1, client.getDroppedCount());
+    assertEquals(2, client.getRetriedCount(), "rejected requests are not retried");
+    assertTrue(client.getLastFailure().getMessage().contains("400"));
+
+    client.setMaxBufferedBytes(1);
+    assertEquals(0, client.write(Collections.singletonList(new Counter("rw_overflow"))));
+    assertEquals(2, client.getDroppedCount());
+    client.close();
+  }
+
+
+  /**
+   * Decode a snappy block.
+   */
+  private static byte[] uncompress(byte[] compressed) {
+    ByteBuffer in = ByteBuffer.wrap(compressed);
+    byte[] out = new byte[(int) varint(in)];
+    int op = 0;
+    while (in.hasRemaining()) {
+      int tag = in.get() & 0xFF;
+      switch (tag & 3) {
+        case 0:
+          int length = tag >>> 2;
+          if (length >= 60) {
+            int bytes = length - 59;
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+              length |= (in.get() & 0xFF) << (8 * i);
+            }
+          }
+          in.get(out, op, length + 1);
+          op += length + 1;
+          break;
+        case 1:
+          op = copy(out, op, ((tag >>> 5) << 8) | (in.get() & 0xFF), ((tag >>> 2) & 7) + 4);
+          break;
+        case 2:
+          op = copy(out, op, (in.get() & 0xFF) | (in.get() & 0xFF) << 8, (tag >>> 2) + 1);
+          break;
+        default:
+          fail("unexpected four byte offset copy");
+      }
+    }
+    assertEquals(out.length, op);
+    return out;
+  }
+
+
+  private static int copy(byte[] out, int op, int distance, int length) {
+    assertTrue(distance > 0 && distance <= op, "copy from " + distance + " back at " + op);
+    for (int i = 0; i < length; i++, op++) {
+      out[op] = out[op - distance];
+    }
+    return op;
+  }
+
+
+  /**
+   * @return the values of the length delimited fields with the given number.
+   */
+  private static List<ByteBuffer> fields(byte[] message, int field) {
+    return fields(ByteBuffer.wrap(message), field);
+  }
+
+
+  private static List<ByteBuffer> fields(ByteBuffer in, int field) {
+    List<ByteBuffer> retval = new ArrayList<>();
+    while (in.hasRemaining()) {
+      long key = varint(in);
+      assertEquals(2, key & 7);
+      int length = (int) varint(in);
+      ByteBuffer value = in.slice();
+      value.limit(length);
+      in.position(in.position() + length);
+      if (key >>> 3 == field) {
+        retval.add(value);
+      }
+    }
+    return retval;
+  }
+
+
+  private static String string(ByteBuffer value) {
+    byte[] bytes = new byte[value.remaining()];
+    value.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+
+  private static long varint(ByteBuffer in) {
+    long retval = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      retval |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return retval;
+      }
+    }
+  }
+
+}
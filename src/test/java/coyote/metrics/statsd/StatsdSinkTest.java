@@ -0,0 +1,101 @@
+package coyote.metrics.statsd;
+
+import coyote.metrics.Buckets;
+import coyote.metrics.ScoreCard;
+import coyote.metrics.TimingMaster;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatsdSinkTest {
+  private static final int PACKET_SIZE = 200;
+
+  private DatagramSocket agent;
+  private StatsdSink sink;
+
+
+  @BeforeEach
+  void openAgent() throws IOException {
+    agent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    agent.setSoTimeout(300);
+    agent.setReceiveBufferSize(1024 * 1024);
+    sink = new StatsdSink("localhost", agent.getLocalPort()).setPrefix("ci.").setTags(true).setMaxPacketSize(PACKET_SIZE);
+  }
+
+
+  @AfterEach
+  void closeAgent() throws IOException {
+    sink.close();
+    agent.close();
+  }
+
+
+  @Test
+  void sendsChangesPackedIntoDatagrams() throws IOException {
+    ScoreCard.getCounter("statsd_requests").addLabel("env", "ci,1");
+    ScoreCard.increaseCounter("statsd_requests", 5);
+    ScoreCard.decreaseGauge("statsd_balance", 3);
+    TimingMaster summary = ScoreCard.getOrCreateTimerMaster("statsd_summary");
+    summary.setBuckets(null);
+    summary.record(10);
+    summary.record(20);
+    summary.record(60);
+    TimingMaster histogram = ScoreCard.getOrCreateTimerMaster("statsd_histogram");
+    histogram.setBuckets(new Buckets(10, 100));
+    histogram.record(5);
+    histogram.record(7);
+    histogram.record(50);
+
+    sink.flush();
+    List<String> lines = receive();
+    assertTrue(lines.contains("ci.statsd_requests:5|c|#env:ci_1"), lines.toString());
+    int zero = lines.indexOf("ci.statsd_balance:0|g");
+    assertTrue(zero >= 0 && "ci.statsd_balance:-3|g".equals(lines.get(zero + 1)), "negative gauges are set by way of zero");
+    assertTrue(lines.contains("ci.statsd_summary:30|ms|@0.3333333333333333"), lines.toString());
+    assertTrue(lines.contains("ci.statsd_histogram:5|ms|@0.5"), lines.toString());
+    assertTrue(lines.contains("ci.statsd_histogram:55|ms"), lines.toString());
+
+    // only what changed is sent again, and counters send their increase
+    ScoreCard.increaseCounter("statsd_requests", 2);
+    histogram.record(500);
+    sink.flush();
+    lines = receive();
+    assertTrue(lines.contains("ci.statsd_requests:2|c|#env:ci_1"), lines.toString());
+    assertTrue(lines.contains("ci.statsd_histogram:300|ms"), lines.toString());
+    for (String line : lines) {
+      assertFalse(line.startsWith("ci.statsd_balance") || line.startsWith("ci.statsd_summary"), line);
+    }
+  }
+
+
+  /**
+   * Receive datagrams until none arrive for a while, checking their size and splitting them into lines.
+   */
+  private List<String> receive() throws IOException {
+    List<String> retval = new ArrayList<>();
+    byte[] buffer = new byte[65536];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        agent.receive(packet);
+      } catch (SocketTimeoutException e) {
+        return retval;
+      }
+      assertTrue(packet.getLength() <= PACKET_SIZE, "datagram of " + packet.getLength() + " bytes");
+      retval.addAll(Arrays.asList(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split("\n")));
+    }
+  }
+
+}